@@ -20,10 +20,20 @@ package org.apache.manifoldcf.agents.incrementalingest;
 
 import org.apache.manifoldcf.core.interfaces.*;
 import org.apache.manifoldcf.agents.interfaces.*;
+import org.apache.manifoldcf.agents.output.OutputBatchAdapter;
 import org.apache.manifoldcf.agents.system.Logging;
 import org.apache.manifoldcf.agents.system.ManifoldCF;
 import java.util.*;
 import java.io.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 /** Incremental ingestion API implementation.
 * This class is responsible for keeping track of what has been sent where, and also the corresponding version of
@@ -75,6 +85,18 @@ public class IncrementalIngester extends org.apache.manifoldcf.core.database.Bas
   protected final static String lastIngestField = "lastingest";
   protected final static String authorityNameField = "authorityname";
 
+  /** Property which, if true, sends a document to sibling pipeline stages from separate threads at the same time */
+  public final static String parallelFanoutProperty = "org.apache.manifoldcf.ingest.parallelfanout";
+  /** Property giving the most bytes of a document's binary stream to keep in memory while it is sent to sibling
+  * pipeline stages; a negative value saves every such document to a temporary file first */
+  public final static String fanoutBufferSizeProperty = "org.apache.manifoldcf.ingest.fanoutbuffersize";
+  /** Property which, if true, writes the ingest status records for a batch of documents sent to an output connector
+  * in one transaction, as soon as the batch is sent, rather than one at a time */
+  public final static String batchIngestStatusProperty = "org.apache.manifoldcf.ingest.batchstatus";
+
+  /** Pool of threads used to send documents to sibling pipeline stages, shared by all ingesters in the JVM.  Created on first use. */
+  protected static ExecutorService fanoutThreadPool = null;
+
   // Thread context.
   protected final IThreadContext threadContext;
   // Lock manager.
@@ -85,6 +107,15 @@ public class IncrementalIngester extends org.apache.manifoldcf.core.database.Bas
   protected final IOutputConnectorPool outputConnectorPool;
   // Transformation connector pool manager
   protected final ITransformationConnectorPool transformationConnectorPool;
+  // True if sibling pipeline stages are sent documents in parallel
+  protected final boolean parallelFanout;
+  // Memory limit for the binary stream of a document sent to sibling pipeline stages
+  protected final long fanoutBufferSize;
+  // True if the ingest status records for a batch of documents sent to an output are written together
+  protected final boolean batchIngestStatus;
+  // Documents waiting to be sent to output connectors that take batches, keyed by output connection name and then
+  // by output version string, or null if documents are being sent as they arrive
+  protected Map<String,Map<String,OutputBatch>> pendingOutputDocuments = null;
   
   /** Constructor.
   */
@@ -97,6 +128,58 @@ public class IncrementalIngester extends org.apache.manifoldcf.core.database.Bas
     connectionManager = OutputConnectionManagerFactory.make(threadContext);
     outputConnectorPool = OutputConnectorPoolFactory.make(threadContext);
     transformationConnectorPool = TransformationConnectorPoolFactory.make(threadContext);
+    parallelFanout = LockManagerFactory.getBooleanProperty(threadContext,parallelFanoutProperty,false);
+    fanoutBufferSize = LockManagerFactory.getLongProperty(threadContext,fanoutBufferSizeProperty,262144L);
+    batchIngestStatus = LockManagerFactory.getBooleanProperty(threadContext,batchIngestStatusProperty,false);
+  }
+
+  /** Get the shared fan-out thread pool, creating it if needed.
+  * The pool has no upper bound, because the number of branches in flight is already limited by the number
+  * of worker threads and the shape of the pipelines.  Idle threads are retired after a minute.
+  */
+  protected static synchronized ExecutorService getFanoutThreadPool()
+  {
+    if (fanoutThreadPool == null)
+    {
+      fanoutThreadPool = Executors.newCachedThreadPool(new ThreadFactory()
+        {
+          public Thread newThread(Runnable r)
+          {
+            Thread t = new Thread(r,"Pipeline fan-out thread");
+            t.setDaemon(true);
+            return t;
+          }
+        });
+    }
+    return fanoutThreadPool;
+  }
+
+  /** Give up a thread's hold on a pipeline's thread context, so that another fan-out branch may use it.
+  *@param contextLock is the lock guarding the thread context, or null if the pipeline is not parallel.
+  *@return the number of holds released.
+  */
+  protected static int releaseContext(ReentrantLock contextLock)
+  {
+    if (contextLock == null)
+      return 0;
+    int holdCount = contextLock.getHoldCount();
+    for (int i = 0; i < holdCount; i++)
+    {
+      contextLock.unlock();
+    }
+    return holdCount;
+  }
+
+  /** Take back holds on a pipeline's thread context, given up by releaseContext().
+  *@param contextLock is the lock guarding the thread context, or null if the pipeline is not parallel.
+  *@param holdCount is the number of holds released.
+  */
+  protected static void reacquireContext(ReentrantLock contextLock, int holdCount)
+  {
+    for (int i = 0; i < holdCount; i++)
+    {
+      contextLock.lock();
+    }
   }
 
   /** Install the incremental ingestion manager.
@@ -2004,6 +2087,457 @@ public class IncrementalIngester extends org.apache.manifoldcf.core.database.Bas
 
   }
   
+  /** Start holding documents that are to be sent to output connectors that take batches, so that they can be
+  * sent together by flushOutputBatch().  Documents for other output connectors are still sent as they arrive.
+  */
+  @Override
+  public void beginOutputBatch()
+  {
+    if (pendingOutputDocuments == null)
+      pendingOutputDocuments = new TreeMap<String,Map<String,OutputBatch>>();
+  }
+
+  /** Send all held documents, one batch per output connection and output version, and stop holding them.
+  * If a batch cannot be sent, the documents that have not yet been sent are thrown away, and will be indexed again.
+  */
+  @Override
+  public void flushOutputBatch()
+    throws ManifoldCFException, ServiceInterruption
+  {
+    if (pendingOutputDocuments == null)
+      return;
+    Map<String,Map<String,OutputBatch>> batches = pendingOutputDocuments;
+    pendingOutputDocuments = null;
+    try
+    {
+      for (String outputConnectionName : batches.keySet())
+      {
+        for (OutputBatch batch : batches.get(outputConnectionName).values())
+        {
+          sendOutputBatch(outputConnectionName,batch);
+        }
+      }
+    }
+    finally
+    {
+      closeOutputBatches(batches);
+    }
+  }
+
+  /** Stop holding documents for output connectors that take batches, and throw away any that are held.  The
+  * documents involved keep the records written before they were held, which mark them as needing to be indexed again.
+  */
+  @Override
+  public void discardOutputBatch()
+    throws ManifoldCFException
+  {
+    if (pendingOutputDocuments == null)
+      return;
+    Map<String,Map<String,OutputBatch>> batches = pendingOutputDocuments;
+    pendingOutputDocuments = null;
+    closeOutputBatches(batches);
+  }
+
+  /** Hold a document for an output connector that takes batches.  The document's data is saved locally.
+  *@return true if the document is held, or false if it needs to be sent now.
+  */
+  protected boolean holdOutputDocument(IOutputConnector outputConnector, IOutputConnection outputConnection,
+    VersionContext outputDescription, String docKey, String componentHash, String documentVersion,
+    String transformationVersion, String authorityNameString, long ingestTime,
+    String documentURI, String documentURIHash, RepositoryDocument document, IOutputActivity activity,
+    ReentrantLock contextLock)
+    throws ManifoldCFException, IOException
+  {
+    if (pendingOutputDocuments == null || outputConnection == null || !(outputConnector instanceof IOutputBatchConnector))
+      return false;
+    // Other branches may use the thread context while the document is read
+    RepositoryDocumentFactory factory;
+    int holdCount = releaseContext(contextLock);
+    try
+    {
+      factory = new RepositoryDocumentFactory(document);
+    }
+    finally
+    {
+      reacquireContext(contextLock,holdCount);
+    }
+    String outputConnectionName = outputConnection.getName();
+    Map<String,OutputBatch> connectionBatches = pendingOutputDocuments.get(outputConnectionName);
+    if (connectionBatches == null)
+    {
+      connectionBatches = new HashMap<String,OutputBatch>();
+      pendingOutputDocuments.put(outputConnectionName,connectionBatches);
+    }
+    OutputBatch batch = connectionBatches.get(outputDescription.getVersionString());
+    if (batch == null)
+    {
+      batch = new OutputBatch(outputConnection,outputDescription);
+      connectionBatches.put(outputDescription.getVersionString(),batch);
+    }
+    // A later copy of the same document replaces an earlier one
+    HeldOutputDocument previous = batch.documents.put(makePendingKey(docKey,componentHash),new HeldOutputDocument(docKey,componentHash,
+      documentVersion,transformationVersion,authorityNameString,ingestTime,documentURI,documentURIHash,activity,factory));
+    if (previous != null)
+      previous.factory.close();
+    return true;
+  }
+
+  /** Send one batch of held documents to its output connector, and note their ingestion.
+  *@param outputConnectionName is the output connection name.
+  *@param batch is the batch.
+  */
+  protected void sendOutputBatch(String outputConnectionName, OutputBatch batch)
+    throws ManifoldCFException, ServiceInterruption
+  {
+    if (batch.documents.size() == 0)
+      return;
+    IOutputConnector connector = outputConnectorPool.grab(batch.outputConnection);
+    if (connector == null)
+      // The connector is not installed; treat this as a service interruption.
+      throw new ServiceInterruption("Output connector not installed",0L);
+    try
+    {
+      // Keep other threads from claiming any of these URIs while the documents are sent
+      Set<String> lockNames = new TreeSet<String>();
+      Set<String> docKeys = new HashSet<String>();
+      for (HeldOutputDocument held : batch.documents.values())
+      {
+        lockNames.add(createURILockName(outputConnectionName,held.documentURIHash));
+        docKeys.add(held.docKey);
+      }
+      String[] lockArray = lockNames.toArray(new String[0]);
+      lockManager.enterLocks(null,null,lockArray);
+      try
+      {
+        // Only send documents whose marker record is still in place.  Others have been removed, or have had
+        // their URI claimed by another document, since they were held.
+        Map<String,IResultRow> rows = findIngestStatusRows(outputConnectionName,docKeys,false);
+        List<HeldOutputDocument> sendList = new ArrayList<HeldOutputDocument>();
+        for (String key : batch.documents.keySet())
+        {
+          HeldOutputDocument held = batch.documents.get(key);
+          IResultRow row = rows.get(key);
+          if (row != null && held.documentURI.equals(row.getValue(docURIField)))
+            sendList.add(held);
+          else if (Logging.ingest.isDebugEnabled())
+            Logging.ingest.debug("Held document '"+held.docKey+"' for output connection '"+outputConnectionName+"' was removed before it could be sent; skipping");
+        }
+        if (sendList.size() == 0)
+          return;
+
+        String[] documentURIs = new String[sendList.size()];
+        RepositoryDocument[] documents = new RepositoryDocument[sendList.size()];
+        String[] authorityNameStrings = new String[sendList.size()];
+        IOutputAddActivity[] activities = new IOutputAddActivity[sendList.size()];
+        for (int i = 0; i < documents.length; i++)
+        {
+          HeldOutputDocument held = sendList.get(i);
+          documentURIs[i] = held.documentURI;
+          documents[i] = held.factory.createDocument();
+          authorityNameStrings[i] = held.authorityNameString;
+          activities[i] = held.activity;
+        }
+        if (Logging.ingest.isDebugEnabled())
+          Logging.ingest.debug("Sending "+documents.length+" held documents to output connection '"+outputConnectionName+"'");
+        int[] results;
+        try
+        {
+          results = new OutputBatchAdapter(connector).addOrReplaceDocumentsWithException(documentURIs,batch.outputDescription,documents,
+            authorityNameStrings,activities);
+        }
+        catch (IOException e)
+        {
+          throw new ManifoldCFException("IO exception reading held document data: "+e.getMessage(),e);
+        }
+        // Either way, the document is recorded, so that it is not sent again until it changes.  As when documents
+        // are sent one at a time, it is up to the connector to record a rejection in the history.  The records are
+        // written now, while the URIs are still locked, before anything else is done.
+        Map<String,PendingIngestStatus> records = new HashMap<String,PendingIngestStatus>();
+        for (int i = 0; i < documents.length; i++)
+        {
+          HeldOutputDocument held = sendList.get(i);
+          if (results[i] != IPipelineConnector.DOCUMENTSTATUS_ACCEPTED && Logging.ingest.isDebugEnabled())
+            Logging.ingest.debug("Document '"+held.docKey+"' was rejected by output connection '"+outputConnectionName+"'");
+          if (batchIngestStatus)
+            records.put(makePendingKey(held.docKey,held.componentHash),new PendingIngestStatus(held.docKey,held.componentHash,
+              held.documentVersion,held.transformationVersion,batch.outputDescription.getVersionString(),held.authorityNameString,
+              held.ingestTime,held.documentURI,held.documentURIHash));
+          else
+            noteDocumentIngest(outputConnectionName,held.docKey,held.componentHash,held.documentVersion,held.transformationVersion,
+              batch.outputDescription.getVersionString(),held.authorityNameString,held.ingestTime,held.documentURI,held.documentURIHash);
+        }
+        writeIngestStatusBatch(outputConnectionName,records);
+      }
+      finally
+      {
+        lockManager.leaveLocks(null,null,lockArray);
+      }
+    }
+    finally
+    {
+      outputConnectorPool.release(batch.outputConnection,connector);
+    }
+  }
+
+  /** Release the local copies of the documents in a set of batches.
+  */
+  protected static void closeOutputBatches(Map<String,Map<String,OutputBatch>> batches)
+    throws ManifoldCFException
+  {
+    for (Map<String,OutputBatch> connectionBatches : batches.values())
+    {
+      for (OutputBatch batch : connectionBatches.values())
+      {
+        for (HeldOutputDocument held : batch.documents.values())
+        {
+          held.factory.close();
+        }
+        batch.documents.clear();
+      }
+    }
+  }
+
+  /** Write a batch of ingest status records for one output connection, in one transaction.  Existing rows are
+  * locked and then updated, and missing ones are inserted, in the same way as noteDocumentIngest() does for one row.
+  * A record that has a document URI follows the marker record written before the document was sent; if that row
+  * has gone, the URI has been taken over by another document, and the record is dropped.
+  *@param outputConnectionName is the output connection name.
+  *@param records is the set of records, keyed by document key and component hash.
+  */
+  protected void writeIngestStatusBatch(String outputConnectionName, Map<String,PendingIngestStatus> records)
+    throws ManifoldCFException
+  {
+    if (records.size() == 0)
+      return;
+    Set<String> docKeys = new TreeSet<String>();
+    for (PendingIngestStatus record : records.values())
+    {
+      docKeys.add(record.docKey);
+    }
+    // Transaction abort due to deadlock, or due to another thread inserting a row first, is retried here.
+    while (true)
+    {
+      long sleepAmt = 0L;
+      beginTransaction();
+      try
+      {
+        // Lock all the existing rows
+        Map<String,IResultRow> existingRows = findIngestStatusRows(outputConnectionName,docKeys,true);
+
+        List<Map<String,Object>> updateMaps = new ArrayList<Map<String,Object>>();
+        List<List> updateParameters = new ArrayList<List>();
+        List<Map<String,Object>> insertMaps = new ArrayList<Map<String,Object>>();
+        for (String key : records.keySet())
+        {
+          PendingIngestStatus record = records.get(key);
+          IResultRow row = existingRows.get(key);
+          Map<String,Object> map = new HashMap<String,Object>();
+          if (record.componentHash != null)
+            map.put(componentHashField,record.componentHash);
+          map.put(lastVersionField,record.documentVersion);
+          map.put(lastTransformationVersionField,record.transformationVersion);
+          map.put(lastOutputVersionField,record.outputVersion);
+          map.put(lastIngestField,new Long(record.ingestTime));
+          if (record.documentURI != null)
+          {
+            map.put(docURIField,record.documentURI);
+            map.put(uriHashField,record.documentURIHash);
+          }
+          if (record.authorityNameString != null)
+            map.put(authorityNameField,record.authorityNameString);
+          else
+            map.put(authorityNameField,"");
+          if (row != null)
+          {
+            map.put(changeCountField,new Long(((Long)row.getValue(changeCountField)).longValue() + 1L));
+            updateMaps.add(map);
+            List whereParameters = new ArrayList();
+            whereParameters.add(row.getValue(idField));
+            updateParameters.add(whereParameters);
+          }
+          else if (record.documentURI == null)
+          {
+            map.put(idField,new Long(IDFactory.make(threadContext)));
+            map.put(outputConnNameField,outputConnectionName);
+            map.put(docKeyField,record.docKey);
+            map.put(changeCountField,new Long(1));
+            map.put(firstIngestField,map.get(lastIngestField));
+            insertMaps.add(map);
+          }
+          else
+          {
+            if (Logging.ingest.isDebugEnabled())
+              Logging.ingest.debug("Ingest status for document '"+record.docKey+"' output connection '"+outputConnectionName+"' was removed before it could be updated; skipping");
+          }
+        }
+        if (updateMaps.size() > 0)
+          performUpdateMultiple(updateMaps,"WHERE "+idField+"=?",updateParameters,null);
+        if (insertMaps.size() > 0)
+        {
+          performInsertMultiple(insertMaps,null);
+          noteModifications(insertMaps.size(),0,0);
+        }
+        return;
+      }
+      catch (ManifoldCFException e)
+      {
+        signalRollback();
+        if (e.getErrorCode() == e.DATABASE_TRANSACTION_ABORT)
+        {
+          if (Logging.perf.isDebugEnabled())
+            Logging.perf.debug("Aborted transaction writing ingest status batch: "+e.getMessage());
+          sleepAmt = getSleepAmt();
+          continue;
+        }
+        throw e;
+      }
+      catch (Error e)
+      {
+        signalRollback();
+        throw e;
+      }
+      finally
+      {
+        endTransaction();
+        sleepFor(sleepAmt);
+      }
+    }
+  }
+
+  /** Find the ingest status rows for a set of document keys.
+  *@param outputConnectionName is the output connection name.
+  *@param docKeys are the document keys.
+  *@param forUpdate is true if the rows should be locked; this must then be done inside a transaction.
+  *@return the rows, keyed by document key and component hash.
+  */
+  protected Map<String,IResultRow> findIngestStatusRows(String outputConnectionName, Collection<String> docKeys, boolean forUpdate)
+    throws ManifoldCFException
+  {
+    Map<String,IResultRow> rval = new HashMap<String,IResultRow>();
+    int maxClauses = maxClausesRowIdsForDocIds(outputConnectionName);
+    List<String> list = new ArrayList<String>();
+    for (String docKey : docKeys)
+    {
+      if (list.size() == maxClauses)
+      {
+        findIngestStatusRows(outputConnectionName,rval,list,forUpdate);
+        list.clear();
+      }
+      list.add(docKey);
+    }
+    if (list.size() > 0)
+      findIngestStatusRows(outputConnectionName,rval,list,forUpdate);
+    return rval;
+  }
+
+  /** Find the ingest status rows for a chunk of document keys.
+  *@param outputConnectionName is the output connection name.
+  *@param rval is the map to fill in, keyed by document key and component hash.
+  *@param docKeys are the document keys.
+  *@param forUpdate is true if the rows should be locked.
+  */
+  protected void findIngestStatusRows(String outputConnectionName, Map<String,IResultRow> rval, List<String> docKeys, boolean forUpdate)
+    throws ManifoldCFException
+  {
+    ArrayList list = new ArrayList();
+    String query = buildConjunctionClause(list,new ClauseDescription[]{
+      new MultiClause(docKeyField,docKeys),
+      new UnitaryClause(outputConnNameField,outputConnectionName)});
+    IResultSet set = performQuery("SELECT "+idField+","+docKeyField+","+componentHashField+","+changeCountField+","+docURIField+" FROM "+
+      getTableName()+" WHERE "+query+(forUpdate?" FOR UPDATE":""),list,null,null);
+    for (int i = 0; i < set.getRowCount(); i++)
+    {
+      IResultRow row = set.getRow(i);
+      rval.put(makePendingKey((String)row.getValue(docKeyField),(String)row.getValue(componentHashField)),row);
+    }
+  }
+
+  /** Make the key under which a held ingest status record is kept.
+  */
+  protected static String makePendingKey(String docKey, String componentHash)
+  {
+    if (componentHash == null || componentHash.length() == 0)
+      return docKey;
+    return docKey + "/" + componentHash;
+  }
+
+  /** A set of held documents for one output connection, all with the same output version.
+  */
+  protected static class OutputBatch
+  {
+    public final IOutputConnection outputConnection;
+    public final VersionContext outputDescription;
+    // Keyed by document key and component hash, in the order the documents arrived
+    public final Map<String,HeldOutputDocument> documents = new LinkedHashMap<String,HeldOutputDocument>();
+
+    public OutputBatch(IOutputConnection outputConnection, VersionContext outputDescription)
+    {
+      this.outputConnection = outputConnection;
+      this.outputDescription = outputDescription;
+    }
+  }
+
+  /** A document held for an output connector that takes batches, with what is needed to record its ingestion.
+  */
+  protected static class HeldOutputDocument
+  {
+    public final String docKey;
+    public final String componentHash;
+    public final String documentVersion;
+    public final String transformationVersion;
+    public final String authorityNameString;
+    public final long ingestTime;
+    public final String documentURI;
+    public final String documentURIHash;
+    public final IOutputActivity activity;
+    public final RepositoryDocumentFactory factory;
+
+    public HeldOutputDocument(String docKey, String componentHash, String documentVersion, String transformationVersion,
+      String authorityNameString, long ingestTime, String documentURI, String documentURIHash,
+      IOutputActivity activity, RepositoryDocumentFactory factory)
+    {
+      this.docKey = docKey;
+      this.componentHash = componentHash;
+      this.documentVersion = documentVersion;
+      this.transformationVersion = transformationVersion;
+      this.authorityNameString = authorityNameString;
+      this.ingestTime = ingestTime;
+      this.documentURI = documentURI;
+      this.documentURIHash = documentURIHash;
+      this.activity = activity;
+      this.factory = factory;
+    }
+  }
+
+  /** An ingest status record that has not yet been written.
+  */
+  protected static class PendingIngestStatus
+  {
+    public final String docKey;
+    public final String componentHash;
+    public final String documentVersion;
+    public final String transformationVersion;
+    public final String outputVersion;
+    public final String authorityNameString;
+    public final long ingestTime;
+    public final String documentURI;
+    public final String documentURIHash;
+
+    public PendingIngestStatus(String docKey, String componentHash, String documentVersion, String transformationVersion,
+      String outputVersion, String authorityNameString, long ingestTime, String documentURI, String documentURIHash)
+    {
+      this.docKey = docKey;
+      this.componentHash = componentHash;
+      this.documentVersion = documentVersion;
+      this.transformationVersion = transformationVersion;
+      this.outputVersion = outputVersion;
+      this.authorityNameString = authorityNameString;
+      this.ingestTime = ingestTime;
+      this.documentURI = documentURI;
+      this.documentURIHash = documentURIHash;
+    }
+  }
+
   /** Note the ingestion of a document, or the "update" of a document.
   *@param outputConnectionName is the name of the output connection.
   *@param docKey is the key string describing the document.
@@ -2718,6 +3252,10 @@ public class IncrementalIngester extends org.apache.manifoldcf.core.database.Bas
       Map<Integer,PipelineAddEntryPoint> currentSet = new HashMap<Integer,PipelineAddEntryPoint>();
       // First, locate all the output stages, and enter them into the set
       IPipelineSpecificationWithVersions fullSpec = pipelineSpecificationWithVersions;
+      // When branches run in parallel, they take turns using this thread's context (database handle, lock manager,
+      // and activities).  They only really run at the same time while inside the connectors of the sibling stages
+      // themselves, which are then given thread contexts of their own.
+      ReentrantLock contextLock = parallelFanout?new ReentrantLock():null;
       
       int outputCount = fullSpec.getOutputCount();
       for (int i = 0; i < outputCount; i++)
@@ -2751,6 +3289,7 @@ public class IncrementalIngester extends org.apache.manifoldcf.core.database.Bas
         int connectionIndex = fullSpec.getOutputConnectionIndex(outputStage).intValue();
         PipelineAddEntryPoint outputStageEntryPoint = new OutputAddEntryPoint(
           outputConnectors[connectionIndex],
+          fullSpec.getOutputConnections()[connectionIndex],
           fullSpec.getStageDescriptionString(outputStage),
           new OutputActivitiesWrapper(finalActivity,fullSpec.getStageConnectionName(outputStage)),
           needToReindex,
@@ -2760,7 +3299,8 @@ public class IncrementalIngester extends org.apache.manifoldcf.core.database.Bas
           newDocumentVersion,
           docKey,
           componentHash,
-          newAuthorityNameString);
+          newAuthorityNameString,
+          contextLock);
         currentSet.put(new Integer(outputStage), outputStageEntryPoint);
       }
       // Cycle through the "current set"
@@ -2805,12 +3345,12 @@ public class IncrementalIngester extends org.apache.manifoldcf.core.database.Bas
         PipelineAddFanout pcf = new PipelineAddFanout(siblingEntryPoints,
           (parent==-1)?null:new TransformationRecordingActivity(finalActivity,
             fullSpec.getStageConnectionName(parent)),
-          finalActivity);
+          finalActivity,threadContext,contextLock,fanoutBufferSize);
         if (parent == -1)
           return pcf;
         PipelineAddEntryPoint newEntry = new PipelineAddEntryPoint(
           transformationConnectors[fullSpec.getTransformationConnectionIndex(parent).intValue()],
-          fullSpec.getStageDescriptionString(parent),newAuthorityNameString,pcf,pcf.checkNeedToReindex());
+          fullSpec.getStageDescriptionString(parent),newAuthorityNameString,pcf,pcf.checkNeedToReindex(),contextLock);
         currentSet.put(new Integer(parent), newEntry);
       }
 
@@ -2952,13 +3492,32 @@ public class IncrementalIngester extends org.apache.manifoldcf.core.database.Bas
     protected final PipelineAddEntryPoint[] entryPoints;
     protected final IOutputHistoryActivity finalHistoryActivity;
     protected final IOutputQualifyActivity finalQualifyActivity;
+    protected final IThreadContext threadContext;
+    protected final ReentrantLock contextLock;
+    protected final long bufferSize;
 
     public PipelineAddFanout(PipelineAddEntryPoint[] entryPoints, IOutputHistoryActivity finalHistoryActivity,
       IOutputQualifyActivity finalQualifyActivity)
+    {
+      this(entryPoints,finalHistoryActivity,finalQualifyActivity,null,null,-1L);
+    }
+
+    /** Constructor.
+    *@param threadContext is the thread context the pipeline's connectors were set up with.
+    *@param contextLock guards the thread context when sibling stages are sent documents in parallel, or is null
+    *  if they are sent documents one after another.
+    *@param bufferSize is the most bytes of a document's binary stream to keep in memory for the siblings, or
+    *  negative if the document should be saved to a temporary file before any sibling is sent it.
+    */
+    public PipelineAddFanout(PipelineAddEntryPoint[] entryPoints, IOutputHistoryActivity finalHistoryActivity,
+      IOutputQualifyActivity finalQualifyActivity, IThreadContext threadContext, ReentrantLock contextLock, long bufferSize)
     {
       this.entryPoints = entryPoints;
       this.finalHistoryActivity = finalHistoryActivity;
       this.finalQualifyActivity = finalQualifyActivity;
+      this.threadContext = threadContext;
+      this.contextLock = contextLock;
+      this.bufferSize = bufferSize;
     }
     
     public boolean checkNeedToReindex()
@@ -3070,9 +3629,15 @@ public class IncrementalIngester extends org.apache.manifoldcf.core.database.Bas
       else
       {
         // Create a RepositoryDocumentFactory, which we'll need to clean up at the end.
-        RepositoryDocumentFactory factory = new RepositoryDocumentFactory(document);
+        RepositoryDocumentFactory factory;
+        if (bufferSize >= 0L)
+          factory = new RepositoryDocumentFactory(document,activeCount,bufferSize);
+        else
+          factory = new RepositoryDocumentFactory(document);
         try
         {
+          if (canSendInParallel())
+            return sendInParallel(documentURI,factory);
           // If any of them accept the document, we return "accept".
           int rval = IPipelineConnector.DOCUMENTSTATUS_REJECTED;
           for (PipelineAddEntryPoint p : entryPoints)
@@ -3091,6 +3656,106 @@ public class IncrementalIngester extends org.apache.manifoldcf.core.database.Bas
       }
     }
 
+    /** Decide whether the active siblings can be sent a document in parallel.  They can't if parallel fan-out
+    * is off, or if two of them would share a connector instance.
+    */
+    protected boolean canSendInParallel()
+    {
+      if (contextLock == null)
+        return false;
+      Set<IPipelineConnector> connectors = new HashSet<IPipelineConnector>();
+      for (PipelineAddEntryPoint p : entryPoints)
+      {
+        if (p.isActive() && !connectors.add(p.pipelineConnector))
+          return false;
+      }
+      return true;
+    }
+
+    /** Send the document to all active siblings at the same time, each reading its own streams over the saved
+    * copy.  The document is accepted if any sibling accepts it.  Failures come out as they would sending to
+    * the siblings one at a time: once a sibling fails, no sibling after it that hasn't started yet is sent the
+    * document, and the exception thrown is that of the first failing sibling in sibling order.  (Later siblings
+    * that had already started are left to finish.)
+    * This doesn't return until every branch is done with the document, even if this thread is interrupted.
+    */
+    protected int sendInParallel(String documentURI, RepositoryDocumentFactory factory)
+      throws ManifoldCFException, ServiceInterruption, IOException
+    {
+      List<FanoutBranch> branches = new ArrayList<FanoutBranch>();
+      AtomicInteger firstFailure = new AtomicInteger(Integer.MAX_VALUE);
+      for (PipelineAddEntryPoint p : entryPoints)
+      {
+        if (!p.isActive())
+          continue;
+        branches.add(new FanoutBranch(p,documentURI,factory.createIndependentDocument(),threadContext,contextLock,
+          branches.size(),firstFailure));
+      }
+      CountDownLatch branchesDone = new CountDownLatch(branches.size());
+      List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+      // This thread doesn't need its context while it waits, so let the branches have it
+      int holdCount = releaseContext(contextLock);
+      try
+      {
+        for (FanoutBranch branch : branches)
+        {
+          branch.setDoneLatch(branchesDone);
+          results.add(getFanoutThreadPool().submit(branch));
+        }
+        try
+        {
+          branchesDone.await();
+        }
+        catch (InterruptedException e)
+        {
+          // Branches may still be reading the document, which is about to be closed, or be using this thread's
+          // context; stop them, and wait until they have
+          for (FanoutBranch branch : branches)
+          {
+            branch.abandon();
+          }
+          awaitUninterruptibly(branchesDone);
+          throw new ManifoldCFException("Interrupted: "+e.getMessage(),e,ManifoldCFException.INTERRUPTED);
+        }
+      }
+      finally
+      {
+        reacquireContext(contextLock,holdCount);
+      }
+
+      int rval = IPipelineConnector.DOCUMENTSTATUS_REJECTED;
+      for (Future<Integer> result : results)
+      {
+        try
+        {
+          // A branch that was skipped because an earlier sibling failed has no status
+          Integer status = result.get();
+          if (status != null && status.intValue() == IPipelineConnector.DOCUMENTSTATUS_ACCEPTED)
+            rval = IPipelineConnector.DOCUMENTSTATUS_ACCEPTED;
+        }
+        catch (InterruptedException e)
+        {
+          throw new ManifoldCFException("Interrupted: "+e.getMessage(),e,ManifoldCFException.INTERRUPTED);
+        }
+        catch (ExecutionException e)
+        {
+          Throwable cause = e.getCause();
+          if (cause instanceof ManifoldCFException)
+            throw (ManifoldCFException)cause;
+          if (cause instanceof ServiceInterruption)
+            throw (ServiceInterruption)cause;
+          if (cause instanceof IOException)
+            throw (IOException)cause;
+          if (cause instanceof RuntimeException)
+            throw (RuntimeException)cause;
+          if (cause instanceof Error)
+            throw (Error)cause;
+          throw new RuntimeException("Unexpected exception type: "+cause.getClass().getName()+": "+cause.getMessage(),cause);
+        }
+      }
+      return rval;
+    }
+
     /** Send NO document via the pipeline to the next output connection.  This is equivalent
     * to sending an empty document placeholder.
     */
@@ -3148,6 +3813,132 @@ public class IncrementalIngester extends org.apache.manifoldcf.core.database.Bas
     }
   }
 
+  /** Wait for a latch, even if interrupted; the interrupt is kept for the caller to see.
+  */
+  protected static void awaitUninterruptibly(CountDownLatch latch)
+  {
+    boolean interrupted = false;
+    while (true)
+    {
+      try
+      {
+        latch.await();
+        break;
+      }
+      catch (InterruptedException e)
+      {
+        interrupted = true;
+      }
+    }
+    if (interrupted)
+      Thread.currentThread().interrupt();
+  }
+
+  /** One branch of a parallel fan-out, which sends a document to a single sibling stage.
+  */
+  protected static class FanoutBranch implements Callable<Integer>
+  {
+    protected final PipelineAddEntryPoint entryPoint;
+    protected final String documentURI;
+    protected final RepositoryDocument document;
+    protected final IThreadContext ownerContext;
+    protected final ReentrantLock contextLock;
+    protected final int index;
+    protected final AtomicInteger firstFailure;
+    protected CountDownLatch doneLatch = null;
+    // Guarded by this object
+    protected Thread runningThread = null;
+    protected boolean abandoned = false;
+
+    public FanoutBranch(PipelineAddEntryPoint entryPoint, String documentURI, RepositoryDocument document,
+      IThreadContext ownerContext, ReentrantLock contextLock, int index, AtomicInteger firstFailure)
+    {
+      this.entryPoint = entryPoint;
+      this.documentURI = documentURI;
+      this.document = document;
+      this.ownerContext = ownerContext;
+      this.contextLock = contextLock;
+      this.index = index;
+      this.firstFailure = firstFailure;
+    }
+
+    /** Note that this branch failed, so that siblings after it that haven't started yet are skipped.
+    */
+    protected void noteFailure()
+    {
+      while (true)
+      {
+        int current = firstFailure.get();
+        if (index >= current || firstFailure.compareAndSet(current,index))
+          return;
+      }
+    }
+
+    /** Set the latch to count down when this branch is done, whether or not it ever ran.
+    */
+    public void setDoneLatch(CountDownLatch doneLatch)
+    {
+      this.doneLatch = doneLatch;
+    }
+
+    /** Stop this branch: one that hasn't started yet won't, and one that is running is interrupted.
+    */
+    public synchronized void abandon()
+    {
+      abandoned = true;
+      if (runningThread != null)
+        runningThread.interrupt();
+    }
+
+    @Override
+    public Integer call()
+      throws ManifoldCFException, ServiceInterruption, IOException
+    {
+      try
+      {
+        synchronized (this)
+        {
+          if (abandoned)
+            throw new ManifoldCFException("Interrupted",ManifoldCFException.INTERRUPTED);
+          runningThread = Thread.currentThread();
+        }
+        contextLock.lock();
+        try
+        {
+          // Sending to the siblings one at a time, none after a failing sibling would be sent the document
+          if (index > firstFailure.get())
+            return null;
+          boolean succeeded = false;
+          try
+          {
+            Integer rval = new Integer(entryPoint.addOrReplaceDocumentInBranch(documentURI,document,ownerContext));
+            succeeded = true;
+            return rval;
+          }
+          finally
+          {
+            if (!succeeded)
+              noteFailure();
+          }
+        }
+        finally
+        {
+          contextLock.unlock();
+        }
+      }
+      finally
+      {
+        synchronized (this)
+        {
+          runningThread = null;
+          // Don't leave an interrupt meant for this branch on a pool thread
+          Thread.interrupted();
+        }
+        doneLatch.countDown();
+      }
+    }
+  }
+
   /** This class describes the entry stage of an add pipeline.
   */
   public static class PipelineAddEntryPoint
@@ -3157,18 +3948,33 @@ public class IncrementalIngester extends org.apache.manifoldcf.core.database.Bas
     protected final String authorityNameString;
     protected final IOutputAddActivity addActivity;
     protected final boolean isActive;
+    protected final ReentrantLock contextLock;
+    // Set while this stage is being sent a document by a fan-out branch: the thread context its connector is
+    // given back afterwards
+    protected IThreadContext branchOwnerContext = null;
     
     public PipelineAddEntryPoint(IPipelineConnector pipelineConnector,
       VersionContext pipelineDescriptionString,
       String authorityNameString,
       IOutputAddActivity addActivity,
       boolean isActive)
+    {
+      this(pipelineConnector,pipelineDescriptionString,authorityNameString,addActivity,isActive,null);
+    }
+
+    public PipelineAddEntryPoint(IPipelineConnector pipelineConnector,
+      VersionContext pipelineDescriptionString,
+      String authorityNameString,
+      IOutputAddActivity addActivity,
+      boolean isActive,
+      ReentrantLock contextLock)
     {
       this.pipelineConnector = pipelineConnector;
       this.pipelineDescriptionString = pipelineDescriptionString;
       this.authorityNameString = authorityNameString;
       this.addActivity = addActivity;
       this.isActive = isActive;
+      this.contextLock = contextLock;
     }
     
     public boolean isActive()
@@ -3206,14 +4012,58 @@ public class IncrementalIngester extends org.apache.manifoldcf.core.database.Bas
       return pipelineConnector.checkURLIndexable(pipelineDescriptionString,uri,addActivity);
     }
 
+    /** Send a document to this stage from a fan-out branch thread, while holding the context lock.
+    * The stage's connector runs on a thread context of its own, without the lock, so that sibling branches
+    * can run at the same time; everything else, including the connector's calls back into the pipeline,
+    * uses the pipeline's thread context under the lock.
+    *@param ownerContext is the thread context the connector was set up with, and is given back afterwards.
+    */
+    public int addOrReplaceDocumentInBranch(String documentURI, RepositoryDocument document, IThreadContext ownerContext)
+      throws ManifoldCFException, ServiceInterruption, IOException
+    {
+      branchOwnerContext = ownerContext;
+      try
+      {
+        return addOrReplaceDocumentWithException(documentURI,document);
+      }
+      finally
+      {
+        branchOwnerContext = null;
+      }
+    }
+
     public int addOrReplaceDocumentWithException(String documentURI, RepositoryDocument document)
       throws ManifoldCFException, ServiceInterruption, IOException
     {
       // If the transformation connector doesn't do what it should, compensate!
-      MonitoredAddActivityWrapper wrapper = new MonitoredAddActivityWrapper(addActivity);
-      int rval = pipelineConnector.addOrReplaceDocumentWithException(
-        documentURI,pipelineDescriptionString,
-        document,authorityNameString,wrapper);
+      MonitoredAddActivityWrapper wrapper = new MonitoredAddActivityWrapper(addActivity,contextLock);
+      int rval;
+      if (branchOwnerContext == null)
+      {
+        rval = pipelineConnector.addOrReplaceDocumentWithException(
+          documentURI,pipelineDescriptionString,
+          document,authorityNameString,wrapper);
+      }
+      else
+      {
+        // Other branches may use the pipeline's thread context while the connector is busy, so the connector
+        // can't use it too; it calls back into the pipeline through the wrapper, which takes the lock
+        pipelineConnector.clearThreadContext();
+        pipelineConnector.setThreadContext(ThreadContextFactory.make());
+        int holdCount = releaseContext(contextLock);
+        try
+        {
+          rval = pipelineConnector.addOrReplaceDocumentWithException(
+            documentURI,pipelineDescriptionString,
+            document,authorityNameString,wrapper);
+        }
+        finally
+        {
+          reacquireContext(contextLock,holdCount);
+          pipelineConnector.clearThreadContext();
+          pipelineConnector.setThreadContext(branchOwnerContext);
+        }
+      }
       // The wrapper detects activity by the connector, so if we don't see either sendDocument() or
       // noDocument(), we issue noDocument() ourselves.  If the connector was an output connector,
       // this will wind up being a no-op, but otherwise it will guarantee that recording takes place.
@@ -3233,6 +4083,7 @@ public class IncrementalIngester extends org.apache.manifoldcf.core.database.Bas
   public class OutputAddEntryPoint extends PipelineAddEntryPoint
   {
     protected final IOutputConnector outputConnector;
+    protected final IOutputConnection outputConnection;
     protected final String outputConnectionName;
     protected final String transformationVersion;
     protected final long ingestTime;
@@ -3242,6 +4093,7 @@ public class IncrementalIngester extends org.apache.manifoldcf.core.database.Bas
     protected final IOutputActivity activity;
     
     public OutputAddEntryPoint(IOutputConnector outputConnector,
+      IOutputConnection outputConnection,
       VersionContext outputDescriptionString,
       IOutputActivity activity,
       boolean isActive,
@@ -3251,10 +4103,12 @@ public class IncrementalIngester extends org.apache.manifoldcf.core.database.Bas
       String documentVersion,
       String docKey,
       String componentHash,
-      String authorityNameString)
+      String authorityNameString,
+      ReentrantLock contextLock)
     {
-      super(outputConnector,outputDescriptionString,authorityNameString,activity,isActive);
+      super(outputConnector,outputDescriptionString,authorityNameString,activity,isActive,contextLock);
       this.outputConnector = outputConnector;
+      this.outputConnection = outputConnection;
       this.outputConnectionName = outputConnectionName;
       this.transformationVersion = transformationVersion;
       this.ingestTime = ingestTime;
@@ -3392,6 +4246,10 @@ public class IncrementalIngester extends org.apache.manifoldcf.core.database.Bas
           // that we don't know anything about it.  That means it will be reingested when the
           // next version comes along, and will be deleted if called for also.
           noteDocumentIngest(outputConnectionName,docKey,componentHash,null,null,null,null,ingestTime,documentURI,documentURIHash);
+          // An output connector that takes batches is sent the document later, and its ingestion is noted then
+          if (holdOutputDocument(outputConnector,outputConnection,pipelineDescriptionString,docKey,componentHash,documentVersion,
+            transformationVersion,authorityNameString,ingestTime,documentURI,documentURIHash,document,activity,contextLock))
+            return IPipelineConnector.DOCUMENTSTATUS_ACCEPTED;
           int result = super.addOrReplaceDocumentWithException(documentURI, document);
           noteDocumentIngest(outputConnectionName,docKey,componentHash,documentVersion,transformationVersion,pipelineDescriptionString.getVersionString(),authorityNameString,ingestTime,documentURI,documentURIHash);
           return result;
@@ -3431,12 +4289,35 @@ public class IncrementalIngester extends org.apache.manifoldcf.core.database.Bas
   protected static class MonitoredAddActivityWrapper implements IOutputAddActivity
   {
     protected final IOutputAddActivity activities;
+    protected final ReentrantLock contextLock;
     
     protected boolean documentProcessed = false;
     
     public MonitoredAddActivityWrapper(IOutputAddActivity activities)
+    {
+      this(activities,null);
+    }
+
+    /** Constructor.
+    *@param contextLock is the lock that must be held while calling back into the pipeline, when siblings are
+    *  sent documents in parallel, or null otherwise.
+    */
+    public MonitoredAddActivityWrapper(IOutputAddActivity activities, ReentrantLock contextLock)
     {
       this.activities = activities;
+      this.contextLock = contextLock;
+    }
+
+    protected void enterContext()
+    {
+      if (contextLock != null)
+        contextLock.lock();
+    }
+
+    protected void leaveContext()
+    {
+      if (contextLock != null)
+        contextLock.unlock();
     }
     
     public boolean wasDocumentActedUpon()
@@ -3456,9 +4337,17 @@ public class IncrementalIngester extends org.apache.manifoldcf.core.database.Bas
     {
       if (documentProcessed)
         throw new IllegalStateException("Document cannot have multiple dispositions");
-      int rval = activities.sendDocument(documentURI,document);
-      documentProcessed = true;
-      return rval;
+      enterContext();
+      try
+      {
+        int rval = activities.sendDocument(documentURI,document);
+        documentProcessed = true;
+        return rval;
+      }
+      finally
+      {
+        leaveContext();
+      }
     }
 
     /** Send NO document via the pipeline to the next output connection.  This is equivalent
@@ -3470,8 +4359,16 @@ public class IncrementalIngester extends org.apache.manifoldcf.core.database.Bas
     {
       if (documentProcessed)
         throw new IllegalStateException("Document cannot have multiple dispositions");
-      activities.noDocument();
-      documentProcessed = true;
+      enterContext();
+      try
+      {
+        activities.noDocument();
+        documentProcessed = true;
+      }
+      finally
+      {
+        leaveContext();
+      }
     }
 
     /** Qualify an access token appropriately, to match access tokens as returned by mod_aa.  This method
@@ -3484,7 +4381,15 @@ public class IncrementalIngester extends org.apache.manifoldcf.core.database.Bas
     public String qualifyAccessToken(String authorityNameString, String accessToken)
       throws ManifoldCFException
     {
-      return activities.qualifyAccessToken(authorityNameString,accessToken);
+      enterContext();
+      try
+      {
+        return activities.qualifyAccessToken(authorityNameString,accessToken);
+      }
+      finally
+      {
+        leaveContext();
+      }
     }
 
     /** Record time-stamped information about the activity of the output connector.
@@ -3507,7 +4412,15 @@ public class IncrementalIngester extends org.apache.manifoldcf.core.database.Bas
       String entityURI, String resultCode, String resultDescription)
       throws ManifoldCFException
     {
-      activities.recordActivity(startTime,activityType,dataSize,entityURI,resultCode,resultDescription);
+      enterContext();
+      try
+      {
+        activities.recordActivity(startTime,activityType,dataSize,entityURI,resultCode,resultDescription);
+      }
+      finally
+      {
+        leaveContext();
+      }
     }
 
     /** Detect if a date is acceptable downstream or not.  This method is used to determine whether it makes sense to fetch a document
@@ -3519,7 +4432,15 @@ public class IncrementalIngester extends org.apache.manifoldcf.core.database.Bas
     public boolean checkDateIndexable(Date date)
       throws ManifoldCFException, ServiceInterruption
     {
-      return activities.checkDateIndexable(date);
+      enterContext();
+      try
+      {
+        return activities.checkDateIndexable(date);
+      }
+      finally
+      {
+        leaveContext();
+      }
     }
 
     /** Detect if a mime type is acceptable downstream or not.  This method is used to determine whether it makes sense to fetch a document
@@ -3531,7 +4452,15 @@ public class IncrementalIngester extends org.apache.manifoldcf.core.database.Bas
     public boolean checkMimeTypeIndexable(String mimeType)
       throws ManifoldCFException, ServiceInterruption
     {
-      return activities.checkMimeTypeIndexable(mimeType);
+      enterContext();
+      try
+      {
+        return activities.checkMimeTypeIndexable(mimeType);
+      }
+      finally
+      {
+        leaveContext();
+      }
     }
 
     /** Pre-determine whether a document (passed here as a File object) is acceptable downstream.  This method is
@@ -3544,7 +4473,15 @@ public class IncrementalIngester extends org.apache.manifoldcf.core.database.Bas
     public boolean checkDocumentIndexable(File localFile)
       throws ManifoldCFException, ServiceInterruption
     {
-      return activities.checkDocumentIndexable(localFile);
+      enterContext();
+      try
+      {
+        return activities.checkDocumentIndexable(localFile);
+      }
+      finally
+      {
+        leaveContext();
+      }
     }
 
     /** Pre-determine whether a document's length is acceptable downstream.  This method is used
@@ -3556,7 +4493,15 @@ public class IncrementalIngester extends org.apache.manifoldcf.core.database.Bas
     public boolean checkLengthIndexable(long length)
       throws ManifoldCFException, ServiceInterruption
     {
-      return activities.checkLengthIndexable(length);
+      enterContext();
+      try
+      {
+        return activities.checkLengthIndexable(length);
+      }
+      finally
+      {
+        leaveContext();
+      }
     }
 
     /** Pre-determine whether a document's URL is acceptable downstream.  This method is used
@@ -3568,7 +4513,15 @@ public class IncrementalIngester extends org.apache.manifoldcf.core.database.Bas
     public boolean checkURLIndexable(String url)
       throws ManifoldCFException, ServiceInterruption
     {
-      return activities.checkURLIndexable(url);
+      enterContext();
+      try
+      {
+        return activities.checkURLIndexable(url);
+      }
+      finally
+      {
+        leaveContext();
+      }
     }
 
   }
@@ -24,6 +24,7 @@ import org.apache.manifoldcf.agents.system.Logging;
 import org.apache.manifoldcf.agents.system.ManifoldCF;
 import java.util.*;
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 
 /** This class accepts a RepositoryDocument in its constructor, and then
 * allows multiple copies to me made, as part of a split in the pipeline.
@@ -40,10 +41,17 @@ public class RepositoryDocumentFactory
   protected final RepositoryDocument original;
 
   // The binary stream file and stream (if any)
-  protected BinaryInput binaryTracker;
+  protected TempFileInput binaryTracker = null;
+  // Or, if the number of copies is known up front, the tee the copies read the binary stream through
+  protected StreamTee binaryTee = null;
+  // The binary stream of the most recent document made by createDocument(), when there's a tee
+  protected InputStream currentTeeStream = null;
   
   // Readers (organized by metadata)
   protected final Map<String,CharacterInput[]> metadataReaders = new HashMap<String,CharacterInput[]>();
+
+  // Streams handed out with independent documents, which we close on behalf of their readers
+  protected final List<Closeable> independentStreams = new ArrayList<Closeable>();
   
   /** Constructor.
   * Pass a RepositoryDocument.  This constructor reads all streams and stores them in
@@ -54,11 +62,29 @@ public class RepositoryDocumentFactory
   */
   public RepositoryDocumentFactory(RepositoryDocument document)
     throws ManifoldCFException, IOException
+  {
+    this(document,-1,0L);
+  }
+
+  /** Constructor, for when the number of copies is known.
+  * The binary stream is not read up front.  Instead, the copies read it through a tee, which keeps up to
+  * memoryLimit bytes in memory for copies that lag behind, and only spills beyond that.  So a binary stream
+  * that is smaller than the limit is never written to disk, and errors reading it are seen by the copies
+  * rather than by this constructor.  Streams of metadata values are still saved up front.
+  *@param document is the repository document to read.
+  *@param copyCount is the number of documents that will be created, or -1 if unknown.
+  *@param memoryLimit is the most binary data to keep in memory, in bytes.
+  */
+  public RepositoryDocumentFactory(RepositoryDocument document, int copyCount, long memoryLimit)
+    throws ManifoldCFException, IOException
   {
     this.original = document;
     try
     {
-      this.binaryTracker = new TempFileInput(document.getBinaryStream());
+      if (copyCount >= 0)
+        this.binaryTee = new StreamTee(document.getBinaryStream(),copyCount,memoryLimit);
+      else
+        this.binaryTracker = new TempFileInput(document.getBinaryStream());
       // Copy all reader streams
       Iterator<String> iter = document.getFields();
       while (iter.hasNext())
@@ -82,6 +108,8 @@ public class RepositoryDocumentFactory
       // Clean up everything we've done so far.
       if (this.binaryTracker != null)
         this.binaryTracker.discard();
+      if (this.binaryTee != null)
+        this.binaryTee.close();
       for (String key : metadataReaders.keySet())
       {
         CharacterInput[] rt = metadataReaders.get(key);
@@ -109,6 +137,23 @@ public class RepositoryDocumentFactory
   */
   public RepositoryDocument createDocument()
     throws ManifoldCFException
+  {
+    return buildDocument(false);
+  }
+
+  /** Create a new RepositoryDocument object from the saved local resources, whose streams are independent
+  * of those of any other document this factory creates.  Such documents may be read at the same time, by
+  * different threads.  Their streams are released when the factory is closed.
+  *@return a repository document object.
+  */
+  public RepositoryDocument createIndependentDocument()
+    throws ManifoldCFException
+  {
+    return buildDocument(true);
+  }
+
+  protected RepositoryDocument buildDocument(boolean independent)
+    throws ManifoldCFException
   {
     RepositoryDocument rd = new RepositoryDocument();
     
@@ -128,8 +173,39 @@ public class RepositoryDocumentFactory
     }
     
     // Copy binary
-    binaryTracker.doneWithStream();
-    rd.setBinary(binaryTracker.getStream(),original.getBinaryLength());
+    if (binaryTee != null)
+    {
+      InputStream binaryStream = binaryTee.newReader();
+      if (independent)
+        independentStreams.add(binaryStream);
+      else
+      {
+        if (currentTeeStream != null)
+        {
+          try
+          {
+            currentTeeStream.close();
+          }
+          catch (IOException e)
+          {
+            // A reader of the tee can't fail to close
+          }
+        }
+        currentTeeStream = binaryStream;
+      }
+      rd.setBinary(binaryStream,original.getBinaryLength());
+    }
+    else if (independent)
+    {
+      InputStream binaryStream = binaryTracker.getNewStream();
+      independentStreams.add(binaryStream);
+      rd.setBinary(binaryStream,original.getBinaryLength());
+    }
+    else
+    {
+      binaryTracker.doneWithStream();
+      rd.setBinary(binaryTracker.getStream(),original.getBinaryLength());
+    }
     // Copy metadata fields (including minting new Readers where needed)
     Iterator<String> iter = original.getFields();
     while (iter.hasNext())
@@ -142,8 +218,16 @@ public class RepositoryDocumentFactory
         Reader[] newReaders = new Reader[rts.length];
         for (int i = 0; i < rts.length; i++)
         {
-          rts[i].doneWithStream();
-          newReaders[i] = rts[i].getStream();
+          if (independent)
+          {
+            newReaders[i] = new InputStreamReader(rts[i].getUtf8Stream(),StandardCharsets.UTF_8);
+            independentStreams.add(newReaders[i]);
+          }
+          else
+          {
+            rts[i].doneWithStream();
+            newReaders[i] = rts[i].getStream();
+          }
         }
         rd.addField(fieldName,newReaders);
       }
@@ -167,7 +251,22 @@ public class RepositoryDocumentFactory
   public void close()
     throws ManifoldCFException
   {
-    binaryTracker.discard();
+    for (Closeable stream : independentStreams)
+    {
+      try
+      {
+        stream.close();
+      }
+      catch (IOException e)
+      {
+        // Nothing more can be read from it anyway
+      }
+    }
+    independentStreams.clear();
+    if (binaryTee != null)
+      binaryTee.close();
+    else
+      binaryTracker.discard();
     for (String key : metadataReaders.keySet())
     {
       CharacterInput[] rt = metadataReaders.get(key);
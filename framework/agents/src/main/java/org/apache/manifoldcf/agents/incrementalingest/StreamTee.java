@@ -0,0 +1,352 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.agents.incrementalingest;
+
+import org.apache.manifoldcf.core.interfaces.*;
+import org.apache.manifoldcf.agents.system.ManifoldCF;
+import java.util.*;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/** This class reads a stream once, on demand, and lets a fixed number of readers each read all of it at
+* their own pace.  Data is kept in memory, in chunks, until every reader has read past it.  Only when the
+* data held for readers that lag behind would exceed a memory limit is the oldest of it spilled to a
+* temporary file.  So a document that is smaller than the limit never touches the disk, and a larger one
+* only does if its readers don't keep up with one another.
+* When the process-wide chunk pool is enabled, chunks come from it, and data that arrives when the pool is
+* full goes straight to the spill file.
+* All methods are thread-safe; the readers may be used by different threads.
+*/
+public class StreamTee
+{
+  public static final String _rcsid = "@(#)$Id$";
+
+  protected final static int CHUNK_SIZE = ChunkPool.CHUNK_SIZE;
+
+  protected final InputStream source;
+  /** The chunk pool, or null if chunks are allocated directly */
+  protected final ChunkPool pool;
+  protected final long memoryLimit;
+  protected final TeeStream[] readers;
+
+  /** Chunks read so far, indexed by position / CHUNK_SIZE.  An entry is null if it has been spilled, or if
+  * every reader is past it. */
+  protected final List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+  /** Number of bytes read from the source */
+  protected long totalRead = 0L;
+  /** Bytes of chunks held in memory */
+  protected long memoryHeld = 0L;
+  /** Index of the lowest chunk that may still be in memory */
+  protected int firstHeldChunk = 0;
+  /** True once the source is exhausted */
+  protected boolean eofSeen = false;
+  /** The exception the source threw, if any; every reader that needs more data sees it */
+  protected IOException sourceException = null;
+  /** Number of readers handed out */
+  protected int readersIssued = 0;
+  /** Staging buffer for source reads */
+  protected byte[] readBuffer = null;
+
+  /** Spill file, and the channel used to write and read it, if any spilling has happened */
+  protected File spillFile = null;
+  protected RandomAccessFile spillAccess = null;
+  protected FileChannel spillChannel = null;
+
+  /** Constructor.
+  *@param source is the stream to read.  It is not closed by this class.
+  *@param readerCount is the number of readers that will read the stream.
+  *@param memoryLimit is the number of bytes that may be held in memory before the oldest data is spilled.
+  */
+  public StreamTee(InputStream source, int readerCount, long memoryLimit)
+  {
+    this.source = source;
+    this.memoryLimit = memoryLimit;
+    this.readers = new TeeStream[readerCount];
+    ChunkPool chunkPool = ChunkPool.getPool();
+    this.pool = chunkPool.isEnabled()?chunkPool:null;
+  }
+
+  /** Get the next reader.
+  *@return a stream that reads all of the source data from the start.
+  */
+  public synchronized InputStream newReader()
+  {
+    if (readersIssued == readers.length)
+      throw new IllegalStateException("All "+readers.length+" readers have already been handed out");
+    TeeStream rval = new TeeStream();
+    readers[readersIssued++] = rval;
+    return rval;
+  }
+
+  /** Release all resources, including the spill file.  Readers that are still open will fail.
+  */
+  public synchronized void close()
+    throws ManifoldCFException
+  {
+    for (ByteBuffer chunk : chunks)
+    {
+      if (chunk != null)
+        freeChunk(chunk);
+    }
+    chunks.clear();
+    memoryHeld = 0L;
+    readBuffer = null;
+    if (spillChannel != null)
+    {
+      try
+      {
+        spillAccess.close();
+      }
+      catch (IOException e)
+      {
+        // Nothing more will be read from it anyway
+      }
+      spillChannel = null;
+      spillAccess = null;
+    }
+    if (spillFile != null)
+    {
+      ManifoldCF.deleteFile(spillFile);
+      spillFile = null;
+    }
+  }
+
+  /** Read data for a reader, at its current position.
+  *@return the number of bytes read, or -1 at the end of the data.
+  */
+  protected synchronized int read(TeeStream reader, byte[] b, int off, int len)
+    throws IOException
+  {
+    if (reader.isClosed)
+      throw new IOException("Stream is closed");
+    if (len == 0)
+      return 0;
+    long position = reader.position;
+    while (position >= totalRead)
+    {
+      if (sourceException != null)
+        throw sourceException;
+      if (eofSeen)
+        return -1;
+      fill();
+    }
+    int chunkIndex = (int)(position / CHUNK_SIZE);
+    int chunkOffset = (int)(position % CHUNK_SIZE);
+    int amt = (int)Math.min((long)len,Math.min((long)(CHUNK_SIZE - chunkOffset),totalRead - position));
+    ByteBuffer chunk = chunks.get(chunkIndex);
+    if (chunk != null)
+    {
+      ByteBuffer view = chunk.duplicate();
+      view.position(chunkOffset);
+      view.get(b,off,amt);
+    }
+    else
+    {
+      if (spillChannel == null)
+        throw new IOException("Stream data is no longer available");
+      ByteBuffer target = ByteBuffer.wrap(b,off,amt);
+      long filePosition = position;
+      while (target.hasRemaining())
+      {
+        int readAmt = spillChannel.read(target,filePosition);
+        if (readAmt == -1)
+          throw new IOException("Spill file is shorter than expected");
+        filePosition += readAmt;
+      }
+    }
+    reader.position += amt;
+    releaseChunks();
+    return amt;
+  }
+
+  /** Note that a reader is done.
+  */
+  protected synchronized void close(TeeStream reader)
+  {
+    if (!reader.isClosed)
+    {
+      reader.isClosed = true;
+      releaseChunks();
+    }
+  }
+
+  /** Read the next chunk from the source, and spill older data if that puts us over the memory limit.
+  */
+  protected void fill()
+    throws IOException
+  {
+    if (readBuffer == null)
+      readBuffer = new byte[CHUNK_SIZE];
+    int chunkTotal = 0;
+    try
+    {
+      while (chunkTotal < CHUNK_SIZE)
+      {
+        int amt = source.read(readBuffer,chunkTotal,CHUNK_SIZE - chunkTotal);
+        if (amt == -1)
+        {
+          eofSeen = true;
+          break;
+        }
+        chunkTotal += amt;
+      }
+    }
+    catch (IOException e)
+    {
+      sourceException = e;
+      throw e;
+    }
+    if (chunkTotal == 0)
+      return;
+    ByteBuffer chunk;
+    if (pool != null)
+      chunk = pool.acquireChunk();
+    else
+      chunk = ByteBuffer.allocateDirect(chunkTotal);
+    if (chunk == null)
+    {
+      // The pool is full, so this data goes straight to the spill file
+      spill(chunks.size(),ByteBuffer.wrap(readBuffer,0,chunkTotal));
+      chunks.add(null);
+      totalRead += chunkTotal;
+    }
+    else
+    {
+      chunk.put(readBuffer,0,chunkTotal);
+      chunk.flip();
+      chunks.add(chunk);
+      totalRead += chunkTotal;
+      memoryHeld += chunkTotal;
+    }
+    if (eofSeen)
+      readBuffer = null;
+    // Spill the oldest chunks still in memory until we're back under the limit
+    int chunkIndex = firstHeldChunk;
+    while (memoryHeld > memoryLimit && chunkIndex < chunks.size())
+    {
+      ByteBuffer oldChunk = chunks.get(chunkIndex);
+      if (oldChunk != null)
+      {
+        spill(chunkIndex,oldChunk);
+        chunks.set(chunkIndex,null);
+        memoryHeld -= oldChunk.limit();
+        freeChunk(oldChunk);
+      }
+      chunkIndex++;
+    }
+  }
+
+  /** Write a chunk to the spill file.
+  */
+  protected void spill(int chunkIndex, ByteBuffer chunk)
+    throws IOException
+  {
+    if (spillChannel == null)
+    {
+      File outfile = File.createTempFile("_MC_","");
+      ManifoldCF.addFile(outfile);
+      try
+      {
+        spillAccess = new RandomAccessFile(outfile,"rw");
+      }
+      catch (IOException e)
+      {
+        ManifoldCF.deleteFile(outfile);
+        throw e;
+      }
+      spillFile = outfile;
+      spillChannel = spillAccess.getChannel();
+    }
+    ByteBuffer view = chunk.duplicate();
+    view.position(0);
+    long filePosition = (long)chunkIndex * CHUNK_SIZE;
+    while (view.hasRemaining())
+    {
+      filePosition += spillChannel.write(view,filePosition);
+    }
+  }
+
+  /** Drop chunks that every reader has read past.  Readers that haven't been handed out yet still need
+  * everything.
+  */
+  protected void releaseChunks()
+  {
+    if (readersIssued < readers.length)
+      return;
+    long minPosition = Long.MAX_VALUE;
+    for (TeeStream r : readers)
+    {
+      if (!r.isClosed && r.position < minPosition)
+        minPosition = r.position;
+    }
+    while (firstHeldChunk < chunks.size() && Math.min((long)(firstHeldChunk + 1) * CHUNK_SIZE,totalRead) <= minPosition)
+    {
+      ByteBuffer chunk = chunks.get(firstHeldChunk);
+      if (chunk != null)
+      {
+        memoryHeld -= chunk.limit();
+        chunks.set(firstHeldChunk,null);
+        freeChunk(chunk);
+      }
+      firstHeldChunk++;
+    }
+  }
+
+  /** Let go of a chunk that is no longer held.
+  */
+  protected void freeChunk(ByteBuffer chunk)
+  {
+    if (pool != null)
+      pool.releaseChunk(chunk);
+  }
+
+  /** One reader's view of the data.  Its state is guarded by the tee.
+  */
+  protected class TeeStream extends InputStream
+  {
+    protected long position = 0L;
+    protected boolean isClosed = false;
+
+    @Override
+    public int read()
+      throws IOException
+    {
+      byte[] b = new byte[1];
+      int amt = read(b,0,1);
+      if (amt == -1)
+        return -1;
+      return ((int)b[0]) & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len)
+      throws IOException
+    {
+      return StreamTee.this.read(this,b,off,len);
+    }
+
+    @Override
+    public void close()
+    {
+      StreamTee.this.close(this);
+    }
+  }
+
+}
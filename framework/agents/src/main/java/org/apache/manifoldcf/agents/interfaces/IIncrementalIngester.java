@@ -166,6 +166,24 @@ public interface IIncrementalIngester
     String newDocumentVersion,
     String newAuthorityNameString);
 
+  /** Start holding documents that are to be sent to output connectors which take batches (that is, which implement
+  * IOutputBatchConnector), so they can all be sent at once by flushOutputBatch().
+  */
+  public void beginOutputBatch();
+
+  /** Send all the documents held since beginOutputBatch(), and stop holding them.  This must be called before
+  * the documents involved are considered to be processed.  If a service interruption is thrown, documents not yet
+  * sent are thrown away, and will be indexed again.
+  */
+  public void flushOutputBatch()
+    throws ManifoldCFException, ServiceInterruption;
+
+  /** Throw away all the documents held since beginOutputBatch(), and stop holding them.
+  * The documents involved will be indexed again.
+  */
+  public void discardOutputBatch()
+    throws ManifoldCFException;
+
   /** Record a document version, but don't ingest it.
   * The purpose of this method is to update document version information without reindexing the document.
   *@param pipelineSpecificationBasic is the basic pipeline specification needed.
@@ -0,0 +1,66 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.agents.interfaces;
+
+import org.apache.manifoldcf.core.interfaces.*;
+
+import java.io.*;
+
+/** This interface is implemented by output connectors that can add or replace many documents in a single
+* request to the output data store, such as through a bulk indexing endpoint.
+*
+* When a repository connector ingests documents as part of a document set, the framework does not send the
+* documents for such a connector one at a time.  Instead, it saves each document's data locally, and when
+* the whole set has been processed it sends all the documents destined for the same output connection (and
+* having the same pipeline description) in one call to addOrReplaceDocumentsWithException().  A connector
+* whose data store limits the size of a request should split the documents it is given as needed.
+*
+* Documents ingested outside of a document set are still sent one at a time, through
+* addOrReplaceDocumentWithException(), so that method must also be implemented.
+*
+* A document that is held for a batch is reported to the rest of the pipeline as accepted before it is sent.
+* The status this connector returns for it is only used to record the document's version, so that it is not
+* sent again until it changes; the framework does not record a rejection in the history.  A connector that
+* rejects a document should record that through the document's own activities object, just as it would in
+* addOrReplaceDocumentWithException().
+*/
+public interface IOutputBatchConnector extends IOutputConnector
+{
+  public static final String _rcsid = "@(#)$Id$";
+
+  /** Add (or replace) a set of documents in the output data store using the connector.
+  * This method presumes that the connector object has been configured, and it is thus able to communicate with the output data store should that be
+  * necessary.
+  * If a service interruption is thrown, the framework presumes that none of the documents were indexed, and they will be retried.
+  *@param documentURIs are the URIs of the documents.  Each URI is presumed to be the unique identifier which the output data store will use to process
+  * and serve the corresponding document.
+  *@param pipelineDescription includes the description string that was constructed for all these documents by the getOutputDescription() method.
+  *@param documents are the document data to be processed (handed to the output data store), one per URI.
+  *@param authorityNameStrings are the names of the authorities responsible for authorizing any access tokens passed in with each repository document.
+  * Individual values may be null.
+  *@param activities are the handles to objects that the implementer of an output connector may use to perform operations, such as logging
+  * processing activity, one per document.  Activity for a document should be recorded through its own handle.
+  *@return the status of each document (accepted or permanently rejected), in the same order as the documents.
+  *@throws IOException only if there's a stream error reading the document data.
+  */
+  public int[] addOrReplaceDocumentsWithException(String[] documentURIs, VersionContext pipelineDescription, RepositoryDocument[] documents,
+    String[] authorityNameStrings, IOutputAddActivity[] activities)
+    throws ManifoldCFException, ServiceInterruption, IOException;
+
+}
@@ -0,0 +1,96 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.agents.output;
+
+import org.apache.manifoldcf.core.interfaces.*;
+import org.apache.manifoldcf.agents.interfaces.*;
+
+import java.io.*;
+
+/** This class sends a batch of documents to any output connector.  Connectors that implement
+* IOutputBatchConnector are handed the whole batch; others are sent the documents one at a time.
+* Batch-capable connectors that cannot use their bulk interface for some request may also use this class
+* to fall back to sending one document at a time.
+*/
+public class OutputBatchAdapter
+{
+  public static final String _rcsid = "@(#)$Id$";
+
+  protected final IOutputConnector connector;
+
+  /** Constructor.
+  *@param connector is the output connector to send documents to.
+  */
+  public OutputBatchAdapter(IOutputConnector connector)
+  {
+    this.connector = connector;
+  }
+
+  /** Add (or replace) a set of documents in the output data store, in the most efficient way the connector supports.
+  *@param documentURIs are the URIs of the documents.
+  *@param pipelineDescription includes the description string that was constructed for all these documents by the getOutputDescription() method.
+  *@param documents are the document data to be processed, one per URI.
+  *@param authorityNameStrings are the names of the authorities responsible for authorizing any access tokens passed in with each repository document.
+  *@param activities are the handles to objects that the output connector may use to perform operations, such as logging processing activity,
+  * one per document.
+  *@return the status of each document (accepted or permanently rejected), in the same order as the documents.
+  *@throws IOException only if there's a stream error reading the document data.
+  */
+  public int[] addOrReplaceDocumentsWithException(String[] documentURIs, VersionContext pipelineDescription, RepositoryDocument[] documents,
+    String[] authorityNameStrings, IOutputAddActivity[] activities)
+    throws ManifoldCFException, ServiceInterruption, IOException
+  {
+    int[] rval;
+    if (connector instanceof IOutputBatchConnector)
+      rval = ((IOutputBatchConnector)connector).addOrReplaceDocumentsWithException(documentURIs,pipelineDescription,documents,
+        authorityNameStrings,activities);
+    else
+      rval = addOrReplaceDocumentsSeparately(connector,documentURIs,pipelineDescription,documents,authorityNameStrings,activities);
+    if (rval == null || rval.length != documents.length)
+      throw new ManifoldCFException("Output connector returned "+((rval==null)?"no":Integer.toString(rval.length))+
+        " document statuses for "+documents.length+" documents");
+    return rval;
+  }
+
+  /** Add (or replace) a set of documents in the output data store, one document at a time.
+  *@param connector is the output connector.
+  *@param documentURIs are the URIs of the documents.
+  *@param pipelineDescription includes the description string that was constructed for all these documents by the getOutputDescription() method.
+  *@param documents are the document data to be processed, one per URI.
+  *@param authorityNameStrings are the names of the authorities responsible for authorizing any access tokens passed in with each repository document.
+  *@param activities are the handles to objects that the output connector may use to perform operations, such as logging processing activity,
+  * one per document.
+  *@return the status of each document (accepted or permanently rejected), in the same order as the documents.
+  *@throws IOException only if there's a stream error reading the document data.
+  */
+  public static int[] addOrReplaceDocumentsSeparately(IOutputConnector connector,
+    String[] documentURIs, VersionContext pipelineDescription, RepositoryDocument[] documents,
+    String[] authorityNameStrings, IOutputAddActivity[] activities)
+    throws ManifoldCFException, ServiceInterruption, IOException
+  {
+    int[] rval = new int[documents.length];
+    for (int i = 0; i < documents.length; i++)
+    {
+      rval[i] = connector.addOrReplaceDocumentWithException(documentURIs[i],pipelineDescription,documents[i],
+        authorityNameStrings[i],activities[i]);
+    }
+    return rval;
+  }
+
+}
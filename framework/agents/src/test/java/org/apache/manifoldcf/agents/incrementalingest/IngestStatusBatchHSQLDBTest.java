@@ -0,0 +1,108 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.agents.incrementalingest;
+
+import org.apache.manifoldcf.core.interfaces.*;
+import org.apache.manifoldcf.agents.interfaces.*;
+import org.apache.manifoldcf.agents.system.ManifoldCF;
+
+import java.util.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/** Check that the version records for a batch of documents sent to an output connector are written as soon as
+* that batch is sent, that existing rows are updated, and that records made outside a batch send are written at once.
+*/
+public class IngestStatusBatchHSQLDBTest extends org.apache.manifoldcf.agents.tests.BaseHSQLDB
+{
+  protected final static String outputConnectionName = "statusoutput";
+  protected final static String connectorClassName = OutputBatchHSQLDBTest.BatchOutputConnector.class.getName();
+
+  @Override
+  protected void writeDatabaseControlProperties(StringBuilder output)
+    throws Exception
+  {
+    super.writeDatabaseControlProperties(output);
+    output.append(
+      "  <property name=\""+IncrementalIngester.batchIngestStatusProperty+"\" value=\"true\"/>\n"
+    );
+  }
+
+  @Test
+  public void testIngestStatusBatch()
+    throws Exception
+  {
+    IThreadContext tc = ThreadContextFactory.make();
+    OutputConnectorManagerFactory.make(tc).registerConnector("Status output",connectorClassName);
+    IOutputConnectionManager outputManager = OutputConnectionManagerFactory.make(tc);
+    IOutputConnection outputConnection = outputManager.create();
+    outputConnection.setName(outputConnectionName);
+    outputConnection.setClassName(connectorClassName);
+    outputConnection.setMaxConnections(1);
+    outputManager.save(outputConnection);
+    outputConnection = outputManager.load(outputConnectionName);
+
+    IIncrementalIngester ingester = IncrementalIngesterFactory.make(tc);
+    IDBInterface database = DBInterfaceFactory.make(tc,
+      ManifoldCF.getMasterDatabaseName(),
+      ManifoldCF.getMasterDatabaseUsername(),
+      ManifoldCF.getMasterDatabasePassword());
+    TestingPipelineSpecification spec = new TestingPipelineSpecification(new IOutputConnection[]{outputConnection});
+    OutputBatchHSQLDBTest.TestingOutputActivity activity = new OutputBatchHSQLDBTest.TestingOutputActivity();
+
+    // Records made outside a batch send are written at once
+    ingester.documentRecord(spec,"class","hash1",null,"v1",1000L);
+    assertEquals(1L,countRows(database,"v1"));
+
+    // The records for a batch are all written when it is sent, including for the rejected document
+    ingester.beginOutputBatch();
+    ingester.documentIngest(spec,"class","hash1",null,"v2",null,OutputBatchHSQLDBTest.makeDocument("one"),2000L,"http://localhost/one",activity);
+    ingester.documentIngest(spec,"class","hash2",null,"v2",null,OutputBatchHSQLDBTest.makeDocument("two"),2000L,"http://localhost/two",activity);
+    ingester.documentIngest(spec,"class","hash3",null,"v2",null,OutputBatchHSQLDBTest.makeDocument("three"),2000L,"http://localhost/three",activity);
+    assertEquals(0L,countRows(database,"v2"));
+    ingester.flushOutputBatch();
+    assertEquals(3L,countRows(database,"v2"));
+    assertEquals(3L,countRows(database,null));
+    IResultSet set = database.performQuery("SELECT changecount,docuri FROM ingeststatus WHERE dockey=?",
+      Arrays.asList(new Object[]{"class:hash1"}),null,null);
+    assertEquals(1,set.getRowCount());
+    // One change for the record, one for the marker written before the document was held, and one for the batch record
+    assertEquals(new Long(3L),set.getRow(0).getValue("changecount"));
+    assertEquals("http://localhost/one",set.getRow(0).getValue("docuri"));
+
+    // Without a batch, the record is written as the document is sent
+    ingester.documentIngest(spec,"class","hash4",null,"v3",null,OutputBatchHSQLDBTest.makeDocument("four"),3000L,"http://localhost/four",activity);
+    assertEquals(1L,countRows(database,"v3"));
+  }
+
+  protected static long countRows(IDBInterface database, String version)
+    throws ManifoldCFException
+  {
+    List params = new ArrayList();
+    String query = "SELECT COUNT(*) AS countvar FROM ingeststatus";
+    if (version != null)
+    {
+      query += " WHERE lastversion=?";
+      params.add(version);
+    }
+    IResultSet set = database.performQuery(query,params,null,null);
+    return ((Long)set.getRow(0).getValue("countvar")).longValue();
+  }
+
+}
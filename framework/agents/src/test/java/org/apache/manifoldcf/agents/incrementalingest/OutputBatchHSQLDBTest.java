@@ -0,0 +1,250 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.agents.incrementalingest;
+
+import org.apache.manifoldcf.core.interfaces.*;
+import org.apache.manifoldcf.agents.interfaces.*;
+import org.apache.manifoldcf.agents.system.ManifoldCF;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/** Check that documents for an output connector that takes batches are held until the batch is flushed, that
+* they are then sent in one call and recorded with their versions, and that discarded documents are never sent.
+*/
+public class OutputBatchHSQLDBTest extends org.apache.manifoldcf.agents.tests.BaseHSQLDB
+{
+  protected final static String outputConnectionName = "batchoutput";
+  protected final static String connectorClassName = BatchOutputConnector.class.getName();
+
+  @Test
+  public void testOutputBatch()
+    throws Exception
+  {
+    IThreadContext tc = ThreadContextFactory.make();
+    OutputConnectorManagerFactory.make(tc).registerConnector("Batch output",connectorClassName);
+    IOutputConnectionManager outputManager = OutputConnectionManagerFactory.make(tc);
+    IOutputConnection outputConnection = outputManager.create();
+    outputConnection.setName(outputConnectionName);
+    outputConnection.setClassName(connectorClassName);
+    outputConnection.setMaxConnections(1);
+    outputManager.save(outputConnection);
+    outputConnection = outputManager.load(outputConnectionName);
+
+    IIncrementalIngester ingester = IncrementalIngesterFactory.make(tc);
+    IDBInterface database = DBInterfaceFactory.make(tc,
+      ManifoldCF.getMasterDatabaseName(),
+      ManifoldCF.getMasterDatabaseUsername(),
+      ManifoldCF.getMasterDatabasePassword());
+    IPipelineSpecificationWithVersions spec = new TestingPipelineSpecification(new IOutputConnection[]{outputConnection});
+    TestingOutputActivity activity = new TestingOutputActivity();
+    TestingOutputActivity otherActivity = new TestingOutputActivity();
+
+    // Documents are held until the batch is flushed, with only their marker records written
+    ingester.beginOutputBatch();
+    ingester.documentIngest(spec,"class","hash1",null,"v1",null,makeDocument("one"),1000L,"http://localhost/one",activity);
+    ingester.documentIngest(spec,"class","hash2",null,"v1",null,makeDocument("two"),1000L,"http://localhost/two",otherActivity);
+    ingester.documentIngest(spec,"class","hash3",null,"v1",null,makeDocument("three"),1000L,"http://localhost/three",activity);
+    assertEquals(0,BatchOutputConnector.batches.size());
+    assertEquals(3L,countRows(database,null));
+    assertEquals(0L,countRows(database,"v1"));
+    // A document removed while held is not sent
+    ingester.documentDelete(spec,"class","hash3",activity);
+    ingester.flushOutputBatch();
+    assertEquals(1,BatchOutputConnector.batches.size());
+    assertEquals(Arrays.asList("http://localhost/one=one","http://localhost/two=two"),BatchOutputConnector.batches.get(0));
+    // The rejected document is recorded too, so it isn't sent again until it changes
+    assertEquals(2L,countRows(database,"v1"));
+    // The connector recorded the rejection through that document's own activities
+    assertEquals(0,activity.recorded.size());
+    assertEquals(Arrays.asList("http://localhost/two"),otherActivity.recorded);
+
+    // Discarded documents are never sent, and keep only their marker records
+    ingester.beginOutputBatch();
+    ingester.documentIngest(spec,"class","hash4",null,"v2",null,makeDocument("four"),2000L,"http://localhost/four",activity);
+    ingester.discardOutputBatch();
+    ingester.flushOutputBatch();
+    assertEquals(1,BatchOutputConnector.batches.size());
+    assertEquals(0L,countRows(database,"v2"));
+    assertEquals(3L,countRows(database,null));
+
+    // Without a batch, documents are sent one at a time
+    ingester.documentIngest(spec,"class","hash5",null,"v3",null,makeDocument("five"),3000L,"http://localhost/five",activity);
+    assertEquals(1,BatchOutputConnector.batches.size());
+    assertEquals(Arrays.asList("http://localhost/five=five"),BatchOutputConnector.singles);
+    assertEquals(1L,countRows(database,"v3"));
+  }
+
+  protected static RepositoryDocument makeDocument(String content)
+  {
+    byte[] data = content.getBytes(StandardCharsets.UTF_8);
+    RepositoryDocument rd = new RepositoryDocument();
+    rd.setBinary(new ByteArrayInputStream(data),data.length);
+    return rd;
+  }
+
+  protected static long countRows(IDBInterface database, String version)
+    throws ManifoldCFException
+  {
+    List params = new ArrayList();
+    String query = "SELECT COUNT(*) AS countvar FROM ingeststatus";
+    if (version != null)
+    {
+      query += " WHERE lastversion=?";
+      params.add(version);
+    }
+    IResultSet set = database.performQuery(query,params,null,null);
+    return ((Long)set.getRow(0).getValue("countvar")).longValue();
+  }
+
+  protected static String readDocument(String documentURI, RepositoryDocument document)
+    throws IOException
+  {
+    InputStream is = document.getBinaryStream();
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    byte[] buffer = new byte[1024];
+    while (true)
+    {
+      int amt = is.read(buffer);
+      if (amt == -1)
+        break;
+      os.write(buffer,0,amt);
+    }
+    return documentURI + "=" + new String(os.toByteArray(),StandardCharsets.UTF_8);
+  }
+
+  /** Output connector that takes batches, and remembers what it was sent.  It rejects the second document of each batch,
+  * and records that in the document's history.
+  */
+  public static class BatchOutputConnector extends org.apache.manifoldcf.agents.output.BaseOutputConnector implements IOutputBatchConnector
+  {
+    public final static List<List<String>> batches = new ArrayList<List<String>>();
+    public final static List<String> singles = new ArrayList<String>();
+
+    public BatchOutputConnector()
+    {
+      super();
+    }
+
+    @Override
+    public int addOrReplaceDocumentWithException(String documentURI, VersionContext pipelineDescription, RepositoryDocument document,
+      String authorityNameString, IOutputAddActivity activities)
+      throws ManifoldCFException, ServiceInterruption, IOException
+    {
+      singles.add(readDocument(documentURI,document));
+      return DOCUMENTSTATUS_ACCEPTED;
+    }
+
+    @Override
+    public int[] addOrReplaceDocumentsWithException(String[] documentURIs, VersionContext pipelineDescription, RepositoryDocument[] documents,
+      String[] authorityNameStrings, IOutputAddActivity[] activities)
+      throws ManifoldCFException, ServiceInterruption, IOException
+    {
+      List<String> batch = new ArrayList<String>();
+      int[] rval = new int[documents.length];
+      for (int i = 0; i < documents.length; i++)
+      {
+        batch.add(readDocument(documentURIs[i],documents[i]));
+        if (i == 1)
+        {
+          activities[i].recordActivity(null,"document ingest",null,documentURIs[i],"REJECTED",null);
+          rval[i] = DOCUMENTSTATUS_REJECTED;
+        }
+        else
+          rval[i] = DOCUMENTSTATUS_ACCEPTED;
+      }
+      batches.add(batch);
+      return rval;
+    }
+  }
+
+  /** Activities that accept everything, and remember the entities whose activity was recorded.
+  */
+  protected static class TestingOutputActivity implements IOutputActivity
+  {
+    public final List<String> recorded = new ArrayList<String>();
+
+    @Override
+    public int sendDocument(String documentURI, RepositoryDocument document)
+      throws ManifoldCFException, ServiceInterruption, IOException
+    {
+      return IPipelineConnector.DOCUMENTSTATUS_ACCEPTED;
+    }
+
+    @Override
+    public void noDocument()
+      throws ManifoldCFException, ServiceInterruption
+    {
+    }
+
+    @Override
+    public String qualifyAccessToken(String authorityNameString, String accessToken)
+      throws ManifoldCFException
+    {
+      return accessToken;
+    }
+
+    @Override
+    public void recordActivity(Long startTime, String activityType, Long dataSize,
+      String entityURI, String resultCode, String resultDescription)
+      throws ManifoldCFException
+    {
+      recorded.add(entityURI);
+    }
+
+    @Override
+    public boolean checkDateIndexable(Date date)
+      throws ManifoldCFException, ServiceInterruption
+    {
+      return true;
+    }
+
+    @Override
+    public boolean checkMimeTypeIndexable(String mimeType)
+      throws ManifoldCFException, ServiceInterruption
+    {
+      return true;
+    }
+
+    @Override
+    public boolean checkDocumentIndexable(File localFile)
+      throws ManifoldCFException, ServiceInterruption
+    {
+      return true;
+    }
+
+    @Override
+    public boolean checkLengthIndexable(long length)
+      throws ManifoldCFException, ServiceInterruption
+    {
+      return true;
+    }
+
+    @Override
+    public boolean checkURLIndexable(String url)
+      throws ManifoldCFException, ServiceInterruption
+    {
+      return true;
+    }
+  }
+
+}
@@ -0,0 +1,300 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.agents.incrementalingest;
+
+import org.apache.manifoldcf.core.interfaces.*;
+import org.apache.manifoldcf.agents.interfaces.*;
+import org.apache.manifoldcf.agents.incrementalingest.IncrementalIngester.FanoutBranch;
+import org.apache.manifoldcf.agents.incrementalingest.IncrementalIngester.PipelineAddEntryPoint;
+import org.apache.manifoldcf.agents.incrementalingest.IncrementalIngester.PipelineAddFanout;
+import org.apache.manifoldcf.agents.tests.TestingOutputConnector;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/** Check that a parallel fan-out really sends to its siblings at the same time, hands each one the whole
+* document, fails the way sending to them one after another would, and doesn't return while a sibling is still busy.
+*/
+public class PipelineAddFanoutTest
+{
+  // Small enough to be kept in memory, so no file tracking is needed
+  protected final static int documentSize = 6000;
+
+  @Test
+  public void testParallelSend()
+    throws Exception
+  {
+    CyclicBarrier barrier = new CyclicBarrier(2);
+    ReentrantLock contextLock = new ReentrantLock();
+    PipelineAddFanout fanout = new PipelineAddFanout(new PipelineAddEntryPoint[]{
+      new TestingEntryPoint(contextLock,barrier,IPipelineConnector.DOCUMENTSTATUS_REJECTED,null),
+      new TestingEntryPoint(contextLock,barrier,IPipelineConnector.DOCUMENTSTATUS_ACCEPTED,null)},
+      null,null,null,contextLock,262144L);
+    // Each branch waits at the barrier for the other, so this only finishes if they run at the same time
+    assertEquals(IPipelineConnector.DOCUMENTSTATUS_ACCEPTED,fanout.sendDocument("http://localhost/doc",makeDocument()));
+  }
+
+  @Test
+  public void testFirstFailureWins()
+    throws Exception
+  {
+    CyclicBarrier barrier = new CyclicBarrier(3);
+    ServiceInterruption interruption = new ServiceInterruption("Try later",0L);
+    ReentrantLock contextLock = new ReentrantLock();
+    PipelineAddFanout fanout = new PipelineAddFanout(new PipelineAddEntryPoint[]{
+      new TestingEntryPoint(contextLock,barrier,IPipelineConnector.DOCUMENTSTATUS_ACCEPTED,null),
+      new TestingEntryPoint(contextLock,barrier,0,interruption),
+      new TestingEntryPoint(contextLock,barrier,0,new ManifoldCFException("Failed"))},
+      null,null,null,contextLock,262144L);
+    try
+    {
+      fanout.sendDocument("http://localhost/doc",makeDocument());
+      fail("Expected a service interruption");
+    }
+    catch (ServiceInterruption e)
+    {
+      assertSame(interruption,e);
+    }
+  }
+
+  @Test
+  public void testLaterSiblingsSkipped()
+    throws Exception
+  {
+    ReentrantLock contextLock = new ReentrantLock();
+    CountDownLatch doneLatch = new CountDownLatch(3);
+    AtomicInteger firstFailure = new AtomicInteger(Integer.MAX_VALUE);
+    ManifoldCFException failure = new ManifoldCFException("Failed");
+    FanoutBranch second = new FanoutBranch(
+      new TestingEntryPoint(contextLock,new CyclicBarrier(1),0,failure),
+      "http://localhost/doc",makeDocument(),null,contextLock,1,firstFailure);
+    second.setDoneLatch(doneLatch);
+    try
+    {
+      second.call();
+      fail("Expected the sibling to fail");
+    }
+    catch (ManifoldCFException e)
+    {
+      assertSame(failure,e);
+    }
+    // A sibling after the failing one that hasn't started is skipped, but one before it is still sent the document
+    FanoutBranch third = new FanoutBranch(
+      new TestingEntryPoint(contextLock,new CyclicBarrier(1),IPipelineConnector.DOCUMENTSTATUS_ACCEPTED,null),
+      "http://localhost/doc",makeDocument(),null,contextLock,2,firstFailure);
+    third.setDoneLatch(doneLatch);
+    assertNull(third.call());
+    FanoutBranch first = new FanoutBranch(
+      new TestingEntryPoint(contextLock,new CyclicBarrier(1),IPipelineConnector.DOCUMENTSTATUS_ACCEPTED,null),
+      "http://localhost/doc",makeDocument(),null,contextLock,0,firstFailure);
+    first.setDoneLatch(doneLatch);
+    assertEquals(new Integer(IPipelineConnector.DOCUMENTSTATUS_ACCEPTED),first.call());
+    assertEquals(0L,doneLatch.getCount());
+  }
+
+  @Test
+  public void testInterruptWaitsForBranches()
+    throws Exception
+  {
+    final CountDownLatch started = new CountDownLatch(1);
+    final ReentrantLock contextLock = new ReentrantLock();
+    final StubbornEntryPoint stubborn = new StubbornEntryPoint(contextLock,started);
+    final PipelineAddFanout fanout = new PipelineAddFanout(new PipelineAddEntryPoint[]{
+      stubborn,
+      new TestingEntryPoint(contextLock,new CyclicBarrier(1),IPipelineConnector.DOCUMENTSTATUS_ACCEPTED,null)},
+      null,null,null,contextLock,262144L);
+    final Throwable[] thrown = new Throwable[1];
+    final boolean[] finishedFirst = new boolean[1];
+    Thread sender = new Thread()
+      {
+        @Override
+        public void run()
+        {
+          try
+          {
+            fanout.sendDocument("http://localhost/doc",makeDocument());
+          }
+          catch (Throwable e)
+          {
+            finishedFirst[0] = stubborn.isFinished();
+            thrown[0] = e;
+          }
+        }
+      };
+    sender.start();
+    assertTrue(started.await(30L,TimeUnit.SECONDS));
+    sender.interrupt();
+    sender.join(30000L);
+    assertFalse(sender.isAlive());
+    assertTrue(thrown[0] instanceof ManifoldCFException);
+    assertEquals(ManifoldCFException.INTERRUPTED,((ManifoldCFException)thrown[0]).getErrorCode());
+    assertTrue(finishedFirst[0]);
+  }
+
+  protected static RepositoryDocument makeDocument()
+  {
+    byte[] data = new byte[documentSize];
+    for (int i = 0; i < data.length; i++)
+    {
+      data[i] = (byte)i;
+    }
+    RepositoryDocument rd = new RepositoryDocument();
+    rd.setBinary(new ByteArrayInputStream(data),data.length);
+    return rd;
+  }
+
+  /** Entry point that stands in for a whole downstream pipeline branch.  Like a real one, it gives up the
+  * thread context while the document is being read.
+  */
+  protected static class TestingEntryPoint extends PipelineAddEntryPoint
+  {
+    protected final CyclicBarrier barrier;
+    protected final int status;
+    protected final Exception failure;
+
+    public TestingEntryPoint(ReentrantLock contextLock, CyclicBarrier barrier, int status, Exception failure)
+    {
+      super(new TestingOutputConnector(),null,null,null,true,contextLock);
+      this.barrier = barrier;
+      this.status = status;
+      this.failure = failure;
+    }
+
+    @Override
+    public int addOrReplaceDocumentWithException(String documentURI, RepositoryDocument document)
+      throws ManifoldCFException, ServiceInterruption, IOException
+    {
+      int holdCount = IncrementalIngester.releaseContext(contextLock);
+      try
+      {
+        readDocument(document.getBinaryStream());
+      }
+      finally
+      {
+        IncrementalIngester.reacquireContext(contextLock,holdCount);
+      }
+      if (failure instanceof ServiceInterruption)
+        throw (ServiceInterruption)failure;
+      if (failure instanceof ManifoldCFException)
+        throw (ManifoldCFException)failure;
+      return status;
+    }
+
+    /** Read half, let the other branches catch up, then read the rest.
+    */
+    protected void readDocument(InputStream is)
+      throws IOException
+    {
+      long total = 0L;
+      boolean waited = false;
+      byte[] buffer = new byte[1024];
+      while (true)
+      {
+        if (!waited && total == documentSize / 2)
+        {
+          await();
+          waited = true;
+        }
+        int amt = buffer.length;
+        if (!waited)
+          amt = (int)Math.min(amt,documentSize / 2 - total);
+        amt = is.read(buffer,0,amt);
+        if (amt == -1)
+          break;
+        for (int i = 0; i < amt; i++)
+        {
+          if (buffer[i] != (byte)(total + i))
+            throw new IOException("Wrong data at position "+(total + i));
+        }
+        total += amt;
+      }
+      if (total != documentSize)
+        throw new IOException("Read "+total+" bytes, expected "+documentSize);
+    }
+
+    protected void await()
+      throws IOException
+    {
+      try
+      {
+        barrier.await(30L,TimeUnit.SECONDS);
+      }
+      catch (Exception e)
+      {
+        throw new IOException("Branches were not run at the same time: "+e.getMessage(),e);
+      }
+    }
+  }
+
+  /** Entry point that ignores interrupts for a while before it finishes with the document.
+  */
+  protected static class StubbornEntryPoint extends PipelineAddEntryPoint
+  {
+    protected final CountDownLatch started;
+    protected volatile boolean finished = false;
+
+    public StubbornEntryPoint(ReentrantLock contextLock, CountDownLatch started)
+    {
+      super(new TestingOutputConnector(),null,null,null,true,contextLock);
+      this.started = started;
+    }
+
+    public boolean isFinished()
+    {
+      return finished;
+    }
+
+    @Override
+    public int addOrReplaceDocumentWithException(String documentURI, RepositoryDocument document)
+      throws ManifoldCFException, ServiceInterruption, IOException
+    {
+      int holdCount = IncrementalIngester.releaseContext(contextLock);
+      try
+      {
+        started.countDown();
+        long stopTime = System.currentTimeMillis() + 1000L;
+        while (System.currentTimeMillis() < stopTime)
+        {
+          try
+          {
+            Thread.sleep(50L);
+          }
+          catch (InterruptedException e)
+          {
+            // Keep going
+          }
+        }
+        finished = true;
+        return IPipelineConnector.DOCUMENTSTATUS_ACCEPTED;
+      }
+      finally
+      {
+        IncrementalIngester.reacquireContext(contextLock,holdCount);
+      }
+    }
+  }
+
+}
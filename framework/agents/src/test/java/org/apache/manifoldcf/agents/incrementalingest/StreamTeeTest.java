@@ -0,0 +1,155 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.agents.incrementalingest;
+
+import org.apache.manifoldcf.core.interfaces.*;
+import org.apache.manifoldcf.core.tests.BaseEnvironment;
+
+import java.io.*;
+import java.util.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/** Check that every reader of a stream tee sees the whole stream, whether the data stays in memory or has
+* to be spilled because one reader lags far behind the other.  This needs the environment for its temporary
+* file tracking.
+*/
+public class StreamTeeTest extends BaseEnvironment
+{
+  protected final static int streamSize = 1000000;
+
+  @Test
+  public void testStreamTee()
+    throws Exception
+  {
+    // Everything fits in memory
+    StreamTee tee = new StreamTee(new ByteArrayInputStream(makeData()),2,streamSize);
+    try
+    {
+      InputStream first = tee.newReader();
+      InputStream second = tee.newReader();
+      readAndCheck(first,0,1000);
+      readAndCheck(second,0,streamSize);
+      readAndCheck(first,1000,streamSize);
+      assertNull(tee.spillFile);
+      // Both readers are at the end, so nothing needs holding any more
+      assertEquals(0L,tee.memoryHeld);
+    }
+    finally
+    {
+      tee.close();
+    }
+
+    // One reader reads it all before the other starts, as happens when siblings are sent a document in turn
+    tee = new StreamTee(new ByteArrayInputStream(makeData()),2,200000L);
+    try
+    {
+      InputStream first = tee.newReader();
+      readAndCheck(first,0,streamSize);
+      assertNotNull(tee.spillFile);
+      assertTrue(tee.memoryHeld <= 200000L);
+      first.close();
+      readAndCheck(tee.newReader(),0,streamSize);
+    }
+    finally
+    {
+      tee.close();
+    }
+
+    // A failing source fails every reader that needs the missing data
+    tee = new StreamTee(new FailingInputStream(100000),2,streamSize);
+    try
+    {
+      InputStream first = tee.newReader();
+      InputStream second = tee.newReader();
+      for (InputStream is : new InputStream[]{first,second})
+      {
+        try
+        {
+          readAndCheck(is,0,streamSize);
+          fail("Expected read failure");
+        }
+        catch (IOException e)
+        {
+          assertEquals("Source failed",e.getMessage());
+        }
+      }
+    }
+    finally
+    {
+      tee.close();
+    }
+  }
+
+  protected static byte[] makeData()
+  {
+    byte[] data = new byte[streamSize];
+    for (int i = 0; i < data.length; i++)
+    {
+      data[i] = (byte)(i * 7);
+    }
+    return data;
+  }
+
+  /** Read from a stream, from one position to another, checking the data.  Reading to the end of the
+  * stream also checks that there's nothing after it.
+  */
+  protected static void readAndCheck(InputStream is, int start, int end)
+    throws IOException
+  {
+    byte[] buffer = new byte[10000];
+    int position = start;
+    while (position < end)
+    {
+      int amt = is.read(buffer,0,Math.min(buffer.length,end - position));
+      if (amt == -1)
+        throw new IOException("Stream ended at "+position);
+      for (int i = 0; i < amt; i++)
+      {
+        assertEquals("Data at "+(position + i),(byte)((position + i) * 7),buffer[i]);
+      }
+      position += amt;
+    }
+    if (end == streamSize)
+      assertEquals(-1,is.read(buffer,0,buffer.length));
+  }
+
+  /** Stream that produces the expected data up to a point, and then fails.
+  */
+  protected static class FailingInputStream extends InputStream
+  {
+    protected final int failPosition;
+    protected int position = 0;
+
+    public FailingInputStream(int failPosition)
+    {
+      this.failPosition = failPosition;
+    }
+
+    @Override
+    public int read()
+      throws IOException
+    {
+      if (position == failPosition)
+        throw new IOException("Source failed");
+      return ((int)(byte)(position++ * 7)) & 0xff;
+    }
+  }
+
+}
@@ -0,0 +1,160 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.agents.incrementalingest;
+
+import org.apache.manifoldcf.core.interfaces.*;
+import org.apache.manifoldcf.agents.interfaces.*;
+
+/** A pipeline made of nothing but outputs, each fed directly from the repository, through which nothing has
+* yet been indexed.
+*/
+public class TestingPipelineSpecification implements IPipelineSpecificationWithVersions
+{
+  protected final IOutputConnection[] outputConnections;
+  protected final VersionContext outputDescription = new VersionContext("output",new ConfigParams(),new Specification());
+
+  /** Constructor.
+  *@param outputConnections are the output connections, one per stage.
+  */
+  public TestingPipelineSpecification(IOutputConnection[] outputConnections)
+  {
+    this.outputConnections = outputConnections;
+  }
+
+  @Override
+  public int getStageCount()
+  {
+    return outputConnections.length;
+  }
+
+  @Override
+  public int[] getStageChildren(int stage)
+  {
+    if (stage != -1)
+      return new int[0];
+    int[] rval = new int[outputConnections.length];
+    for (int i = 0; i < rval.length; i++)
+    {
+      rval[i] = i;
+    }
+    return rval;
+  }
+
+  @Override
+  public int getStageParent(int stage)
+  {
+    return -1;
+  }
+
+  @Override
+  public String getStageConnectionName(int stage)
+  {
+    return outputConnections[stage].getName();
+  }
+
+  @Override
+  public boolean checkStageOutputConnection(int stage)
+  {
+    return true;
+  }
+
+  @Override
+  public int getOutputCount()
+  {
+    return outputConnections.length;
+  }
+
+  @Override
+  public int getOutputStage(int index)
+  {
+    return index;
+  }
+
+  @Override
+  public String[] getTransformationConnectionNames()
+  {
+    return new String[0];
+  }
+
+  @Override
+  public ITransformationConnection[] getTransformationConnections()
+  {
+    return new ITransformationConnection[0];
+  }
+
+  @Override
+  public String[] getOutputConnectionNames()
+  {
+    String[] rval = new String[outputConnections.length];
+    for (int i = 0; i < rval.length; i++)
+    {
+      rval[i] = outputConnections[i].getName();
+    }
+    return rval;
+  }
+
+  @Override
+  public IOutputConnection[] getOutputConnections()
+  {
+    return outputConnections;
+  }
+
+  @Override
+  public Integer getTransformationConnectionIndex(int stage)
+  {
+    return null;
+  }
+
+  @Override
+  public Integer getOutputConnectionIndex(int stage)
+  {
+    return new Integer(stage);
+  }
+
+  @Override
+  public VersionContext getStageDescriptionString(int stage)
+  {
+    return outputDescription;
+  }
+
+  @Override
+  public String getOutputDocumentVersionString(int index)
+  {
+    return null;
+  }
+
+  @Override
+  public String getOutputTransformationVersionString(int index)
+  {
+    return null;
+  }
+
+  @Override
+  public String getOutputVersionString(int index)
+  {
+    return null;
+  }
+
+  @Override
+  public String getAuthorityNameString(int index)
+  {
+    return null;
+  }
+
+}
@@ -48,6 +48,7 @@ public class CacheManager implements ICacheManager
     throws ManifoldCFException
   {
     lockManager = LockManagerFactory.make(context);
+    cache.setMemoryLimit(((long)LockManagerFactory.getIntProperty(context,ManifoldCF.cacheMaxMemoryProperty,0)) * 1024L * 1024L);
   }
 
   /** Locate or create a set of objects in the cached object pool, and/or destroy and invalidate
@@ -846,7 +847,7 @@ public class CacheManager implements ICacheManager
     throws ManifoldCFException
   {
     // Read cache resource
-    byte[] cacheResourceData = lockManager.readData("cache-"+key);
+    byte[] cacheResourceData = lockManager.readWatchedData("cache-"+key);
     if (cacheResourceData == null)
       return 0L;
 
@@ -20,37 +20,95 @@ package org.apache.manifoldcf.core.cachemanager;
 
 import org.apache.manifoldcf.core.interfaces.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 /** General cache class.  This class will be statically instantiated.  It contains all the structures
 * needed to maintain a cache of objects, with both LRU flushing behavior, and timed expiration of
 * objects.
 * This cache is entirely local to a JVM and does NOT have any locking and synchronization semantics
 * cross-JVM.  That is handled at a higher level.
+*
+* There is no cache-wide lock.  Lookups do not lock at all.  Changes to an object's record are made while
+* holding one of a set of stripe locks, chosen by the hash of the object description, so threads working
+* on different objects rarely contend.  The invalidation key index, the per-class LRU lists, and the
+* expiration order are all concurrent structures, and a record is only ever added to or removed from them
+* while its stripe lock is held.  Nothing ever holds more than one stripe lock at a time.
+*
+* The cache may also be given a memory budget.  Each object's size is estimated when it is cached, and
+* while the total is over budget, objects are removed starting with the least recently used.  An
+* approximate access frequency is kept for every object description (including ones no longer cached),
+* and a newly cached object only displaces the least recently used object if it has been asked for more
+* often; otherwise the newcomer is the one that goes (this is the TinyLFU admission policy).  This keeps
+* one-off large results, such as reports, from flushing out the small objects that get used constantly.
 */
 public class GeneralCache
 {
   public static final String _rcsid = "@(#)$Id: GeneralCache.java 988245 2010-08-23 18:39:35Z kwright $";
 
+  /** The number of stripe locks.  Must be a power of two. */
+  protected final static int stripeCount = 64;
+
+  // Size estimation parameters, in bytes
+  protected final static long defaultObjectSize = 512L;
+  protected final static long rowOverhead = 48L;
+  protected final static long stringOverhead = 48L;
+  protected final static long valueSize = 24L;
+  protected final static int sampleRowCount = 16;
+
   // This table is for looking stuff up by object description
-  protected ObjectRecordTable hashtable = new ObjectRecordTable();
-  // This table is for looking stuff up by cache key - hash table of hash tables
-  protected InvalidationTable invalidationTable = new InvalidationTable();
-  // This table keeps the running count of each object class
-  protected ObjectClassTable objectClassTable = new ObjectClassTable();
-  // This structure is the general expiration tree
-  public ExpirationTree expirationTree = new ExpirationTree();
+  protected final ConcurrentMap<Object,ObjectRecord> hashtable = new ConcurrentHashMap<Object,ObjectRecord>();
+  // The stripe locks
+  protected final Object[] stripeLocks = new Object[stripeCount];
+  // This table is for looking stuff up by cache key
+  protected final InvalidationTable invalidationTable = new InvalidationTable();
+  // This table keeps the LRU order and running count of each object class
+  protected final ObjectClassTable objectClassTable = new ObjectClassTable();
+  // This structure orders the records that have an expiration time
+  protected final ConcurrentSkipListMap<ExpirationKey,ObjectRecord> expirationMap = new ConcurrentSkipListMap<ExpirationKey,ObjectRecord>();
+  // Sequence numbers, used to order records within the LRU lists and to break expiration time ties
+  protected final AtomicLong sequenceCounter = new AtomicLong(0L);
+  // All the records, ordered from least to most recently used
+  protected final ConcurrentSkipListMap<Long,ObjectRecord> globalLRUMap = new ConcurrentSkipListMap<Long,ObjectRecord>();
+  // The approximate access frequencies of object descriptions
+  protected final FrequencySketch frequencySketch = new FrequencySketch();
+  // The estimated total size of all the cached objects, in bytes
+  protected final AtomicLong totalSize = new AtomicLong(0L);
+  // The memory budget, in bytes; 0 means no limit
+  protected volatile long memoryLimit = 0L;
 
   public GeneralCache()
   {
+    for (int i = 0; i < stripeLocks.length; i++)
+    {
+      stripeLocks[i] = new Object();
+    }
+  }
+
+  /** Set the memory budget for the cache.
+  *@param memoryLimit is the maximum estimated size of all cached objects, in bytes, or 0 for no limit.
+  */
+  public void setMemoryLimit(long memoryLimit)
+  {
+    this.memoryLimit = memoryLimit;
+  }
+
+  /** Get the estimated total size of all cached objects.
+  *@return the size, in bytes.
+  */
+  public long getTotalSize()
+  {
+    return totalSize.get();
   }
 
   /** Locate an object in the cache, and return it if found.
   *@param objectDescription is the object's unique identifier.
   *@return the object if found, or null if not present in the cache.
   */
-  public synchronized Object lookup(Object objectDescription)
+  public Object lookup(Object objectDescription)
   {
-    ObjectRecord o = hashtable.lookup(objectDescription);
+    frequencySketch.increment(objectDescription.hashCode());
+    ObjectRecord o = hashtable.get(objectDescription);
     if (o == null)
       return null;
     return o.getObject();
@@ -60,9 +118,9 @@ public class GeneralCache
   *@param objectDescription is the object's unique identifier.
   *@return the creation time, or -1 if object not found.
   */
-  public synchronized long getObjectCreationTime(Object objectDescription)
+  public long getObjectCreationTime(Object objectDescription)
   {
-    ObjectRecord o = hashtable.lookup(objectDescription);
+    ObjectRecord o = hashtable.get(objectDescription);
     if (o == null)
       return -1L;
     return o.getCreationTime();
@@ -72,9 +130,9 @@ public class GeneralCache
   *@param objectDescription is the object's unique identifier.
   *@return the keys, or null if not found.
   */
-  public synchronized StringSet getObjectInvalidationKeys(Object objectDescription)
+  public StringSet getObjectInvalidationKeys(Object objectDescription)
   {
-    ObjectRecord o = hashtable.lookup(objectDescription);
+    ObjectRecord o = hashtable.get(objectDescription);
     if (o == null)
       return null;
     return o.getKeys();
@@ -84,9 +142,9 @@ public class GeneralCache
   *@param objectDescription is the object's unique identifier.
   *@return the expiration time (-1L means none).
   */
-  public synchronized long getObjectExpirationTime(Object objectDescription)
+  public long getObjectExpirationTime(Object objectDescription)
   {
-    ObjectRecord o = hashtable.lookup(objectDescription);
+    ObjectRecord o = hashtable.get(objectDescription);
     if (o == null)
       return -1L;
     return o.getObjectExpiration();
@@ -95,11 +153,14 @@ public class GeneralCache
   /** Delete a record from the cache.
   *@param objectDescription is the unique description.
   */
-  public synchronized void deleteObject(Object objectDescription)
+  public void deleteObject(Object objectDescription)
   {
-    ObjectRecord o = hashtable.lookup(objectDescription);
-    if (o != null)
-      deleteEntry(o);
+    synchronized (getStripeLock(objectDescription))
+    {
+      ObjectRecord o = hashtable.get(objectDescription);
+      if (o != null)
+        deleteEntry(o);
+    }
   }
 
   /** Add a newly created object to the cache.  Use ONLY for newly created objects!
@@ -108,37 +169,56 @@ public class GeneralCache
   *@param keys are the invalidation keys for the newly created object.
   *@param timestamp is the creation timestamp for this object (used for cross-JVM invalidation)
   */
-  public synchronized void setObject(Object objectDescription, Object object, StringSet keys, long timestamp)
+  public void setObject(Object objectDescription, Object object, StringSet keys, long timestamp)
   {
-    ObjectRecord record = new ObjectRecord(objectDescription,object,keys,timestamp);
-    hashtable.add(record);
-    // Make an entry in the invalidation hash
-    invalidationTable.addKeys(keys,record);
-    // Object has no expiration or class yet, so don't add it to the expiration tree, or to the object
-    // class trees
+    ObjectRecord record = new ObjectRecord(objectDescription,object,keys,timestamp,estimateSize(object));
+    synchronized (getStripeLock(objectDescription))
+    {
+      // If there's an old copy of the object, get rid of it properly
+      ObjectRecord existing = hashtable.get(objectDescription);
+      if (existing != null)
+        deleteEntry(existing);
+      hashtable.put(objectDescription,record);
+      totalSize.addAndGet(record.getSize());
+      // Make an entry in the invalidation index
+      invalidationTable.addKeys(keys,record);
+      // The object is now the most recently used
+      record.setLRUSequence(sequenceCounter.incrementAndGet());
+      globalLRUMap.put(new Long(record.getLRUSequence()),record);
+      // Object has no expiration or class yet, so don't add it to the expiration map, or to the object
+      // class LRU lists
+    }
+    enforceMemoryLimit(record);
   }
 
   /** Set an object's expiration time.
   *@param objectDescription is the object's unique description.
   *@param expirationTime is the object's new expiration time, in milliseconds since epoch.
   */
-  public synchronized void setObjectExpiration(Object objectDescription, long expirationTime)
+  public void setObjectExpiration(Object objectDescription, long expirationTime)
   {
-    // Find existing object
-    ObjectRecord existing = hashtable.lookup(objectDescription);
-    if (existing == null)
-      return;
-    if (existing.getObjectExpiration() != -1)
+    synchronized (getStripeLock(objectDescription))
     {
-      // Pull the object from the expiration tree
-      expirationTree.removeEntry(existing);
-    }
-    // Set the new expiration
-    existing.setObjectExpiration(expirationTime);
-    if (expirationTime != -1)
-    {
-      //Put the object back into the expiration tree
-      expirationTree.addEntry(existing);
+      // Find existing object
+      ObjectRecord existing = hashtable.get(objectDescription);
+      if (existing == null)
+        return;
+      ExpirationKey oldKey = existing.getExpirationKey();
+      if (oldKey != null)
+      {
+        // Pull the object from the expiration map
+        expirationMap.remove(oldKey);
+        existing.setExpirationKey(null);
+      }
+      // Set the new expiration
+      existing.setObjectExpiration(expirationTime);
+      if (expirationTime != -1)
+      {
+        // Put the object back into the expiration map
+        ExpirationKey newKey = new ExpirationKey(expirationTime,sequenceCounter.incrementAndGet());
+        existing.setExpirationKey(newKey);
+        expirationMap.put(newKey,existing);
+      }
     }
   }
 
@@ -149,35 +229,49 @@ public class GeneralCache
   *@param maxCount is the maximum number of objects of the class to permit to
   * remain in the cache.
   */
-  public synchronized void setObjectClass(Object objectDescription, String objectClass,
+  public void setObjectClass(Object objectDescription, String objectClass,
     int maxCount)
   {
-    // Lookup the existing object class
-    ObjectRecord existing = hashtable.lookup(objectDescription);
-    if (existing == null)
-      return;
-    if (existing.getObjectClass() != null)
+    synchronized (getStripeLock(objectDescription))
     {
-      // Pull the object from the object class expiration tree
-      objectClassTable.removeEntry(existing);
-    }
-    // Set the new object class & LRU value
-    existing.setObjectClass(objectClass);
-    if (objectClass != null)
-    {
-      // Put the object into the object class expiration tree
+      // Lookup the existing object class
+      ObjectRecord existing = hashtable.get(objectDescription);
+      if (existing == null)
+        return;
+      if (existing.getObjectClass() != null)
+      {
+        // Pull the object from the object class LRU list
+        objectClassTable.removeEntry(existing);
+      }
+      // Move the object to the recent end of the overall LRU list
+      globalLRUMap.remove(new Long(existing.getLRUSequence()));
+      existing.setLRUSequence(sequenceCounter.incrementAndGet());
+      globalLRUMap.put(new Long(existing.getLRUSequence()),existing);
+      // Set the new object class & LRU value
+      existing.setObjectClass(objectClass);
+      if (objectClass == null)
+        return;
+      // Put the object at the recent end of the object class LRU list
       objectClassTable.addEntry(existing);
+    }
 
-      if (maxCount >= 0)
+    if (maxCount >= 0)
+    {
+      // Now, clean up objects to meet the count.  This must be done without holding our stripe lock,
+      // since the victims are generally in other stripes.
+      ObjectClassRecord classRecord = objectClassTable.getClassRecord(objectClass);
+      while (classRecord.getCurrentMemberCount() > maxCount)
       {
-        // Now, clean up objects to meet the count
-        while (objectClassTable.getCurrentMemberCount(objectClass) > maxCount)
+        Map.Entry<Long,ObjectRecord> oldest = classRecord.getOldestEntry();
+        if (oldest == null)
+          break;
+        ObjectRecord oldestRecord = oldest.getValue();
+        synchronized (getStripeLock(oldestRecord.getObjectDescription()))
         {
-          ObjectRecord oldestRecord = objectClassTable.getOldestEntry(objectClass);
-          // Delete this entry from all places it lives
-          deleteEntry(oldestRecord);
+          // Only delete it if nobody has touched it since we looked; otherwise look again
+          if (oldestRecord.isLive() && oldestRecord.getLRUSequence() == oldest.getKey().longValue())
+            deleteEntry(oldestRecord);
         }
-
       }
     }
 
@@ -187,31 +281,24 @@ public class GeneralCache
   * keys as invalidation keys to be removed from the cache.
   *@param keys is the StringSet describing the keys to invalidate.
   */
-  public synchronized void invalidateKeys(StringSet keys)
+  public void invalidateKeys(StringSet keys)
   {
     Iterator enum2 = keys.getKeys();
     while (enum2.hasNext())
     {
       String invalidateKey = (String)enum2.next();
-      Iterator enum1 = invalidationTable.getObjectRecordsForKey(invalidateKey);
-      while (enum1.hasNext())
+      // Detach the key's records from the index first; records added for this key from now on go into a new set.
+      Set<ObjectRecord> records = invalidationTable.removeKey(invalidateKey);
+      if (records == null)
+        continue;
+      for (ObjectRecord record : records)
       {
-        ObjectRecord record = (ObjectRecord)enum1.next();
-        hashtable.remove(record);
-        // Remove from object class table
-        if (record.getObjectClass() != null)
-        {
-          objectClassTable.removeEntry(record);
-        }
-        // Remove from expiration table
-        if (record.getExpirationTime() >= 0)
+        synchronized (getStripeLock(record.getObjectDescription()))
         {
-          expirationTree.removeEntry(record);
+          if (record.isLive())
+            deleteEntry(record);
         }
-
       }
-      // We do this last, because we are enumerating over something in here!
-      invalidationTable.removeKey(invalidateKey);
     }
   }
 
@@ -222,66 +309,151 @@ public class GeneralCache
   {
     while (true)
     {
-      // Do the synchronizer inside the loop.  Cleanup is slower,
+      // Get the oldest record, if any
+      Map.Entry<ExpirationKey,ObjectRecord> oldest = expirationMap.firstEntry();
+      if (oldest == null)
+        break;
+      if (oldest.getKey().getExpirationTime() > expireTime)
+        break;
+      ObjectRecord x = oldest.getValue();
+      // Lock only the one record at a time.  Cleanup is slower,
       // but the cache does not get locked for long periods.
-      synchronized (this)
+      synchronized (getStripeLock(x.getObjectDescription()))
       {
-        // Get the oldest record, if any
-        ObjectRecord x = expirationTree.getOldestEntry();
-        if (x == null)
-          break;
-        if (x.getExpirationTime() > expireTime)
-          break;
-        // Remove the entry
-        deleteEntry(x);
+        // If the record's expiration changed since we looked, just look again
+        if (x.isLive() && x.getExpirationKey() == oldest.getKey())
+          deleteEntry(x);
       }
     }
   }
 
-  /** Delete a record from the cache. NOTE WELL: This method cannot be used
-  * if the data associated with the record is currently being processed with
-  * an enumeration (for example), since it modifies the structures that the
-  * enumeration is based on!
+  /** Remove objects until the cache is within its memory budget.  This must be called without holding
+  * any stripe lock.
+  *@param candidate is the object that was just added, which may itself be turned away.
+  */
+  protected void enforceMemoryLimit(ObjectRecord candidate)
+  {
+    while (true)
+    {
+      long limit = memoryLimit;
+      if (limit <= 0L || totalSize.get() <= limit)
+        return;
+      Map.Entry<Long,ObjectRecord> oldest = globalLRUMap.firstEntry();
+      if (oldest == null)
+        return;
+      ObjectRecord victim = oldest.getValue();
+      if (candidate.isLive() && victim != candidate &&
+        frequencySketch.frequency(candidate.getObjectDescription().hashCode()) <=
+          frequencySketch.frequency(victim.getObjectDescription().hashCode()))
+      {
+        // The newcomer is no more popular than what it would displace, so it goes instead
+        synchronized (getStripeLock(candidate.getObjectDescription()))
+        {
+          if (candidate.isLive())
+            deleteEntry(candidate);
+        }
+        continue;
+      }
+      synchronized (getStripeLock(victim.getObjectDescription()))
+      {
+        // Only delete it if nobody has touched it since we looked; otherwise look again
+        if (victim.isLive() && victim.getLRUSequence() == oldest.getKey().longValue())
+          deleteEntry(victim);
+      }
+    }
+  }
+
+  /** Estimate the amount of memory an object uses.  Resultsets are sized by their row count and
+  * the width of a sample of their rows; anything else is presumed to be modest.
+  *@param object is the object.
+  *@return the estimated size, in bytes.
+  */
+  protected static long estimateSize(Object object)
+  {
+    if (!(object instanceof IResultSet))
+      return defaultObjectSize;
+    IResultSet resultSet = (IResultSet)object;
+    int rowCount = resultSet.getRowCount();
+    if (rowCount == 0)
+      return defaultObjectSize;
+    // Sample rows spread evenly through the resultset
+    int sampleCount = Math.min(rowCount,sampleRowCount);
+    long sampleWidth = 0L;
+    for (int i = 0; i < sampleCount; i++)
+    {
+      IResultRow row = resultSet.getRow((int)(((long)i * rowCount) / sampleCount));
+      sampleWidth += rowOverhead;
+      Iterator<String> columns = row.getColumns();
+      while (columns.hasNext())
+      {
+        Object value = row.getValue(columns.next());
+        if (value instanceof String)
+          sampleWidth += stringOverhead + 2L * ((String)value).length();
+        else
+          sampleWidth += valueSize;
+      }
+    }
+    return defaultObjectSize + (sampleWidth * rowCount) / sampleCount;
+  }
+
+  /** Find the stripe lock for an object description.
+  */
+  protected Object getStripeLock(Object objectDescription)
+  {
+    int h = objectDescription.hashCode();
+    // Spread the hash, so descriptions whose hashes differ only in the high bits land in different stripes
+    h ^= (h >>> 16);
+    return stripeLocks[h & (stripeCount - 1)];
+  }
+
+  /** Delete a record from the cache.  The caller must hold the record's stripe lock.
   *@param record is the object record.
   */
   protected void deleteEntry(ObjectRecord record)
   {
+    record.setLive(false);
     // Delete from the main cache
-    hashtable.remove(record);
-    // Delete from key hash
+    hashtable.remove(record.getObjectDescription(),record);
+    totalSize.addAndGet(-record.getSize());
+    globalLRUMap.remove(new Long(record.getLRUSequence()));
+    // Delete from key index
     invalidationTable.removeObjectRecord(record);
     // Remove from object class table
     if (record.getObjectClass() != null)
     {
       objectClassTable.removeEntry(record);
     }
-    // Remove from expiration table
-    if (record.getExpirationTime() >= 0)
+    // Remove from expiration map
+    ExpirationKey expirationKey = record.getExpirationKey();
+    if (expirationKey != null)
     {
-      expirationTree.removeEntry(record);
+      expirationMap.remove(expirationKey);
+      record.setExpirationKey(null);
     }
 
   }
 
   /** This class represents a cached object.  It has enough hooks to allow it
   * to live in all the various data structures the general cache maintains.
+  * The mutable fields are only changed under the record's stripe lock, but some are read without it.
   */
-  protected class ObjectRecord
+  protected static class ObjectRecord
   {
-    protected Object objectDescription;
-    protected Object theObject;
-    protected StringSet invalidationKeys;
-    protected long creationTime;
-    protected long expirationTime = -1;
+    protected final Object objectDescription;
+    protected final Object theObject;
+    protected final StringSet invalidationKeys;
+    protected final long creationTime;
+    protected final long size;
+    protected volatile long expirationTime = -1;
+    protected volatile boolean live = true;
     protected String objectClass = null;
-    protected ObjectRecord prevLRU = null;
-    protected ObjectRecord nextLRU = null;
-    protected ObjectRecord sameExpirationPrev = null;
-    protected ObjectRecord sameExpirationNext = null;
+    protected long lruSequence = -1L;
+    protected ExpirationKey expirationKey = null;
 
-    public ObjectRecord(Object objectDescription, Object theObject, StringSet invalidationKeys, long creationTime)
+    public ObjectRecord(Object objectDescription, Object theObject, StringSet invalidationKeys, long creationTime, long size)
     {
       this.creationTime = creationTime;
+      this.size = size;
       this.objectDescription = objectDescription;
       this.theObject = theObject;
       this.invalidationKeys = invalidationKeys;
@@ -292,24 +464,9 @@ public class GeneralCache
       return creationTime;
     }
 
-    public void setSameExpirationPrev(ObjectRecord x)
-    {
-      sameExpirationPrev = x;
-    }
-
-    public ObjectRecord getSameExpirationPrev()
-    {
-      return sameExpirationPrev;
-    }
-
-    public void setSameExpirationNext(ObjectRecord x)
-    {
-      sameExpirationNext = x;
-    }
-
-    public ObjectRecord getSameExpirationNext()
+    public long getSize()
     {
-      return sameExpirationNext;
+      return size;
     }
 
     public void setObjectExpiration(long expTime)
@@ -337,24 +494,34 @@ public class GeneralCache
       return objectClass;
     }
 
-    public ObjectRecord getPrevLRU()
+    public void setLRUSequence(long lruSequence)
+    {
+      this.lruSequence = lruSequence;
+    }
+
+    public long getLRUSequence()
     {
-      return prevLRU;
+      return lruSequence;
     }
 
-    public ObjectRecord getNextLRU()
+    public void setExpirationKey(ExpirationKey expirationKey)
     {
-      return nextLRU;
+      this.expirationKey = expirationKey;
     }
 
-    public void setPrevLRU(ObjectRecord prev)
+    public ExpirationKey getExpirationKey()
     {
-      prevLRU = prev;
+      return expirationKey;
     }
 
-    public void setNextLRU(ObjectRecord next)
+    public void setLive(boolean live)
     {
-      nextLRU = next;
+      this.live = live;
+    }
+
+    public boolean isLive()
+    {
+      return live;
     }
 
     public Object getObject()
@@ -372,95 +539,97 @@ public class GeneralCache
       return expirationTime;
     }
 
-    public int hashCode()
-    {
-      return objectDescription.hashCode();
-    }
-
-    public boolean equals(Object o)
-    {
-      if (!(o instanceof ObjectRecord))
-        return false;
-      ObjectRecord record = (ObjectRecord)o;
-      return objectDescription.equals(record.objectDescription);
-    }
   }
 
-  /** This class describes a table of object records, looked up
-  * by the unique object description.
+  /** This class is the ordering key for the expiration map: the expiration time, with ties
+  * broken by the order in which the expiration times were set.
   */
-  protected class ObjectRecordTable
+  protected static class ExpirationKey implements Comparable<ExpirationKey>
   {
-    protected HashMap hashtable = new HashMap();
+    protected final long expirationTime;
+    protected final long sequence;
 
-    public ObjectRecordTable()
+    public ExpirationKey(long expirationTime, long sequence)
     {
+      this.expirationTime = expirationTime;
+      this.sequence = sequence;
     }
 
-    public void add(ObjectRecord record)
+    public long getExpirationTime()
     {
-      hashtable.put(record.getObjectDescription(),record);
+      return expirationTime;
     }
 
-    public void remove(Object objectDescription)
+    public int compareTo(ExpirationKey other)
     {
-      hashtable.remove(objectDescription);
+      if (expirationTime != other.expirationTime)
+        return (expirationTime < other.expirationTime)?-1:1;
+      if (sequence != other.sequence)
+        return (sequence < other.sequence)?-1:1;
+      return 0;
     }
 
-    public void remove(ObjectRecord record)
+    public boolean equals(Object o)
     {
-      hashtable.remove(record.getObjectDescription());
+      if (!(o instanceof ExpirationKey))
+        return false;
+      ExpirationKey other = (ExpirationKey)o;
+      return expirationTime == other.expirationTime && sequence == other.sequence;
     }
 
-    public ObjectRecord lookup(Object objectDescription)
+    public int hashCode()
     {
-      return (ObjectRecord)hashtable.get(objectDescription);
+      return (int)(expirationTime ^ (expirationTime >>> 32)) + (int)sequence;
     }
   }
 
   /** This class describes a table of invalidation keys, each of which points
   * to a set of object records.
   */
-  protected class InvalidationTable
+  protected static class InvalidationTable
   {
-    protected HashMap hashtable = new HashMap();
+    protected final ConcurrentMap<String,Set<ObjectRecord>> hashtable = new ConcurrentHashMap<String,Set<ObjectRecord>>();
 
     public InvalidationTable()
     {
     }
 
+    /** Index a record under its keys.  Call with the record's stripe lock held.
+    */
     public void addKeys(StringSet keyset, ObjectRecord objectRecord)
     {
       Iterator enum1 = keyset.getKeys();
       while (enum1.hasNext())
       {
         String key = (String)enum1.next();
-        HashMap ht = (HashMap)hashtable.get(key);
-        if (ht == null)
+        while (true)
         {
-          ht = new HashMap();
-          hashtable.put(key,ht);
+          Set<ObjectRecord> set = hashtable.get(key);
+          if (set == null)
+          {
+            set = Collections.newSetFromMap(new ConcurrentHashMap<ObjectRecord,Boolean>());
+            Set<ObjectRecord> otherSet = hashtable.putIfAbsent(key,set);
+            if (otherSet != null)
+              set = otherSet;
+          }
+          set.add(objectRecord);
+          // If the set was detached (by an invalidation, or because it emptied out) while we were adding to it,
+          // try again with the current set for the key.
+          if (hashtable.get(key) == set)
+            break;
         }
-        ht.put(objectRecord,objectRecord);
-      }
-    }
-
-    public Iterator getObjectRecordsForKey(String key)
-    {
-      HashMap ht = (HashMap)hashtable.get(key);
-      if (ht == null)
-      {
-        ht = new HashMap();
-        hashtable.put(key,ht);
       }
-      return ht.keySet().iterator();
     }
 
-    public void removeKey(String key)
+    /** Detach a key from the index, returning the records that were indexed under it, or null if none.
+    */
+    public Set<ObjectRecord> removeKey(String key)
     {
-      hashtable.remove(key);
+      return hashtable.remove(key);
     }
 
+    /** Remove a record from the index.  Call with the record's stripe lock held.
+    */
     public void removeObjectRecord(ObjectRecord record)
     {
       // Get the keys
@@ -469,78 +638,71 @@ public class GeneralCache
       while (enum1.hasNext())
       {
         String key = (String)enum1.next();
-        removeObjectRecordFromKey(key,record);
+        Set<ObjectRecord> set = hashtable.get(key);
+        if (set == null)
+          continue;
+        set.remove(record);
+        // Don't keep empty sets around
+        if (set.isEmpty())
+          hashtable.remove(key,set);
       }
     }
 
-    public void removeObjectRecordFromKey(String key, ObjectRecord objectRecord)
-    {
-      HashMap ht = (HashMap)hashtable.get(key);
-      if (ht == null)
-        return;
-      ht.remove(objectRecord);
-    }
-
   }
 
   /** This class describes a set of object classes, each with its own LRU behavior.
   */
-  protected class ObjectClassTable
+  protected static class ObjectClassTable
   {
-    protected HashMap hashtable = new HashMap();
+    protected final ConcurrentMap<String,ObjectClassRecord> hashtable = new ConcurrentHashMap<String,ObjectClassRecord>();
 
     public ObjectClassTable()
     {
     }
 
-    /** Call ONLY if there is no existing record in the object class table for this record
+    /** Get the record for an object class, creating it if needed.
     */
-    public void addEntry(ObjectRecord record)
+    public ObjectClassRecord getClassRecord(String objectClass)
     {
-      ObjectClassRecord x = (ObjectClassRecord)hashtable.get(record.getObjectClass());
+      ObjectClassRecord x = hashtable.get(objectClass);
       if (x == null)
       {
         x = new ObjectClassRecord();
-        hashtable.put(record.getObjectClass(),x);
+        ObjectClassRecord other = hashtable.putIfAbsent(objectClass,x);
+        if (other != null)
+          x = other;
       }
-      x.addEntry(record);
+      return x;
     }
 
-    /** Call ONLY if there is known to be an existing record in the object class table
+    /** Call ONLY if there is no existing record in the object class table for this record,
+    * and with the record's stripe lock held.  The record's LRU sequence number must already be set.
     */
-    public void removeEntry(ObjectRecord record)
+    public void addEntry(ObjectRecord record)
     {
-      ObjectClassRecord x = (ObjectClassRecord)hashtable.get(record.getObjectClass());
-      if (x == null)
-        return;
-      x.removeEntry(record);
+      getClassRecord(record.getObjectClass()).addEntry(record);
     }
 
-    public int getCurrentMemberCount(String objectClassName)
+    /** Call ONLY if there is known to be an existing record in the object class table,
+    * and with the record's stripe lock held.
+    */
+    public void removeEntry(ObjectRecord record)
     {
-      ObjectClassRecord x = (ObjectClassRecord)hashtable.get(objectClassName);
+      ObjectClassRecord x = hashtable.get(record.getObjectClass());
       if (x == null)
-        return 0;
-      return x.getCurrentMemberCount();
+        return;
+      x.removeEntry(record);
     }
 
-    public ObjectRecord getOldestEntry(String objectClassName)
-    {
-      ObjectClassRecord x = (ObjectClassRecord)hashtable.get(objectClassName);
-      if (x == null)
-        return null;
-      return x.getOldestEntry();
-    }
   }
 
   /** This is a helper class for the ObjectClassTable.  It maintains the data
-  * for an individual object class.
+  * for an individual object class: its records, ordered from least to most recently used.
   */
-  protected class ObjectClassRecord
+  protected static class ObjectClassRecord
   {
-    protected int currentMemberCount = 0;
-    protected ObjectRecord firstLRU = null;
-    protected ObjectRecord lastLRU = null;
+    protected final AtomicInteger currentMemberCount = new AtomicInteger(0);
+    protected final ConcurrentSkipListMap<Long,ObjectRecord> lruMap = new ConcurrentSkipListMap<Long,ObjectRecord>();
 
     public ObjectClassRecord()
     {
@@ -548,7 +710,7 @@ public class GeneralCache
 
     public int getCurrentMemberCount()
     {
-      return currentMemberCount;
+      return currentMemberCount.get();
     }
 
     /** Call this ONLY if it is known that the entry exists in
@@ -556,336 +718,110 @@ public class GeneralCache
     */
     public void removeEntry(ObjectRecord x)
     {
-      currentMemberCount--;
-      // Patch up everything
-      ObjectRecord prev = x.getPrevLRU();
-      ObjectRecord next = x.getNextLRU();
-      if (prev == null)
-        firstLRU = next;
-      else
-        prev.setNextLRU(next);
-      if (next == null)
-        lastLRU = prev;
-      else
-        next.setPrevLRU(prev);
-      x.setPrevLRU(null);
-      x.setNextLRU(null);
-    }
-
-    /** Add a record to the end of the LRU list.
+      if (lruMap.remove(new Long(x.getLRUSequence())) != null)
+        currentMemberCount.decrementAndGet();
+    }
+
+    /** Add a record to the recent end of the LRU list.
     * Call this ONLY if it is known that the entry does NOT
     * exist in the object class record!!!
     */
     public void addEntry(ObjectRecord x)
     {
-      currentMemberCount++;
-      x.setNextLRU(null);
-      x.setPrevLRU(lastLRU);
-      if (lastLRU == null)
-        firstLRU = x;
-      else
-        lastLRU.setNextLRU(x);
-      lastLRU = x;
+      lruMap.put(new Long(x.getLRUSequence()),x);
+      currentMemberCount.incrementAndGet();
     }
 
     /** Find the first (oldest) entry, or null
     * if there is none.
     */
-    public ObjectRecord getOldestEntry()
+    public Map.Entry<Long,ObjectRecord> getOldestEntry()
     {
-      return firstLRU;
+      return lruMap.firstEntry();
     }
 
   }
 
-  /** This class represents a timed expiration tree.  Expiration
-  * is used to order the nodes.
+  /** This class keeps approximate access counts for a large number of hash values in a small, fixed amount
+  * of memory (a count-min sketch of 4-bit counters).  Counts are halved periodically, so that they reflect
+  * recent popularity.  Updates are lock-free; an occasional lost update does not matter.
   */
-  protected class ExpirationTree
+  protected static class FrequencySketch
   {
-    protected ExpirationTreeNode root = null;
+    // Each long holds sixteen 4-bit counters
+    protected final static int tableSize = 8192;
+    protected final static int countersPerLong = 16;
+    protected final static int depth = 4;
+    protected final static long[] seeds = new long[]{0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    // When this many increments have happened, all counts are halved
+    protected final static int sampleSize = 10 * tableSize * countersPerLong / depth;
+
+    protected final AtomicLongArray table = new AtomicLongArray(tableSize);
+    protected final AtomicInteger additions = new AtomicInteger(0);
 
-    public ExpirationTree()
+    public FrequencySketch()
     {
     }
 
-    /** This method MUST have the entry in the tree before
-    * being called!
+    /** Note an access.
     */
-    public void removeEntry(ObjectRecord x)
+    public void increment(int hash)
     {
-      // We may delete entries from a node, but we could very well delete the node
-      // as well.  Therefore, this method assumes that this might happen.
-      //
-      ExpirationTreeNode parent = null;
-      boolean parentLesser = false;
-
-      long expTime = x.getExpirationTime();
-
-      ExpirationTreeNode current = root;
-      while (current != null)
+      for (int i = 0; i < depth; i++)
       {
-        long nodeExpTime = current.getExpirationTime();
-        if (expTime == nodeExpTime)
+        int counterIndex = indexOf(hash,i);
+        int longIndex = counterIndex / countersPerLong;
+        int shift = (counterIndex % countersPerLong) * 4;
+        while (true)
         {
-          // Found the right node!
-          // Delete the embedded record
-          if (current.removeObjectRecord(x))
-          {
-            // The node itself also needs to be removed!
-
-            ExpirationTreeNode lesserSide = current.getLesser();
-            ExpirationTreeNode greaterSide = current.getGreater();
-
-            if (lesserSide == null && greaterSide == null)
-            {
-              // Just remove the node; no children
-              setPointer(parent,parentLesser,null);
-            }
-            else if (lesserSide == null && greaterSide != null)
-            {
-              // Simple rearrangement
-              setPointer(parent,parentLesser,greaterSide);
-            }
-            else if (lesserSide != null && greaterSide == null)
-            {
-              // Reverse simple rearrangement
-              setPointer(parent,parentLesser,lesserSide);
-            }
-            else
-            {
-              // Full complexity
-              // Here, we may have a choice: Move up the lesser child, or
-              // move up the greater child.
-
-              // In theory, this should depend on the depth difference of the two
-              // sides, but since we don't keep this info, we'll just be arbitrary
-              setPointer(parent,parentLesser,greaterSide);
-              // Add the lesser side into the new node in this position
-              addTreeToBranch(greaterSide,true,lesserSide);
-            }
-
-          }
-          return;
-        }
-        if (expTime < nodeExpTime)
-        {
-          // go the lesser route
-          parent = current;
-          parentLesser = true;
-          current = current.getLesser();
-        }
-        else
-        {
-          // go the greater route
-          parent = current;
-          parentLesser = false;
-          current = current.getGreater();
+          long current = table.get(longIndex);
+          if (((current >>> shift) & 0xfL) == 0xfL)
+            break;
+          if (table.compareAndSet(longIndex,current,current + (1L << shift)))
+            break;
         }
       }
-      // Should never get here, because it means we did not find the record.
-
+      if (additions.incrementAndGet() == sampleSize)
+        age();
     }
 
-    /** This method files a subtree (represented by toAdd) beneath a branch, which is represented by
-    * the parent parameters.  If parent is null, then the overall root of the tree is the start point.
-    * If the parent is NOT null, then parentLesser describes whether the lesser branch is the one being modified.
-    * The logic determines the shallowest legal placement of the toAdd node(s), and inserts them there.
+    /** Get the approximate access count.
     */
-    protected void addTreeToBranch(ExpirationTreeNode parent, boolean parentLesser, ExpirationTreeNode toAdd)
+    public int frequency(int hash)
     {
-      if (toAdd == null)
-        return;
-
-      long expTime = toAdd.getExpirationTime();
-
-      // Find the first node to consider
-      ExpirationTreeNode current;
-      if (parent == null)
-        current = root;
-      else
+      int rval = Integer.MAX_VALUE;
+      for (int i = 0; i < depth; i++)
       {
-        if (parentLesser)
-          current = parent.getLesser();
-        else
-          current = parent.getGreater();
+        int counterIndex = indexOf(hash,i);
+        int count = (int)((table.get(counterIndex / countersPerLong) >>> ((counterIndex % countersPerLong) * 4)) & 0xfL);
+        if (count < rval)
+          rval = count;
       }
-
-      // Now, loop until we hit the end
-      while (current != null)
-      {
-        long nodeExpTime = current.getExpirationTime();
-        if (expTime < nodeExpTime)
-        {
-          // Take the lesser route
-          parent = current;
-          parentLesser = true;
-          current = current.getLesser();
-        }
-        else
-        {
-          // Take the greater route
-          parent = current;
-          parentLesser = false;
-          current = current.getGreater();
-        }
-      }
-
-      // Insert the subtree here
-      setPointer(parent,parentLesser,toAdd);
+      return rval;
     }
 
-    /** This method MUST NOT have the entry in the tree already
-    * before being called!
+    /** Halve all the counts.
     */
-    public void addEntry(ObjectRecord x)
+    protected void age()
     {
-      // Get the record expiration time, for convenience
-      long expTime = x.getExpirationTime();
-
-      // These two variables keep track of the last link we examined, so we can know where to put
-      // the new node, if required.
-      ExpirationTreeNode previousNode = null;
-      boolean lesser = false;
-
-      // This is our current variable
-      ExpirationTreeNode current = root;
-      while (current != null)
+      additions.set(0);
+      for (int i = 0; i < tableSize; i++)
       {
-        long nodeExpTime = current.getExpirationTime();
-        if (nodeExpTime == expTime)
+        while (true)
         {
-          // Add to the current node
-          current.addObjectRecord(x);
-          return;
-        }
-        if (nodeExpTime > expTime)
-        {
-          // Go down the lesser branch
-          previousNode = current;
-          lesser = true;
-          current = current.getLesser();
-        }
-        else
-        {
-          // Go down the greater branch
-          previousNode = current;
-          lesser = false;
-          current = current.getGreater();
+          long current = table.get(i);
+          if (table.compareAndSet(i,current,(current >>> 1) & 0x7777777777777777L))
+            break;
         }
       }
-
-      // New node needs to be created.
-      ExpirationTreeNode newNode = new ExpirationTreeNode(x);
-      setPointer(previousNode,lesser,newNode);
     }
 
-    protected void setPointer(ExpirationTreeNode parent, boolean isLesser, ExpirationTreeNode toAdd)
+    protected static int indexOf(int hash, int row)
     {
-      if (parent == null)
-        root = toAdd;
-      else
-      {
-        if (isLesser)
-          parent.setLesser(toAdd);
-        else
-          parent.setGreater(toAdd);
-      }
-    }
-
-
-    public ObjectRecord getOldestEntry()
-    {
-      // Look for the least node, and grab a record from it
-      ExpirationTreeNode current = root;
-      ExpirationTreeNode last = null;
-      while (current != null)
-      {
-        last = current;
-        current = current.getLesser();
-      }
-      if (last == null)
-        return null;
-
-      return last.getOldest();
+      long h = (hash + seeds[row]) * seeds[row];
+      h += (h >>> 32);
+      return (int)(h & (tableSize * countersPerLong - 1));
     }
   }
 
-  /** This class represents a node in the expiration tree.
-  * The node has a pool of size at least one containing object records
-  * with the same expiration date.
-  */
-  protected class ExpirationTreeNode
-  {
-    protected ExpirationTreeNode lesser = null;
-    protected ExpirationTreeNode greater = null;
-
-    protected ObjectRecord firstSame = null;
-    protected ObjectRecord lastSame = null;
-
-    public ExpirationTreeNode(ObjectRecord record)
-    {
-      firstSame = record;
-      lastSame = record;
-    }
-
-    public long getExpirationTime()
-    {
-      return firstSame.getExpirationTime();
-    }
-
-    public ExpirationTreeNode getLesser()
-    {
-      return lesser;
-    }
-
-    public void setLesser(ExpirationTreeNode lesser)
-    {
-      this.lesser = lesser;
-    }
-
-    public ExpirationTreeNode getGreater()
-    {
-      return greater;
-    }
-
-    public void setGreater(ExpirationTreeNode greater)
-    {
-      this.greater = greater;
-    }
-
-    public void addObjectRecord(ObjectRecord x)
-    {
-      x.setSameExpirationNext(firstSame);
-      firstSame.setSameExpirationPrev(x);
-      firstSame = x;
-    }
-
-    /** Returns true if this removal was the last one (in which case the tree node is now
-    * invalid, and should be removed from the tree)
-    */
-    public boolean removeObjectRecord(ObjectRecord x)
-    {
-      // Patch up everything
-      ObjectRecord prev = x.getSameExpirationPrev();
-      ObjectRecord next = x.getSameExpirationNext();
-      if (prev == null)
-        firstSame = next;
-      else
-        prev.setSameExpirationNext(next);
-      if (next == null)
-        lastSame = prev;
-      else
-        next.setSameExpirationPrev(prev);
-      x.setSameExpirationPrev(null);
-      x.setSameExpirationNext(null);
-      return (firstSame == null);
-    }
-
-    public ObjectRecord getOldest()
-    {
-      return lastSame;
-    }
-
-  }
 }
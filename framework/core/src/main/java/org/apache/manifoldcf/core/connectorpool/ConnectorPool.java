@@ -20,8 +20,11 @@ package org.apache.manifoldcf.core.connectorpool;
 
 import org.apache.manifoldcf.core.interfaces.*;
 import org.apache.manifoldcf.core.system.ManifoldCF;
+import org.apache.manifoldcf.core.system.Logging;
 
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.io.*;
 import java.lang.reflect.*;
 
@@ -53,8 +56,9 @@ public abstract class ConnectorPool<T extends IConnector>
   /** Service type prefix */
   protected final String serviceTypePrefix;
 
-  /** Pool hash table. Keyed by connection name; value is Pool */
-  protected final Map<String,Pool> poolHash = new HashMap<String,Pool>();
+  /** Pool hash table. Keyed by connection name; value is Pool.  Lookups do not lock; creating a pool, and
+  * removing one, are done while synchronized on the map, so that only one Pool is ever registered per connection name. */
+  protected final ConcurrentMap<String,Pool> poolHash = new ConcurrentHashMap<String,Pool>();
 
   /** Random number */
   protected final static Random randomNumberGenerator = new Random();
@@ -226,39 +230,74 @@ public abstract class ConnectorPool<T extends IConnector>
   public T grab(IThreadContext threadContext, String connectionName,
     String className, ConfigParams configInfo, int maxPoolSize)
     throws ManifoldCFException
+  {
+    return grab(threadContext,connectionName,className,configInfo,maxPoolSize,-1L,TimeUnit.MILLISECONDS);
+  }
+
+  /** Get a connector, waiting no longer than a specified time for an instance to become free.
+  *@param threadContext is the current thread context.
+  *@param connectionName is the name of the connection.  This functions as a pool key.
+  *@param className is the name of the class to get a connector for.
+  *@param configInfo are the name/value pairs constituting configuration info
+  * for this class.
+  *@param timeout is the maximum time to wait, or a negative value to wait as long as it takes.
+  *@param unit is the unit of the timeout.
+  *@return the connector, or null if no instance became free in time.
+  */
+  public T grab(IThreadContext threadContext, String connectionName,
+    String className, ConfigParams configInfo, int maxPoolSize, long timeout, TimeUnit unit)
+    throws ManifoldCFException
   {
     // We want to get handles off the pool and use them.  But the
     // handles we fetch have to have the right config information.
+    long deadline = (timeout < 0L)?0L:System.nanoTime() + unit.toNanos(timeout);
 
     // Loop until we successfully get a connector.  This is necessary because the
     // pool may vanish because it has been closed.
     while (true)
     {
-      Pool p;
-      synchronized (poolHash)
+      Pool p = poolHash.get(connectionName);
+      if (p == null)
       {
-        p = poolHash.get(connectionName);
-        if (p == null)
+        synchronized (poolHash)
         {
-          p = new Pool(threadContext, maxPoolSize, connectionName);
-          poolHash.put(connectionName,p);
-          // Do an initial poll right away, so we don't have to wait 5 seconds to 
-          // get a connector instance unless they're already all in use.
-          p.pollAll(threadContext);
-        }
-        else
-        {
-          p.updateMaximumPoolSize(threadContext, maxPoolSize);
+          p = poolHash.get(connectionName);
+          if (p == null)
+          {
+            p = new Pool(threadContext, maxPoolSize, connectionName);
+            poolHash.put(connectionName,p);
+            // Do an initial poll right away, so we don't have to wait 5 seconds to 
+            // get a connector instance unless they're already all in use.
+            p.pollAll(threadContext);
+          }
         }
       }
+      p.updateMaximumPoolSize(threadContext, maxPoolSize);
 
-      T rval = p.getConnector(threadContext,className,configInfo);
+      long remaining = -1L;
+      if (timeout >= 0L)
+        remaining = Math.max(0L,deadline - System.nanoTime());
+      T rval = p.getConnector(threadContext,className,configInfo,remaining);
       if (rval != null)
         return rval;
+      if (timeout >= 0L && deadline - System.nanoTime() <= 0L)
+        return null;
     }
 
   }
 
+  /** Get the wait statistics for a connection name.
+  *@param connectionName is the connection name.
+  *@return the statistics, or null if there is no pool for the connection in this process.
+  */
+  public WaitStatistics getWaitStatistics(String connectionName)
+  {
+    Pool p = poolHash.get(connectionName);
+    if (p == null)
+      return null;
+    return p.getWaitStatistics();
+  }
+
   /** Release multiple output connectors.
   */
   public void releaseMultiple(IThreadContext threadContext, String[] connectionNames, T[] connectors)
@@ -295,11 +334,7 @@ public abstract class ConnectorPool<T extends IConnector>
       return;
 
     // Figure out which pool this goes on, and put it there
-    Pool p;
-    synchronized (poolHash)
-    {
-      p = poolHash.get(connectionName);
-    }
+    Pool p = poolHash.get(connectionName);
 
     if (p != null)
       p.releaseConnector(threadContext, connector);
@@ -335,7 +370,11 @@ public abstract class ConnectorPool<T extends IConnector>
         String connectionName = iter.next();
         Pool p = poolHash.get(connectionName);
         if (isConnectionNameValid(threadContext,connectionName))
+        {
           p.pollAll(threadContext);
+          if (Logging.perf.isDebugEnabled())
+            Logging.perf.debug("Connector pool '"+buildServiceTypeName(connectionName)+"': "+p.getWaitStatistics());
+        }
         else
         {
           p.releaseAll(threadContext);
@@ -397,27 +436,42 @@ public abstract class ConnectorPool<T extends IConnector>
   }
   
   /** This class represents a value in the pool hash, which corresponds to a given key.
+  * Handing out and taking back connector instances does not lock the pool.  The number of instances that may be
+  * handed out is the permit count of a fair semaphore.  Idle instances sit on a stack guarded by its own monitor,
+  * which is held only long enough to push or pop an instance and to keep count of the instances handed out, so that
+  * deciding which idle instances are in excess never races with a thread about to take one.  The periodic
+  * poll, which reapportions the pool across the cluster, is synchronized, as are flushing and closing the pool.
   */
   protected class Pool
   {
     /** Whether this pool is alive */
-    protected boolean isAlive = true;
+    protected volatile boolean isAlive = true;
     /** The global maximum for this pool */
-    protected int globalMax;
+    protected volatile int globalMax;
     /** Service type name */
     protected final String serviceTypeName;
     /** The (anonymous) service name */
     protected final String serviceName;
     /** The target calculation lock name */
     protected final String targetCalcLockName;
-    /** Place where we keep unused connector instances */
-    protected final List<T> stack = new ArrayList<T>();
-    /** The number of local instances we can currently pass out to requesting threads.  Initially zero until pool is apportioned */
-    protected int numFree = 0;
-    /** The number of instances we are allowed to hand out locally, at this time */
-    protected int localMax = 0;
-    /** The number of instances that are actually connected and in use, as of the last poll */
-    protected int localInUse = 0;
+    /** Place where we keep unused connector instances; the most recently used is at the end.  Guarded by stackLock. */
+    protected final Deque<T> stack = new ArrayDeque<T>();
+    /** The number of instances handed out, counted from the moment a permit holder claims its instance.  Guarded by stackLock. */
+    protected int handedOutCount = 0;
+    /** The monitor for the stack and the handed-out count */
+    protected final Object stackLock = new Object();
+    /** The number of local instances we can currently pass out to requesting threads.  Initially zero until pool is apportioned.
+    * This may go negative when the pool shrinks while instances are in use. */
+    protected final AdjustableSemaphore numFree = new AdjustableSemaphore();
+    /** The number of instances we are allowed to hand out locally, at this time.  Only changed by pollAll(). */
+    protected volatile int localMax = 0;
+    
+    // Wait statistics
+    protected final AtomicLong grabCount = new AtomicLong(0L);
+    protected final AtomicLong waitCount = new AtomicLong(0L);
+    protected final AtomicLong timeoutCount = new AtomicLong(0L);
+    protected final AtomicLong totalWaitTime = new AtomicLong(0L);
+    protected final AtomicLong maxWaitTime = new AtomicLong(0L);
     
     /** Constructor
     */
@@ -435,7 +489,7 @@ public abstract class ConnectorPool<T extends IConnector>
     /** Update the maximum pool size.
     *@param maxPoolSize is the new global maximum pool size.
     */
-    public synchronized void updateMaximumPoolSize(IThreadContext threadContext, int maxPoolSize)
+    public void updateMaximumPoolSize(IThreadContext threadContext, int maxPoolSize)
       throws ManifoldCFException
     {
       // This updates the maximum global size that the pool uses.
@@ -446,71 +500,119 @@ public abstract class ConnectorPool<T extends IConnector>
     
     /** Grab a connector.
     * If none exists, construct it using the information in the pool key.
-    *@return the connector, or null if no connector could be connected.
+    *@param timeoutNanos is the maximum time to wait for an instance to be free, in nanoseconds, or negative for no limit.
+    *@return the connector, or null if no connector could be connected, or none became free in time.
     */
-    public synchronized T getConnector(IThreadContext threadContext, String className, ConfigParams configParams)
+    public T getConnector(IThreadContext threadContext, String className, ConfigParams configParams, long timeoutNanos)
       throws ManifoldCFException
     {
-      // numFree represents the number of available connector instances that have not been given out at this moment.
-      // So it's the max minus the pool count minus the number in use.
-      while (isAlive && numFree <= 0)
-      {
-        try
-        {
-          wait();
-        }
-        catch (InterruptedException e)
-        {
-          throw new ManifoldCFException("Interrupted: "+e.getMessage(),e,ManifoldCFException.INTERRUPTED);
-        }
-      }
       if (!isAlive)
         return null;
       
-      // We decrement numFree when we hand out a connector instance; we increment numFree when we
-      // throw away a connector instance from the pool.
-      while (true)
+      // A permit represents the right to hold one connector instance.
+      grabCount.incrementAndGet();
+      try
       {
-        if (stack.size() == 0)
+        // The timed form respects fairness, where the untimed tryAcquire() would barge ahead of waiters
+        if (!numFree.tryAcquire(0L,TimeUnit.MILLISECONDS))
         {
-          T newrc = createConnectorInstance(threadContext,className);
-          if (newrc == null)
+          waitCount.incrementAndGet();
+          long startTime = System.currentTimeMillis();
+          boolean acquired = true;
+          if (timeoutNanos < 0L)
+            numFree.acquire();
+          else
+            acquired = numFree.tryAcquire(timeoutNanos,TimeUnit.NANOSECONDS);
+          long waitTime = System.currentTimeMillis() - startTime;
+          totalWaitTime.addAndGet(waitTime);
+          while (true)
+          {
+            long currentMax = maxWaitTime.get();
+            if (waitTime <= currentMax || maxWaitTime.compareAndSet(currentMax,waitTime))
+              break;
+          }
+          if (!acquired)
+          {
+            timeoutCount.incrementAndGet();
             return null;
-          newrc.connect(configParams);
-          stack.add(newrc);
+          }
         }
+      }
+      catch (InterruptedException e)
+      {
+        throw new ManifoldCFException("Interrupted: "+e.getMessage(),e,ManifoldCFException.INTERRUPTED);
+      }
+
+      // We hold a permit from here on, and must give it back unless we return a connector
+      boolean returnedConnector = false;
+      boolean claimed = false;
+      try
+      {
+        if (!isAlive)
+          return null;
         
-        // Since thread context set can fail, do that before we remove it from the pool.
-        T rc = stack.remove(stack.size()-1);
-        // Set the thread context.  This can throw an exception!!  We need to be sure our bookkeeping
-        // is resilient against that possibility.  Losing a connector instance that was just sitting
-        // in the pool does NOT affect numFree, so no change needed here; we just can't disconnect the
-        // connector instance if this fails.
-        rc.setThreadContext(threadContext);
-        // Verify that the connector is in fact compatible
-        if (!(rc.getClass().getName().equals(className) && rc.getConfiguration().equals(configParams)))
+        while (true)
         {
-          // Looks like parameters have changed, so discard old instance.
-          try
+          T rc;
+          synchronized (stackLock)
           {
-            rc.disconnect();
+            rc = stack.pollLast();
+            if (!claimed)
+            {
+              handedOutCount++;
+              claimed = true;
+            }
           }
-          finally
+          if (rc == null)
           {
-            rc.clearThreadContext();
+            rc = createConnectorInstance(threadContext,className);
+            if (rc == null)
+              return null;
+            rc.connect(configParams);
           }
-          continue;
+          
+          // Set the thread context.  This can throw an exception!!  Losing a connector instance that was just sitting
+          // in the pool does not affect the permit count, which is all we need to keep straight; we just can't
+          // disconnect the connector instance if this fails.
+          rc.setThreadContext(threadContext);
+          // Verify that the connector is in fact compatible
+          if (!(rc.getClass().getName().equals(className) && rc.getConfiguration().equals(configParams)))
+          {
+            // Looks like parameters have changed, so discard old instance.
+            try
+            {
+              rc.disconnect();
+            }
+            finally
+            {
+              rc.clearThreadContext();
+            }
+            continue;
+          }
+          returnedConnector = true;
+          return rc;
+        }
+      }
+      finally
+      {
+        if (!returnedConnector)
+        {
+          if (claimed)
+          {
+            synchronized (stackLock)
+            {
+              handedOutCount--;
+            }
+          }
+          numFree.release();
         }
-        // About to return a connector instance; decrement numFree accordingly.
-        numFree--;
-        return rc;
       }
     }
 
     /** Release a connector to the pool.
     *@param connector is the connector.
     */
-    public synchronized void releaseConnector(IThreadContext threadContext, T connector)
+    public void releaseConnector(IThreadContext threadContext, T connector)
       throws ManifoldCFException
     {
       if (connector == null)
@@ -518,33 +620,54 @@ public abstract class ConnectorPool<T extends IConnector>
 
       // Make sure connector knows it's released
       connector.clearThreadContext();
-      // Return it to the pool, and note that it is no longer in use.
-      stack.add(connector);
-      numFree++;
-      // Determine if we need to free some connectors.  If the number
-      // of allocated connectors exceeds the target, we unload some
-      // off the stack.
-      // The question is whether the stack has too many connector instances
-      // on it.  Obviously, if it stack.size() > max, it does - but remember
-      // that the number of outstanding connectors is max - numFree.
-      // So, we have an excess if stack.size() > max - (max-numFree).
-      // Simplifying: excess is when stack.size() > numFree.
-      while (stack.size() > 0 && stack.size() > numFree)
+      // Return it to the pool, and note that it is no longer in use.  The instance must be on the stack before
+      // the permit is given back, so whoever gets the permit will find it.
+      synchronized (stackLock)
+      {
+        stack.offerLast(connector);
+        handedOutCount--;
+      }
+      numFree.release();
+      // Determine if we need to free some connectors.
+      freeExcess(threadContext);
+    }
+
+    /** Disconnect pooled instances until there are no more of them than could be handed out without exceeding
+    * the local maximum.  Permit holders that have not yet claimed an instance are not counted as handed out,
+    * so the instances they are about to take are never mistaken for excess.
+    */
+    protected void freeExcess(IThreadContext threadContext)
+      throws ManifoldCFException
+    {
+      List<T> excess = null;
+      synchronized (stackLock)
       {
-        // Try to find a connector instance that is not actually connected.
-        // These are likely to be at the front of the queue, since those are the
-        // oldest.
-        int j;
-        for (j = 0; j < stack.size(); j++)
+        while (stack.size() > 0 && stack.size() > localMax - handedOutCount)
         {
-          if (!stack.get(j).isConnected())
-            break;
+          // Try to find a connector instance that is not actually connected.
+          // These are likely to be at the front of the queue, since those are the
+          // oldest.
+          T rc = null;
+          for (T candidate : stack)
+          {
+            if (!candidate.isConnected())
+            {
+              rc = candidate;
+              break;
+            }
+          }
+          if (rc == null)
+            rc = stack.peekLast();
+          stack.removeFirstOccurrence(rc);
+          if (excess == null)
+            excess = new ArrayList<T>();
+          excess.add(rc);
         }
-        T rc;
-        if (j == stack.size())
-          rc = stack.remove(stack.size()-1);
-        else
-          rc = stack.remove(j);
+      }
+      if (excess == null)
+        return;
+      for (T rc : excess)
+      {
         rc.setThreadContext(threadContext);
         try
         {
@@ -555,8 +678,6 @@ public abstract class ConnectorPool<T extends IConnector>
           rc.clearThreadContext();
         }
       }
-
-      notifyAll();
     }
 
     /** Notify all free connectors.
@@ -593,6 +714,7 @@ public abstract class ConnectorPool<T extends IConnector>
         int numServices = sumClass.getNumServices();
         if (numServices == 0)
           return;
+        int globalMax = this.globalMax;
         int globalTarget = sumClass.getGlobalTarget();
         int globalInUse = sumClass.getGlobalInUse();
         int maximumTarget = globalMax - globalTarget;
@@ -609,9 +731,31 @@ public abstract class ConnectorPool<T extends IConnector>
           fairTarget++;
         
         // Compute OptimalTarget (and poll connectors while we are at it)
-        int localInUse = localMax - numFree;      // These are the connectors that have been handed out
-        for (T rc : stack)
+        int localInUse = localMax - numFree.availablePermits();      // These are the connectors that have been handed out
+        // Each pooled instance is checked out like any other while it is polled, permit and all, so that no other
+        // thread can get it meanwhile and nobody creates a new instance in its place.  If there is no permit to be
+        // had, every pooled instance is about to be handed out anyway.
+        int pooledCount;
+        synchronized (stackLock)
         {
+          pooledCount = stack.size();
+        }
+        for (int i = 0; i < pooledCount; i++)
+        {
+          if (!numFree.tryAcquire())
+            break;
+          T rc;
+          synchronized (stackLock)
+          {
+            rc = stack.pollFirst();
+            if (rc != null)
+              handedOutCount++;
+          }
+          if (rc == null)
+          {
+            numFree.release();
+            break;
+          }
           // Notify
           rc.setThreadContext(threadContext);
           try
@@ -623,6 +767,12 @@ public abstract class ConnectorPool<T extends IConnector>
           finally
           {
             rc.clearThreadContext();
+            synchronized (stackLock)
+            {
+              stack.offerLast(rc);
+              handedOutCount--;
+            }
+            numFree.release();
           }
         }
         int optimalTarget = localMax;
@@ -657,13 +807,15 @@ public abstract class ConnectorPool<T extends IConnector>
         if (target == localMax)
           return;
         //System.out.println(serviceTypeName+":Updating target: "+target);
-        // Compute the number of instances in use locally
-        localInUse = localMax - numFree;
-        localMax = target;
-        // numFree may turn out to be negative here!!  That's okay; we'll just free released connectors
+        // Adjusting the permits by the change in the maximum keeps the number in use the same.
+        // The number of free permits may turn out to be negative here!!  That's okay; we'll just free released connectors
         // until we enter positive territory again.
-        numFree = localMax - localInUse;
-        notifyAll();
+        int delta = target - localMax;
+        localMax = target;
+        if (delta > 0)
+          numFree.release(delta);
+        else
+          numFree.reducePermits(-delta);
       }
       finally
       {
@@ -671,32 +823,7 @@ public abstract class ConnectorPool<T extends IConnector>
       }
       
       // Finally, free pooled instances in excess of target
-      while (stack.size() > 0 && stack.size() > numFree)
-      {
-        // Try to find a connector instance that is not actually connected.
-        // These are likely to be at the front of the queue, since those are the
-        // oldest.
-        int j;
-        for (j = 0; j < stack.size(); j++)
-        {
-          if (!stack.get(j).isConnected())
-            break;
-        }
-        T rc;
-        if (j == stack.size())
-          rc = stack.remove(stack.size()-1);
-        else
-          rc = stack.remove(j);
-        rc.setThreadContext(threadContext);
-        try
-        {
-          rc.disconnect();
-        }
-        finally
-        {
-          rc.clearThreadContext();
-        }
-      }
+      freeExcess(threadContext);
 
     }
 
@@ -705,10 +832,16 @@ public abstract class ConnectorPool<T extends IConnector>
     public synchronized void flushUnused(IThreadContext threadContext)
       throws ManifoldCFException
     {
-      while (stack.size() > 0)
+      while (true)
       {
+        T rc;
+        synchronized (stackLock)
+        {
+          rc = stack.pollLast();
+        }
+        if (rc == null)
+          break;
         // Disconnect
-        T rc = stack.remove(stack.size()-1);
         rc.setThreadContext(threadContext);
         try
         {
@@ -732,12 +865,133 @@ public abstract class ConnectorPool<T extends IConnector>
       if (isAlive)
       {
         isAlive = false;
-        notifyAll();
+        // Wake up the waiters, so they notice the pool is dead.  Each one gives its permit back when it leaves,
+        // which wakes the next.
+        numFree.release(Math.max(0,-numFree.availablePermits()) + 1);
         ILockManager lockManager = LockManagerFactory.make(threadContext);
         lockManager.endServiceActivity(serviceTypeName, serviceName);
       }
     }
 
+    /** Get a snapshot of the wait statistics.
+    */
+    public WaitStatistics getWaitStatistics()
+    {
+      int pooledCount;
+      synchronized (stackLock)
+      {
+        pooledCount = stack.size();
+      }
+      return new WaitStatistics(grabCount.get(),waitCount.get(),timeoutCount.get(),totalWaitTime.get(),maxWaitTime.get(),
+        numFree.getQueueLength(),localMax,numFree.availablePermits(),pooledCount);
+    }
+  }
+
+  /** A fair semaphore whose permit count can be reduced, possibly below zero, without blocking.
+  */
+  protected static class AdjustableSemaphore extends Semaphore
+  {
+    public AdjustableSemaphore()
+    {
+      super(0,true);
+    }
+
+    @Override
+    public void reducePermits(int reduction)
+    {
+      super.reducePermits(reduction);
+    }
+  }
+
+  /** Wait statistics for the connectors of one connection name, in this process.
+  */
+  public static class WaitStatistics
+  {
+    protected final long grabCount;
+    protected final long waitCount;
+    protected final long timeoutCount;
+    protected final long totalWaitTime;
+    protected final long maxWaitTime;
+    protected final int waitingThreadCount;
+    protected final int localMax;
+    protected final int freeCount;
+    protected final int pooledCount;
+
+    public WaitStatistics(long grabCount, long waitCount, long timeoutCount, long totalWaitTime, long maxWaitTime,
+      int waitingThreadCount, int localMax, int freeCount, int pooledCount)
+    {
+      this.grabCount = grabCount;
+      this.waitCount = waitCount;
+      this.timeoutCount = timeoutCount;
+      this.totalWaitTime = totalWaitTime;
+      this.maxWaitTime = maxWaitTime;
+      this.waitingThreadCount = waitingThreadCount;
+      this.localMax = localMax;
+      this.freeCount = freeCount;
+      this.pooledCount = pooledCount;
+    }
+
+    /** Get the number of requests for a connector instance. */
+    public long getGrabCount()
+    {
+      return grabCount;
+    }
+
+    /** Get the number of requests that had to wait because every permitted instance was in use. */
+    public long getWaitCount()
+    {
+      return waitCount;
+    }
+
+    /** Get the number of timed requests that gave up because no instance became free in time. */
+    public long getTimeoutCount()
+    {
+      return timeoutCount;
+    }
+
+    /** Get the total time spent waiting, in milliseconds. */
+    public long getTotalWaitTime()
+    {
+      return totalWaitTime;
+    }
+
+    /** Get the longest single wait, in milliseconds. */
+    public long getMaxWaitTime()
+    {
+      return maxWaitTime;
+    }
+
+    /** Get the number of threads waiting right now. */
+    public int getWaitingThreadCount()
+    {
+      return waitingThreadCount;
+    }
+
+    /** Get the number of instances this process may currently hand out. */
+    public int getLocalMax()
+    {
+      return localMax;
+    }
+
+    /** Get the number of instances that could be handed out right now without waiting; may be negative after the pool shrinks. */
+    public int getFreeCount()
+    {
+      return freeCount;
+    }
+
+    /** Get the number of idle instances in the pool. */
+    public int getPooledCount()
+    {
+      return pooledCount;
+    }
+
+    @Override
+    public String toString()
+    {
+      return "grabs="+grabCount+", waits="+waitCount+", timeouts="+timeoutCount+", total wait="+totalWaitTime+
+        "ms, max wait="+maxWaitTime+"ms, waiting="+waitingThreadCount+", local max="+localMax+", free="+freeCount+
+        ", pooled="+pooledCount;
+    }
   }
 
   protected static class SumClass implements IServiceDataAcceptor
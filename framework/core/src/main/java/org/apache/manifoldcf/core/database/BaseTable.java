@@ -80,6 +80,29 @@ public class BaseTable
     dbInterface.performUpdate(tableName,parameterMap,whereClause,whereParameters,invalidateKeys);
   }
 
+  /** Perform a set of insert operations, using as few statements and round trips as possible.
+  *@param parameterMaps are the maps of column name/values to write, one per row.
+  *@param invalidateKeys are the cache keys that should be invalidated.
+  */
+  protected void performInsertMultiple(List<Map<String,Object>> parameterMaps, StringSet invalidateKeys)
+    throws ManifoldCFException
+  {
+    dbInterface.performInsertMultiple(tableName,parameterMaps,invalidateKeys);
+  }
+
+  /** Perform a set of update operations, all with the same where clause, as JDBC batches.
+  *@param parameterMaps are the maps of column name/values to write, one per update.
+  *@param whereClause is the where clause describing the match (including the WHERE), or null if none.
+  *@param whereParameters are the where clause parameters, one list per update, or null if none.
+  *@param invalidateKeys are the cache keys that should be invalidated.
+  */
+  protected void performUpdateMultiple(List<Map<String,Object>> parameterMaps, String whereClause, List<List> whereParameters,
+    StringSet invalidateKeys)
+    throws ManifoldCFException
+  {
+    dbInterface.performUpdateMultiple(tableName,parameterMaps,whereClause,whereParameters,invalidateKeys);
+  }
+
   /** Perform a delete operation.
   *@param invalidateKeys are the cache keys that should be invalidated.
   *@param whereClause is the where clause describing the match (including the WHERE), or null if none.
@@ -207,6 +230,17 @@ public class BaseTable
     dbInterface.performModification(query,params,invalidateKeys);
   }
 
+  /** Perform the same general database modification query many times, with different parameters, as a single JDBC batch.
+  *@param query is the query string.
+  *@param paramSets are the parameterized values, one list per execution.  No value may be null.
+  *@param invalidateKeys are the cache keys to invalidate.
+  */
+  protected void performBatchModification(String query, List<List> paramSets, StringSet invalidateKeys)
+    throws ManifoldCFException
+  {
+    dbInterface.performBatchModification(query,paramSets,invalidateKeys);
+  }
+
   /** Perform a general "data fetch" query.
   *@param query is the query string.
   *@param params are the parameterized values, if needed.
@@ -236,6 +270,18 @@ public class BaseTable
     return dbInterface.performQuery(query,params,cacheKeys,queryClass,resultLimit,null);
   }
 
+  /** Perform a general "data fetch" query, handing each row to a handler as it is read.
+  *@param query is the query string.
+  *@param params are the parameterized values, if needed.
+  *@param fetchSize is the number of rows to read from the database at a time.
+  *@param handler is the handler that receives the rows.
+  */
+  protected void performStreamingQuery(String query, List params, int fetchSize, IResultRowHandler handler)
+    throws ManifoldCFException
+  {
+    dbInterface.performStreamingQuery(query,params,fetchSize,null,handler);
+  }
+
   /** Begin a database transaction.  This method call MUST be paired with an endTransaction() call,
   * or database handles will be lost.  If the transaction should be rolled back, then signalRollback() should
   * be called before the transaction is ended.
@@ -0,0 +1,350 @@
+/* $Id: ColumnarRSet.java $ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.core.database;
+
+import org.apache.manifoldcf.core.interfaces.*;
+import java.util.*;
+
+/** This class is a resultset that stores its data by column rather than by row.
+* Every row shares one column-name index, long and double columns are kept in primitive
+* arrays, and rows are only materialized as small views when they are asked for.  This
+* makes reading large query results much cheaper than building one map per row, as RSet and RRow do.
+*
+* Rows are appended one at a time: the values of the pending row are set, and then the
+* row is either committed or discarded.  Once the resultset has been handed out, it is
+* read-only.
+*/
+public class ColumnarRSet implements IResultSet
+{
+  public static final String _rcsid = "@(#)$Id: ColumnarRSet.java $";
+
+  /** Initial row capacity */
+  protected final static int initialCapacity = 16;
+
+  /** The distinct column names, in the order they first appeared */
+  protected final String[] columnNames;
+  /** The column index for each column name */
+  protected final Map<String,Integer> columnIndexes;
+  /** The column storage, one per distinct column name */
+  protected final ColumnData[] columns;
+  /** The number of committed rows */
+  protected int rowCount = 0;
+
+  /** Constructor.
+  *@param labels are the column names, in resultset column order.  If a name is repeated, the
+  * repeats share one column and the last value set wins, just as they would in an RRow.
+  */
+  public ColumnarRSet(String[] labels)
+  {
+    columnIndexes = new HashMap<String,Integer>();
+    List<String> names = new ArrayList<String>();
+    for (String label : labels)
+    {
+      if (columnIndexes.get(label) == null)
+      {
+        columnIndexes.put(label,new Integer(names.size()));
+        names.add(label);
+      }
+    }
+    columnNames = names.toArray(new String[0]);
+    columns = new ColumnData[columnNames.length];
+    for (int i = 0; i < columns.length; i++)
+    {
+      columns[i] = new ColumnData();
+    }
+  }
+
+  /** Get the column index for a column name.
+  *@param columnName is the column name.
+  *@return the index, or -1 if there is no such column.
+  */
+  public int getColumnIndex(String columnName)
+  {
+    Integer index = columnIndexes.get(columnName);
+    if (index == null)
+      return -1;
+    return index.intValue();
+  }
+
+  /** Set a value in the pending row.
+  *@param columnIndex is the column index, as returned by getColumnIndex().
+  *@param value is the value.
+  */
+  public void setPendingValue(int columnIndex, Object value)
+  {
+    columns[columnIndex].set(rowCount,value);
+  }
+
+  /** Get a view of the pending row, e.g. so that it can be checked before it is committed.
+  * The view is only valid until the pending row is committed or discarded.
+  */
+  public IResultRow getPendingRow()
+  {
+    return new ColumnarRow(rowCount);
+  }
+
+  /** Commit the pending row, making it part of the resultset.
+  */
+  public void commitPendingRow()
+  {
+    rowCount++;
+  }
+
+  /** Discard the pending row.  Its values are released, but not otherwise cleaned up.
+  */
+  public void discardPendingRow()
+  {
+    for (ColumnData column : columns)
+    {
+      column.set(rowCount,null);
+    }
+  }
+
+  /** Get a specific row in the resultset.
+  *@param rowNumber is the number of the row.
+  *@return the immutable row description, or null if there is no such row.
+  */
+  @Override
+  public IResultRow getRow(int rowNumber)
+  {
+    if (rowNumber < 0 || rowNumber >= rowCount)
+      throw new IndexOutOfBoundsException("Index: "+rowNumber+", Size: "+rowCount);
+    return new ColumnarRow(rowNumber);
+  }
+
+  /** Get the number of rows in this resultset.
+  *@return the number of rows the resultset contains.
+  */
+  @Override
+  public int getRowCount()
+  {
+    return rowCount;
+  }
+
+  /** Get an array of all the rows.
+  * This method is NOT preferred because it requires a new
+  * array object to be constructed.
+  *@return the array.
+  */
+  @Override
+  public IResultRow[] getRows()
+  {
+    IResultRow[] rval = new IResultRow[rowCount];
+    for (int i = 0; i < rowCount; i++)
+    {
+      rval[i] = new ColumnarRow(i);
+    }
+    return rval;
+  }
+
+  /** This class is a view of one row of the resultset.
+  */
+  protected class ColumnarRow implements IResultRow
+  {
+    protected final int rowNumber;
+
+    public ColumnarRow(int rowNumber)
+    {
+      this.rowNumber = rowNumber;
+    }
+
+    /** Obtain the number of columns in the row.
+    *@return the number of columns that row contains.
+    */
+    @Override
+    public int getColumnCount()
+    {
+      return columnNames.length;
+    }
+
+    /** Obtain the set of columns for a row.
+    @return an iterator that will list all the (String) column names stored in that row.
+    */
+    @Override
+    public Iterator<String> getColumns()
+    {
+      return Arrays.asList(columnNames).iterator();
+    }
+
+    /** Get the row value for a column.
+    *@param columnName is the name of the column.
+    *@return the value, or null if not present.
+    */
+    @Override
+    public Object getValue(String columnName)
+    {
+      Integer index = columnIndexes.get(columnName);
+      if (index == null)
+        return null;
+      return columns[index.intValue()].get(rowNumber);
+    }
+  }
+
+  /** This class holds the values of one column.  The storage starts out empty, becomes a primitive
+  * array if the first non-null value is a Long or a Double, and falls back to an Object array as
+  * soon as a value of any other type shows up.
+  */
+  protected static class ColumnData
+  {
+    protected final static int TYPE_NONE = 0;
+    protected final static int TYPE_LONG = 1;
+    protected final static int TYPE_DOUBLE = 2;
+    protected final static int TYPE_OBJECT = 3;
+
+    protected int type = TYPE_NONE;
+    protected long[] longValues = null;
+    protected double[] doubleValues = null;
+    protected Object[] objectValues = null;
+    /** Rows that are null, for the primitive storage types */
+    protected BitSet nullRows = null;
+
+    public ColumnData()
+    {
+    }
+
+    /** Set the value for a row.  All rows before this one must already have been set.
+    */
+    public void set(int row, Object value)
+    {
+      if (value == null)
+      {
+        switch (type)
+        {
+        case TYPE_NONE:
+          break;
+        case TYPE_LONG:
+        case TYPE_DOUBLE:
+          ensureCapacity(row+1);
+          nullRows.set(row);
+          break;
+        default:
+          ensureCapacity(row+1);
+          objectValues[row] = null;
+          break;
+        }
+        return;
+      }
+
+      if (type == TYPE_NONE)
+      {
+        // Every earlier row was null
+        if (value instanceof Long)
+        {
+          type = TYPE_LONG;
+          longValues = new long[Math.max(initialCapacity,row+1)];
+        }
+        else if (value instanceof Double)
+        {
+          type = TYPE_DOUBLE;
+          doubleValues = new double[Math.max(initialCapacity,row+1)];
+        }
+        else
+        {
+          type = TYPE_OBJECT;
+          objectValues = new Object[Math.max(initialCapacity,row+1)];
+        }
+        if (type != TYPE_OBJECT)
+        {
+          nullRows = new BitSet();
+          nullRows.set(0,row);
+        }
+      }
+      else if ((type == TYPE_LONG && !(value instanceof Long)) ||
+        (type == TYPE_DOUBLE && !(value instanceof Double)))
+        convertToObjects(row);
+
+      ensureCapacity(row+1);
+      switch (type)
+      {
+      case TYPE_LONG:
+        longValues[row] = ((Long)value).longValue();
+        nullRows.clear(row);
+        break;
+      case TYPE_DOUBLE:
+        doubleValues[row] = ((Double)value).doubleValue();
+        nullRows.clear(row);
+        break;
+      default:
+        objectValues[row] = value;
+        break;
+      }
+    }
+
+    /** Get the value for a row.
+    */
+    public Object get(int row)
+    {
+      switch (type)
+      {
+      case TYPE_NONE:
+        return null;
+      case TYPE_LONG:
+        if (nullRows.get(row))
+          return null;
+        return new Long(longValues[row]);
+      case TYPE_DOUBLE:
+        if (nullRows.get(row))
+          return null;
+        return new Double(doubleValues[row]);
+      default:
+        return objectValues[row];
+      }
+    }
+
+    /** Switch primitive storage over to object storage, boxing the first rowCount rows.
+    */
+    protected void convertToObjects(int rowCount)
+    {
+      Object[] newValues = new Object[Math.max(initialCapacity,rowCount+1)];
+      for (int i = 0; i < rowCount; i++)
+      {
+        newValues[i] = get(i);
+      }
+      objectValues = newValues;
+      longValues = null;
+      doubleValues = null;
+      nullRows = null;
+      type = TYPE_OBJECT;
+    }
+
+    /** Make sure there is room for the specified number of rows.
+    */
+    protected void ensureCapacity(int size)
+    {
+      switch (type)
+      {
+      case TYPE_LONG:
+        if (longValues.length < size)
+          longValues = Arrays.copyOf(longValues,Math.max(size,longValues.length * 2));
+        break;
+      case TYPE_DOUBLE:
+        if (doubleValues.length < size)
+          doubleValues = Arrays.copyOf(doubleValues,Math.max(size,doubleValues.length * 2));
+        break;
+      case TYPE_OBJECT:
+        if (objectValues.length < size)
+          objectValues = Arrays.copyOf(objectValues,Math.max(size,objectValues.length * 2));
+        break;
+      default:
+        break;
+      }
+    }
+  }
+
+}
@@ -35,4 +35,15 @@ public class DBInterfaceMariaDB extends DBInterfaceMySQL
   {
     return _driver;
   }
+
+  /** Map the fetch size requested for a streaming query to the one to hand the JDBC driver.
+  * The MySQL driver's Integer.MIN_VALUE streaming convention has not been verified against the MariaDB
+  * driver this build uses, so the requested fetch size is passed through as-is.  Depending on the driver
+  * version, the whole result may still be read before the first row is handed out.
+  */
+  @Override
+  protected int getStreamingFetchSize(int fetchSize)
+  {
+    return fetchSize;
+  }
 }
@@ -108,6 +108,16 @@ public class DBInterfaceMySQL extends Database implements IDBInterface
     // Do nothing in the case of MySQL.
   }
 
+  /** Map the fetch size requested for a streaming query to the one to hand the JDBC driver.
+  * The MySQL driver only streams rows, rather than reading the whole result up front, when the fetch
+  * size is Integer.MIN_VALUE.
+  */
+  @Override
+  protected int getStreamingFetchSize(int fetchSize)
+  {
+    return Integer.MIN_VALUE;
+  }
+
   /** Reinterpret an exception tossed by the database layer.  We need to disambiguate the various kinds of exception that
   * should be thrown.
   *@param theException is the exception to reinterpret
@@ -745,6 +755,75 @@ public class DBInterfaceMySQL extends Database implements IDBInterface
     }
   }
 
+  /** Perform a set of insert operations into the same table, using as few statements and round trips as possible.
+  *@param tableName is the name of the table.
+  *@param parameterMaps are the maps of column name/values to write, one per row.
+  *@param invalidateKeys are the cache keys that should be invalidated.
+  */
+  @Override
+  public void performInsertMultiple(String tableName, List<Map<String,Object>> parameterMaps, StringSet invalidateKeys)
+    throws ManifoldCFException
+  {
+    try
+    {
+      executeInsertMultiple(tableName,parameterMaps,invalidateKeys);
+    }
+    catch (ManifoldCFException e)
+    {
+      throw reinterpretException(e);
+    }
+  }
+
+  /** Perform a set of update operations on the same table, all with the same where clause, as JDBC batches.
+  *@param tableName is the name of the table.
+  *@param parameterMaps are the maps of column name/values to write, one per update.
+  *@param whereClause is the where clause describing the match (including the WHERE), or null if none.
+  *@param whereParameters are the where clause parameters, one list per update, or null if none.
+  *@param invalidateKeys are the cache keys that should be invalidated.
+  */
+  @Override
+  public void performUpdateMultiple(String tableName, List<Map<String,Object>> parameterMaps, String whereClause,
+    List<List> whereParameters, StringSet invalidateKeys)
+    throws ManifoldCFException
+  {
+    try
+    {
+      executeUpdateMultiple(tableName,parameterMaps,whereClause,whereParameters,invalidateKeys);
+    }
+    catch (ManifoldCFException e)
+    {
+      throw reinterpretException(e);
+    }
+  }
+
+  /** Perform the same general database modification query many times, with different parameters, as a single JDBC batch.
+  *@param query is the query string.
+  *@param paramSets are the parameterized values, one list per execution.  No value may be null.
+  *@param invalidateKeys are the cache keys to invalidate.
+  */
+  @Override
+  public void performBatchModification(String query, List<List> paramSets, StringSet invalidateKeys)
+    throws ManifoldCFException
+  {
+    try
+    {
+      executeBatch(query,paramSets,invalidateKeys);
+    }
+    catch (ManifoldCFException e)
+    {
+      throw reinterpretException(e);
+    }
+  }
+
+  /** Get the maximum number of rows to put into a single multi-row insert statement.
+  * This is kept modest so that statements stay well under the server's max_allowed_packet.
+  */
+  @Override
+  protected int getMaxInsertRowsPerStatement()
+  {
+    return 100;
+  }
+
   /** Get a table's schema.
   *@param tableName is the name of the table.
   *@param cacheKeys are the keys against which to cache the query, or null.
@@ -974,6 +1053,30 @@ public class DBInterfaceMySQL extends Database implements IDBInterface
     }
   }
 
+  /** Perform a general "data fetch" query, handing each row to a handler as it is read rather than
+  * building a resultset.  The rows are read forward-only, a batch at a time, so memory use does not depend
+  * on the size of the result.  Nothing is cached.
+  *@param query is the query string.
+  *@param params are the parameterized values, if needed.
+  *@param fetchSize is the number of rows to read from the database at a time.
+  *@param resultSpec is a result specification, or null for the standard treatment.
+  *@param handler is the handler that receives the rows.
+  */
+  @Override
+  public void performStreamingQuery(String query, List params, int fetchSize, ResultSpecification resultSpec,
+    IResultRowHandler handler)
+    throws ManifoldCFException
+  {
+    try
+    {
+      executeStreamingQuery(query,params,fetchSize,resultSpec,handler);
+    }
+    catch (ManifoldCFException e)
+    {
+      throw reinterpretException(e);
+    }
+  }
+
   /** Construct index hint clause.
   * On most databases this returns an empty string, but on MySQL this returns
   * a USE INDEX hint.  It requires the name of an index.
@@ -24,6 +24,7 @@ import org.apache.manifoldcf.core.system.Logging;
 import org.apache.manifoldcf.core.system.ManifoldCF;
 
 import java.util.*;
+import java.util.concurrent.*;
 import java.sql.*;
 import javax.naming.*;
 import javax.sql.*;
@@ -55,9 +56,13 @@ public abstract class Database
   protected final long maxQueryTime;
   protected final boolean debug;
   protected final int maxDBConnections;
+  protected final boolean pooledQueryThreads;
   
   protected static Random random = new Random();
 
+  /** Pool of query threads, shared by all database handles in the JVM.  Created on first use. */
+  protected static ExecutorService queryThreadPool = null;
+
   protected final static String _TRANSACTION_ = "_TRANSACTION_";
 
   public Database(IThreadContext context, String jdbcUrl, String jdbcDriverClass, String databaseName, String userName, String password)
@@ -73,6 +78,7 @@ public abstract class Database
     this.maxQueryTime = ((long)LockManagerFactory.getIntProperty(context, ManifoldCF.databaseQueryMaxTimeProperty,60)) * 1000L;
     this.debug = LockManagerFactory.getBooleanProperty(context, ManifoldCF.databaseConnectionTrackingProperty, false);
     this.maxDBConnections = LockManagerFactory.getIntProperty(context, ManifoldCF.databaseHandleMaxcountProperty, 50);
+    this.pooledQueryThreads = LockManagerFactory.getBooleanProperty(context, ManifoldCF.databasePooledQueryThreadsProperty, false);
 
     this.cacheManager = CacheManagerFactory.make(context);
   }
@@ -206,6 +212,288 @@ public abstract class Database
     return executor.getResult();
   }
 
+  /** Execute a query, handing each row to a handler as it is read instead of building a resultset.
+  * The query bypasses the cache entirely.
+  * @param query is the query string.
+  * @param params are the parameterized values, if needed.
+  * @param fetchSize is the number of rows to read from the database at a time.
+  * @param spec is the result specification object, or null for standard.
+  * @param handler is the handler that receives the rows.
+  */
+  public void executeStreamingQuery(String query, List params, int fetchSize, ResultSpecification spec,
+    IResultRowHandler handler)
+    throws ManifoldCFException
+  {
+    if (commitDone)
+      throw new ManifoldCFException("Commit already done");
+
+    if (Logging.db.isDebugEnabled())
+    {
+      Logging.db.debug("Requested streaming query: [" + query + "]");
+    }
+
+    synchronizeTransactions();
+
+    if (connection != null)
+    {
+      try
+      {
+        executeViaThread(connection.getConnection(),query,params,true,-1,spec,null,fetchSize,handler,false);
+      }
+      catch (ManifoldCFException e)
+      {
+        if (e.getErrorCode() == ManifoldCFException.INTERRUPTED)
+          // drop the connection object on the floor, so it cannot possibly be reused
+          connection = null;
+        throw e;
+      }
+    }
+    else
+    {
+      // Grab a connection
+      WrappedConnection tempConnection = ConnectionFactory.getConnection(jdbcUrl,jdbcDriverClass,databaseName,userName,password,
+        maxDBConnections,debug);
+      try
+      {
+        // Initialize the connection (for HSQLDB)
+        initializeConnection(tempConnection.getConnection());
+        // We own this connection, so we may take it out of autocommit mode for the duration
+        executeViaThread(tempConnection.getConnection(),query,params,true,-1,spec,null,fetchSize,handler,true);
+      }
+      catch (ManifoldCFException e)
+      {
+        if (e.getErrorCode() == ManifoldCFException.INTERRUPTED)
+          // drop the connection object on the floor, so it cannot possibly be reused
+          tempConnection = null;
+        throw e;
+      }
+      finally
+      {
+        if (tempConnection != null)
+          ConnectionFactory.releaseConnection(tempConnection);
+      }
+    }
+  }
+
+  /** Execute the same modification statement many times, with different parameters, as a single JDBC batch.
+  * The statement bypasses the cache, apart from invalidating the specified keys.
+  * @param query is the query string.
+  * @param paramSets are the parameter lists, one per execution of the statement.  None of the parameter values may be null.
+  * @param invalidateKeys are the cache keys to invalidate.
+  */
+  public void executeBatch(String query, List<List> paramSets, StringSet invalidateKeys)
+    throws ManifoldCFException
+  {
+    if (commitDone)
+      throw new ManifoldCFException("Commit already done");
+
+    if (paramSets.size() == 0)
+      return;
+
+    if (Logging.db.isDebugEnabled())
+    {
+      Logging.db.debug("Requested batch of "+paramSets.size()+": [" + query + "]");
+    }
+
+    ICacheHandle handle = cacheManager.enterCache(null,invalidateKeys,getTransactionID());
+    try
+    {
+      synchronizeTransactions();
+      executeUncachedBatch(query,paramSets);
+      cacheManager.invalidateKeys(handle);
+    }
+    finally
+    {
+      cacheManager.leaveCache(handle);
+    }
+  }
+
+  /** Insert many rows into a table, using as few statements and round trips as possible.
+  * Rows are grouped by the set of columns that have non-null values, and each group is inserted using
+  * statements of up to getMaxInsertRowsPerStatement() rows apiece, sent as JDBC batches.
+  * @param tableName is the name of the table.
+  * @param parameterMaps are the column name/value maps, one per row to insert.
+  * @param invalidateKeys are the cache keys to invalidate.
+  */
+  protected void executeInsertMultiple(String tableName, List<Map<String,Object>> parameterMaps, StringSet invalidateKeys)
+    throws ManifoldCFException
+  {
+    // Group the rows by their non-null columns, in sorted order so that the map iteration order doesn't matter
+    Map<String,List<Map<String,Object>>> groups = new LinkedHashMap<String,List<Map<String,Object>>>();
+    Map<String,List<String>> groupColumns = new HashMap<String,List<String>>();
+    for (Map<String,Object> parameterMap : parameterMaps)
+    {
+      List<String> columns = new ArrayList<String>();
+      for (Map.Entry<String,Object> e : parameterMap.entrySet())
+      {
+        if (e.getValue() != null)
+          columns.add(e.getKey());
+      }
+      Collections.sort(columns);
+      String signature = columns.toString();
+      List<Map<String,Object>> group = groups.get(signature);
+      if (group == null)
+      {
+        group = new ArrayList<Map<String,Object>>();
+        groups.put(signature,group);
+        groupColumns.put(signature,columns);
+      }
+      group.add(parameterMap);
+    }
+
+    for (Map.Entry<String,List<Map<String,Object>>> groupEntry : groups.entrySet())
+    {
+      List<String> columns = groupColumns.get(groupEntry.getKey());
+      List<Map<String,Object>> group = groupEntry.getValue();
+      int rowsPerStatement = Math.min(getMaxInsertRowsPerStatement(),group.size());
+      int fullCount = group.size() - group.size() % rowsPerStatement;
+      // All the full-sized statements go as one batch, and then whatever is left over goes as a single shorter statement
+      List<List> paramSets = new ArrayList<List>();
+      for (int i = 0; i < fullCount; i += rowsPerStatement)
+      {
+        paramSets.add(buildInsertParameters(columns,group.subList(i,i+rowsPerStatement)));
+      }
+      executeBatch(buildInsertStatement(tableName,columns,rowsPerStatement),paramSets,invalidateKeys);
+      if (fullCount < group.size())
+      {
+        paramSets = new ArrayList<List>();
+        paramSets.add(buildInsertParameters(columns,group.subList(fullCount,group.size())));
+        executeBatch(buildInsertStatement(tableName,columns,group.size()-fullCount),paramSets,invalidateKeys);
+      }
+    }
+  }
+
+  /** Build a (possibly multi-row) insert statement.
+  */
+  protected static String buildInsertStatement(String tableName, List<String> columns, int rowCount)
+  {
+    StringBuilder bf = new StringBuilder();
+    bf.append("INSERT INTO ").append(tableName).append(" (");
+    StringBuilder row = new StringBuilder("(");
+    for (int i = 0; i < columns.size(); i++)
+    {
+      if (i > 0)
+      {
+        bf.append(',');
+        row.append(',');
+      }
+      bf.append(columns.get(i));
+      row.append('?');
+    }
+    bf.append(')');
+    row.append(')');
+    bf.append(" VALUES ");
+    for (int i = 0; i < rowCount; i++)
+    {
+      if (i > 0)
+        bf.append(',');
+      bf.append(row);
+    }
+    return bf.toString();
+  }
+
+  /** Build the parameters for a (possibly multi-row) insert statement.
+  */
+  protected static List buildInsertParameters(List<String> columns, List<Map<String,Object>> rows)
+  {
+    List paramArray = new ArrayList();
+    for (Map<String,Object> parameterMap : rows)
+    {
+      for (String column : columns)
+      {
+        paramArray.add(parameterMap.get(column));
+      }
+    }
+    return paramArray;
+  }
+
+  /** Update many rows of a table, each with its own values and its own where-clause parameters, using JDBC batches.
+  * Rows are grouped by the set of columns they set, and by which of those columns are set to null, so that each group
+  * can use a single statement.  The groups are executed in the order in which each was first seen, and the rows
+  * within a group keep their relative order, but rows in different groups are not executed in their original order.
+  * @param tableName is the name of the table.
+  * @param parameterMaps are the column name/value maps, one per update.
+  * @param whereClause is the where clause describing the match (including the WHERE), or null if none.
+  * @param whereParameters are the where clause parameters, one list per update (corresponding to parameterMaps).
+  * @param invalidateKeys are the cache keys to invalidate.
+  */
+  protected void executeUpdateMultiple(String tableName, List<Map<String,Object>> parameterMaps, String whereClause,
+    List<List> whereParameters, StringSet invalidateKeys)
+    throws ManifoldCFException
+  {
+    Map<String,List<Integer>> groups = new LinkedHashMap<String,List<Integer>>();
+    Map<String,List<String>> groupColumns = new HashMap<String,List<String>>();
+    for (int i = 0; i < parameterMaps.size(); i++)
+    {
+      Map<String,Object> parameterMap = parameterMaps.get(i);
+      List<String> columns = new ArrayList<String>(parameterMap.keySet());
+      Collections.sort(columns);
+      StringBuilder signature = new StringBuilder();
+      for (String column : columns)
+      {
+        signature.append(column).append((parameterMap.get(column) == null)?"=NULL,":"=?,");
+      }
+      String key = signature.toString();
+      List<Integer> group = groups.get(key);
+      if (group == null)
+      {
+        group = new ArrayList<Integer>();
+        groups.put(key,group);
+        groupColumns.put(key,columns);
+      }
+      group.add(new Integer(i));
+    }
+
+    for (Map.Entry<String,List<Integer>> groupEntry : groups.entrySet())
+    {
+      List<String> columns = groupColumns.get(groupEntry.getKey());
+      List<Integer> group = groupEntry.getValue();
+      // All the rows in the group have nulls in the same places, so build the statement from the first one
+      Map<String,Object> firstMap = parameterMaps.get(group.get(0).intValue());
+      StringBuilder bf = new StringBuilder();
+      bf.append("UPDATE ").append(tableName).append(" SET ");
+      for (int i = 0; i < columns.size(); i++)
+      {
+        String column = columns.get(i);
+        if (i > 0)
+          bf.append(',');
+        bf.append(column).append('=');
+        if (firstMap.get(column) == null)
+          bf.append("NULL");
+        else
+          bf.append('?');
+      }
+      if (whereClause != null)
+        bf.append(' ').append(whereClause);
+
+      List<List> paramSets = new ArrayList<List>();
+      for (Integer index : group)
+      {
+        Map<String,Object> parameterMap = parameterMaps.get(index.intValue());
+        List paramArray = new ArrayList();
+        for (String column : columns)
+        {
+          Object o = parameterMap.get(column);
+          if (o != null)
+            paramArray.add(o);
+        }
+        if (whereClause != null && whereParameters != null)
+          paramArray.addAll(whereParameters.get(index.intValue()));
+        paramSets.add(paramArray);
+      }
+      executeBatch(bf.toString(),paramSets,invalidateKeys);
+    }
+  }
+
+  /** Get the maximum number of rows to put into a single multi-row insert statement.
+  * Override this for databases that support the multi-row VALUES syntax well.
+  *@return the maximum number of rows; 1 disables multi-row inserts.
+  */
+  protected int getMaxInsertRowsPerStatement()
+  {
+    return 1;
+  }
+
   /** Get the current transaction type.  Returns "READCOMMITTED"
   * outside of a transaction.
   */
@@ -658,34 +946,51 @@ public abstract class Database
     }
   }
   
-  /** Thread used to execute queries.  An instance of this thread is spun up every time a query is executed.  This is necessary because JDBC does not
-  * guarantee interruptability, and the Postgresql JDBC driver unfortunately eats all thread interrupts.  So, we fire up a thread to do each interaction with
-  * the database server, thus insuring that the owning thread remains interruptable and will therefore not block shutdown.
+  /** Task that executes a single query, and holds on to the result or the exception.
   */
-  protected class ExecuteQueryThread extends Thread
+  protected class ExecuteQueryTask implements Runnable
   {
-    protected Connection connection;
-    protected String query;
-    protected List params;
-    protected boolean bResults;
-    protected int maxResults;
-    protected ResultSpecification spec;
-    protected ILimitChecker returnLimit;
+    protected final Connection connection;
+    protected final PreparedStatementCache statementCache;
+    protected final String query;
+    protected final List params;
+    protected final boolean bResults;
+    protected final int maxResults;
+    protected final ResultSpecification spec;
+    protected final ILimitChecker returnLimit;
+    protected final int fetchSize;
+    protected final IResultRowHandler handler;
+    protected final boolean manageAutoCommit;
     protected Throwable exception = null;
     protected IResultSet rval = null;
 
-    public ExecuteQueryThread(Connection connection, String query, List params, boolean bResults, int maxResults,
+    public ExecuteQueryTask(Connection connection, String query, List params, boolean bResults, int maxResults,
       ResultSpecification spec, ILimitChecker returnLimit)
     {
-      super();
-      setDaemon(true);
+      this(connection,query,params,bResults,maxResults,spec,returnLimit,0,null,false);
+    }
+
+    public ExecuteQueryTask(Connection connection, String query, List params, boolean bResults, int maxResults,
+      ResultSpecification spec, ILimitChecker returnLimit, int fetchSize, IResultRowHandler handler, boolean manageAutoCommit)
+    {
+      this(connection,null,query,params,bResults,maxResults,spec,returnLimit,fetchSize,handler,manageAutoCommit);
+    }
+
+    public ExecuteQueryTask(Connection connection, PreparedStatementCache statementCache, String query, List params,
+      boolean bResults, int maxResults, ResultSpecification spec, ILimitChecker returnLimit, int fetchSize,
+      IResultRowHandler handler, boolean manageAutoCommit)
+    {
       this.connection = connection;
+      this.statementCache = statementCache;
       this.query = query;
       this.params = params;
       this.bResults = bResults;
       this.maxResults = maxResults;
       this.spec = spec;
       this.returnLimit = returnLimit;
+      this.fetchSize = fetchSize;
+      this.handler = handler;
+      this.manageAutoCommit = manageAutoCommit;
     }
 
     public void run()
@@ -693,7 +998,10 @@ public abstract class Database
       try
       {
         // execute using the passed connection handle
-        rval = execute(connection,query,params,bResults,maxResults,spec,returnLimit);
+        if (handler != null)
+          executeStreaming(connection,query,params,maxResults,spec,fetchSize,handler,manageAutoCommit);
+        else
+          rval = execute(connection,statementCache,query,params,bResults,maxResults,spec,returnLimit,0,null);
       }
       catch (Throwable e)
       {
@@ -701,10 +1009,11 @@ public abstract class Database
       }
     }
 
-    public IResultSet finishUp()
-      throws ManifoldCFException, InterruptedException
+    /** Get the result.  Only call this once the task has completed.
+    */
+    public IResultSet getResult()
+      throws ManifoldCFException
     {
-      join();
       Throwable thr = exception;
       if (thr != null)
       {
@@ -725,16 +1034,126 @@ public abstract class Database
     }
   }
 
+  /** Task that executes a batch of modifications.
+  */
+  protected class ExecuteBatchTask extends ExecuteQueryTask
+  {
+    protected final List<List> paramSets;
+
+    public ExecuteBatchTask(Connection connection, String query, List<List> paramSets)
+    {
+      this(connection,null,query,paramSets);
+    }
+
+    public ExecuteBatchTask(Connection connection, PreparedStatementCache statementCache, String query, List<List> paramSets)
+    {
+      super(connection,statementCache,query,null,false,0,null,null,0,null,false);
+      this.paramSets = paramSets;
+    }
+
+    public void run()
+    {
+      try
+      {
+        executeBatchStatement(connection,statementCache,query,paramSets);
+      }
+      catch (Throwable e)
+      {
+        this.exception = e;
+      }
+    }
+  }
+
+  /** Thread used to execute queries.  An instance of this thread is spun up every time a query is executed.  This is necessary because JDBC does not
+  * guarantee interruptability, and the Postgresql JDBC driver unfortunately eats all thread interrupts.  So, we fire up a thread to do each interaction with
+  * the database server, thus insuring that the owning thread remains interruptable and will therefore not block shutdown.
+  */
+  protected class ExecuteQueryThread extends Thread
+  {
+    protected final ExecuteQueryTask task;
+
+    public ExecuteQueryThread(ExecuteQueryTask task)
+    {
+      super(task);
+      setDaemon(true);
+      this.task = task;
+    }
+
+    public IResultSet finishUp()
+      throws ManifoldCFException, InterruptedException
+    {
+      join();
+      return task.getResult();
+    }
+  }
+
   /** Do query execution via a subthread, so the primary thread can be interrupted */
   protected IResultSet executeViaThread(Connection connection, String query, List params, boolean bResults, int maxResults,
     ResultSpecification spec, ILimitChecker returnLimit)
     throws ManifoldCFException
+  {
+    return executeViaThread(connection,query,params,bResults,maxResults,spec,returnLimit,0,null,false);
+  }
+
+  /** Do query execution via a subthread, so the primary thread can be interrupted, using the connection's
+  * prepared statement cache.
+  */
+  protected IResultSet executeViaThread(WrappedConnection connection, String query, List params, boolean bResults, int maxResults,
+    ResultSpecification spec, ILimitChecker returnLimit)
+    throws ManifoldCFException
+  {
+    return executeViaThread(connection.getConnection(),new ExecuteQueryTask(connection.getConnection(),connection.getStatementCache(),
+      query,params,bResults,maxResults,spec,returnLimit,0,null,false));
+  }
+
+  /** Do query execution via a subthread, so the primary thread can be interrupted.  If a row handler is
+  * supplied, the rows are streamed to it and null is returned.
+  */
+  protected IResultSet executeViaThread(Connection connection, String query, List params, boolean bResults, int maxResults,
+    ResultSpecification spec, ILimitChecker returnLimit, int fetchSize, IResultRowHandler handler, boolean manageAutoCommit)
+    throws ManifoldCFException
+  {
+    return executeViaThread(connection,new ExecuteQueryTask(connection,query,params,bResults,maxResults,spec,returnLimit,
+      fetchSize,handler,manageAutoCommit));
+  }
+
+  /** Run a task via a subthread, so the primary thread can be interrupted.
+  *@param connection is the connection the task uses.
+  *@param task is the task.
+  *@return the task's result.
+  */
+  protected IResultSet executeViaThread(Connection connection, ExecuteQueryTask task)
+    throws ManifoldCFException
   {
     if (connection == null)
       // This probably means that the thread was interrupted and the connection was abandoned.  Just return null.
       return null;
 
-    ExecuteQueryThread t = new ExecuteQueryThread(connection,query,params,bResults,maxResults,spec,returnLimit);
+    if (pooledQueryThreads)
+    {
+      // Hand the task to a pooled thread.  The semantics are the same as for a dedicated thread.
+      Future<?> future = getQueryThreadPool().submit(task);
+      try
+      {
+        future.get();
+        return task.getResult();
+      }
+      catch (InterruptedException e)
+      {
+        // Try to kill the pooled thread's work - but we can't wait for it...
+        future.cancel(true);
+        interruptCleanup(connection);
+        // We need the caller to abandon any connections left around, so rethrow in a way that forces them to process the event properly.
+        throw new ManifoldCFException(e.getMessage(),e,ManifoldCFException.INTERRUPTED);
+      }
+      catch (ExecutionException e)
+      {
+        // Can't happen; the task catches everything
+        throw new RuntimeException("Unexpected query task exception: "+e.getMessage(),e);
+      }
+    }
+
+    ExecuteQueryThread t = new ExecuteQueryThread(task);
     try
     {
       t.start();
@@ -751,6 +1170,28 @@ public abstract class Database
 
   }
 
+  /** Get the shared query thread pool, creating it if needed.
+  * The pool has no upper bound, because the number of queries in flight is already limited by the
+  * number of database handles, and a thread left running by an interrupted query must not hold up others.
+  * Idle threads are retired after a minute.
+  */
+  protected static synchronized ExecutorService getQueryThreadPool()
+  {
+    if (queryThreadPool == null)
+    {
+      queryThreadPool = Executors.newCachedThreadPool(new ThreadFactory()
+        {
+          public Thread newThread(Runnable r)
+          {
+            Thread t = new Thread(r,"Database query thread");
+            t.setDaemon(true);
+            return t;
+          }
+        });
+    }
+    return queryThreadPool;
+  }
+
   /** This method must clean up after a execute query thread has been forcibly interrupted.
   * It has been separated because some JDBC drivers don't handle forcible interrupts
   * appropriately.
@@ -781,7 +1222,7 @@ public abstract class Database
     {
       try
       {
-        return executeViaThread(connection.getConnection(),query,params,bResults,maxResults,spec,returnLimit);
+        return executeViaThread(connection,query,params,bResults,maxResults,spec,returnLimit);
       }
       catch (ManifoldCFException e)
       {
@@ -800,7 +1241,7 @@ public abstract class Database
       {
         // Initialize the connection (for HSQLDB)
         initializeConnection(tempConnection.getConnection());
-        return executeViaThread(tempConnection.getConnection(),query,params,bResults,maxResults,spec,returnLimit);
+        return executeViaThread(tempConnection,query,params,bResults,maxResults,spec,returnLimit);
       }
       catch (ManifoldCFException e)
       {
@@ -818,6 +1259,53 @@ public abstract class Database
   }
 
 
+  /** Execute a batch of modifications, without any cache involvement.
+  */
+  protected void executeUncachedBatch(String query, List<List> paramSets)
+    throws ManifoldCFException
+  {
+    if (connection != null)
+    {
+      try
+      {
+        executeViaThread(connection.getConnection(),new ExecuteBatchTask(connection.getConnection(),connection.getStatementCache(),
+          query,paramSets));
+      }
+      catch (ManifoldCFException e)
+      {
+        if (e.getErrorCode() == ManifoldCFException.INTERRUPTED)
+          // drop the connection object on the floor, so it cannot possibly be reused
+          connection = null;
+        throw e;
+      }
+    }
+    else
+    {
+      // Grab a connection
+      WrappedConnection tempConnection = ConnectionFactory.getConnection(jdbcUrl,jdbcDriverClass,databaseName,userName,password,
+        maxDBConnections,debug);
+      try
+      {
+        // Initialize the connection (for HSQLDB)
+        initializeConnection(tempConnection.getConnection());
+        executeViaThread(tempConnection.getConnection(),new ExecuteBatchTask(tempConnection.getConnection(),
+          tempConnection.getStatementCache(),query,paramSets));
+      }
+      catch (ManifoldCFException e)
+      {
+        if (e.getErrorCode() == ManifoldCFException.INTERRUPTED)
+          // drop the connection object on the floor, so it cannot possibly be reused
+          tempConnection = null;
+        throw e;
+      }
+      finally
+      {
+        if (tempConnection != null)
+          ConnectionFactory.releaseConnection(tempConnection);
+      }
+    }
+  }
+
   // These are protected helper methods
 
   /** Initialize the connection (for HSQLDB).
@@ -841,6 +1329,157 @@ public abstract class Database
   protected IResultSet execute(Connection connection, String query, List params, boolean bResults, int maxResults,
     ResultSpecification spec, ILimitChecker returnLimit)
     throws ManifoldCFException
+  {
+    return execute(connection,query,params,bResults,maxResults,spec,returnLimit,0,null);
+  }
+
+  /** Run a query, streaming the rows to a handler.  No caching is involved at all at this level.
+  * Some JDBC drivers (e.g. PostgreSQL) only read a result a batch at a time when the connection is not
+  * in autocommit mode, so if we are allowed to, we switch autocommit off for the duration of the query.
+  * @param manageAutoCommit is true if the connection is not in use by a transaction, so its autocommit
+  * mode may be changed.
+  */
+  protected void executeStreaming(Connection connection, String query, List params, int maxResults,
+    ResultSpecification spec, int fetchSize, IResultRowHandler handler, boolean manageAutoCommit)
+    throws ManifoldCFException
+  {
+    boolean restoreAutoCommit = false;
+    try
+    {
+      if (manageAutoCommit && connection.getAutoCommit())
+      {
+        connection.setAutoCommit(false);
+        restoreAutoCommit = true;
+      }
+      try
+      {
+        execute(connection,query,params,true,maxResults,spec,null,fetchSize,handler);
+      }
+      finally
+      {
+        if (restoreAutoCommit)
+        {
+          // Nothing was written, so there is nothing to commit
+          connection.rollback();
+          connection.setAutoCommit(true);
+        }
+      }
+    }
+    catch (java.sql.SQLException e)
+    {
+      throw new ManifoldCFException("SQLException setting up streaming query"+((e.getSQLState() != null)?" ("+e.getSQLState()+")":"")+": "+e.getMessage(),e,ManifoldCFException.DATABASE_CONNECTION_ERROR);
+    }
+  }
+
+  /** Run a modification statement once per parameter list, as a single JDBC batch.  No caching is involved at all at this level.
+  * @param query is the statement.
+  * @param paramSets are the parameter lists, one per execution.
+  */
+  protected void executeBatchStatement(Connection connection, String query, List<List> paramSets)
+    throws ManifoldCFException
+  {
+    executeBatchStatement(connection,null,query,paramSets);
+  }
+
+  /** Run a modification statement once per parameter list, as a single JDBC batch.  No caching is involved at all at this level.
+  * @param statementCache is the connection's prepared statement cache, or null to prepare the statement afresh.
+  * @param query is the statement.
+  * @param paramSets are the parameter lists, one per execution.
+  */
+  protected void executeBatchStatement(Connection connection, PreparedStatementCache statementCache, String query, List<List> paramSets)
+    throws ManifoldCFException
+  {
+    try
+    {
+      try
+      {
+        long queryStartTime = 0L;
+        if (Logging.db.isDebugEnabled())
+        {
+          queryStartTime = System.currentTimeMillis();
+          Logging.db.debug("Actual batch of "+paramSets.size()+": [" + query + "]");
+        }
+
+        PreparedStatement ps = prepareStatement(connection,statementCache,query);
+        boolean succeeded = false;
+        try
+        {
+          for (List params : paramSets)
+          {
+            loadPS(ps, params);
+            ps.addBatch();
+          }
+          ps.executeBatch();
+          succeeded = true;
+        }
+        finally
+        {
+          releaseStatement(statementCache,query,ps,succeeded);
+        }
+        if (Logging.db.isDebugEnabled())
+          Logging.db.debug("Done actual batch ("+new Long(System.currentTimeMillis()-queryStartTime).toString()+"ms): ["+query+"]");
+      }
+      catch (java.sql.BatchUpdateException e)
+      {
+        // The driver's batch exception usually just says which statement failed; the real cause, which is what we need
+        // in order to tell a deadlock from anything else, is chained to it.
+        java.sql.SQLException cause = e.getNextException();
+        if (cause == null)
+          cause = e;
+        throw new ManifoldCFException("SQLException doing batch"+((cause.getSQLState() != null)?" ("+cause.getSQLState()+")":"")+": "+cause.getMessage(),cause,ManifoldCFException.DATABASE_CONNECTION_ERROR);
+      }
+      catch (java.sql.SQLException e)
+      {
+        throw new ManifoldCFException("SQLException doing batch"+((e.getSQLState() != null)?" ("+e.getSQLState()+")":"")+": "+e.getMessage(),e,ManifoldCFException.DATABASE_CONNECTION_ERROR);
+      }
+    }
+    finally
+    {
+      // Cleanup of input parameters ALWAYS occurs, because whether we succeed or fail, we are done with any input streams.
+      for (List params : paramSets)
+      {
+        cleanupParameters(params);
+      }
+    }
+  }
+
+  /** Map the fetch size requested for a streaming query to the one to hand the JDBC driver.
+  * Override this for drivers that need something special in order to stream.
+  *@param fetchSize is the requested fetch size.
+  *@return the fetch size to set on the statement.
+  */
+  protected int getStreamingFetchSize(int fetchSize)
+  {
+    return fetchSize;
+  }
+
+  /** Run a query.  No caching is involved at all at this level.
+  * @param query String the query string
+  * @param bResults boolean whether to load the resultset or not
+  * @param maxResults is the maximum number of results to load: -1 if all
+  * @param params List if params !=null, use preparedStatement
+  * @param fetchSize is the JDBC fetch size to use, or 0 for the driver default
+  * @param handler is the handler to stream rows to, or null to build and return a resultset
+  */
+  protected IResultSet execute(Connection connection, String query, List params, boolean bResults, int maxResults,
+    ResultSpecification spec, ILimitChecker returnLimit, int fetchSize, IResultRowHandler handler)
+    throws ManifoldCFException
+  {
+    return execute(connection,null,query,params,bResults,maxResults,spec,returnLimit,fetchSize,handler);
+  }
+
+  /** Run a query.  No caching is involved at all at this level.
+  * @param statementCache is the connection's prepared statement cache, or null to prepare the statement afresh
+  * @param query String the query string
+  * @param bResults boolean whether to load the resultset or not
+  * @param maxResults is the maximum number of results to load: -1 if all
+  * @param params List if params !=null, use preparedStatement
+  * @param fetchSize is the JDBC fetch size to use, or 0 for the driver default
+  * @param handler is the handler to stream rows to, or null to build and return a resultset
+  */
+  protected IResultSet execute(Connection connection, PreparedStatementCache statementCache, String query, List params,
+    boolean bResults, int maxResults, ResultSpecification spec, ILimitChecker returnLimit, int fetchSize, IResultRowHandler handler)
+    throws ManifoldCFException
   {
     IResultSet rval = null;
     try
@@ -873,12 +1512,17 @@ public abstract class Database
           Statement stmt = connection.createStatement();
           try
           {
+            if (handler != null)
+              stmt.setFetchSize(getStreamingFetchSize(fetchSize));
             stmt.execute(query);
+            // Prepared statements on this table may no longer be valid for the new schema
+            if (statementCache != null && isSchemaChange(query))
+              statementCache.invalidateAll();
             rs = stmt.getResultSet();
             try
             {
               // Suck data from resultset
-              rval = getData(rs,bResults,maxResults,spec,returnLimit);
+              rval = getData(rs,bResults,maxResults,spec,returnLimit,handler);
             }
             finally
             {
@@ -893,17 +1537,23 @@ public abstract class Database
         }
         else
         {
-          PreparedStatement ps = connection.prepareStatement(query);
+          // Streaming changes the statement's fetch size, so those statements are not shared
+          if (handler != null)
+            statementCache = null;
+          PreparedStatement ps = prepareStatement(connection,statementCache,query);
+          boolean succeeded = false;
           try
           {
             loadPS(ps, params);
             if (bResults)
             {
+              if (handler != null)
+                ps.setFetchSize(getStreamingFetchSize(fetchSize));
               rs = ps.executeQuery();
               try
               {
                 // Suck data from resultset
-                rval = getData(rs,true,maxResults,spec,returnLimit);
+                rval = getData(rs,true,maxResults,spec,returnLimit,handler);
               }
               finally
               {
@@ -916,10 +1566,11 @@ public abstract class Database
               ps.executeUpdate();
               rval = getData(null,false,0,spec,null);
             }
+            succeeded = true;
           }
           finally
           {
-            ps.close();
+            releaseStatement(statementCache,query,ps,succeeded);
           }
         }
         if (Logging.db.isDebugEnabled())
@@ -941,11 +1592,54 @@ public abstract class Database
     return rval;
   }
 
+  /** Check whether a statement changes the schema.
+  */
+  protected static boolean isSchemaChange(String query)
+  {
+    String trimmed = query.trim();
+    return trimmed.regionMatches(true,0,"CREATE ",0,7) ||
+      trimmed.regionMatches(true,0,"ALTER ",0,6) ||
+      trimmed.regionMatches(true,0,"DROP ",0,5);
+  }
+
+  /** Get a prepared statement, from the connection's statement cache if there is one.
+  */
+  protected static PreparedStatement prepareStatement(Connection connection, PreparedStatementCache statementCache, String query)
+    throws SQLException
+  {
+    if (statementCache == null)
+      return connection.prepareStatement(query);
+    return statementCache.checkOut(connection,query);
+  }
+
+  /** Done with a prepared statement.  A statement that was used successfully goes back into the cache;
+  * otherwise it is closed, since we cannot know what state it was left in.
+  */
+  protected static void releaseStatement(PreparedStatementCache statementCache, String query, PreparedStatement ps, boolean succeeded)
+    throws SQLException
+  {
+    if (statementCache == null)
+      ps.close();
+    else if (succeeded)
+      statementCache.checkIn(query,ps);
+    else
+      statementCache.discard(ps);
+  }
+
   // Read data from a resultset
   protected IResultSet getData(ResultSet rs, boolean bResults, int maxResults, ResultSpecification spec, ILimitChecker returnLimit)
     throws ManifoldCFException
   {
-    RSet results = new RSet();  // might be empty but not an error
+    return getData(rs,bResults,maxResults,spec,returnLimit,null);
+  }
+
+  // Read data from a resultset.  If there is a row handler, each row is handed to it and then discarded, so the
+  // returned resultset is always empty.
+  protected IResultSet getData(ResultSet rs, boolean bResults, int maxResults, ResultSpecification spec, ILimitChecker returnLimit,
+    IResultRowHandler handler)
+    throws ManifoldCFException
+  {
+    IResultSet results = new RSet();  // might be empty but not an error
     try
     {
       try
@@ -985,50 +1679,68 @@ public abstract class Database
               throw new ManifoldCFException("Empty query, no columns returned",ManifoldCFException.GENERAL_ERROR);
             }
 
-            while (rs.next() && (maxResults == -1 || maxResults > 0) && (returnLimit == null || returnLimit.checkContinue()))
+            // Everything that only depends on the column, not the row, gets worked out once up front
+            ColumnarRSet columnarResults = new ColumnarRSet(resultLabels);
+            results = columnarResults;
+            int[] columnNumbers = new int[colcount];
+            int[] columnForms = new int[colcount];
+            int[] columnIndexes = new int[colcount];
+            for (int i = 0; i < colcount; i++)
             {
-              Object value;
-              RRow m = new RRow();
+              String key = resultCols[i];
+              columnNumbers[i] = findColumn(rs,key);
+              columnForms[i] = (spec == null)?ResultSpecification.FORM_DEFAULT:spec.getForm(key.toLowerCase(Locale.ROOT));
+              columnIndexes[i] = columnarResults.getColumnIndex(resultLabels[i]);
+            }
 
+            while (rs.next() && (maxResults == -1 || maxResults > 0) && (returnLimit == null || returnLimit.checkContinue()))
+            {
               // We have 'colcount' cols to look thru
               for (int i = 0; i < colcount; i++)
               {
-                String key = resultCols[i];
-                // System.out.println("Key = "+key);
-                int colnum = findColumn(rs,key);
-                value = null;
-                if (colnum > -1)
+                Object value = null;
+                if (columnNumbers[i] > -1)
                 {
-                  value = getObject(rs,rsmd,colnum,(spec == null)?ResultSpecification.FORM_DEFAULT:spec.getForm(key.toLowerCase(Locale.ROOT)));
+                  value = getObject(rs,rsmd,columnNumbers[i],columnForms[i]);
                 }
-                //System.out.println(" Key = '"+resultLabels[i]+"', value = "+((value==null)?"NULL":value.toString()));
-                m.put(resultLabels[i], value);
+                columnarResults.setPendingValue(columnIndexes[i],value);
+              }
+
+              if (handler != null)
+              {
+                // Hand the row off, and then get rid of it; the handler has to copy anything it wants to keep
+                try
+                {
+                  handler.handleRow(columnarResults.getPendingRow());
+                }
+                finally
+                {
+                  discardPersistentObjects(columnarResults.getPendingRow());
+                  columnarResults.discardPendingRow();
+                }
+                if (maxResults != -1)
+                  maxResults--;
+                continue;
               }
 
               // See if we should include this row
               boolean include = true;
               if (returnLimit != null)
               {
-                include = returnLimit.checkInclude(m);
+                include = returnLimit.checkInclude(columnarResults.getPendingRow());
               }
 
               if (include)
               {
                 if (maxResults != -1)
                   maxResults--;
-                results.addRow(m);
+                columnarResults.commitPendingRow();
               }
               else
               {
                 // As a courtesy, clean up any BinaryInput objects in the row we are skipping
-                Iterator iter = m.getColumns();
-                while (iter.hasNext())
-                {
-                  String columnName = (String)iter.next();
-                  Object colValue = m.getValue(columnName);
-                  if (colValue instanceof PersistentDatabaseObject)
-                    ((PersistentDatabaseObject)colValue).discard();
-                }
+                discardPersistentObjects(columnarResults.getPendingRow());
+                columnarResults.discardPendingRow();
               }
             }
           }
@@ -1045,16 +1757,7 @@ public abstract class Database
       int i = 0;
       while (i < results.getRowCount())
       {
-        IResultRow row = results.getRow(i++);
-        int j = 0;
-        Iterator iter = row.getColumns();
-        while (iter.hasNext())
-        {
-          String colName = (String)iter.next();
-          Object o = row.getValue(colName);
-          if (o instanceof PersistentDatabaseObject)
-            ((PersistentDatabaseObject)o).discard();
-        }
+        discardPersistentObjects(results.getRow(i++));
       }
       if (e instanceof ManifoldCFException)
         throw (ManifoldCFException)e;
@@ -1067,6 +1770,21 @@ public abstract class Database
     return results;
   }
 
+  /** Discard any persistent database objects (e.g. BinaryInput objects) in a row.
+  */
+  protected static void discardPersistentObjects(IResultRow row)
+    throws ManifoldCFException
+  {
+    Iterator<String> iter = row.getColumns();
+    while (iter.hasNext())
+    {
+      Object o = row.getValue(iter.next());
+      if (o instanceof PersistentDatabaseObject)
+        ((PersistentDatabaseObject)o).discard();
+    }
+  }
+
+
   // pass params to preparedStatement
   protected static void loadPS(PreparedStatement ps, List data)
     throws java.sql.SQLException, ManifoldCFException
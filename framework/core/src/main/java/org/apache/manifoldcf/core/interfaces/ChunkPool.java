@@ -0,0 +1,534 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.core.interfaces;
+
+import java.io.*;
+import java.util.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import org.apache.manifoldcf.core.system.ManifoldCF;
+
+/** This class is a process-wide pool of fixed-size, direct (off-heap) byte buffer chunks.  Temporary data
+* that would otherwise be written to a temporary file (see TempFileInput and TempFileCharacterInput) is held
+* in chunks from this pool instead, as long as the data is no larger than the per-document limit and the
+* pool's memory budget has room for it.  Otherwise the data is spilled to a temporary file.
+* Chunks are allocated on demand, up to the budget, and are reused once released; they are never handed
+* back to the JVM.  A budget of zero disables the pool.
+* The pool also counts how much data it has been asked to hold and how much of that it had to spill, so
+* that the budget can be tuned.
+*/
+public class ChunkPool
+{
+  public static final String _rcsid = "@(#)$Id$";
+
+  /** The size of every chunk */
+  public final static int CHUNK_SIZE = 65536;
+
+  /** The process-wide pool */
+  protected final static ChunkPool pool = new ChunkPool();
+
+  /** Maximum number of chunks that may be allocated */
+  protected int maxChunks = 0;
+  /** Largest amount of data, in bytes, that one document may hold in the pool */
+  protected long documentLimit = 0L;
+  /** Number of chunks allocated so far */
+  protected int allocatedChunks = 0;
+  /** Number of chunks handed out and not yet released */
+  protected int chunksInUse = 0;
+  /** Highest number of chunks in use at one time */
+  protected int peakChunksInUse = 0;
+  /** Allocated chunks that are not in use */
+  protected final List<ByteBuffer> freeChunks = new ArrayList<ByteBuffer>();
+  /** Number of documents held entirely in the pool */
+  protected long documentsInMemory = 0L;
+  /** Number of documents spilled because they exceeded the per-document limit */
+  protected long documentsSpilledForSize = 0L;
+  /** Number of documents spilled because the pool's budget was used up */
+  protected long documentsSpilledForBudget = 0L;
+
+  /** Constructor.  The pool starts out disabled.
+  */
+  public ChunkPool()
+  {
+  }
+
+  /** Get the process-wide pool.
+  *@return the pool.
+  */
+  public static ChunkPool getPool()
+  {
+    return pool;
+  }
+
+  /** Set the pool's limits.
+  *@param memoryBudget is the maximum number of bytes of chunks the pool may allocate; 0 disables the pool.
+  *@param documentLimit is the largest number of bytes a single document may hold in the pool.
+  */
+  public synchronized void configure(long memoryBudget, long documentLimit)
+  {
+    this.maxChunks = (int)Math.min((long)Integer.MAX_VALUE,memoryBudget / CHUNK_SIZE);
+    this.documentLimit = documentLimit;
+    // Let go of free chunks that no longer fit the budget.  Chunks in use are let go as they are released.
+    while (allocatedChunks > maxChunks && freeChunks.size() > 0)
+    {
+      freeChunks.remove(freeChunks.size()-1);
+      allocatedChunks--;
+    }
+  }
+
+  /** Check if the pool is enabled.
+  *@return true if the pool may hold data.
+  */
+  public synchronized boolean isEnabled()
+  {
+    return maxChunks > 0 && documentLimit > 0L;
+  }
+
+  /** Get a chunk.  The chunk is cleared, so that it is ready to be filled.  It must be returned with
+  * releaseChunk() when it is no longer needed.
+  *@return the chunk, or null if the budget is used up.
+  */
+  public synchronized ByteBuffer acquireChunk()
+  {
+    ByteBuffer rval;
+    if (freeChunks.size() > 0)
+      rval = freeChunks.remove(freeChunks.size()-1);
+    else if (allocatedChunks < maxChunks)
+    {
+      rval = ByteBuffer.allocateDirect(CHUNK_SIZE);
+      allocatedChunks++;
+    }
+    else
+      return null;
+    chunksInUse++;
+    if (chunksInUse > peakChunksInUse)
+      peakChunksInUse = chunksInUse;
+    rval.clear();
+    return rval;
+  }
+
+  /** Return a chunk obtained from acquireChunk().
+  *@param chunk is the chunk.  It must not be used after this call.
+  */
+  public synchronized void releaseChunk(ByteBuffer chunk)
+  {
+    chunksInUse--;
+    if (allocatedChunks > maxChunks)
+      allocatedChunks--;
+    else
+      freeChunks.add(chunk);
+  }
+
+  /** Create a stream that writes a document's data into the pool, spilling to a temporary file if the
+  * data exceeds the per-document limit or the budget runs out.
+  *@return the stream.
+  */
+  public SpillingOutputStream createOutputStream()
+  {
+    return new SpillingOutputStream(this,getDocumentLimit());
+  }
+
+  /** Get the memory budget.
+  *@return the number of bytes the pool may allocate.
+  */
+  public synchronized long getMemoryBudget()
+  {
+    return (long)maxChunks * CHUNK_SIZE;
+  }
+
+  /** Get the per-document limit.
+  *@return the largest number of bytes a single document may hold in the pool.
+  */
+  public synchronized long getDocumentLimit()
+  {
+    return documentLimit;
+  }
+
+  /** Get the amount of memory currently allocated for chunks, whether in use or free.
+  *@return the number of bytes.
+  */
+  public synchronized long getMemoryAllocated()
+  {
+    return (long)allocatedChunks * CHUNK_SIZE;
+  }
+
+  /** Get the amount of memory currently in use.
+  *@return the number of bytes in chunks that have been handed out.
+  */
+  public synchronized long getMemoryInUse()
+  {
+    return (long)chunksInUse * CHUNK_SIZE;
+  }
+
+  /** Get the most memory that has been in use at one time.
+  *@return the number of bytes.
+  */
+  public synchronized long getPeakMemoryInUse()
+  {
+    return (long)peakChunksInUse * CHUNK_SIZE;
+  }
+
+  /** Get the number of documents that have been held entirely in the pool.
+  */
+  public synchronized long getDocumentsInMemory()
+  {
+    return documentsInMemory;
+  }
+
+  /** Get the number of documents that were spilled because they exceeded the per-document limit.
+  */
+  public synchronized long getDocumentsSpilledForSize()
+  {
+    return documentsSpilledForSize;
+  }
+
+  /** Get the number of documents that were spilled because the budget was used up.
+  */
+  public synchronized long getDocumentsSpilledForBudget()
+  {
+    return documentsSpilledForBudget;
+  }
+
+  /** Get the fraction of documents given to the pool that had to be spilled to a file.
+  *@return the spill rate, between 0.0 and 1.0.
+  */
+  public synchronized double getSpillRate()
+  {
+    long spilled = documentsSpilledForSize + documentsSpilledForBudget;
+    long total = documentsInMemory + spilled;
+    if (total == 0L)
+      return 0.0;
+    return ((double)spilled) / ((double)total);
+  }
+
+  /** Describe the pool's occupancy and spill counts, for logging.
+  */
+  @Override
+  public synchronized String toString()
+  {
+    return "budget="+getMemoryBudget()+" allocated="+getMemoryAllocated()+" inuse="+getMemoryInUse()+
+      " peak="+getPeakMemoryInUse()+" inmemory="+documentsInMemory+" spilledforsize="+documentsSpilledForSize+
+      " spilledforbudget="+documentsSpilledForBudget;
+  }
+
+  /** Record the fate of a document written through a SpillingOutputStream.
+  */
+  protected synchronized void noteDocument(boolean spilled, boolean forBudget)
+  {
+    if (!spilled)
+      documentsInMemory++;
+    else if (forBudget)
+      documentsSpilledForBudget++;
+    else
+      documentsSpilledForSize++;
+  }
+
+  /** A document's data, held in pool chunks.  Any number of streams may read it, until it is released.
+  */
+  public static class PooledData
+  {
+    protected final ChunkPool pool;
+    protected final long length;
+    /** The chunks; null once the data has been released */
+    protected List<ByteBuffer> chunks;
+
+    protected PooledData(ChunkPool pool, List<ByteBuffer> chunks, long length)
+    {
+      this.pool = pool;
+      this.chunks = chunks;
+      this.length = length;
+    }
+
+    /** Get the length of the data.
+    *@return the length in bytes.
+    */
+    public long getLength()
+    {
+      return length;
+    }
+
+    /** Open a new stream over the data.
+    *@return the stream.
+    */
+    public InputStream getStream()
+    {
+      return new PooledDataInputStream(this);
+    }
+
+    /** Return the chunks to the pool.  Streams that are still open will fail after this.
+    */
+    public synchronized void release()
+    {
+      if (chunks != null)
+      {
+        for (ByteBuffer chunk : chunks)
+        {
+          pool.releaseChunk(chunk);
+        }
+        chunks = null;
+      }
+    }
+
+    /** Read data at a given position.
+    *@return the number of bytes read, or -1 at the end of the data.
+    */
+    protected synchronized int read(long position, byte[] b, int off, int len)
+      throws IOException
+    {
+      if (chunks == null)
+        throw new IOException("Data has been discarded");
+      if (position >= length)
+        return -1;
+      int chunkOffset = (int)(position % CHUNK_SIZE);
+      int amt = (int)Math.min((long)len,Math.min((long)(CHUNK_SIZE - chunkOffset),length - position));
+      ByteBuffer view = chunks.get((int)(position / CHUNK_SIZE)).duplicate();
+      view.position(chunkOffset);
+      view.get(b,off,amt);
+      return amt;
+    }
+  }
+
+  /** A stream over pooled data.
+  */
+  protected static class PooledDataInputStream extends InputStream
+  {
+    protected final PooledData data;
+    protected long position = 0L;
+
+    public PooledDataInputStream(PooledData data)
+    {
+      this.data = data;
+    }
+
+    @Override
+    public int read()
+      throws IOException
+    {
+      byte[] b = new byte[1];
+      int amt = read(b,0,1);
+      if (amt == -1)
+        return -1;
+      return ((int)b[0]) & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len)
+      throws IOException
+    {
+      if (len == 0)
+        return 0;
+      int amt = data.read(position,b,off,len);
+      if (amt > 0)
+        position += amt;
+      return amt;
+    }
+
+    @Override
+    public long skip(long n)
+      throws IOException
+    {
+      long amt = Math.max(0L,Math.min(n,data.getLength() - position));
+      position += amt;
+      return amt;
+    }
+
+    @Override
+    public int available()
+      throws IOException
+    {
+      return (int)Math.min((long)Integer.MAX_VALUE,data.getLength() - position);
+    }
+  }
+
+  /** A stream that writes one document's data into pool chunks.  When the data exceeds the per-document
+  * limit, or no chunk is available, everything written so far is moved to a temporary file, and the rest
+  * of the data is written there.  After close(), exactly one of getData() and getFile() is non-null.  If
+  * the data isn't wanted after all, call abandon() instead of close().
+  */
+  public static class SpillingOutputStream extends OutputStream
+  {
+    protected final ChunkPool pool;
+    protected final long documentLimit;
+    protected List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+    protected ByteBuffer currentChunk = null;
+    protected long length = 0L;
+    protected File file = null;
+    protected FileOutputStream fileStream = null;
+    protected boolean spilledForBudget = false;
+    protected PooledData data = null;
+
+    protected SpillingOutputStream(ChunkPool pool, long documentLimit)
+    {
+      this.pool = pool;
+      this.documentLimit = documentLimit;
+    }
+
+    @Override
+    public void write(int b)
+      throws IOException
+    {
+      write(new byte[]{(byte)b},0,1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len)
+      throws IOException
+    {
+      if (chunks != null && length + len > documentLimit)
+        spill(false);
+      while (len > 0 && chunks != null)
+      {
+        if (currentChunk == null || !currentChunk.hasRemaining())
+        {
+          currentChunk = pool.acquireChunk();
+          if (currentChunk == null)
+          {
+            spill(true);
+            break;
+          }
+          chunks.add(currentChunk);
+        }
+        int amt = Math.min(len,currentChunk.remaining());
+        currentChunk.put(b,off,amt);
+        off += amt;
+        len -= amt;
+        length += amt;
+      }
+      if (len > 0)
+      {
+        fileStream.write(b,off,len);
+        length += len;
+      }
+    }
+
+    /** Finish writing.  The data is then available from getData() or getFile().
+    */
+    @Override
+    public void close()
+      throws IOException
+    {
+      if (chunks != null)
+      {
+        data = new PooledData(pool,chunks,length);
+        chunks = null;
+        currentChunk = null;
+        pool.noteDocument(false,false);
+      }
+      else if (fileStream != null)
+      {
+        FileOutputStream os = fileStream;
+        fileStream = null;
+        os.close();
+        pool.noteDocument(true,spilledForBudget);
+      }
+    }
+
+    /** Throw away everything written, releasing chunks and deleting any spill file.
+    */
+    public void abandon()
+    {
+      if (chunks != null)
+      {
+        releaseChunks();
+      }
+      if (fileStream != null)
+      {
+        try
+        {
+          fileStream.close();
+        }
+        catch (IOException e)
+        {
+          // The file is being deleted anyway
+        }
+        fileStream = null;
+      }
+      if (file != null)
+      {
+        ManifoldCF.deleteFile(file);
+        file = null;
+      }
+      if (data != null)
+      {
+        data.release();
+        data = null;
+      }
+    }
+
+    /** Get the pooled data, after close().
+    *@return the data, or null if it was spilled to a file.
+    */
+    public PooledData getData()
+    {
+      return data;
+    }
+
+    /** Get the spill file, after close().  The file is registered with the file tracker, and belongs to
+    * the caller from here on.
+    *@return the file, or null if the data was held in the pool.
+    */
+    public File getFile()
+    {
+      return file;
+    }
+
+    /** Get the number of bytes written.
+    */
+    public long getLength()
+    {
+      return length;
+    }
+
+    /** Move everything written so far to a temporary file, which will receive the rest of the data.
+    */
+    protected void spill(boolean forBudget)
+      throws IOException
+    {
+      spilledForBudget = forBudget;
+      File outfile = File.createTempFile("_MC_","");
+      // Register the file for autodeletion, using our infrastructure.
+      ManifoldCF.addFile(outfile);
+      file = outfile;
+      fileStream = new FileOutputStream(outfile);
+      // Write the chunks straight from their off-heap memory
+      FileChannel channel = fileStream.getChannel();
+      for (ByteBuffer chunk : chunks)
+      {
+        ByteBuffer view = chunk.duplicate();
+        view.flip();
+        while (view.hasRemaining())
+        {
+          channel.write(view);
+        }
+      }
+      releaseChunks();
+    }
+
+    protected void releaseChunks()
+    {
+      for (ByteBuffer chunk : chunks)
+      {
+        pool.releaseChunk(chunk);
+      }
+      chunks = null;
+      currentChunk = null;
+    }
+  }
+
+}
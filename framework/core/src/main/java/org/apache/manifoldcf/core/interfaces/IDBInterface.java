@@ -214,6 +214,34 @@ public interface IDBInterface
   public void performModification(String query, List params, StringSet invalidateKeys)
     throws ManifoldCFException;
 
+  /** Perform a set of insert operations into the same table, using as few statements and round trips as the
+  * database allows.
+  *@param tableName is the name of the table.
+  *@param parameterMaps are the maps of column name/values to write, one per row.
+  *@param invalidateKeys are the cache keys that should be invalidated.
+  */
+  public void performInsertMultiple(String tableName, List<Map<String,Object>> parameterMaps, StringSet invalidateKeys)
+    throws ManifoldCFException;
+
+  /** Perform a set of update operations on the same table, all with the same where clause, as JDBC batches.
+  *@param tableName is the name of the table.
+  *@param parameterMaps are the maps of column name/values to write, one per update.
+  *@param whereClause is the where clause describing the match (including the WHERE), or null if none.
+  *@param whereParameters are the where clause parameters, one list per update, or null if none.
+  *@param invalidateKeys are the cache keys that should be invalidated.
+  */
+  public void performUpdateMultiple(String tableName, List<Map<String,Object>> parameterMaps, String whereClause,
+    List<List> whereParameters, StringSet invalidateKeys)
+    throws ManifoldCFException;
+
+  /** Perform the same general database modification query many times, with different parameters, as a single JDBC batch.
+  *@param query is the query string.
+  *@param paramSets are the parameterized values, one list per execution.  No value may be null.
+  *@param invalidateKeys are the cache keys to invalidate.
+  */
+  public void performBatchModification(String query, List<List> paramSets, StringSet invalidateKeys)
+    throws ManifoldCFException;
+
   /** Perform a general "data fetch" query.
   *@param query is the query string.
   *@param params are the parameterized values, if needed.
@@ -254,6 +282,21 @@ public interface IDBInterface
     int maxResults, ResultSpecification resultSpec, ILimitChecker returnLimit)
     throws ManifoldCFException;
 
+  /** Perform a general "data fetch" query, handing each row to a handler as it is read rather than
+  * building a resultset.  The rows are read forward-only, a batch at a time, so memory use does not depend
+  * on the size of the result.  Nothing is cached.
+  * The handler is called on the thread that runs the query, not on the calling thread, which waits until the
+  * query is done; see IResultRowHandler.
+  *@param query is the query string.
+  *@param params are the parameterized values, if needed.
+  *@param fetchSize is the number of rows to read from the database at a time.
+  *@param resultSpec is a result specification, or null for the standard treatment.
+  *@param handler is the handler that receives the rows.
+  */
+  public void performStreamingQuery(String query, List params, int fetchSize, ResultSpecification resultSpec,
+    IResultRowHandler handler)
+    throws ManifoldCFException;
+
   /** Construct index hint clause.
   * On most databases this returns an empty string, but on MySQL this returns
   * a USE INDEX hint.  It requires the name of an index.
@@ -179,6 +179,15 @@ public interface ILockManager
   */
   public byte[] readData(String resourceName)
     throws ManifoldCFException;
+
+  /** Read data from a shared data resource, permitting the answer to come from a local copy.  The lock manager keeps
+  * any local copy current by having itself notified of changes, so a change made anywhere in the cluster becomes
+  * visible here shortly after it is made.  Use this method for frequently-read resources that change rarely.
+  *@param resourceName is the global name of the resource.
+  *@return a byte array containing the data, or null.
+  */
+  public byte[] readWatchedData(String resourceName)
+    throws ManifoldCFException;
   
   /** Write data to a shared data resource.  Use this method to write a body of data into a shared resource.
   * Note well that this is not necessarily an atomic operation, and it must thus be protected by a lock.
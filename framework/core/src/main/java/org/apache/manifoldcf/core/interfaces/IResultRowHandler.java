@@ -0,0 +1,38 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.core.interfaces;
+
+/** This interface describes a handler for rows that are streamed from a query, rather
+* than collected into a resultset.  See IDBInterface.performStreamingQuery().
+*
+* The row handed to the handler is only valid for the duration of the call; any values
+* that need to be kept must be copied out of it.  The handler is called on the separate thread
+* that runs the query, while the thread that called performStreamingQuery() waits.  It therefore must
+* not use the database handle, or the caller's IThreadContext or any other thread-local state.
+*/
+public interface IResultRowHandler
+{
+  public static final String _rcsid = "@(#)$Id$";
+
+  /** Handle a single result row.
+  *@param row is the row.
+  */
+  public void handleRow(IResultRow row)
+    throws ManifoldCFException;
+}
@@ -39,6 +39,7 @@ public class TempFileCharacterInput extends CharacterInput
 
   protected File file;
   protected byte[] inMemoryBuffer;
+  protected ChunkPool.PooledData pooledData;
 
   protected final static int CHUNK_SIZE = 65536;
   protected final static int DEFAULT_MAX_MEM_SIZE = 8192;
@@ -121,6 +122,7 @@ public class TempFileCharacterInput extends CharacterInput
     else
       byteBuffer = null;
 
+    ChunkPool pool = ChunkPool.getPool();
     if (eofSeen && byteBuffer.length <= maxInMemoryLength)
     {
       // Buffer locally; don't create a temp file
@@ -129,6 +131,12 @@ public class TempFileCharacterInput extends CharacterInput
       charLength = chunkTotal;
       hashValue = ManifoldCF.getHashValue(md);
     }
+    else if (pool.isEnabled())
+    {
+      // Hold the data in pooled memory, which spills to a file if need be
+      inMemoryBuffer = null;
+      bufferInPool(pool,is,length,buffer,chunkTotal,md);
+    }
     else
     {
       inMemoryBuffer = null;
@@ -244,6 +252,83 @@ public class TempFileCharacterInput extends CharacterInput
     
   }
 
+  /** Transfer the rest of the data into the chunk pool, encoded in utf-8.
+  *@param pool is the pool.
+  *@param is is the reader.
+  *@param length is the length limit to transfer, or -1 if no limit.
+  *@param buffer is the transfer buffer, which holds the data already read.
+  *@param chunkTotal is the number of characters already read.
+  *@param md is the hash digest, which already includes the data already read.
+  */
+  protected void bufferInPool(ChunkPool pool, Reader is, long length, char[] buffer, int chunkTotal,
+    java.security.MessageDigest md)
+    throws ManifoldCFException, IOException
+  {
+    ChunkPool.SpillingOutputStream outStream = pool.createOutputStream();
+    try
+    {
+      Writer outWriter = new OutputStreamWriter(outStream,StandardCharsets.UTF_8);
+      try
+      {
+        outWriter.write(buffer,0,chunkTotal);
+      }
+      catch (IOException e)
+      {
+        handleIOException(e,"writing backing file");
+      }
+      long totalMoved = chunkTotal;
+      while (true)
+      {
+        int moveAmount;
+        if (length == -1L || length-totalMoved > buffer.length)
+          moveAmount = buffer.length;
+        else
+          moveAmount = (int)(length-totalMoved);
+        if (moveAmount == 0)
+          break;
+        int readsize = is.read(buffer,0,moveAmount);
+        if (readsize == -1)
+          break;
+        try
+        {
+          outWriter.write(buffer,0,readsize);
+        }
+        catch (IOException e)
+        {
+          handleIOException(e,"writing backing file");
+        }
+        ManifoldCF.addToHash(md,new String(buffer,0,readsize));
+        totalMoved += readsize;
+      }
+      try
+      {
+        outWriter.close();
+      }
+      catch (IOException e)
+      {
+        handleIOException(e,"closing backing file");
+      }
+      charLength = totalMoved;
+      hashValue = ManifoldCF.getHashValue(md);
+    }
+    catch (Throwable e)
+    {
+      // Release the chunks, or delete the spill file, on any error condition
+      outStream.abandon();
+      if (e instanceof Error)
+        throw (Error)e;
+      if (e instanceof RuntimeException)
+        throw (RuntimeException)e;
+      if (e instanceof ManifoldCFException)
+        throw (ManifoldCFException)e;
+      if (e instanceof IOException)
+        throw (IOException)e;
+      throw new RuntimeException("Unexpected throwable of type "+e.getClass().getName()+": "+e.getMessage(),e);
+    }
+    file = outStream.getFile();
+    pooledData = outStream.getData();
+  }
+
   /** Construct from an existing temporary fle.
   *@param tempFile is the existing temporary file, encoded in utf-8.
   */
@@ -282,6 +367,10 @@ public class TempFileCharacterInput extends CharacterInput
     {
       return new ByteArrayInputStream(inMemoryBuffer);
     }
+    else if (pooledData != null)
+    {
+      return pooledData.getStream();
+    }
     return null;
   }
 
@@ -294,6 +383,8 @@ public class TempFileCharacterInput extends CharacterInput
       return file.length();
     else if (inMemoryBuffer != null)
       return inMemoryBuffer.length;
+    else if (pooledData != null)
+      return pooledData.getLength();
     return 0L;
   }
 
@@ -318,6 +409,10 @@ public class TempFileCharacterInput extends CharacterInput
     {
       stream = new InputStreamReader(new ByteArrayInputStream(inMemoryBuffer),StandardCharsets.UTF_8);
     }
+    else if (pooledData != null)
+    {
+      stream = new InputStreamReader(pooledData.getStream(),StandardCharsets.UTF_8);
+    }
   }
 
   /** Transfer to a new object; this causes the current object to become "already discarded" */
@@ -328,11 +423,13 @@ public class TempFileCharacterInput extends CharacterInput
     TempFileCharacterInput rval = new TempFileCharacterInput();
     rval.file = file;
     rval.inMemoryBuffer = inMemoryBuffer;
+    rval.pooledData = pooledData;
     rval.stream = stream;
     rval.charLength = charLength;
     rval.hashValue = hashValue;
     file = null;
     inMemoryBuffer = null;
+    pooledData = null;
     stream = null;
     charLength = -1L;
     hashValue = null;
@@ -350,6 +447,11 @@ public class TempFileCharacterInput extends CharacterInput
       ManifoldCF.deleteFile(file);
       file = null;
     }
+    if (pooledData != null)
+    {
+      pooledData.release();
+      pooledData = null;
+    }
   }
 
   /** Calculate the datum's length in characters */
@@ -380,6 +482,8 @@ public class TempFileCharacterInput extends CharacterInput
         binaryStream = new FileInputStream(file);
       else if (inMemoryBuffer != null)
         binaryStream = new ByteArrayInputStream(inMemoryBuffer);
+      else if (pooledData != null)
+        binaryStream = pooledData.getStream();
       else
         binaryStream = null;
       Reader reader = new InputStreamReader(binaryStream,StandardCharsets.UTF_8);
@@ -35,6 +35,7 @@ public class TempFileInput extends BinaryInput
 
   protected File file;
   protected byte[] inMemoryBuffer;
+  protected ChunkPool.PooledData pooledData;
 
   protected final static int CHUNK_SIZE = 65536;
   protected final static int DEFAULT_MAX_MEM_SIZE = 8192;
@@ -99,6 +100,7 @@ public class TempFileInput extends BinaryInput
       chunkTotal += readsize;
     }
 
+    ChunkPool pool = ChunkPool.getPool();
     if (eofSeen && chunkTotal < maxMemSize)
     {
       // In memory!!
@@ -110,6 +112,12 @@ public class TempFileInput extends BinaryInput
       }
       this.length = chunkTotal;
     }
+    else if (pool.isEnabled())
+    {
+      // Hold the data in pooled memory, which spills to a file if need be
+      inMemoryBuffer = null;
+      bufferInPool(pool,is,length,buffer,chunkTotal);
+    }
     else
     {
       inMemoryBuffer = null;
@@ -216,6 +224,78 @@ public class TempFileInput extends BinaryInput
     }
   }
 
+  /** Transfer the rest of the data into the chunk pool.
+  *@param pool is the pool.
+  *@param is is the input stream.
+  *@param length is the maximum number of bytes to transfer, or -1 if no limit.
+  *@param buffer is the transfer buffer, which holds the data already read.
+  *@param chunkTotal is the number of bytes already read.
+  */
+  protected void bufferInPool(ChunkPool pool, InputStream is, long length, byte[] buffer, int chunkTotal)
+    throws ManifoldCFException, IOException
+  {
+    ChunkPool.SpillingOutputStream outStream = pool.createOutputStream();
+    try
+    {
+      try
+      {
+        outStream.write(buffer,0,chunkTotal);
+      }
+      catch (IOException e)
+      {
+        handleIOException(e,"writing backing file");
+      }
+      long totalMoved = chunkTotal;
+      while (true)
+      {
+        int moveAmount;
+        if (length == -1L || length-totalMoved > buffer.length)
+          moveAmount = buffer.length;
+        else
+          moveAmount = (int)(length-totalMoved);
+        if (moveAmount == 0)
+          break;
+        int readsize = is.read(buffer,0,moveAmount);
+        if (readsize == -1)
+          break;
+        try
+        {
+          outStream.write(buffer,0,readsize);
+        }
+        catch (IOException e)
+        {
+          handleIOException(e,"writing backing file");
+        }
+        totalMoved += readsize;
+      }
+      try
+      {
+        outStream.close();
+      }
+      catch (IOException e)
+      {
+        handleIOException(e,"closing backing file");
+      }
+    }
+    catch (Throwable e)
+    {
+      // Release the chunks, or delete the spill file, on any error condition
+      outStream.abandon();
+      if (e instanceof Error)
+        throw (Error)e;
+      if (e instanceof RuntimeException)
+        throw (RuntimeException)e;
+      if (e instanceof ManifoldCFException)
+        throw (ManifoldCFException)e;
+      if (e instanceof IOException)
+        throw (IOException)e;
+      throw new RuntimeException("Unexpected throwable of type "+e.getClass().getName()+": "+e.getMessage(),e);
+    }
+    file = outStream.getFile();
+    pooledData = outStream.getData();
+    this.length = outStream.getLength();
+  }
+
   /** Construct from an existing temporary fle.
   *@param tempFile is the existing temporary file.
   */
@@ -240,10 +320,12 @@ public class TempFileInput extends BinaryInput
     TempFileInput rval = new TempFileInput();
     rval.file = file;
     rval.inMemoryBuffer = inMemoryBuffer;
+    rval.pooledData = pooledData;
     rval.stream = stream;
     rval.length = length;
     file = null;
     inMemoryBuffer = null;
+    pooledData = null;
     stream = null;
     length = -1L;
     return rval;
@@ -258,6 +340,40 @@ public class TempFileInput extends BinaryInput
       ManifoldCF.deleteFile(file);
       file = null;
     }
+    if (pooledData != null)
+    {
+      pooledData.release();
+      pooledData = null;
+    }
+  }
+
+  /** Open a new stream over the data, independent of the one returned by getStream().
+  * Any number of these may be read at the same time.  The caller is responsible for closing it.
+  *@return the stream.
+  */
+  public InputStream getNewStream()
+    throws ManifoldCFException
+  {
+    if (file != null)
+    {
+      try
+      {
+        return new FileInputStream(file);
+      }
+      catch (FileNotFoundException e)
+      {
+        throw new ManifoldCFException("Can't create stream: "+e.getMessage(),e,ManifoldCFException.GENERAL_ERROR);
+      }
+    }
+    else if (inMemoryBuffer != null)
+    {
+      return new ByteArrayInputStream(inMemoryBuffer);
+    }
+    else if (pooledData != null)
+    {
+      return pooledData.getStream();
+    }
+    return null;
   }
 
   protected void openStream()
@@ -279,6 +395,10 @@ public class TempFileInput extends BinaryInput
     {
       stream = new ByteArrayInputStream(inMemoryBuffer);
     }
+    else if (pooledData != null)
+    {
+      stream = pooledData.getStream();
+    }
   }
 
   protected void calculateLength()
@@ -288,6 +408,8 @@ public class TempFileInput extends BinaryInput
       this.length = file.length();
     else if (inMemoryBuffer != null)
       this.length = inMemoryBuffer.length;
+    else if (pooledData != null)
+      this.length = pooledData.getLength();
   }
 
 }
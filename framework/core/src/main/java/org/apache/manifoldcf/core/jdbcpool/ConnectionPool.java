@@ -22,40 +22,73 @@ import java.sql.*;
 import javax.naming.*;
 import javax.sql.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import org.apache.manifoldcf.core.system.Logging;
 
 /** The class that defines a connection pool.
+* Idle connections are kept on a lock-free stack, so the most recently used connection is reused first.
+* The right to hold a connection is a permit from a fair semaphore, so when the pool is exhausted, waiting
+* threads are served in order, and a returned connection wakes exactly one of them.
 */
 public class ConnectionPool
 {
   public static final String _rcsid = "@(#)$Id$";
 
+  /** Connections that have been idle for less than this long are not validated when borrowed (ms) */
+  protected final static long validationInterval = 1000L;
+  /** The time budget for validating a connection (seconds) */
+  protected final static int validationTimeout = 1;
+  /** The number of borrow latency histogram buckets; bucket i counts waits of less than 2^i ms, and the last counts the rest */
+  public final static int latencyBucketCount = 16;
+  /** The default number of prepared statements to keep per connection */
+  public final static int defaultStatementCacheSize = 50;
+
   protected final String dbURL;
   protected final String userName;
   protected final String password;
-  protected volatile int freePointer;
-  protected volatile int activeConnections;
+  protected final int maxConnections;
   protected volatile boolean closed;
-  protected final Connection[] freeConnections;
-  protected final long[] connectionCleanupTimeouts;
+  protected final Deque<IdleConnection> freeConnections = new ConcurrentLinkedDeque<IdleConnection>();
+  protected final Semaphore permits;
+  protected final AtomicInteger activeConnections = new AtomicInteger(0);
   protected final long expiration;
+  protected final int statementCacheSize;
   
+  // Statistics
+  protected final AtomicLong borrowCount = new AtomicLong(0L);
+  protected final AtomicLong waitCount = new AtomicLong(0L);
+  protected final AtomicLong invalidCount = new AtomicLong(0L);
+  protected final AtomicLongArray borrowLatencyHistogram = new AtomicLongArray(latencyBucketCount);
+  protected final AtomicLong statementCacheHits = new AtomicLong(0L);
+  protected final AtomicLong statementCacheMisses = new AtomicLong(0L);
+  /** Shared by all the connections' statement caches, so that a schema change can invalidate all of them */
+  protected final AtomicLong statementCacheGeneration = new AtomicLong(0L);
+
   protected final boolean debug;
   
-  protected final Set<WrappedConnection> outstandingConnections = new HashSet<WrappedConnection>();
+  protected final Set<WrappedConnection> outstandingConnections = Collections.newSetFromMap(new ConcurrentHashMap<WrappedConnection,Boolean>());
   
   /** Constructor */
   public ConnectionPool(String dbURL, String userName, String password, int maxConnections, long expiration, boolean debug)
+  {
+    this(dbURL,userName,password,maxConnections,expiration,defaultStatementCacheSize,debug);
+  }
+
+  /** Constructor.
+  *@param statementCacheSize is the number of prepared statements to keep for each connection; 0 to keep none.
+  */
+  public ConnectionPool(String dbURL, String userName, String password, int maxConnections, long expiration,
+    int statementCacheSize, boolean debug)
   {
     this.dbURL = dbURL;
     this.userName = userName;
     this.password = password;
-    this.freeConnections = new Connection[maxConnections];
-    this.connectionCleanupTimeouts = new long[maxConnections];
-    this.freePointer = 0;
-    this.activeConnections = 0;
+    this.maxConnections = maxConnections;
+    this.permits = new Semaphore(maxConnections,true);
     this.closed = false;
     this.expiration = expiration;
+    this.statementCacheSize = statementCacheSize;
     this.debug = debug;
   }
   
@@ -72,209 +105,167 @@ public class ConnectionPool
       instantiationException = new Exception("Possibly leaked db connection");
     else
       instantiationException = null;
+    if (closed)
+      throw new InterruptedException("Pool already closed");
+    long startTime = System.nanoTime();
+    // The timed form respects fairness, where the untimed tryAcquire() would barge ahead of waiters
+    if (!permits.tryAcquire(0L,TimeUnit.MILLISECONDS))
+    {
+      // If properly configured, we really shouldn't be getting here.
+      waitCount.incrementAndGet();
+      if (debug)
+      {
+        Logging.db.warn("Out of db connections, list of outstanding ones follows.");
+        for (WrappedConnection c : outstandingConnections)
+        {
+          Logging.db.warn("Found a possibly leaked db connection",c.getInstantiationException());
+        }
+      }
+      permits.acquire();
+    }
+    // We now hold a permit, which must be given back unless we hand out a connection
     Connection rval = null;
-    boolean returnedValue = true;
+    PreparedStatementCache statementCache = null;
+    boolean returnedValue = false;
     try
     {
+      if (closed)
+        throw new InterruptedException("Pool already closed");
       while (true)
       {
-        synchronized (this)
-        {
-          if (freePointer > 0)
-          {
-            if (closed)
-              throw new InterruptedException("Pool already closed");
-            rval = freeConnections[--freePointer];
-            freeConnections[freePointer] = null;
-            boolean isValid = true;
-            try
-            {
-              isValid = rval.isValid(1);
-            }
-            catch (SQLException e)
-            {
-              // Ignore this; we just can't check if handle is valid I guess.
-              // (Postgresql doesn't implement this method so it fails always)
-            }
-            catch (java.lang.AbstractMethodError e)
-            {
-              // Ignore this; we just can't check if handle is valid I guess.
-              // (SQLServer doesn't implement this method so it fails always)
-            }
-            if (!isValid) {
-              // If the connection is invalid, drop it on the floor, and get a new one.
-              // Note: Order of operations is terribly important here!!
-              final Connection closeValue = rval;
-              rval = null;
-              activeConnections--;
-              try
-              {
-                closeValue.close();
-              }
-              catch (SQLException e)
-              {
-                // Ignore SQL errors on close, and drop the connection on the floor
-              }
-              continue;
-            }
-            break;
-          }
-          if (activeConnections == freeConnections.length)
-          {
-            // If properly configured, we really shouldn't be getting here.
-            if (debug)
-            {
-              synchronized (outstandingConnections)
-              {
-                Logging.db.warn("Out of db connections, list of outstanding ones follows.");
-                for (WrappedConnection c : outstandingConnections)
-                {
-                  Logging.db.warn("Found a possibly leaked db connection",c.getInstantiationException());
-                }
-              }
-            }
-            // Wait until kicked; we hope something will free up...
-            this.wait();
-            continue;
-          }
-          // Increment active connection counter, because we're about to mint a new connection, and break out of our loop
-          // Note: order is terribly important here!
-          activeConnections++;
-          if (userName != null)
-            rval = DriverManager.getConnection(dbURL, userName, password);
-          else
-            rval = DriverManager.getConnection(dbURL);
+        IdleConnection idle = freeConnections.pollFirst();
+        if (idle == null)
           break;
+        if (idle.needsValidation() && !isValid(idle.getConnection()))
+        {
+          // If the connection is invalid, drop it on the floor, and get another one.
+          invalidCount.incrementAndGet();
+          activeConnections.decrementAndGet();
+          closeConnection(idle);
+          continue;
         }
+        rval = idle.getConnection();
+        statementCache = idle.getStatementCache();
+        break;
+      }
+      if (rval == null)
+      {
+        if (userName != null)
+          rval = DriverManager.getConnection(dbURL, userName, password);
+        else
+          rval = DriverManager.getConnection(dbURL);
+        statementCache = new PreparedStatementCache(statementCacheSize,statementCacheGeneration);
+        activeConnections.incrementAndGet();
       }
 
-      WrappedConnection wc = new WrappedConnection(this,rval,instantiationException);
+      WrappedConnection wc = new WrappedConnection(this,rval,statementCache,instantiationException);
       if (debug)
       {
-        synchronized (outstandingConnections)
-        {
-          outstandingConnections.add(wc);
-        }
+        outstandingConnections.add(wc);
       }
+      recordBorrow(System.nanoTime() - startTime);
+      returnedValue = true;
       return wc;
     }
-    catch (Error e)
-    {
-      returnedValue = false;
-      throw e;
-    }
-    catch (RuntimeException e)
-    {
-      returnedValue = false;
-      throw e;
-    }
-    catch (SQLException e)
-    {
-      returnedValue = false;
-      throw e;
-    }
     finally
     {
       if (!returnedValue)
       {
         // We didn't finish.  Restore the pool to the correct form.
-        // Note: We should always be able to just return any current connection to the pool.  This is
-        // safe because we reserved a slot when we decided to create the connection (if that's what
-        // we did), or we just used a connection that was already allocated.  Either way, we can put
-        // it into the pool.
         if (rval != null)
-        {
-          // We have a handle, so just free it and leave activeConnections alone
-          release(rval);
-        }
+          release(rval,statementCache);
         else
-        {
-          // We didn't manage to create the handle, so decrement active connections.
-          synchronized (this)
-          {
-            activeConnections--;
-          }
-        }
+          permits.release();
       }
     }
   }
   
+  /** Check whether a connection is still usable.
+  */
+  protected static boolean isValid(Connection connection)
+  {
+    try
+    {
+      return connection.isValid(validationTimeout);
+    }
+    catch (SQLException e)
+    {
+      // Ignore this; we just can't check if handle is valid I guess.
+      // (Postgresql doesn't implement this method so it fails always)
+      return true;
+    }
+    catch (java.lang.AbstractMethodError e)
+    {
+      // Ignore this; we just can't check if handle is valid I guess.
+      // (SQLServer doesn't implement this method so it fails always)
+      return true;
+    }
+  }
+
+  protected void closeConnection(IdleConnection idle)
+  {
+    closeConnection(idle.getConnection(),idle.getStatementCache());
+  }
+
+  protected void closeConnection(Connection connection, PreparedStatementCache statementCache)
+  {
+    statementCacheHits.addAndGet(statementCache.getHitCount());
+    statementCacheMisses.addAndGet(statementCache.getMissCount());
+    statementCache.closeAll();
+    try
+    {
+      connection.close();
+    }
+    catch (SQLException e)
+    {
+      Logging.db.warn("Error closing pooled connection: "+e.getMessage(),e);
+    }
+  }
+
   /** Flush the pool.
   */
-  public synchronized void flushPool()
+  public void flushPool()
   {
-    for (int i = 0 ; i < freePointer ; i++)
+    while (true)
     {
-      try
-      {
-        freeConnections[i].close();
-      }
-      catch (SQLException e)
-      {
-        Logging.db.warn("Error closing pooled connection: "+e.getMessage(),e);
-      }
-      freeConnections[i] = null;
-      activeConnections--;
+      IdleConnection idle = freeConnections.pollFirst();
+      if (idle == null)
+        break;
+      activeConnections.decrementAndGet();
+      closeConnection(idle);
     }
-    freePointer = 0;
-    notifyAll();
   }
   
   /** Close down the pool.
   */
-  public synchronized void closePool()
+  public void closePool()
   {
-    for (int i = 0 ; i < freePointer ; i++)
+    closed = true;
+    while (true)
     {
-      try
-      {
-        freeConnections[i].close();
-      }
-      catch (SQLException e)
-      {
-        Logging.db.warn("Error closing pooled connection: "+e.getMessage(),e);
-      }
-      freeConnections[i] = null;
+      IdleConnection idle = freeConnections.pollFirst();
+      if (idle == null)
+        break;
+      closeConnection(idle);
     }
-    freePointer = 0;
-    closed = true;
-    notifyAll();
+    // Wake up anyone waiting, so they notice that the pool is closed
+    permits.release(maxConnections);
   }
   
   /** Clean up expired connections.
   */
-  public synchronized void cleanupExpiredConnections(long currentTime)
+  public void cleanupExpiredConnections(long currentTime)
   {
-    int i = 0;
-    while (i < freePointer)
+    Iterator<IdleConnection> iter = freeConnections.iterator();
+    while (iter.hasNext())
     {
-      if (connectionCleanupTimeouts[i] <= currentTime)
+      IdleConnection idle = iter.next();
+      // Someone may have taken it in the meantime, in which case it's not ours to close
+      if (idle.getCleanupTime() <= currentTime && freeConnections.removeFirstOccurrence(idle))
       {
-        Connection c = freeConnections[i];
-        freeConnections[i] = null;
-        freePointer--;
-        activeConnections--;
-        if (freePointer == i)
-        {
-          freeConnections[i] = null;
-        }
-        else
-        {
-          freeConnections[i] = freeConnections[freePointer];
-          connectionCleanupTimeouts[i] = connectionCleanupTimeouts[freePointer];
-          freeConnections[freePointer] = null;
-        }
-        try
-        {
-         c.close();
-        }
-        catch (SQLException e)
-        {
-          Logging.db.warn("Error closing pooled connection: "+e.getMessage(),e);
-        }
+        activeConnections.decrementAndGet();
+        closeConnection(idle);
       }
-      else
-        i++;
     }
   }
   
@@ -283,29 +274,191 @@ public class ConnectionPool
 
     if (debug)
     {
-      synchronized (outstandingConnections)
-      {
-        if (!outstandingConnections.contains(connection))
-          Logging.db.warn("Released a connection that wasn't tracked!!");
-        outstandingConnections.remove(connection);
-      }
+      if (!outstandingConnections.remove(connection))
+        Logging.db.warn("Released a connection that wasn't tracked!!");
     }
 
-    release(connection.getConnection());
+    release(connection.getConnection(),connection.getStatementCache());
   }
   
-  protected void release(Connection c)
+  protected void release(Connection c, PreparedStatementCache statementCache)
   {
-    synchronized (this)
+    if (closed)
     {
-      freeConnections[freePointer] = c;
-      connectionCleanupTimeouts[freePointer] = System.currentTimeMillis() + expiration;
-      freePointer++;
-      notifyAll();
+      activeConnections.decrementAndGet();
+      closeConnection(c,statementCache);
+      permits.release();
+      return;
     }
-    
+    // The connection must be on the stack before the permit is given back, so whoever gets the permit finds it
+    freeConnections.offerFirst(new IdleConnection(c,statementCache,System.currentTimeMillis(),expiration));
+    permits.release();
   }
   
-}
+  protected void recordBorrow(long elapsedNanos)
+  {
+    borrowCount.incrementAndGet();
+    long elapsedMillis = elapsedNanos / 1000000L;
+    int bucket = 0;
+    while (bucket < latencyBucketCount - 1 && elapsedMillis >= (1L << bucket))
+    {
+      bucket++;
+    }
+    borrowLatencyHistogram.incrementAndGet(bucket);
+  }
+
+  /** Get the number of connections that are currently open, whether in use or idle.
+  */
+  public int getOpenConnectionCount()
+  {
+    return activeConnections.get();
+  }
+
+  /** Get the number of idle connections.
+  */
+  public int getIdleConnectionCount()
+  {
+    return freeConnections.size();
+  }
+
+  /** Get the number of connections currently in use.
+  */
+  public int getBorrowedConnectionCount()
+  {
+    return maxConnections - permits.availablePermits();
+  }
 
+  /** Get the number of threads waiting for a connection.
+  */
+  public int getWaitingThreadCount()
+  {
+    return permits.getQueueLength();
+  }
 
+  /** Get the total number of connections handed out.
+  */
+  public long getBorrowCount()
+  {
+    return borrowCount.get();
+  }
+
+  /** Get the number of times a thread had to wait because every connection was in use.
+  */
+  public long getWaitCount()
+  {
+    return waitCount.get();
+  }
+
+  /** Get the number of idle connections found to be invalid when borrowed.
+  */
+  public long getInvalidConnectionCount()
+  {
+    return invalidCount.get();
+  }
+
+  /** Get the number of prepared statement cache hits, over connections that have been closed and idle ones.
+  */
+  public long getStatementCacheHitCount()
+  {
+    long rval = statementCacheHits.get();
+    for (IdleConnection idle : freeConnections)
+    {
+      rval += idle.getStatementCache().getHitCount();
+    }
+    return rval;
+  }
+
+  /** Get the number of prepared statement cache misses, over connections that have been closed and idle ones.
+  */
+  public long getStatementCacheMissCount()
+  {
+    long rval = statementCacheMisses.get();
+    for (IdleConnection idle : freeConnections)
+    {
+      rval += idle.getStatementCache().getMissCount();
+    }
+    return rval;
+  }
+
+  /** Get the borrow latency histogram.  Element i counts borrows that took less than 2^i milliseconds
+  * (and at least 2^(i-1)); the last element counts all the rest.
+  */
+  public long[] getBorrowLatencyHistogram()
+  {
+    long[] rval = new long[latencyBucketCount];
+    for (int i = 0; i < latencyBucketCount; i++)
+    {
+      rval[i] = borrowLatencyHistogram.get(i);
+    }
+    return rval;
+  }
+
+  /** Describe the pool's current state and history, for logging.
+  */
+  public String getStatistics()
+  {
+    StringBuilder sb = new StringBuilder();
+    sb.append("open=").append(getOpenConnectionCount())
+      .append(", idle=").append(getIdleConnectionCount())
+      .append(", borrowed=").append(getBorrowedConnectionCount())
+      .append(", waiting=").append(getWaitingThreadCount())
+      .append(", borrows=").append(getBorrowCount())
+      .append(", waits=").append(getWaitCount())
+      .append(", invalid=").append(getInvalidConnectionCount())
+      .append(", statement cache hits=").append(getStatementCacheHitCount())
+      .append(", statement cache misses=").append(getStatementCacheMissCount())
+      .append(", latency histogram (ms)=[");
+    long[] histogram = getBorrowLatencyHistogram();
+    for (int i = 0; i < histogram.length; i++)
+    {
+      if (i > 0)
+        sb.append(", ");
+      if (i < histogram.length - 1)
+        sb.append("<").append(1L << i);
+      else
+        sb.append(">=").append(1L << (i-1));
+      sb.append(":").append(histogram[i]);
+    }
+    sb.append("]");
+    return sb.toString();
+  }
+
+  /** An idle connection, with the time it went idle.
+  */
+  protected static class IdleConnection
+  {
+    protected final Connection connection;
+    protected final PreparedStatementCache statementCache;
+    protected final long releaseTime;
+    protected final long cleanupTime;
+
+    public IdleConnection(Connection connection, PreparedStatementCache statementCache, long releaseTime, long expiration)
+    {
+      this.connection = connection;
+      this.statementCache = statementCache;
+      this.releaseTime = releaseTime;
+      this.cleanupTime = releaseTime + expiration;
+    }
+
+    public Connection getConnection()
+    {
+      return connection;
+    }
+
+    public PreparedStatementCache getStatementCache()
+    {
+      return statementCache;
+    }
+
+    public long getCleanupTime()
+    {
+      return cleanupTime;
+    }
+
+    public boolean needsValidation()
+    {
+      return System.currentTimeMillis() - releaseTime >= validationInterval;
+    }
+  }
+  
+}
@@ -26,6 +26,7 @@ import java.util.concurrent.atomic.AtomicBoolean;
 import org.apache.manifoldcf.core.interfaces.ManifoldCFException;
 import org.apache.manifoldcf.core.interfaces.LockManagerFactory;
 import org.apache.manifoldcf.core.system.ManifoldCF;
+import org.apache.manifoldcf.core.system.Logging;
 
 /** An instance of this class manages a number of (independent) connection pools.
 */
@@ -37,6 +38,11 @@ public class ConnectionPoolManager
   protected final ConnectionCloserThread connectionCloserThread;
   protected volatile AtomicBoolean shuttingDown = new AtomicBoolean(false);
   protected final boolean debug;
+  /** When the reaper next logs pool statistics */
+  protected long nextStatisticsTime = 0L;
+  
+  /** How often pool statistics are logged, when db debugging is enabled (ms) */
+  protected final static long statisticsInterval = 60000L;
   
   public ConnectionPoolManager(int count, boolean debug)
     throws ManifoldCFException
@@ -110,21 +116,29 @@ public class ConnectionPoolManager
   
   protected void cleanupExpiredConnections(long cleanupTime)
   {
+    String[] poolKeys;
     ConnectionPool[] connectionPools;
     synchronized (this)
     {
+      poolKeys = new String[poolMap.size()];
       connectionPools = new ConnectionPool[poolMap.size()];
       int i = 0;
       Iterator<String> iter = poolMap.keySet().iterator();
       while (iter.hasNext())
       {
         String poolKey = iter.next();
+        poolKeys[i] = poolKey;
         connectionPools[i++] = poolMap.get(poolKey);
       }
     }
+    boolean logStatistics = Logging.db.isDebugEnabled() && cleanupTime >= nextStatisticsTime;
+    if (logStatistics)
+      nextStatisticsTime = cleanupTime + statisticsInterval;
     for (int i = 0 ; i < connectionPools.length ; i++)
     {
       connectionPools[i].cleanupExpiredConnections(cleanupTime);
+      if (logStatistics)
+        Logging.db.debug("Connection pool '"+poolKeys[i]+"': "+connectionPools[i].getStatistics());
     }
   }
   
@@ -0,0 +1,187 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.core.jdbcpool;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.manifoldcf.core.system.Logging;
+
+/** This class keeps the most recently used prepared statements for one physical JDBC connection, keyed by SQL text,
+* so that the statements that are run over and over again with different parameters are only parsed and planned once.
+* A statement is taken out of the cache while it is in use, and is put back afterwards, so a statement that is in use
+* can never be evicted and closed underneath its user.  Statements pushed out of the cache are closed.
+* Statements may stop matching the schema when it changes, so all the caches belonging to a pool share a generation
+* counter, and a cache throws away everything it holds when it sees that the counter has moved.
+* A cache belongs to a single connection, and a connection is only ever used by one thread at a time, but the hit
+* and miss counters may be read from anywhere.
+*/
+public class PreparedStatementCache
+{
+  public static final String _rcsid = "@(#)$Id$";
+
+  protected final int maxStatements;
+  /** The generation counter shared by all the caches in a pool */
+  protected final AtomicLong generation;
+  /** The generation the cached statements belong to */
+  protected long cachedGeneration;
+  /** The idle statements, in least-recently-used order */
+  protected final LinkedHashMap<String,PreparedStatement> statements;
+  
+  protected final AtomicLong hitCount = new AtomicLong(0L);
+  protected final AtomicLong missCount = new AtomicLong(0L);
+  
+  /** Constructor.
+  *@param maxStatements is the maximum number of idle statements to keep.
+  */
+  public PreparedStatementCache(int maxStatements)
+  {
+    this(maxStatements,new AtomicLong(0L));
+  }
+  
+  /** Constructor.
+  *@param maxStatements is the maximum number of idle statements to keep.
+  *@param generation is the generation counter shared with the other caches of the same pool.
+  */
+  public PreparedStatementCache(int maxStatements, AtomicLong generation)
+  {
+    this.maxStatements = maxStatements;
+    this.generation = generation;
+    this.cachedGeneration = generation.get();
+    this.statements = new LinkedHashMap<String,PreparedStatement>(16,0.75f,true)
+      {
+        protected boolean removeEldestEntry(Map.Entry<String,PreparedStatement> eldest)
+        {
+          if (size() > PreparedStatementCache.this.maxStatements)
+          {
+            closeStatement(eldest.getValue());
+            return true;
+          }
+          return false;
+        }
+      };
+  }
+  
+  /** Get a prepared statement for a query, either from the cache or by preparing it.
+  * The statement belongs to the caller until it is handed back with checkIn() or discard().
+  *@param connection is the connection the cache belongs to.
+  *@param query is the SQL text.
+  *@return the statement.
+  */
+  public PreparedStatement checkOut(Connection connection, String query)
+    throws SQLException
+  {
+    long currentGeneration = generation.get();
+    if (currentGeneration != cachedGeneration)
+    {
+      closeAll();
+      cachedGeneration = currentGeneration;
+    }
+    PreparedStatement ps = statements.remove(query);
+    if (ps != null)
+    {
+      hitCount.incrementAndGet();
+      return ps;
+    }
+    missCount.incrementAndGet();
+    return connection.prepareStatement(query);
+  }
+  
+  /** Return a statement to the cache after it has been used successfully.
+  *@param query is the SQL text the statement was prepared from.
+  *@param ps is the statement.
+  */
+  public void checkIn(String query, PreparedStatement ps)
+  {
+    if (maxStatements == 0)
+    {
+      closeStatement(ps);
+      return;
+    }
+    try
+    {
+      ps.clearParameters();
+    }
+    catch (SQLException e)
+    {
+      // Can't tell what state it's in, so don't keep it
+      closeStatement(ps);
+      return;
+    }
+    PreparedStatement old = statements.put(query,ps);
+    if (old != null)
+      closeStatement(old);
+  }
+  
+  /** Throw away a statement that was checked out, because using it failed.
+  *@param ps is the statement.
+  */
+  public void discard(PreparedStatement ps)
+  {
+    closeStatement(ps);
+  }
+  
+  /** Close all the idle statements.  Do this before closing the connection, or when the statements may no
+  * longer match the schema.
+  */
+  public void closeAll()
+  {
+    for (PreparedStatement ps : statements.values())
+    {
+      closeStatement(ps);
+    }
+    statements.clear();
+  }
+  
+  /** Invalidate the statements held by this cache and all the others in the same pool, because the schema changed.
+  * Other caches notice the next time they are used.
+  */
+  public void invalidateAll()
+  {
+    generation.incrementAndGet();
+    closeAll();
+  }
+  
+  /** Get the number of times a cached statement was reused.
+  */
+  public long getHitCount()
+  {
+    return hitCount.get();
+  }
+  
+  /** Get the number of times a statement had to be prepared.
+  */
+  public long getMissCount()
+  {
+    return missCount.get();
+  }
+  
+  protected static void closeStatement(PreparedStatement ps)
+  {
+    try
+    {
+      ps.close();
+    }
+    catch (SQLException e)
+    {
+      Logging.db.debug("Error closing cached prepared statement: "+e.getMessage(),e);
+    }
+  }
+  
+}
@@ -29,6 +29,8 @@ public class WrappedConnection
 
   protected Connection connection;
   protected ConnectionPool owner;
+  /** The prepared statements kept for this physical connection */
+  protected final PreparedStatementCache statementCache;
   /** Exception, to keep track of where the connection was allocated */
   protected Exception instantiationException;
   
@@ -40,8 +42,16 @@ public class WrappedConnection
   
   /** Constructor */
   public WrappedConnection(ConnectionPool owner, Connection connection, Exception instantiationException)
+  {
+    this(owner,connection,new PreparedStatementCache(0),instantiationException);
+  }
+  
+  /** Constructor */
+  public WrappedConnection(ConnectionPool owner, Connection connection, PreparedStatementCache statementCache,
+    Exception instantiationException)
   {
     this.owner = owner;
+    this.statementCache = statementCache;
     this.connection = connection;
     this.instantiationException = instantiationException;
   }
@@ -53,6 +63,15 @@ public class WrappedConnection
     return connection;
   }
   
+  /** Get the prepared statement cache that goes with the connection.
+  * Statements in it remain valid for as long as the physical connection does, which may be well beyond this
+  * object's lifetime.
+  */
+  public PreparedStatementCache getStatementCache()
+  {
+    return statementCache;
+  }
+  
   /** Release the object into its pool.
   */
   public void release()
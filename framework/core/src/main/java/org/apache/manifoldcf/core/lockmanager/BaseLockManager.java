@@ -667,6 +667,18 @@ public class BaseLockManager implements ILockManager
       return globalData.get(resourceName);
     }
   }
+
+  /** Read data from a shared data resource, permitting the answer to come from a local copy.
+  * This implementation has no way of being notified about changes, so it always reads the resource itself.
+  *@param resourceName is the global name of the resource.
+  *@return a byte array containing the data, or null.
+  */
+  @Override
+  public byte[] readWatchedData(String resourceName)
+    throws ManifoldCFException
+  {
+    return readData(resourceName);
+  }
   
   /** Write data to a shared data resource.  Use this method to write a body of data into a shared resource.
   * Note well that this is not necessarily an atomic operation, and it must thus be protected by a lock.
@@ -240,6 +240,17 @@ public class LockManager implements ILockManager
   {
     return lockManager.readData(resourceName);
   }
+
+  /** Read data from a shared data resource, permitting the answer to come from a local copy.
+  *@param resourceName is the global name of the resource.
+  *@return a byte array containing the data, or null.
+  */
+  @Override
+  public byte[] readWatchedData(String resourceName)
+    throws ManifoldCFException
+  {
+    return lockManager.readWatchedData(resourceName);
+  }
   
   /** Write data to a shared data resource.  Use this method to write a body of data into a shared resource.
   * Note well that this is not necessarily an atomic operation, and it must thus be protected by a lock.
@@ -0,0 +1,127 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.core.lockmanager;
+
+import org.apache.manifoldcf.core.interfaces.*;
+import java.io.*;
+
+/** This is the file-based lock manager, with shared data and flags kept in a memory-mapped table in the
+* synch directory rather than in individual files.  Processes on the same host that use the same synch
+* directory share the table, so reading a cache invalidation time or checking a flag costs a region lock
+* and a memory access rather than opening, reading, and closing a file.  Locks themselves are the same
+* as for FileLockManager.
+*/
+public class MemoryMappedLockManager extends FileLockManager
+{
+  public static final String _rcsid = "@(#)$Id$";
+
+  protected final static byte[] flagValue = new byte[]{1};
+
+  protected final SharedDataRegion region;
+  protected final SharedDataRegion.IOverflowStore overflowStore = new FileOverflowStore();
+
+  public MemoryMappedLockManager(File synchDirectory)
+    throws ManifoldCFException
+  {
+    super(synchDirectory);
+    region = SharedDataRegion.getRegion(synchDirectory);
+  }
+
+  public MemoryMappedLockManager()
+    throws ManifoldCFException
+  {
+    this(getSynchDirectoryProperty());
+  }
+
+  /** Raise a flag.  Use this method to assert a condition, or send a global signal.  The flag will be reset when the
+  * entire system is restarted.
+  *@param flagName is the name of the flag to set.
+  */
+  @Override
+  public void setGlobalFlag(String flagName)
+    throws ManifoldCFException
+  {
+    region.write(getFlagResourceName(flagName),flagValue,overflowStore);
+  }
+
+  /** Clear a flag.  Use this method to clear a condition, or retract a global signal.
+  *@param flagName is the name of the flag to clear.
+  */
+  @Override
+  public void clearGlobalFlag(String flagName)
+    throws ManifoldCFException
+  {
+    region.write(getFlagResourceName(flagName),null,overflowStore);
+  }
+  
+  /** Check the condition of a specified flag.
+  *@param flagName is the name of the flag to check.
+  *@return true if the flag is set, false otherwise.
+  */
+  @Override
+  public boolean checkGlobalFlag(String flagName)
+    throws ManifoldCFException
+  {
+    return region.read(getFlagResourceName(flagName),overflowStore) != null;
+  }
+
+  /** Read data from a shared data resource.  Use this method to read any existing data, or get a null back if there is no such resource.
+  * Note well that this is not necessarily an atomic operation, and it must thus be protected by a lock.
+  *@param resourceName is the global name of the resource.
+  *@return a byte array containing the data, or null.
+  */
+  @Override
+  public byte[] readData(String resourceName)
+    throws ManifoldCFException
+  {
+    return region.read(resourceName,overflowStore);
+  }
+  
+  /** Write data to a shared data resource.  Use this method to write a body of data into a shared resource.
+  * Note well that this is not necessarily an atomic operation, and it must thus be protected by a lock.
+  *@param resourceName is the global name of the resource.
+  *@param data is the byte array containing the data.  Pass null if you want to delete the resource completely.
+  */
+  @Override
+  public void writeData(String resourceName, byte[] data)
+    throws ManifoldCFException
+  {
+    region.write(resourceName,data,overflowStore);
+  }
+
+  /** Values that don't fit in the table are kept in files, just as FileLockManager keeps everything.
+  */
+  protected class FileOverflowStore implements SharedDataRegion.IOverflowStore
+  {
+    @Override
+    public byte[] readOverflow(String name)
+      throws ManifoldCFException
+    {
+      return MemoryMappedLockManager.super.readData(name);
+    }
+
+    @Override
+    public void writeOverflow(String name, byte[] value)
+      throws ManifoldCFException
+    {
+      MemoryMappedLockManager.super.writeData(name,value);
+    }
+  }
+
+}
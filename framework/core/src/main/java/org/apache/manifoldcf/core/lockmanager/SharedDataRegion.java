@@ -0,0 +1,446 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.core.lockmanager;
+
+import org.apache.manifoldcf.core.interfaces.*;
+import java.util.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+
+/** A hash table of small named byte arrays, kept in a memory-mapped file so that every process on the host
+* that maps the same file sees the same data.
+*
+* The table is divided into buckets of a few fixed-size slots each.  A name is only ever stored in the bucket
+* its hash selects.  Each bucket is guarded by a file region lock (shared for reading, exclusive for writing)
+* to coordinate between processes, and by a monitor to coordinate between threads, since region locks are
+* held on behalf of the whole process.
+*
+* Values that do not fit in a slot, names that are too long for one, and names whose bucket is full, are kept
+* in an overflow store instead.
+* The slot, or a count on the bucket of the names it has spilled, records that the overflow store must be
+* consulted, so a miss in a bucket with nothing spilled costs no more than a hit.
+*
+* An interrupt that reaches a thread during a file channel operation closes the channel, and that releases
+* every region lock the process holds, including those held by other threads.  Region locks are therefore
+* taken with non-blocking calls made with the thread's interrupt status set aside, and an operation whose
+* lock was lost anyway fails rather than returning or leaving data that was not protected.
+*/
+public class SharedDataRegion
+{
+  public static final String _rcsid = "@(#)$Id$";
+
+  /** The name of the file in the synch directory */
+  protected final static String regionFileName = "shareddata.mmap";
+
+  // Geometry.  Changing any of these requires that the region file be removed (e.g. by lock-clean).
+  protected final static int magicNumber = 0x4d434653;
+  protected final static int headerSize = 64;
+  protected final static int bucketCount = 4096;
+  protected final static int slotsPerBucket = 4;
+  protected final static int slotSize = 512;
+  protected final static int bucketHeaderSize = 8;
+  protected final static int bucketSize = bucketHeaderSize + slotsPerBucket * slotSize;
+  protected final static long regionSize = (long)headerSize + (long)bucketCount * (long)bucketSize;
+
+  // Slot layout: state, name length, value length, then the name and value bytes
+  protected final static int slotHeaderSize = 12;
+  protected final static int slotCapacity = slotSize - slotHeaderSize;
+
+  // Slot states
+  protected final static int SLOT_EMPTY = 0;
+  protected final static int SLOT_INLINE = 1;
+  protected final static int SLOT_OVERFLOW = 2;
+
+  /** The regions that are open, keyed by canonical synch directory */
+  protected final static Map<File,SharedDataRegion> openRegions = new HashMap<File,SharedDataRegion>();
+
+  protected final File regionFile;
+  protected final MappedByteBuffer buffer;
+  protected final Object[] bucketMonitors = new Object[bucketCount];
+  protected RandomAccessFile file;
+  protected FileChannel channel;
+
+  /** Get the region for a synch directory, mapping it if this is the first use in this process.
+  *@param synchDirectory is the synch directory.
+  *@return the region.
+  */
+  public static SharedDataRegion getRegion(File synchDirectory)
+    throws ManifoldCFException
+  {
+    File key;
+    try
+    {
+      key = synchDirectory.getCanonicalFile();
+    }
+    catch (IOException e)
+    {
+      key = synchDirectory.getAbsoluteFile();
+    }
+    synchronized (openRegions)
+    {
+      SharedDataRegion rval = openRegions.get(key);
+      if (rval == null)
+      {
+        rval = new SharedDataRegion(new File(key,regionFileName));
+        openRegions.put(key,rval);
+      }
+      return rval;
+    }
+  }
+
+  protected SharedDataRegion(File regionFile)
+    throws ManifoldCFException
+  {
+    this.regionFile = regionFile;
+    for (int i = 0; i < bucketCount; i++)
+    {
+      bucketMonitors[i] = new Object();
+    }
+    try
+    {
+      openChannel();
+      FileLock lock = channel.lock(0L,headerSize,false);
+      try
+      {
+        // A new file is all zeros, which is an empty table; we only need to stamp the header
+        if (channel.size() < regionSize)
+          file.setLength(regionSize);
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE,0L,regionSize);
+        int magic = buffer.getInt(0);
+        if (magic == 0)
+        {
+          buffer.putInt(4,bucketCount);
+          buffer.putInt(8,slotsPerBucket);
+          buffer.putInt(12,slotSize);
+          buffer.putInt(0,magicNumber);
+        }
+        else if (magic != magicNumber || buffer.getInt(4) != bucketCount || buffer.getInt(8) != slotsPerBucket ||
+          buffer.getInt(12) != slotSize)
+          throw new ManifoldCFException("Shared data file '"+regionFile+"' has an unexpected layout; clean the synch directory",
+            ManifoldCFException.SETUP_ERROR);
+      }
+      finally
+      {
+        lock.release();
+      }
+    }
+    catch (InterruptedIOException e)
+    {
+      throw new ManifoldCFException("Interrupted: "+e.getMessage(),e,ManifoldCFException.INTERRUPTED);
+    }
+    catch (IOException e)
+    {
+      throw new ManifoldCFException("Could not map shared data file '"+regionFile+"': "+e.getMessage(),e);
+    }
+  }
+
+  /** Read a value.
+  *@param name is the name of the value.
+  *@param overflow is where values that are not in the table are kept.
+  *@return the value, or null if there is none.
+  */
+  public byte[] read(String name, IOverflowStore overflow)
+    throws ManifoldCFException
+  {
+    byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+    if (nameBytes.length >= slotCapacity)
+      return overflow.readOverflow(name);
+    int bucket = getBucket(nameBytes);
+    long bucketOffset = getBucketOffset(bucket);
+    synchronized (bucketMonitors[bucket])
+    {
+      FileLock lock = lockBucket(bucketOffset,true);
+      try
+      {
+        ByteBuffer view = buffer.duplicate();
+        int slot = findSlot(view,bucketOffset,nameBytes);
+        if (slot != -1)
+        {
+          int slotOffset = getSlotOffset(bucketOffset,slot);
+          if (view.getInt(slotOffset) == SLOT_OVERFLOW)
+            return overflow.readOverflow(name);
+          int valueLength = view.getInt(slotOffset + 8);
+          byte[] rval = new byte[valueLength];
+          view.position(slotOffset + slotHeaderSize + nameBytes.length);
+          view.get(rval);
+          return rval;
+        }
+        if (view.getInt((int)bucketOffset) != 0)
+          return overflow.readOverflow(name);
+        return null;
+      }
+      finally
+      {
+        releaseBucket(lock);
+      }
+    }
+  }
+
+  /** Write a value.
+  *@param name is the name of the value.
+  *@param value is the value, or null to remove it.
+  *@param overflow is where values that are not in the table are kept.
+  */
+  public void write(String name, byte[] value, IOverflowStore overflow)
+    throws ManifoldCFException
+  {
+    byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+    if (nameBytes.length >= slotCapacity)
+    {
+      overflow.writeOverflow(name,value);
+      return;
+    }
+    int bucket = getBucket(nameBytes);
+    long bucketOffset = getBucketOffset(bucket);
+    synchronized (bucketMonitors[bucket])
+    {
+      FileLock lock = lockBucket(bucketOffset,false);
+      try
+      {
+        ByteBuffer view = buffer.duplicate();
+        int spillCount = view.getInt((int)bucketOffset);
+        int slot = findSlot(view,bucketOffset,nameBytes);
+        // A name without a slot in a bucket that has spilled may be one of the spilled names
+        boolean spilledName = slot == -1 && spillCount != 0 && overflow.readOverflow(name) != null;
+        boolean inOverflow = spilledName || (slot != -1 && view.getInt(getSlotOffset(bucketOffset,slot)) == SLOT_OVERFLOW);
+        if (value == null)
+        {
+          if (slot != -1)
+            view.putInt(getSlotOffset(bucketOffset,slot),SLOT_EMPTY);
+          if (inOverflow)
+            overflow.writeOverflow(name,null);
+          if (spilledName)
+            view.putInt((int)bucketOffset,spillCount - 1);
+          return;
+        }
+        if (slot == -1)
+          slot = findSlot(view,bucketOffset,null);
+        if (slot == -1)
+        {
+          // Bucket is full; until this name leaves the overflow store, misses in this bucket must look there
+          overflow.writeOverflow(name,value);
+          if (!spilledName)
+            view.putInt((int)bucketOffset,spillCount + 1);
+          return;
+        }
+        // The name is getting a slot, so it no longer counts as spilled
+        if (spilledName)
+          view.putInt((int)bucketOffset,spillCount - 1);
+        int slotOffset = getSlotOffset(bucketOffset,slot);
+        if (nameBytes.length + value.length > slotCapacity)
+        {
+          overflow.writeOverflow(name,value);
+          writeSlotName(view,slotOffset,nameBytes);
+          view.putInt(slotOffset + 8,0);
+          view.putInt(slotOffset,SLOT_OVERFLOW);
+          return;
+        }
+        // Mark the slot empty while it is rewritten, so nothing half-written is ever seen as a match
+        view.putInt(slotOffset,SLOT_EMPTY);
+        writeSlotName(view,slotOffset,nameBytes);
+        view.putInt(slotOffset + 8,value.length);
+        view.position(slotOffset + slotHeaderSize + nameBytes.length);
+        view.put(value);
+        view.putInt(slotOffset,SLOT_INLINE);
+        if (inOverflow)
+          overflow.writeOverflow(name,null);
+      }
+      finally
+      {
+        releaseBucket(lock);
+      }
+    }
+  }
+
+  /** Find the slot in a bucket holding a name, or an empty slot if the name is null.
+  *@return the slot number, or -1.
+  */
+  protected static int findSlot(ByteBuffer view, long bucketOffset, byte[] nameBytes)
+  {
+    for (int slot = 0; slot < slotsPerBucket; slot++)
+    {
+      int slotOffset = getSlotOffset(bucketOffset,slot);
+      int state = view.getInt(slotOffset);
+      if (nameBytes == null)
+      {
+        if (state == SLOT_EMPTY)
+          return slot;
+        continue;
+      }
+      if (state == SLOT_EMPTY || view.getInt(slotOffset + 4) != nameBytes.length)
+        continue;
+      int nameOffset = slotOffset + slotHeaderSize;
+      boolean matches = true;
+      for (int i = 0; i < nameBytes.length; i++)
+      {
+        if (view.get(nameOffset + i) != nameBytes[i])
+        {
+          matches = false;
+          break;
+        }
+      }
+      if (matches)
+        return slot;
+    }
+    return -1;
+  }
+
+  protected static void writeSlotName(ByteBuffer view, int slotOffset, byte[] nameBytes)
+  {
+    view.putInt(slotOffset + 4,nameBytes.length);
+    view.position(slotOffset + slotHeaderSize);
+    view.put(nameBytes);
+  }
+
+  protected static int getBucket(byte[] nameBytes)
+  {
+    int h = Arrays.hashCode(nameBytes);
+    h ^= (h >>> 16);
+    return h & (bucketCount - 1);
+  }
+
+  protected static long getBucketOffset(int bucket)
+  {
+    return (long)headerSize + (long)bucket * (long)bucketSize;
+  }
+
+  protected static int getSlotOffset(long bucketOffset, int slot)
+  {
+    return (int)bucketOffset + bucketHeaderSize + slot * slotSize;
+  }
+
+  /** Lock a bucket against other processes.  Blocking lock calls can be cut short by an interrupt, which would
+  * close the channel, so the lock is polled for instead; the wait between polls is where an interrupt is noticed.
+  */
+  protected FileLock lockBucket(long bucketOffset, boolean shared)
+    throws ManifoldCFException
+  {
+    long sleepAmt = 1L;
+    while (true)
+    {
+      FileLock lock = tryLockBucket(bucketOffset,shared);
+      if (lock != null)
+        return lock;
+      try
+      {
+        Thread.sleep(sleepAmt);
+      }
+      catch (InterruptedException e)
+      {
+        throw new ManifoldCFException("Interrupted: "+e.getMessage(),e,ManifoldCFException.INTERRUPTED);
+      }
+      if (sleepAmt < 32L)
+        sleepAmt *= 2L;
+    }
+  }
+
+  /** Try once to lock a bucket, with the thread's interrupt status set aside for the duration of the call.
+  *@return the lock, or null if another process holds a conflicting one.
+  */
+  protected FileLock tryLockBucket(long bucketOffset, boolean shared)
+    throws ManifoldCFException
+  {
+    boolean interrupted = Thread.interrupted();
+    try
+    {
+      return getChannel().tryLock(bucketOffset,bucketSize,shared);
+    }
+    catch (IOException e)
+    {
+      throw new ManifoldCFException("Could not lock shared data file '"+regionFile+"': "+e.getMessage(),e);
+    }
+    finally
+    {
+      if (interrupted)
+        Thread.currentThread().interrupt();
+    }
+  }
+
+  /** Release a bucket lock.  If the lock is no longer valid, the channel was closed while it was held, so other
+  * processes may have changed the bucket at the same time; the operation fails rather than succeed unprotected.
+  */
+  protected void releaseBucket(FileLock lock)
+    throws ManifoldCFException
+  {
+    if (!lock.isValid())
+      throw new ManifoldCFException("Lock on shared data file '"+regionFile+"' was lost while held");
+    boolean interrupted = Thread.interrupted();
+    try
+    {
+      lock.release();
+    }
+    catch (IOException e)
+    {
+      throw new ManifoldCFException("Could not unlock shared data file '"+regionFile+"': "+e.getMessage(),e);
+    }
+    finally
+    {
+      if (interrupted)
+        Thread.currentThread().interrupt();
+    }
+  }
+
+  /** Get the channel, reopening it if it was closed anyway (any locks held through it are then gone, and their
+  * holders will fail on release).  The mapping itself survives the channel being closed.
+  */
+  protected synchronized FileChannel getChannel()
+    throws IOException
+  {
+    if (!channel.isOpen())
+    {
+      try
+      {
+        file.close();
+      }
+      catch (IOException e)
+      {
+        // Already closed
+      }
+      openChannel();
+    }
+    return channel;
+  }
+
+  protected void openChannel()
+    throws IOException
+  {
+    file = new RandomAccessFile(regionFile,"rw");
+    channel = file.getChannel();
+  }
+
+  /** Where values that don't belong in the table are kept.
+  */
+  public interface IOverflowStore
+  {
+    /** Read a value from the overflow store.
+    *@return the value, or null.
+    */
+    public byte[] readOverflow(String name)
+      throws ManifoldCFException;
+
+    /** Write a value to the overflow store.
+    *@param value is the value, or null to remove it.
+    */
+    public void writeOverflow(String name, byte[] value)
+      throws ManifoldCFException;
+  }
+
+}
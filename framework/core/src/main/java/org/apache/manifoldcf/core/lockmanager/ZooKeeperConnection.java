@@ -50,6 +50,8 @@ public class ZooKeeperConnection
   // Our zookeeper client
   protected ZooKeeper zookeeper = null;
   protected ZooKeeperWatcher zookeeperWatcher = null;
+  // Incremented whenever the zookeeper client is replaced or closed, since its watches go with it
+  protected volatile long sessionGeneration = 0L;
 
   // Transient state
   protected String lockNode = null;
@@ -69,6 +71,7 @@ public class ZooKeeperConnection
   protected void createSession()
     throws ManifoldCFException, InterruptedException
   {
+    sessionGeneration++;
     try
     {
       zookeeper = new ZooKeeper(connectString, sessionTimeout, zookeeperWatcher);
@@ -806,6 +809,37 @@ public class ZooKeeperConnection
     }
   }
   
+  /** Check whether anyone else has asked for the lock we hold, and leave a watch that will fire when
+  * anyone does, or when the connection to the server is disturbed.
+  *@param lockPath is the lock node path.
+  *@param watcher is the watcher to notify.
+  *@return true if there are other requests for the lock, or if we could not tell.
+  */
+  public boolean watchForOtherLockRequests(String lockPath, Watcher watcher)
+    throws ManifoldCFException, InterruptedException
+  {
+    if (lockNode == null)
+      throw new IllegalStateException("No lock in place for '"+lockPath+"'");
+    String ourChild = lockNode.substring(lockPath.length() + 1);
+    try
+    {
+      List<String> children = zookeeper.getChildren(lockPath,watcher);
+      for (String x : children)
+      {
+        if (x.equals(ourChild))
+          continue;
+        if (x.startsWith(WRITE_PREFIX) || x.startsWith(NONEXWRITE_PREFIX) || x.startsWith(READ_PREFIX))
+          return true;
+      }
+      return false;
+    }
+    catch (KeeperException e)
+    {
+      // Don't try to recover here; the lock is simply released in the ordinary way
+      return true;
+    }
+  }
+
   /** Release the (saved) lock.
   */
   public void releaseLock()
@@ -857,6 +891,38 @@ public class ZooKeeperConnection
     }
   }
   
+  /** Read data, and leave a watch that will fire when the data changes, or the node is created or
+  * deleted, or the connection to the server is disturbed.
+  *@param resourcePath is the path of the node.
+  *@param watcher is the watcher to notify.
+  *@return the data, or null if the node does not exist.
+  */
+  public byte[] readWatchedData(String resourcePath, Watcher watcher)
+    throws ManifoldCFException, InterruptedException
+  {
+    while (true)
+    {
+      try
+      {
+        try
+        {
+          return zookeeper.getData(resourcePath,watcher,null);
+        }
+        catch (KeeperException.NoNodeException e)
+        {
+          // Watch for the node's creation instead
+          if (zookeeper.exists(resourcePath,watcher) == null)
+            return null;
+          // It was created in the meantime; go around again
+        }
+      }
+      catch (KeeperException e)
+      {
+        handleKeeperException(e,true);
+      }
+    }
+  }
+  
   public void writeData(String resourcePath, byte[] data)
     throws ManifoldCFException, InterruptedException
   {
@@ -958,10 +1024,18 @@ public class ZooKeeperConnection
   {
     if (lockNode != null)
       throw new IllegalStateException("Should not be closing handles that have open locks!  Locknode: '"+lockNode+"'");
+    sessionGeneration++;
     zookeeper.close();
     zookeeper = null;
     zookeeperWatcher = null;
   }
+
+  /** Get the session generation.  Watches set before the generation last changed will never fire.
+  */
+  public long getSessionGeneration()
+  {
+    return sessionGeneration;
+  }
   
   /** Handle keeper exceptions that may involve ephemeral node creation.
   */
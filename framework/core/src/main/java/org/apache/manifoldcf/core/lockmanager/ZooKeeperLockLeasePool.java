@@ -0,0 +1,336 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.core.lockmanager;
+
+import org.apache.manifoldcf.core.interfaces.*;
+import org.apache.manifoldcf.core.system.Logging;
+
+import org.apache.zookeeper.*;
+
+import java.util.*;
+
+/** Pool of idle ZooKeeper locks.
+* Rather than giving up a ZooKeeper lock as soon as the last thread in this JVM leaves it, a lock object
+* may deposit the connection that holds it here.  If a thread in this JVM wants the same lock in the same
+* mode before the lease runs out, it takes the connection back, with no ZooKeeper traffic at all.  A lease
+* is given up as soon as anyone else asks ZooKeeper for the lock, so other processes wait no longer than it
+* takes for the watch to fire.  Locks that other processes are already waiting for are never leased.
+* A leased lock has a single watch on its node, which stays with it while it is claimed and deposited again, and
+* is set again only after it has fired; a lock that only this process uses costs no ZooKeeper traffic at all.
+*/
+public class ZooKeeperLockLeasePool
+{
+  public static final String _rcsid = "@(#)$Id$";
+
+  /** Lock types */
+  public final static int TYPE_READ = 0;
+  public final static int TYPE_NONEXWRITE = 1;
+  public final static int TYPE_WRITE = 2;
+
+  /** The most leases we will hold at once; each one ties up a ZooKeeper connection */
+  protected final static int maxLeases = 32;
+
+  protected final ZooKeeperConnectionPool pool;
+  protected final long leaseTime;
+
+  // Leases, keyed by lock path
+  protected final Map<String,Lease> leases = new HashMap<String,Lease>();
+  // Watches of leased locks that have been claimed back and are in use, keyed by lock path
+  protected final Map<String,LockWatch> claimedWatches = new HashMap<String,LockWatch>();
+  // The number of watches set, ever
+  protected long watchesSet = 0L;
+  // Thread that gives up leases that have expired or been revoked
+  protected LeaseReleaseThread releaseThread = null;
+
+  public ZooKeeperLockLeasePool(ZooKeeperConnectionPool pool, long leaseTime)
+  {
+    this.pool = pool;
+    this.leaseTime = leaseTime;
+  }
+
+  /** Take back a leased lock, if there is one and it is of the right type.
+  *@param lockPath is the lock node path.
+  *@param lockType is the type of lock wanted.
+  *@return the connection holding the lock, or null if the lock must be obtained from ZooKeeper.
+  */
+  public ZooKeeperConnection claim(String lockPath, int lockType)
+    throws ManifoldCFException, InterruptedException
+  {
+    Lease lease;
+    synchronized (this)
+    {
+      lease = leases.remove(lockPath);
+      if (lease == null)
+        return null;
+      if (lease.getLockType() == lockType && !lease.isRevoked())
+      {
+        // Keep the watch, so that it can go with the lock when it is deposited again
+        claimedWatches.put(lockPath,lease.getWatch());
+        return lease.getConnection();
+      }
+    }
+    // Wrong kind of lock, or somebody else wants it; give it up
+    releaseConnection(lease.getConnection());
+    return null;
+  }
+
+  /** Hand over a held lock, to be kept for a while in case it is wanted again.
+  *@param lockPath is the lock node path.
+  *@param lockType is the type of the lock held.
+  *@param connection is the connection holding the lock.
+  *@return true if the lease was taken; false if the caller should release the lock itself.
+  */
+  public boolean deposit(String lockPath, int lockType, ZooKeeperConnection connection)
+    throws ManifoldCFException, InterruptedException
+  {
+    LockWatch watch;
+    synchronized (this)
+    {
+      watch = claimedWatches.remove(lockPath);
+      if (leases.size() >= maxLeases)
+        return false;
+    }
+    if (watch == null || watch.getConnection() != connection || watch.hasFired())
+    {
+      // Set a new watch first, so that no request can slip in unnoticed
+      watch = new LockWatch(connection);
+      synchronized (this)
+      {
+        watchesSet++;
+      }
+      if (connection.watchForOtherLockRequests(lockPath,watch))
+        return false;
+    }
+    Lease lease = new Lease(lockPath,lockType,watch,System.currentTimeMillis() + leaseTime);
+    synchronized (this)
+    {
+      if (leases.get(lockPath) != null)
+        return false;
+      leases.put(lockPath,lease);
+      if (releaseThread == null)
+      {
+        releaseThread = new LeaseReleaseThread();
+        releaseThread.start();
+      }
+      notifyAll();
+    }
+    return true;
+  }
+
+  /** Give up all leases, and stop the release thread.
+  */
+  public void closeAll()
+    throws InterruptedException
+  {
+    List<Lease> toRelease;
+    synchronized (this)
+    {
+      toRelease = new ArrayList<Lease>(leases.values());
+      leases.clear();
+      claimedWatches.clear();
+      if (releaseThread != null)
+      {
+        releaseThread.interrupt();
+        releaseThread = null;
+      }
+    }
+    for (Lease lease : toRelease)
+    {
+      try
+      {
+        releaseConnection(lease.getConnection());
+      }
+      catch (ManifoldCFException e)
+      {
+        Logging.lock.warn("Error giving up lock lease for '"+lease.getLockPath()+"': "+e.getMessage(),e);
+      }
+    }
+  }
+
+  /** Release the lock a connection holds, and return the connection to the connection pool.
+  */
+  protected void releaseConnection(ZooKeeperConnection connection)
+    throws ManifoldCFException, InterruptedException
+  {
+    connection.releaseLock();
+    pool.release(connection);
+  }
+
+  /** Wake up the release thread, because a lease has been revoked.
+  */
+  protected synchronized void leaseRevoked()
+  {
+    notifyAll();
+  }
+
+  /** Remove and return the leases that are due to be given up, waiting until there are some.
+  */
+  protected synchronized List<Lease> waitForReleasableLeases()
+    throws InterruptedException
+  {
+    while (true)
+    {
+      List<Lease> rval = null;
+      long currentTime = System.currentTimeMillis();
+      long nextTime = Long.MAX_VALUE;
+      Iterator<Lease> iter = leases.values().iterator();
+      while (iter.hasNext())
+      {
+        Lease lease = iter.next();
+        if (lease.isRevoked() || lease.getExpirationTime() <= currentTime)
+        {
+          if (rval == null)
+            rval = new ArrayList<Lease>();
+          rval.add(lease);
+          iter.remove();
+        }
+        else if (lease.getExpirationTime() < nextTime)
+          nextTime = lease.getExpirationTime();
+      }
+      if (rval != null)
+        return rval;
+      if (nextTime == Long.MAX_VALUE)
+        wait();
+      else
+        wait(nextTime - currentTime);
+    }
+  }
+
+  /** The watch on a leased lock's node.  Any event on the lock's children, or on the connection, fires it, and
+  * revokes the lease.
+  */
+  protected class LockWatch implements Watcher
+  {
+    protected final ZooKeeperConnection connection;
+    protected volatile boolean fired = false;
+
+    public LockWatch(ZooKeeperConnection connection)
+    {
+      this.connection = connection;
+    }
+
+    public ZooKeeperConnection getConnection()
+    {
+      return connection;
+    }
+
+    public boolean hasFired()
+    {
+      return fired;
+    }
+
+    @Override
+    public void process(WatchedEvent event)
+    {
+      fired = true;
+      leaseRevoked();
+    }
+
+  }
+
+  /** A held lock that nobody in this JVM is using.
+  */
+  protected static class Lease
+  {
+    protected final String lockPath;
+    protected final int lockType;
+    protected final LockWatch watch;
+    protected final long expirationTime;
+
+    public Lease(String lockPath, int lockType, LockWatch watch, long expirationTime)
+    {
+      this.lockPath = lockPath;
+      this.lockType = lockType;
+      this.watch = watch;
+      this.expirationTime = expirationTime;
+    }
+
+    public String getLockPath()
+    {
+      return lockPath;
+    }
+
+    public int getLockType()
+    {
+      return lockType;
+    }
+
+    public LockWatch getWatch()
+    {
+      return watch;
+    }
+
+    public ZooKeeperConnection getConnection()
+    {
+      return watch.getConnection();
+    }
+
+    public long getExpirationTime()
+    {
+      return expirationTime;
+    }
+
+    public boolean isRevoked()
+    {
+      return watch.hasFired();
+    }
+
+  }
+
+  /** This thread gives up leases that have run out or that other processes want.  It never waits on
+  * anything but ZooKeeper itself, so a lease is always given up promptly.
+  */
+  protected class LeaseReleaseThread extends Thread
+  {
+    public LeaseReleaseThread()
+    {
+      super();
+      setName("ZooKeeper lock lease release thread");
+      setDaemon(true);
+    }
+
+    @Override
+    public void run()
+    {
+      try
+      {
+        while (true)
+        {
+          List<Lease> toRelease = waitForReleasableLeases();
+          for (Lease lease : toRelease)
+          {
+            try
+            {
+              releaseConnection(lease.getConnection());
+            }
+            catch (ManifoldCFException e)
+            {
+              Logging.lock.error("Error giving up lock lease for '"+lease.getLockPath()+"': "+e.getMessage(),e);
+            }
+          }
+        }
+      }
+      catch (InterruptedException e)
+      {
+        // Shutting down
+      }
+    }
+  }
+
+}
@@ -25,6 +25,7 @@ import org.apache.manifoldcf.core.system.ManifoldCF;
 import org.apache.zookeeper.*;
 
 import java.util.*;
+import java.util.concurrent.*;
 import java.io.*;
 
 /** The lock manager manages locks across all threads and JVMs and cluster members, using Zookeeper.
@@ -36,6 +37,7 @@ public class ZooKeeperLockManager extends BaseLockManager implements ILockManage
 
   protected final static String zookeeperConnectStringParameter = "org.apache.manifoldcf.zookeeper.connectstring";
   protected final static String zookeeperSessionTimeoutParameter = "org.apache.manifoldcf.zookeeper.sessiontimeout";
+  protected final static String zookeeperLockLeaseTimeParameter = "org.apache.manifoldcf.zookeeper.lockleasetime";
 
   private final static String CONFIGURATION_PATH = "/org.apache.manifoldcf/configuration";
   private final static String RESOURCE_PATH_PREFIX = "/org.apache.manifoldcf/resources-";
@@ -52,11 +54,17 @@ public class ZooKeeperLockManager extends BaseLockManager implements ILockManage
   // ZooKeeper connection pool
   protected static Integer connectionPoolLock = new Integer(0);
   protected static ZooKeeperConnectionPool pool = null;
+  protected static ZooKeeperLockLeasePool leasePool = null;
   protected static Integer zookeeperPoolLocker = new Integer(0);
   protected static LockPool myZooKeeperLocks = null;
   protected static Integer ephemeralPoolLocker = new Integer(0);
   protected static ZooKeeperEphemeralNodePool myEphemeralNodes = null;
 
+  // Locally held copies of shared data resources, each of which is discarded when its watch fires
+  protected final static ConcurrentHashMap<String,WatchedData> watchedData = new ConcurrentHashMap<String,WatchedData>();
+  /** The most resources we will keep watches on */
+  protected final static int maxWatchedResources = 10000;
+
   // Cached local values
   protected ManifoldCFConfiguration cachedConfiguration = null;
   
@@ -75,13 +83,16 @@ public class ZooKeeperLockManager extends BaseLockManager implements ILockManage
         int sessionTimeout = ManifoldCF.getIntProperty(zookeeperSessionTimeoutParameter,300000);
         ManifoldCF.addShutdownHook(new ZooKeeperShutdown());
         pool = new ZooKeeperConnectionPool(connectString, sessionTimeout);
+        int leaseTime = ManifoldCF.getIntProperty(zookeeperLockLeaseTimeParameter,0);
+        if (leaseTime > 0)
+          leasePool = new ZooKeeperLockLeasePool(pool, leaseTime);
       }
     }
     synchronized (zookeeperPoolLocker)
     {
       if (myZooKeeperLocks == null)
       {
-        myZooKeeperLocks = new LockPool(new ZooKeeperLockObjectFactory(pool));
+        myZooKeeperLocks = new LockPool(new ZooKeeperLockObjectFactory(pool, leasePool));
       }
     }
     synchronized (ephemeralPoolLocker)
@@ -839,6 +850,48 @@ public class ZooKeeperLockManager extends BaseLockManager implements ILockManage
     }
   }
   
+  /** Read data from a shared data resource, permitting the answer to come from a local copy.
+  * The local copy is held only as long as the ZooKeeper watch set when it was read has not fired.
+  *@param resourceName is the global name of the resource.
+  *@return a byte array containing the data, or null.
+  */
+  @Override
+  public byte[] readWatchedData(String resourceName)
+    throws ManifoldCFException
+  {
+    WatchedData existing = watchedData.get(resourceName);
+    if (existing != null && existing.isCurrent())
+      return existing.getData();
+    if (watchedData.size() >= maxWatchedResources)
+      return readData(resourceName);
+    try
+    {
+      ZooKeeperConnection connection = pool.grab();
+      try
+      {
+        WatchedData record = new WatchedData(resourceName,connection);
+        record.setData(connection.readWatchedData(RESOURCE_PATH_PREFIX + ZooKeeperConnection.zooKeeperSafeName(resourceName), record));
+        // If the session changed while we were reading, our watch may have gone with it, so don't keep the copy
+        if (connection.getSessionGeneration() == record.getSessionGeneration())
+        {
+          watchedData.put(resourceName,record);
+          // The watch may have fired before we put the record in place
+          if (!record.isCurrent())
+            watchedData.remove(resourceName,record);
+        }
+        return record.getData();
+      }
+      finally
+      {
+        pool.release(connection);
+      }
+    }
+    catch (InterruptedException e)
+    {
+      throw new ManifoldCFException(e.getMessage(),e,ManifoldCFException.INTERRUPTED);
+    }
+  }
+  
   /** Write data to a shared data resource.  Use this method to write a body of data into a shared resource.
   * Note well that this is not necessarily an atomic operation, and it must thus be protected by a lock.
   *@param resourceName is the global name of the resource.
@@ -859,6 +912,8 @@ public class ZooKeeperLockManager extends BaseLockManager implements ILockManage
       {
         pool.release(connection);
       }
+      // Our own threads should see the change right away, not when the watch fires
+      watchedData.remove(resourceName);
     }
     catch (InterruptedException e)
     {
@@ -944,8 +999,14 @@ public class ZooKeeperLockManager extends BaseLockManager implements ILockManage
       {
         try
         {
+          if (leasePool != null)
+          {
+            leasePool.closeAll();
+            leasePool = null;
+          }
           pool.closeAll();
           pool = null;
+          watchedData.clear();
         }
         catch (InterruptedException e)
         {
@@ -955,6 +1016,53 @@ public class ZooKeeperLockManager extends BaseLockManager implements ILockManage
     }
   }
   
+  /** A local copy of a shared data resource.  It is its own watcher; it stops being current as soon as
+  * anything happens to the resource's node or to the ZooKeeper session the watch was set on.
+  */
+  protected static class WatchedData implements Watcher
+  {
+    protected final String resourceName;
+    protected final ZooKeeperConnection connection;
+    protected final long sessionGeneration;
+    protected byte[] data = null;
+    protected volatile boolean fired = false;
+
+    public WatchedData(String resourceName, ZooKeeperConnection connection)
+    {
+      this.resourceName = resourceName;
+      this.connection = connection;
+      this.sessionGeneration = connection.getSessionGeneration();
+    }
+
+    public void setData(byte[] data)
+    {
+      this.data = data;
+    }
+
+    public byte[] getData()
+    {
+      return data;
+    }
+
+    public long getSessionGeneration()
+    {
+      return sessionGeneration;
+    }
+
+    public boolean isCurrent()
+    {
+      return !fired && connection.getSessionGeneration() == sessionGeneration;
+    }
+
+    @Override
+    public void process(WatchedEvent event)
+    {
+      fired = true;
+      watchedData.remove(resourceName,this);
+    }
+
+  }
+
   protected static class ZooKeeperShutdown implements IShutdownHook
   {
     public ZooKeeperShutdown()
@@ -33,14 +33,22 @@ public class ZooKeeperLockObject extends LockObject
   private final static String LOCK_PATH_PREFIX = "/org.apache.manifoldcf.locks-";
 
   private final ZooKeeperConnectionPool pool;
+  private final ZooKeeperLockLeasePool leasePool;
   private final String lockPath;
   
   private ZooKeeperConnection currentConnection = null;
 
   public ZooKeeperLockObject(LockPool lockPool, Object lockKey, ZooKeeperConnectionPool pool)
+  {
+    this(lockPool,lockKey,pool,null);
+  }
+
+  public ZooKeeperLockObject(LockPool lockPool, Object lockKey, ZooKeeperConnectionPool pool,
+    ZooKeeperLockLeasePool leasePool)
   {
     super(lockPool,lockKey);
     this.pool = pool;
+    this.leasePool = leasePool;
     this.lockPath = LOCK_PATH_PREFIX + ZooKeeperConnection.zooKeeperSafeName(lockKey.toString());
   }
 
@@ -50,6 +58,8 @@ public class ZooKeeperLockObject extends LockObject
   {
     if (currentConnection != null)
       throw new IllegalStateException("Already have a connection before write locking: "+lockPath);
+    if (claimLease(ZooKeeperLockLeasePool.TYPE_WRITE))
+      return;
     boolean succeeded = false;
     currentConnection = pool.grab();
     try
@@ -74,6 +84,8 @@ public class ZooKeeperLockObject extends LockObject
   {
     if (currentConnection != null)
       throw new IllegalStateException("Already have a connection before write locking: "+lockPath);
+    if (claimLease(ZooKeeperLockLeasePool.TYPE_WRITE))
+      return;
     boolean succeeded = false;
     currentConnection = pool.grab();
     try
@@ -97,7 +109,7 @@ public class ZooKeeperLockObject extends LockObject
   {
     if (currentConnection == null)
       throw new IllegalStateException("Cannot clear write lock we don't have: "+lockPath);
-    clearLock();
+    clearLock(ZooKeeperLockLeasePool.TYPE_WRITE);
   }
   
   @Override
@@ -106,6 +118,8 @@ public class ZooKeeperLockObject extends LockObject
   {
     if (currentConnection != null)
       throw new IllegalStateException("Already have a connection before non-ex-write locking: "+lockPath);
+    if (claimLease(ZooKeeperLockLeasePool.TYPE_NONEXWRITE))
+      return;
     boolean succeeded = false;
     currentConnection = pool.grab();
     try
@@ -130,6 +144,8 @@ public class ZooKeeperLockObject extends LockObject
   {
     if (currentConnection != null)
       throw new IllegalStateException("Already have a connection before non-ex-write locking: "+lockPath);
+    if (claimLease(ZooKeeperLockLeasePool.TYPE_NONEXWRITE))
+      return;
     boolean succeeded = false;
     currentConnection = pool.grab();
     try
@@ -153,7 +169,7 @@ public class ZooKeeperLockObject extends LockObject
   {
     if (currentConnection == null)
       throw new IllegalStateException("Cannot clear non-ex-write lock we don't have: "+lockPath);
-    clearLock();
+    clearLock(ZooKeeperLockLeasePool.TYPE_NONEXWRITE);
   }
 
   @Override
@@ -162,6 +178,8 @@ public class ZooKeeperLockObject extends LockObject
   {
     if (currentConnection != null)
       throw new IllegalStateException("Already have a connection before read locking: "+lockPath);
+    if (claimLease(ZooKeeperLockLeasePool.TYPE_READ))
+      return;
     boolean succeeded = false;
     currentConnection = pool.grab();
     try
@@ -186,6 +204,8 @@ public class ZooKeeperLockObject extends LockObject
   {
     if (currentConnection != null)
       throw new IllegalStateException("Already have a connection before read locking: "+lockPath);
+    if (claimLease(ZooKeeperLockLeasePool.TYPE_READ))
+      return;
     boolean succeeded = false;
     currentConnection = pool.grab();
     try
@@ -209,12 +229,29 @@ public class ZooKeeperLockObject extends LockObject
   {
     if (currentConnection == null)
       throw new IllegalStateException("Cannot clear read lock we don't have: "+lockPath);
-    clearLock();
+    clearLock(ZooKeeperLockLeasePool.TYPE_READ);
   }
 
-  protected void clearLock()
+  /** Take back a leased lock of the given type, if there is one.
+  *@return true if the lock is now held.
+  */
+  protected boolean claimLease(int lockType)
     throws ManifoldCFException, InterruptedException
   {
+    if (leasePool == null)
+      return false;
+    currentConnection = leasePool.claim(lockPath,lockType);
+    return currentConnection != null;
+  }
+
+  protected void clearLock(int lockType)
+    throws ManifoldCFException, InterruptedException
+  {
+    if (leasePool != null && leasePool.deposit(lockPath,lockType,currentConnection))
+    {
+      currentConnection = null;
+      return;
+    }
     currentConnection.releaseLock();
     pool.release(currentConnection);
     currentConnection = null;
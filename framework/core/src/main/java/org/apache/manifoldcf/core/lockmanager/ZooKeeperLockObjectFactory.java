@@ -30,16 +30,27 @@ public class ZooKeeperLockObjectFactory extends LockObjectFactory
   public static final String _rcsid = "@(#)$Id$";
 
   protected final ZooKeeperConnectionPool pool;
+  protected final ZooKeeperLockLeasePool leasePool;
   
   public ZooKeeperLockObjectFactory(ZooKeeperConnectionPool pool)
+  {
+    this(pool,null);
+  }
+  
+  /** Constructor.
+  *@param pool is the connection pool.
+  *@param leasePool is the pool of idle locks, or null if locks are to be given up as soon as they are left.
+  */
+  public ZooKeeperLockObjectFactory(ZooKeeperConnectionPool pool, ZooKeeperLockLeasePool leasePool)
   {
     this.pool = pool;
+    this.leasePool = leasePool;
   }
   
   @Override
   public LockObject newLockObject(LockPool lockPool, Object lockKey)
   {
-    return new ZooKeeperLockObject(lockPool, lockKey, pool);
+    return new ZooKeeperLockObject(lockPool, lockKey, pool, leasePool);
   }
 }
 
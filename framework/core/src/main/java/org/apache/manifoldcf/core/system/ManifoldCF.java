@@ -144,6 +144,18 @@ public class ManifoldCF
   public static final String databaseHandleTimeoutProperty = "org.apache.manifoldcf.database.handletimeout";
   /** Connection tracking debug property */
   public static final String databaseConnectionTrackingProperty = "org.apache.manifoldcf.database.connectiontracking";
+  /** Use a pool of threads to execute queries, rather than a new thread per query */
+  public static final String databasePooledQueryThreadsProperty = "org.apache.manifoldcf.database.pooledquerythreads";
+
+  // Cache properties
+  /** Memory budget for the local object cache, in megabytes; 0 means no limit */
+  public static final String cacheMaxMemoryProperty = "org.apache.manifoldcf.cache.maxmemory";
+
+  // Temporary data properties
+  /** Memory budget for pooled off-heap temporary document data, in megabytes; 0 means temporary data goes to files */
+  public static final String tempDataMaxMemoryProperty = "org.apache.manifoldcf.tempdata.maxmemory";
+  /** Largest document, in bytes, whose temporary data may be held in the pool */
+  public static final String tempDataMaxDocumentSizeProperty = "org.apache.manifoldcf.tempdata.maxdocumentsize";
 
   // Database performance monitoring properties
   /** Elapsed time a query can take before a warning is output to the log, in seconds */
@@ -296,6 +308,11 @@ public class ManifoldCF
           // Put the cache manager in the polling loop
           addPollingHook(new CachePoll());
 
+          // Size the pool for temporary document data, and report on it periodically
+          ChunkPool.getPool().configure(((long)LockManagerFactory.getIntProperty(threadContext,tempDataMaxMemoryProperty,0)) * 1024L * 1024L,
+            LockManagerFactory.getLongProperty(threadContext,tempDataMaxDocumentSizeProperty,1048576L));
+          addPollingHook(new ChunkPoolPoll());
+
           // Register the file tracker for cleanup on shutdown
           tracker = new FileTrack();
           addShutdownHook(tracker);
@@ -1661,6 +1678,31 @@ public class ManifoldCF
     }
   }
   
+  /** Class that logs the temporary data pool's occupancy and spill counts, once a minute, when performance
+  * debugging is on */
+  protected static class ChunkPoolPoll implements IPollingHook
+  {
+    protected long nextReportTime = 0L;
+
+    public ChunkPoolPoll()
+    {
+    }
+
+    @Override
+    public void doPoll(IThreadContext threadContext)
+      throws ManifoldCFException
+    {
+      ChunkPool pool = ChunkPool.getPool();
+      if (!Logging.perf.isDebugEnabled() || !pool.isEnabled())
+        return;
+      long currentTime = System.currentTimeMillis();
+      if (currentTime < nextReportTime)
+        return;
+      nextReportTime = currentTime + 60000L;
+      Logging.perf.debug("Temporary data pool: "+pool.toString()+" spillrate="+pool.getSpillRate());
+    }
+  }
+
   /** Class that cleans up database handles on exit */
   protected static class DatabaseShutdown implements IShutdownHook
   {
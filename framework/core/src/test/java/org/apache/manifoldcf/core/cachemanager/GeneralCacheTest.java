@@ -0,0 +1,256 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.core.cachemanager;
+
+import org.apache.manifoldcf.core.interfaces.*;
+import org.apache.manifoldcf.core.database.*;
+import java.util.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class GeneralCacheTest
+{
+
+  @Test
+  public void invalidation()
+    throws Exception
+  {
+    GeneralCache cache = new GeneralCache();
+    cache.setObject("a","A",new StringSet(new String[]{"k1","k2"}),100L);
+    cache.setObject("b","B",new StringSet("k2"),100L);
+    cache.setObject("c","C",new StringSet("k3"),100L);
+    assertEquals("A",cache.lookup("a"));
+    assertEquals(100L,cache.getObjectCreationTime("a"));
+
+    cache.invalidateKeys(new StringSet("k2"));
+    assertNull(cache.lookup("a"));
+    assertNull(cache.lookup("b"));
+    assertEquals("C",cache.lookup("c"));
+
+    // Objects cached after an invalidation are indexed afresh
+    cache.setObject("a","A2",new StringSet("k1"),200L);
+    cache.invalidateKeys(new StringSet("k2"));
+    assertEquals("A2",cache.lookup("a"));
+    cache.invalidateKeys(new StringSet("k1"));
+    assertNull(cache.lookup("a"));
+  }
+
+  @Test
+  public void lruAndExpiration()
+    throws Exception
+  {
+    GeneralCache cache = new GeneralCache();
+    for (int i = 0; i < 5; i++)
+    {
+      String name = "obj"+i;
+      cache.setObject(name,name,new StringSet("key"+i),0L);
+      cache.setObjectExpiration(name,1000L+i);
+      cache.setObjectClass(name,"class",3);
+    }
+    // Only the three most recently used survive
+    assertNull(cache.lookup("obj0"));
+    assertNull(cache.lookup("obj1"));
+    assertEquals("obj2",cache.lookup("obj2"));
+
+    // Using obj2 again makes obj3 the oldest
+    cache.setObjectClass("obj2","class",3);
+    cache.setObject("obj5","obj5",new StringSet("key5"),0L);
+    cache.setObjectClass("obj5","class",3);
+    assertEquals("obj2",cache.lookup("obj2"));
+    assertNull(cache.lookup("obj3"));
+
+    // Expiration removes everything at or before the time given
+    cache.expireRecords(1002L);
+    assertNull(cache.lookup("obj2"));
+    assertEquals("obj4",cache.lookup("obj4"));
+    cache.setObjectExpiration("obj4",5000L);
+    cache.expireRecords(1004L);
+    assertEquals("obj4",cache.lookup("obj4"));
+    assertEquals(5000L,cache.getObjectExpirationTime("obj4"));
+  }
+
+  @Test
+  public void lookupRefreshesRecency()
+    throws Exception
+  {
+    GeneralCache cache = new GeneralCache();
+    for (int i = 0; i < 3; i++)
+    {
+      String name = "obj"+i;
+      cache.setObject(name,name,new StringSet("key"+i),0L);
+      cache.setObjectClass(name,"class",3);
+    }
+    // A hit through the cache manager resets the object's class, which makes obj1 the least recently used
+    assertEquals("obj0",cache.lookup("obj0"));
+    cache.setObjectClass("obj0","class",3);
+    cache.setObject("obj3","obj3",new StringSet("key3"),0L);
+    cache.setObjectClass("obj3","class",3);
+    assertEquals("obj0",cache.lookup("obj0"));
+    assertNull(cache.lookup("obj1"));
+    assertEquals("obj2",cache.lookup("obj2"));
+    assertEquals("obj3",cache.lookup("obj3"));
+  }
+
+  @Test
+  public void memoryLimit()
+    throws Exception
+  {
+    GeneralCache cache = new GeneralCache();
+    long objectSize = GeneralCache.estimateSize("x");
+    cache.setMemoryLimit(objectSize * 4L);
+
+    // Popular objects are looked up many times before they are cached
+    for (int i = 0; i < 4; i++)
+    {
+      String name = "popular"+i;
+      for (int j = 0; j < 5; j++)
+      {
+        cache.lookup(name);
+      }
+      cache.setObject(name,name,new StringSet("key"),0L);
+    }
+    assertEquals(objectSize * 4L,cache.getTotalSize());
+
+    // Objects asked for only once are turned away rather than displacing popular ones
+    for (int i = 0; i < 10; i++)
+    {
+      String name = "once"+i;
+      cache.lookup(name);
+      cache.setObject(name,name,new StringSet("key"),0L);
+      assertNull(cache.lookup(name));
+    }
+    for (int i = 0; i < 4; i++)
+    {
+      assertEquals("popular"+i,cache.lookup("popular"+i));
+    }
+
+    // Something asked for more often displaces the least recently used object
+    for (int j = 0; j < 10; j++)
+    {
+      cache.lookup("hot");
+    }
+    cache.setObject("hot","hot",new StringSet("key"),0L);
+    assertEquals("hot",cache.lookup("hot"));
+    assertNull(cache.lookup("popular0"));
+    assertEquals(objectSize * 4L,cache.getTotalSize());
+
+    // Invalidation gives the memory back
+    cache.invalidateKeys(new StringSet("key"));
+    assertEquals(0L,cache.getTotalSize());
+    assertTrue(cache.globalLRUMap.isEmpty());
+  }
+
+  @Test
+  public void resultSetSize()
+    throws Exception
+  {
+    RSet small = new RSet();
+    RSet large = new RSet();
+    for (int i = 0; i < 1000; i++)
+    {
+      RRow row = new RRow();
+      row.put("id",new Long(i));
+      row.put("name","a reasonably long value for row "+i);
+      large.addRow(row);
+      if (i < 10)
+        small.addRow(row);
+    }
+    long smallSize = GeneralCache.estimateSize(small);
+    long largeSize = GeneralCache.estimateSize(large);
+    assertTrue(smallSize > GeneralCache.estimateSize(new RSet()));
+    assertTrue(largeSize > smallSize * 50L);
+  }
+
+  @Test
+  public void concurrentUse()
+    throws Exception
+  {
+    final GeneralCache cache = new GeneralCache();
+    final int maxCount = 50;
+    Thread[] threads = new Thread[8];
+    final Throwable[] failures = new Throwable[threads.length];
+    for (int t = 0; t < threads.length; t++)
+    {
+      final int threadNumber = t;
+      threads[t] = new Thread()
+        {
+          public void run()
+          {
+            try
+            {
+              Random r = new Random(threadNumber);
+              for (int i = 0; i < 20000; i++)
+              {
+                String name = "obj"+r.nextInt(200);
+                switch (r.nextInt(4))
+                {
+                case 0:
+                  cache.invalidateKeys(new StringSet("key"+r.nextInt(10)));
+                  break;
+                case 1:
+                  cache.expireRecords(r.nextInt(100));
+                  break;
+                default:
+                  cache.setObject(name,name,new StringSet("key"+r.nextInt(10)),0L);
+                  cache.setObjectExpiration(name,r.nextInt(200));
+                  cache.setObjectClass(name,"class",maxCount);
+                  Object o = cache.lookup(name);
+                  if (o != null)
+                    assertEquals(name,o);
+                  break;
+                }
+              }
+            }
+            catch (Throwable e)
+            {
+              failures[threadNumber] = e;
+            }
+          }
+        };
+      threads[t].start();
+    }
+    for (int t = 0; t < threads.length; t++)
+    {
+      threads[t].join();
+      if (failures[t] != null)
+        throw new Exception("Thread "+t+" failed: "+failures[t].getMessage(),failures[t]);
+    }
+
+    // The structures must still agree with each other once things quiet down
+    int live = 0;
+    for (int i = 0; i < 200; i++)
+    {
+      if (cache.lookup("obj"+i) != null)
+        live++;
+    }
+    assertTrue(live <= maxCount);
+    assertEquals(live,cache.objectClassTable.getClassRecord("class").getCurrentMemberCount());
+    cache.expireRecords(Long.MAX_VALUE);
+    for (int i = 0; i < 200; i++)
+    {
+      assertNull(cache.lookup("obj"+i));
+    }
+    assertEquals(0,cache.objectClassTable.getClassRecord("class").getCurrentMemberCount());
+    assertTrue(cache.expirationMap.isEmpty());
+    assertTrue(cache.invalidationTable.hashtable.isEmpty());
+    assertTrue(cache.globalLRUMap.isEmpty());
+    assertEquals(0L,cache.getTotalSize());
+  }
+
+}
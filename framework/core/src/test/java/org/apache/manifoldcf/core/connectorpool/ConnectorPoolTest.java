@@ -0,0 +1,191 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.core.connectorpool;
+
+import org.apache.manifoldcf.core.interfaces.*;
+import org.apache.manifoldcf.core.connector.BaseConnector;
+import org.apache.manifoldcf.core.tests.BaseEnvironment;
+import java.util.concurrent.TimeUnit;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/** This tester checks connector handout, polling, and wait statistics for a single-process connector pool.
+*/
+public class ConnectorPoolTest extends BaseEnvironment
+{
+
+  protected static class TestConnector extends BaseConnector
+  {
+  }
+
+  protected static class TestPool extends ConnectorPool<IConnector>
+  {
+    public TestPool()
+    {
+      super("_TESTCONNECTORPOOL_");
+    }
+
+    @Override
+    protected boolean isInstalled(IThreadContext tc, String className)
+      throws ManifoldCFException
+    {
+      return true;
+    }
+
+    @Override
+    protected boolean isConnectionNameValid(IThreadContext tc, String connectionName)
+      throws ManifoldCFException
+    {
+      return true;
+    }
+
+    @Override
+    protected IConnector createConnectorInstance(IThreadContext threadContext, String className)
+      throws ManifoldCFException
+    {
+      return new TestConnector();
+    }
+  }
+
+  protected final static String className = TestConnector.class.getName();
+
+  @Test
+  public void handoutAndStatistics()
+    throws Exception
+  {
+    IThreadContext tc = ThreadContextFactory.make();
+    TestPool pool = new TestPool();
+    ConfigParams params = new ConfigParams();
+    try
+    {
+      // A new pool starts out allowed a single instance
+      IConnector c = pool.grab(tc,"conn",className,params,2);
+      assertNotNull(c);
+      ConnectorPool.WaitStatistics stats = pool.getWaitStatistics("conn");
+      assertEquals(1L,stats.getGrabCount());
+      assertEquals(0L,stats.getWaitCount());
+      assertEquals(1,stats.getLocalMax());
+      assertEquals(0,stats.getFreeCount());
+      assertNull(pool.getWaitStatistics("other"));
+
+      // The released instance is the one handed out next, and is not freed as excess meanwhile
+      pool.release(tc,"conn",c);
+      assertEquals(1,pool.getWaitStatistics("conn").getPooledCount());
+      assertSame(c,pool.grab(tc,"conn",className,params,2));
+
+      // Polling leaves pooled instances in the pool, and the permits as they were
+      pool.release(tc,"conn",c);
+      pool.pollAllConnectors(tc);
+      stats = pool.getWaitStatistics("conn");
+      assertEquals(1,stats.getPooledCount());
+      assertEquals(stats.getLocalMax(),stats.getFreeCount());
+      assertSame(c,pool.grab(tc,"conn",className,params,2));
+
+      // A changed configuration means the pooled instance is thrown away
+      pool.release(tc,"conn",c);
+      ConfigParams newParams = new ConfigParams();
+      newParams.setParameter("p","v");
+      IConnector c2 = pool.grab(tc,"conn",className,newParams,2);
+      assertNotSame(c,c2);
+      assertEquals(newParams,c2.getConfiguration());
+      pool.release(tc,"conn",c2);
+    }
+    finally
+    {
+      pool.closeAllConnectors(tc);
+    }
+  }
+
+  @Test
+  public void timedGrab()
+    throws Exception
+  {
+    IThreadContext tc = ThreadContextFactory.make();
+    TestPool pool = new TestPool();
+    ConfigParams params = new ConfigParams();
+    try
+    {
+      IConnector c = pool.grab(tc,"conn",className,params,1,100L,TimeUnit.MILLISECONDS);
+      assertNotNull(c);
+      // The only instance is in use, so a timed grab gives up
+      long startTime = System.currentTimeMillis();
+      assertNull(pool.grab(tc,"conn",className,params,1,100L,TimeUnit.MILLISECONDS));
+      assertTrue(System.currentTimeMillis() - startTime >= 100L);
+      ConnectorPool.WaitStatistics stats = pool.getWaitStatistics("conn");
+      assertEquals(1L,stats.getWaitCount());
+      assertEquals(1L,stats.getTimeoutCount());
+      assertEquals(0,stats.getFreeCount());
+      // Once it is released, a timed grab gets it
+      pool.release(tc,"conn",c);
+      assertSame(c,pool.grab(tc,"conn",className,params,1,100L,TimeUnit.MILLISECONDS));
+      pool.release(tc,"conn",c);
+      assertEquals(1L,pool.getWaitStatistics("conn").getTimeoutCount());
+    }
+    finally
+    {
+      pool.closeAllConnectors(tc);
+    }
+  }
+
+  @Test
+  public void waitersAreServed()
+    throws Exception
+  {
+    final IThreadContext tc = ThreadContextFactory.make();
+    final TestPool pool = new TestPool();
+    final ConfigParams params = new ConfigParams();
+    try
+    {
+      IConnector c = pool.grab(tc,"conn",className,params,1);
+      final IConnector[] result = new IConnector[1];
+      final Throwable[] failure = new Throwable[1];
+      Thread waiter = new Thread()
+        {
+          public void run()
+          {
+            try
+            {
+              result[0] = pool.grab(ThreadContextFactory.make(),"conn",className,params,1);
+            }
+            catch (Throwable e)
+            {
+              failure[0] = e;
+            }
+          }
+        };
+      waiter.start();
+      while (pool.getWaitStatistics("conn").getWaitingThreadCount() == 0)
+      {
+        Thread.sleep(10L);
+      }
+      pool.release(tc,"conn",c);
+      waiter.join();
+      if (failure[0] != null)
+        throw new Exception("Waiter failed: "+failure[0].getMessage(),failure[0]);
+      assertSame(c,result[0]);
+      pool.release(tc,"conn",result[0]);
+      assertEquals(1,pool.getWaitStatistics("conn").getPooledCount());
+    }
+    finally
+    {
+      pool.closeAllConnectors(tc);
+    }
+  }
+
+}
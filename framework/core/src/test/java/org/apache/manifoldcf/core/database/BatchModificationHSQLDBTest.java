@@ -0,0 +1,129 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.core.database;
+
+import org.apache.manifoldcf.core.interfaces.*;
+import org.apache.manifoldcf.core.system.ManifoldCF;
+import org.apache.manifoldcf.core.tests.BaseHSQLDB;
+
+import java.util.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/** This tester checks that batched inserts, updates, and modifications leave the table in the
+* same state that the equivalent one-at-a-time operations would.
+*/
+public class BatchModificationHSQLDBTest extends BaseHSQLDB
+{
+  protected final static String tableName = "batchtest";
+  // Not a multiple of the rows per insert statement, so there is a short statement at the end
+  protected final static int rowCount = 1234;
+
+  @Test
+  public void testBatchModification()
+    throws Exception
+  {
+    IThreadContext tc = ThreadContextFactory.make();
+    IDBInterface database = DBInterfaceFactory.make(tc,
+      ManifoldCF.getMasterDatabaseName(),
+      ManifoldCF.getMasterDatabaseUsername(),
+      ManifoldCF.getMasterDatabasePassword());
+
+    Map<String,ColumnDescription> columns = new HashMap<String,ColumnDescription>();
+    columns.put("id",new ColumnDescription("BIGINT",true,false,null,null,false));
+    columns.put("name",new ColumnDescription("VARCHAR(255)",false,true,null,null,false));
+    columns.put("score",new ColumnDescription("FLOAT",false,true,null,null,false));
+    database.performCreate(tableName,columns,null);
+    try
+    {
+      database.beginTransaction();
+      try
+      {
+        // Insert, with a mix of null columns
+        List<Map<String,Object>> inserts = new ArrayList<Map<String,Object>>();
+        for (int i = 0; i < rowCount; i++)
+        {
+          Map<String,Object> values = new HashMap<String,Object>();
+          values.put("id",new Long(i));
+          values.put("name",(i % 10 == 0)?null:"row "+i);
+          if (i % 7 != 0)
+            values.put("score",new Double(i * 0.5));
+          inserts.add(values);
+        }
+        database.performInsertMultiple(tableName,inserts,null);
+
+        // Update every third row, sometimes nulling out the name
+        List<Map<String,Object>> updates = new ArrayList<Map<String,Object>>();
+        List<List> whereParameters = new ArrayList<List>();
+        for (int i = 0; i < rowCount; i += 3)
+        {
+          Map<String,Object> values = new HashMap<String,Object>();
+          values.put("name",(i % 2 == 0)?null:"updated "+i);
+          updates.add(values);
+          List params = new ArrayList();
+          params.add(new Long(i));
+          whereParameters.add(params);
+        }
+        database.performUpdateMultiple(tableName,updates,"WHERE id=?",whereParameters,null);
+
+        // Delete every fifth row
+        List<List> deletes = new ArrayList<List>();
+        for (int i = 0; i < rowCount; i += 5)
+        {
+          List params = new ArrayList();
+          params.add(new Long(i));
+          deletes.add(params);
+        }
+        database.performBatchModification("DELETE FROM "+tableName+" WHERE id=?",deletes,null);
+      }
+      catch (ManifoldCFException e)
+      {
+        database.signalRollback();
+        throw e;
+      }
+      finally
+      {
+        database.endTransaction();
+      }
+
+      IResultSet set = database.performQuery("SELECT id,name,score FROM "+tableName+" ORDER BY id ASC",null,null,null);
+      int rowIndex = 0;
+      for (int i = 0; i < rowCount; i++)
+      {
+        if (i % 5 == 0)
+          continue;
+        IResultRow row = set.getRow(rowIndex++);
+        assertEquals(new Long(i),row.getValue("id"));
+        String expectedName;
+        if (i % 3 == 0)
+          expectedName = (i % 2 == 0)?null:"updated "+i;
+        else
+          expectedName = (i % 10 == 0)?null:"row "+i;
+        assertEquals(expectedName,row.getValue("name"));
+        assertEquals((i % 7 == 0)?null:new Double(i * 0.5),row.getValue("score"));
+      }
+      assertEquals(rowIndex,set.getRowCount());
+    }
+    finally
+    {
+      database.performDrop(tableName,null);
+    }
+  }
+
+}
@@ -0,0 +1,106 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.core.database;
+
+import org.apache.manifoldcf.core.interfaces.*;
+import java.util.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/** This tester checks that the columnar resultset returns the same values that were put into it,
+* whatever mix of types and nulls each column holds.
+*/
+public class ColumnarRSetTest
+{
+
+  @Test
+  public void testMixedColumns()
+  {
+    ColumnarRSet set = new ColumnarRSet(new String[]{"id","score","name","mixed","empty"});
+    List<Map<String,Object>> expected = new ArrayList<Map<String,Object>>();
+    Random r = new Random(42L);
+    for (int row = 0; row < 1000; row++)
+    {
+      Map<String,Object> values = new HashMap<String,Object>();
+      values.put("id",(row % 7 == 0)?null:new Long(r.nextLong()));
+      values.put("score",(row % 5 == 0)?null:new Double(r.nextDouble()));
+      values.put("name",(row % 3 == 0)?null:"name"+row);
+      // Starts out as longs, then switches types partway through
+      Object mixed;
+      if (row < 500)
+        mixed = (row % 11 == 0)?null:new Long(row);
+      else
+        mixed = (row % 2 == 0)?new Integer(row):"value"+row;
+      values.put("mixed",mixed);
+      values.put("empty",null);
+
+      for (String column : new String[]{"id","score","name","mixed","empty"})
+      {
+        set.setPendingValue(set.getColumnIndex(column),values.get(column));
+      }
+      if (row % 13 == 0)
+      {
+        set.discardPendingRow();
+        continue;
+      }
+      set.commitPendingRow();
+      expected.add(values);
+    }
+
+    assertEquals(expected.size(),set.getRowCount());
+    IResultRow[] rows = set.getRows();
+    for (int i = 0; i < expected.size(); i++)
+    {
+      Map<String,Object> values = expected.get(i);
+      IResultRow row = set.getRow(i);
+      assertEquals(5,row.getColumnCount());
+      for (String column : values.keySet())
+      {
+        assertEquals(values.get(column),row.getValue(column));
+        assertEquals(values.get(column),rows[i].getValue(column));
+      }
+      assertNull(row.getValue("nonexistent"));
+    }
+  }
+
+  @Test
+  public void testDuplicateLabels()
+  {
+    ColumnarRSet set = new ColumnarRSet(new String[]{"a","b","a"});
+    set.setPendingValue(set.getColumnIndex("a"),"first");
+    set.setPendingValue(set.getColumnIndex("b"),new Long(1L));
+    set.setPendingValue(set.getColumnIndex("a"),"last");
+    IResultRow pending = set.getPendingRow();
+    assertEquals("last",pending.getValue("a"));
+    set.commitPendingRow();
+
+    IResultRow row = set.getRow(0);
+    assertEquals(2,row.getColumnCount());
+    Set<String> columns = new HashSet<String>();
+    Iterator<String> iter = row.getColumns();
+    while (iter.hasNext())
+    {
+      columns.add(iter.next());
+    }
+    assertEquals(new HashSet<String>(Arrays.asList("a","b")),columns);
+    assertEquals("last",row.getValue("a"));
+    assertEquals(new Long(1L),row.getValue("b"));
+  }
+
+}
@@ -0,0 +1,105 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.core.database;
+
+import org.apache.manifoldcf.core.interfaces.*;
+import org.apache.manifoldcf.core.system.ManifoldCF;
+import org.apache.manifoldcf.core.tests.BaseHSQLDB;
+
+import java.util.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/** This tester checks that a streamed query hands over the same rows that the resultset form
+* of the query returns.
+*/
+public class StreamingQueryHSQLDBTest extends BaseHSQLDB
+{
+  protected final static String tableName = "streamtest";
+  protected final static int rowCount = 2500;
+
+  @Test
+  public void testStreamingQuery()
+    throws Exception
+  {
+    IThreadContext tc = ThreadContextFactory.make();
+    IDBInterface database = DBInterfaceFactory.make(tc,
+      ManifoldCF.getMasterDatabaseName(),
+      ManifoldCF.getMasterDatabaseUsername(),
+      ManifoldCF.getMasterDatabasePassword());
+
+    Map<String,ColumnDescription> columns = new HashMap<String,ColumnDescription>();
+    columns.put("id",new ColumnDescription("BIGINT",true,false,null,null,false));
+    columns.put("name",new ColumnDescription("VARCHAR(255)",false,true,null,null,false));
+    columns.put("score",new ColumnDescription("FLOAT",false,true,null,null,false));
+    database.performCreate(tableName,columns,null);
+    try
+    {
+      database.beginTransaction();
+      try
+      {
+        for (int i = 0; i < rowCount; i++)
+        {
+          Map<String,Object> values = new HashMap<String,Object>();
+          values.put("id",new Long(i));
+          if (i % 10 != 0)
+            values.put("name","row "+i);
+          if (i % 7 != 0)
+            values.put("score",new Double(i * 0.5));
+          database.performInsert(tableName,values,null);
+        }
+      }
+      catch (ManifoldCFException e)
+      {
+        database.signalRollback();
+        throw e;
+      }
+      finally
+      {
+        database.endTransaction();
+      }
+
+      String query = "SELECT id,name,score FROM "+tableName+" WHERE id>=? ORDER BY id ASC";
+      List params = new ArrayList();
+      params.add(new Long(100L));
+      final IResultSet expected = database.performQuery(query,params,null,null);
+      assertEquals(rowCount-100,expected.getRowCount());
+
+      final int[] index = new int[]{0};
+      params = new ArrayList();
+      params.add(new Long(100L));
+      database.performStreamingQuery(query,params,100,null,new IResultRowHandler()
+        {
+          public void handleRow(IResultRow row)
+          {
+            IResultRow expectedRow = expected.getRow(index[0]++);
+            assertEquals(expectedRow.getValue("id"),row.getValue("id"));
+            assertEquals(expectedRow.getValue("name"),row.getValue("name"));
+            assertEquals(expectedRow.getValue("score"),row.getValue("score"));
+          }
+        });
+      assertEquals(expected.getRowCount(),index[0]);
+    }
+    finally
+    {
+      database.performDrop(tableName,null);
+    }
+  }
+
+}
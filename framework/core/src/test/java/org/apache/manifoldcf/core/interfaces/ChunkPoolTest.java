@@ -0,0 +1,186 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.core.interfaces;
+
+import org.apache.manifoldcf.core.system.ManifoldCF;
+import org.apache.manifoldcf.core.tests.BaseEnvironment;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/** This tester checks that temporary data is held in the chunk pool when it fits, that it is spilled to a file
+* when it is too large or the pool is full, and that the data reads back the same either way.
+*/
+public class ChunkPoolTest extends BaseEnvironment
+{
+  protected final static long documentLimit = 4L * ChunkPool.CHUNK_SIZE;
+
+  @Override
+  protected void writeProperties(StringBuilder output)
+    throws Exception
+  {
+    super.writeProperties(output);
+    output.append(
+      "  <property name=\""+ManifoldCF.tempDataMaxMemoryProperty+"\" value=\"1\"/>\n" +
+      "  <property name=\""+ManifoldCF.tempDataMaxDocumentSizeProperty+"\" value=\""+documentLimit+"\"/>\n"
+    );
+  }
+
+  @Test
+  public void testChunkPool()
+    throws Exception
+  {
+    ChunkPool pool = ChunkPool.getPool();
+    assertEquals(1024L * 1024L,pool.getMemoryBudget());
+    long startInMemory = pool.getDocumentsInMemory();
+    long startForSize = pool.getDocumentsSpilledForSize();
+    long startForBudget = pool.getDocumentsSpilledForBudget();
+    assertEquals(0L,pool.getMemoryInUse());
+
+    // Small enough to stay on the heap, as before
+    TempFileInput small = new TempFileInput(new ByteArrayInputStream(makeData(1000)));
+    assertNull(small.file);
+    assertNull(small.pooledData);
+    checkData(small,1000);
+    small.discard();
+
+    // Larger, but within the per-document limit: held in the pool
+    TempFileInput pooled = new TempFileInput(new ByteArrayInputStream(makeData(100000)));
+    assertNull(pooled.file);
+    assertNotNull(pooled.pooledData);
+    assertEquals(2L * ChunkPool.CHUNK_SIZE,pool.getMemoryInUse());
+    checkData(pooled,100000);
+    // A transferred object owns the chunks
+    BinaryInput transferred = pooled.transfer();
+    checkData(transferred,100000);
+    transferred.discard();
+    assertEquals(0L,pool.getMemoryInUse());
+    assertEquals(startInMemory + 1L,pool.getDocumentsInMemory());
+
+    // Over the per-document limit: spilled
+    TempFileInput large = new TempFileInput(new ByteArrayInputStream(makeData((int)documentLimit + 1)));
+    assertNotNull(large.file);
+    assertNull(large.pooledData);
+    assertEquals(0L,pool.getMemoryInUse());
+    checkData(large,(int)documentLimit + 1);
+    large.discard();
+    assertEquals(startForSize + 1L,pool.getDocumentsSpilledForSize());
+
+    // Fill the pool; the document that doesn't fit is spilled, and the others are unaffected
+    List<TempFileInput> held = new ArrayList<TempFileInput>();
+    try
+    {
+      for (int i = 0; i < 5; i++)
+      {
+        held.add(new TempFileInput(new ByteArrayInputStream(makeData((int)documentLimit))));
+      }
+      for (int i = 0; i < 4; i++)
+      {
+        assertNotNull(held.get(i).pooledData);
+      }
+      assertNotNull(held.get(4).file);
+      assertEquals(pool.getMemoryBudget(),pool.getMemoryInUse());
+      assertEquals(startForBudget + 1L,pool.getDocumentsSpilledForBudget());
+      for (TempFileInput tfi : held)
+      {
+        checkData(tfi,(int)documentLimit);
+      }
+    }
+    finally
+    {
+      for (TempFileInput tfi : held)
+      {
+        tfi.discard();
+      }
+    }
+    assertEquals(0L,pool.getMemoryInUse());
+    assertEquals(pool.getMemoryBudget(),pool.getPeakMemoryInUse());
+
+    // Character data is held in the pool as utf-8, with the same length and hash as from a file
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 20000; i++)
+    {
+      sb.append("\u00e9t\u00e9 ").append(i);
+    }
+    String text = sb.toString();
+    TempFileCharacterInput characters = new TempFileCharacterInput(new StringReader(text));
+    try
+    {
+      assertNotNull(characters.pooledData);
+      byte[] utf8 = text.getBytes(StandardCharsets.UTF_8);
+      assertEquals((long)utf8.length,characters.getUtf8StreamLength());
+      assertEquals((long)text.length(),characters.getCharacterLength());
+      java.security.MessageDigest md = ManifoldCF.startHash();
+      ManifoldCF.addToHash(md,text);
+      assertEquals(ManifoldCF.getHashValue(md),characters.getHashValue());
+      Reader reader = characters.getStream();
+      StringBuilder readBack = new StringBuilder();
+      char[] buffer = new char[1000];
+      while (true)
+      {
+        int amt = reader.read(buffer);
+        if (amt == -1)
+          break;
+        readBack.append(buffer,0,amt);
+      }
+      assertEquals(text,readBack.toString());
+    }
+    finally
+    {
+      characters.discard();
+    }
+    assertEquals(0L,pool.getMemoryInUse());
+  }
+
+  protected static byte[] makeData(int size)
+  {
+    byte[] data = new byte[size];
+    for (int i = 0; i < data.length; i++)
+    {
+      data[i] = (byte)(i * 7);
+    }
+    return data;
+  }
+
+  protected static void checkData(BinaryInput bi, int size)
+    throws Exception
+  {
+    assertEquals((long)size,bi.getLength());
+    InputStream is = bi.getStream();
+    byte[] buffer = new byte[10000];
+    int position = 0;
+    while (true)
+    {
+      int amt = is.read(buffer,0,buffer.length);
+      if (amt == -1)
+        break;
+      for (int i = 0; i < amt; i++)
+      {
+        assertEquals("Data at "+(position + i),(byte)((position + i) * 7),buffer[i]);
+      }
+      position += amt;
+    }
+    assertEquals(size,position);
+    bi.doneWithStream();
+  }
+
+}
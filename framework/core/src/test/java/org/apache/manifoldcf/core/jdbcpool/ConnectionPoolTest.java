@@ -0,0 +1,154 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.core.jdbcpool;
+
+import java.sql.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class ConnectionPoolTest
+{
+
+  protected static ConnectionPool makePool(String name, int maxConnections)
+    throws Exception
+  {
+    Class.forName("org.hsqldb.jdbcDriver").newInstance();
+    return new ConnectionPool("jdbc:hsqldb:mem:"+name,"sa","",maxConnections,300000L,false);
+  }
+
+  @Test
+  public void reuseAndGauges()
+    throws Exception
+  {
+    ConnectionPool pool = makePool("pooltest1",2);
+    try
+    {
+      WrappedConnection wc1 = pool.getConnection();
+      WrappedConnection wc2 = pool.getConnection();
+      assertEquals(2,pool.getOpenConnectionCount());
+      assertEquals(2,pool.getBorrowedConnectionCount());
+      assertEquals(0,pool.getIdleConnectionCount());
+
+      Connection c2 = wc2.getConnection();
+      wc2.release();
+      assertEquals(1,pool.getBorrowedConnectionCount());
+      assertEquals(1,pool.getIdleConnectionCount());
+
+      // The most recently released connection is the one handed out next
+      WrappedConnection wc3 = pool.getConnection();
+      assertSame(c2,wc3.getConnection());
+      assertEquals(2,pool.getOpenConnectionCount());
+      wc1.release();
+      wc3.release();
+
+      // Expired idle connections are closed; the rest stay
+      pool.cleanupExpiredConnections(0L);
+      assertEquals(2,pool.getIdleConnectionCount());
+      pool.cleanupExpiredConnections(Long.MAX_VALUE);
+      assertEquals(0,pool.getIdleConnectionCount());
+      assertEquals(0,pool.getOpenConnectionCount());
+      assertTrue(c2.isClosed());
+
+      assertEquals(3L,pool.getBorrowCount());
+      long total = 0L;
+      for (long count : pool.getBorrowLatencyHistogram())
+      {
+        total += count;
+      }
+      assertEquals(3L,total);
+    }
+    finally
+    {
+      pool.closePool();
+    }
+  }
+
+  @Test
+  public void waitersAreServed()
+    throws Exception
+  {
+    final ConnectionPool pool = makePool("pooltest2",1);
+    try
+    {
+      WrappedConnection wc = pool.getConnection();
+      final WrappedConnection[] result = new WrappedConnection[1];
+      final Throwable[] failure = new Throwable[1];
+      Thread waiter = new Thread()
+        {
+          public void run()
+          {
+            try
+            {
+              result[0] = pool.getConnection();
+            }
+            catch (Throwable e)
+            {
+              failure[0] = e;
+            }
+          }
+        };
+      waiter.start();
+      while (pool.getWaitingThreadCount() == 0)
+      {
+        Thread.sleep(10L);
+      }
+      Connection c = wc.getConnection();
+      wc.release();
+      waiter.join();
+      if (failure[0] != null)
+        throw new Exception("Waiter failed: "+failure[0].getMessage(),failure[0]);
+      assertSame(c,result[0].getConnection());
+      assertEquals(1L,pool.getWaitCount());
+      assertEquals(1,pool.getOpenConnectionCount());
+      result[0].release();
+
+      // Closing the pool wakes anyone still waiting
+      wc = pool.getConnection();
+      failure[0] = null;
+      waiter = new Thread()
+        {
+          public void run()
+          {
+            try
+            {
+              pool.getConnection();
+            }
+            catch (Throwable e)
+            {
+              failure[0] = e;
+            }
+          }
+        };
+      waiter.start();
+      while (pool.getWaitingThreadCount() == 0)
+      {
+        Thread.sleep(10L);
+      }
+      pool.closePool();
+      waiter.join();
+      assertTrue(failure[0] instanceof InterruptedException);
+      wc.release();
+    }
+    finally
+    {
+      pool.closePool();
+    }
+  }
+
+}
@@ -0,0 +1,84 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.core.jdbcpool;
+
+import java.sql.*;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class PreparedStatementCacheTest
+{
+
+  @Test
+  public void reuseAndEviction()
+    throws Exception
+  {
+    Class.forName("org.hsqldb.jdbcDriver").newInstance();
+    Connection connection = DriverManager.getConnection("jdbc:hsqldb:mem:statementcachetest","sa","");
+    try
+    {
+      AtomicLong generation = new AtomicLong(0L);
+      PreparedStatementCache cache = new PreparedStatementCache(2,generation);
+      String q1 = "VALUES (CAST(? AS INTEGER))";
+      String q2 = "VALUES (CAST(? AS VARCHAR(10)))";
+      String q3 = "VALUES (CAST(? AS BIGINT))";
+
+      PreparedStatement ps1 = cache.checkOut(connection,q1);
+      // A statement in use is not handed out twice
+      PreparedStatement ps1b = cache.checkOut(connection,q1);
+      assertNotSame(ps1,ps1b);
+      cache.checkIn(q1,ps1);
+      // Only one of the two is kept
+      cache.checkIn(q1,ps1b);
+      assertTrue(ps1.isClosed());
+      assertSame(ps1b,cache.checkOut(connection,q1));
+      assertEquals(1L,cache.getHitCount());
+      assertEquals(2L,cache.getMissCount());
+      cache.checkIn(q1,ps1b);
+
+      PreparedStatement ps2 = cache.checkOut(connection,q2);
+      cache.checkIn(q2,ps2);
+      // Using q1 makes q2 the least recently used, so it goes when q3 arrives
+      cache.checkIn(q1,cache.checkOut(connection,q1));
+      PreparedStatement ps3 = cache.checkOut(connection,q3);
+      cache.checkIn(q3,ps3);
+      assertTrue(ps2.isClosed());
+      assertFalse(ps1b.isClosed());
+      assertFalse(ps3.isClosed());
+
+      // A failed statement is closed, not kept
+      PreparedStatement failed = cache.checkOut(connection,q3);
+      cache.discard(failed);
+      assertTrue(failed.isClosed());
+      assertNotSame(failed,cache.checkOut(connection,q3));
+
+      // Invalidation by another cache in the same pool is noticed on the next use
+      PreparedStatementCache other = new PreparedStatementCache(2,generation);
+      other.invalidateAll();
+      cache.checkOut(connection,q2);
+      assertTrue(ps1b.isClosed());
+    }
+    finally
+    {
+      connection.close();
+    }
+  }
+
+}
@@ -0,0 +1,158 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.core.lockmanager;
+
+import org.apache.manifoldcf.core.interfaces.*;
+import java.io.*;
+import java.nio.channels.*;
+import java.util.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class TestMemoryMappedLockManager
+{
+  // The mapping of a synch directory lasts as long as the JVM, so each test gets its own directory
+  protected static int testCounter = 0;
+
+  protected File synchDir = null;
+
+  @Before
+  public void createSynchDir()
+    throws Exception
+  {
+    synchDir = new File("mmapsynchdir"+(testCounter++));
+    synchDir.mkdir();
+  }
+
+  @After
+  public void removeSynchDir()
+    throws Exception
+  {
+    if (synchDir != null)
+      ZooKeeperBase.deleteRecursively(synchDir);
+    synchDir = null;
+  }
+
+  @Test
+  public void sharedDataTest()
+    throws Exception
+  {
+    ILockManager lockManager = new MemoryMappedLockManager(synchDir);
+    ILockManager fileLockManager = new FileLockManager(synchDir);
+
+    assertNull(lockManager.readData("missing"));
+    lockManager.writeData("small","value".getBytes("UTF-8"));
+    assertEquals("value",new String(lockManager.readData("small"),"UTF-8"));
+    lockManager.writeData("small","another value".getBytes("UTF-8"));
+    assertEquals("another value",new String(lockManager.readData("small"),"UTF-8"));
+    // Small values live only in the table
+    assertNull(fileLockManager.readData("small"));
+    lockManager.writeData("small",null);
+    assertNull(lockManager.readData("small"));
+
+    // Large values go to files, and come back out of them when they shrink
+    byte[] large = new byte[10000];
+    Arrays.fill(large,(byte)'x');
+    lockManager.writeData("large",large);
+    assertArrayEquals(large,lockManager.readData("large"));
+    assertArrayEquals(large,fileLockManager.readData("large"));
+    lockManager.writeData("large","small now".getBytes("UTF-8"));
+    assertEquals("small now",new String(lockManager.readData("large"),"UTF-8"));
+    assertNull(fileLockManager.readData("large"));
+    lockManager.writeData("large",null);
+    assertNull(lockManager.readData("large"));
+
+    // Flags
+    assertFalse(lockManager.checkGlobalFlag("flag"));
+    lockManager.setGlobalFlag("flag");
+    assertTrue(lockManager.checkGlobalFlag("flag"));
+    lockManager.clearGlobalFlag("flag");
+    assertFalse(lockManager.checkGlobalFlag("flag"));
+  }
+
+  @Test
+  public void fullBucketTest()
+    throws Exception
+  {
+    // More names than the table has slots, so buckets spill
+    ILockManager lockManager = new MemoryMappedLockManager(synchDir);
+    int count = SharedDataRegion.bucketCount * SharedDataRegion.slotsPerBucket * 5 / 4;
+    for (int i = 0; i < count; i++)
+    {
+      lockManager.writeData("key"+i,Integer.toString(i).getBytes("UTF-8"));
+    }
+    for (int i = 0; i < count; i++)
+    {
+      assertEquals(Integer.toString(i),new String(lockManager.readData("key"+i),"UTF-8"));
+    }
+    // Free up slots, then overwrite names that spilled; the new values must win
+    for (int i = 0; i < count; i += 2)
+    {
+      lockManager.writeData("key"+i,null);
+    }
+    for (int i = 1; i < count; i += 2)
+    {
+      lockManager.writeData("key"+i,("new"+i).getBytes("UTF-8"));
+    }
+    for (int i = 0; i < count; i++)
+    {
+      byte[] value = lockManager.readData("key"+i);
+      if (i % 2 == 0)
+        assertNull(value);
+      else
+        assertEquals("new"+i,new String(value,"UTF-8"));
+    }
+    // Once everything is gone, no bucket is left marked as spilled
+    for (int i = 1; i < count; i += 2)
+    {
+      lockManager.writeData("key"+i,null);
+    }
+    SharedDataRegion region = ((MemoryMappedLockManager)lockManager).region;
+    for (int bucket = 0; bucket < SharedDataRegion.bucketCount; bucket++)
+    {
+      assertEquals(0,region.buffer.getInt((int)SharedDataRegion.getBucketOffset(bucket)));
+    }
+  }
+
+  @Test
+  public void interruptTest()
+    throws Exception
+  {
+    MemoryMappedLockManager lockManager = new MemoryMappedLockManager(synchDir);
+    // The same directory named another way maps the same region
+    assertSame(lockManager.region,SharedDataRegion.getRegion(new File(new File(synchDir,".."),synchDir.getName())));
+    lockManager.writeData("name","value".getBytes("UTF-8"));
+    FileChannel channel = lockManager.region.channel;
+    // An interrupted thread can still use the region, keeps its interrupt, and does not close the channel
+    Thread.currentThread().interrupt();
+    try
+    {
+      lockManager.writeData("name","other".getBytes("UTF-8"));
+      assertEquals("other",new String(lockManager.readData("name"),"UTF-8"));
+      assertTrue(Thread.currentThread().isInterrupted());
+    }
+    finally
+    {
+      Thread.interrupted();
+    }
+    assertSame(channel,lockManager.region.channel);
+    assertTrue(channel.isOpen());
+  }
+
+}
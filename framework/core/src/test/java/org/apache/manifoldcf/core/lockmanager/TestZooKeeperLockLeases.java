@@ -0,0 +1,114 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.core.lockmanager;
+
+import org.apache.manifoldcf.core.interfaces.*;
+import java.io.*;
+import java.util.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class TestZooKeeperLockLeases extends ZooKeeperBase
+{
+
+  /** Both scenarios share one ZooKeeper instance, since restarting it within one JVM is not reliable.
+  */
+  @Test
+  public void leasedLockTest()
+    throws Exception
+  {
+    ZooKeeperConnectionPool pool = new ZooKeeperConnectionPool("localhost:8348",2000);
+    try
+    {
+      revocationTest(pool);
+      multiThreadTest(pool);
+    }
+    finally
+    {
+      pool.closeAll();
+    }
+  }
+
+  protected static void revocationTest(ZooKeeperConnectionPool pool)
+    throws Exception
+  {
+    // A lease long enough that the test would time out if it were honored
+    ZooKeeperLockLeasePool leasePool = new ZooKeeperLockLeasePool(pool,600000L);
+    try
+    {
+      Long threadID = new Long(Thread.currentThread().getId());
+      LockPool leasingProcess = new LockPool(new ZooKeeperLockObjectFactory(pool,leasePool));
+      LockPool otherProcess = new LockPool(new ZooKeeperLockObjectFactory(pool));
+
+      // Leave a write lock, and take it back from the lease
+      LockGate lo = leasingProcess.getObject("leasekey");
+      TestZooKeeperLocks.enterWriteLock(threadID,lo);
+      TestZooKeeperLocks.leaveWriteLock(lo);
+      lo = leasingProcess.getObject("leasekey");
+      TestZooKeeperLocks.enterWriteLock(threadID,lo);
+      TestZooKeeperLocks.leaveWriteLock(lo);
+      // Nobody else has asked for the lock, so the lock's one watch is kept rather than set again
+      for (int i = 0; i < 10; i++)
+      {
+        lo = leasingProcess.getObject("leasekey");
+        TestZooKeeperLocks.enterWriteLock(threadID,lo);
+        TestZooKeeperLocks.leaveWriteLock(lo);
+      }
+      synchronized (leasePool)
+      {
+        assertEquals(1L,leasePool.watchesSet);
+      }
+
+      // Someone else wanting the lock must not have to wait out the lease
+      long startTime = System.currentTimeMillis();
+      lo = otherProcess.getObject("leasekey");
+      TestZooKeeperLocks.enterWriteLock(threadID,lo);
+      TestZooKeeperLocks.leaveWriteLock(lo);
+      assertTrue(System.currentTimeMillis() - startTime < 60000L);
+
+      // A read lock can be had after a write lock was leased
+      lo = leasingProcess.getObject("leasekey");
+      TestZooKeeperLocks.enterWriteLock(threadID,lo);
+      TestZooKeeperLocks.leaveWriteLock(lo);
+      lo = leasingProcess.getObject("leasekey");
+      TestZooKeeperLocks.enterReadLock(threadID,lo);
+      TestZooKeeperLocks.leaveReadLock(lo);
+    }
+    finally
+    {
+      leasePool.closeAll();
+    }
+  }
+
+  protected static void multiThreadTest(ZooKeeperConnectionPool pool)
+    throws Exception
+  {
+    // The usual reader/writer exclusion test, with short leases
+    ZooKeeperLockLeasePool leasePool = new ZooKeeperLockLeasePool(pool,1000L);
+    try
+    {
+      TestZooKeeperLocks.runTest(new ZooKeeperLockObjectFactory(pool,leasePool));
+    }
+    finally
+    {
+      leasePool.closeAll();
+    }
+  }
+
+}
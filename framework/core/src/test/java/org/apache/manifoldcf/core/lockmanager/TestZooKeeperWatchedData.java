@@ -0,0 +1,92 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.core.lockmanager;
+
+import org.apache.manifoldcf.core.interfaces.*;
+import java.io.*;
+import java.util.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class TestZooKeeperWatchedData extends ZooKeeperBase
+{
+  protected final static String resourcePath = "/org.apache.manifoldcf/resources-watchtest";
+
+  @Test
+  public void watchedDataTest()
+    throws Exception
+  {
+    // Two pools stand in for two cluster members
+    ZooKeeperConnectionPool readerPool = new ZooKeeperConnectionPool("localhost:8348",2000);
+    ZooKeeperConnectionPool writerPool = new ZooKeeperConnectionPool("localhost:8348",2000);
+    ZooKeeperConnection reader = readerPool.grab();
+    ZooKeeperConnection writer = writerPool.grab();
+    try
+    {
+      // A missing node is watched for creation
+      ZooKeeperLockManager.WatchedData record = readWatched(reader);
+      assertNull(record.getData());
+      assertTrue(record.isCurrent());
+      writer.writeData(resourcePath,"1".getBytes("UTF-8"));
+      waitForChange(record);
+
+      // An existing node is watched for changes
+      record = readWatched(reader);
+      assertEquals("1",new String(record.getData(),"UTF-8"));
+      assertTrue(record.isCurrent());
+      writer.writeData(resourcePath,"2".getBytes("UTF-8"));
+      waitForChange(record);
+
+      // ... and for deletion
+      record = readWatched(reader);
+      assertEquals("2",new String(record.getData(),"UTF-8"));
+      writer.writeData(resourcePath,null);
+      waitForChange(record);
+      assertNull(readWatched(reader).getData());
+    }
+    finally
+    {
+      readerPool.release(reader);
+      writerPool.release(writer);
+      readerPool.closeAll();
+      writerPool.closeAll();
+    }
+  }
+
+  protected static ZooKeeperLockManager.WatchedData readWatched(ZooKeeperConnection connection)
+    throws Exception
+  {
+    ZooKeeperLockManager.WatchedData record = new ZooKeeperLockManager.WatchedData("watchtest",connection);
+    record.setData(connection.readWatchedData(resourcePath,record));
+    return record;
+  }
+
+  protected static void waitForChange(ZooKeeperLockManager.WatchedData record)
+    throws Exception
+  {
+    long giveUpTime = System.currentTimeMillis() + 10000L;
+    while (record.isCurrent())
+    {
+      if (System.currentTimeMillis() > giveUpTime)
+        fail("Watch did not fire");
+      Thread.sleep(10L);
+    }
+  }
+
+}
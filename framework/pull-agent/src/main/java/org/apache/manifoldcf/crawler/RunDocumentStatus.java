@@ -84,24 +84,25 @@ public class RunDocumentStatus
       int startRowValue = Integer.parseInt(startRow);
       int rowCountValue = Integer.parseInt(rowCount);
 
-      IResultSet result = jobManager.genDocumentStatus(connectionName,filter,sortOrderValue,startRowValue,rowCountValue);
-      int i = 0;
-      while (i < result.getRowCount())
-      {
-        IResultRow row = result.getRow(i++);
-        Long scheduled = (Long)row.getValue("scheduled");
-        String action = (String)row.getValue("action");
-        Long retrycount = (Long)row.getValue("retrycount");
-        Long retrylimit = (Long)row.getValue("retrylimit");
-        UTF8Stdout.println(commaEscape((String)row.getValue("identifier"))+","+
-          row.getValue("job").toString()+","+
-          row.getValue("state").toString()+","+
-          row.getValue("status").toString()+","+
-          ((scheduled==null)?"":scheduled.toString())+","+
-          ((action==null)?"":action)+","+
-          ((retrycount==null)?"":retrycount.toString())+","+
-          ((retrylimit==null)?"":retrylimit.toString()) );
-      }
+      // Stream the rows, so that a report of any size can be printed
+      jobManager.genDocumentStatus(connectionName,filter,sortOrderValue,startRowValue,rowCountValue,new IResultRowHandler()
+        {
+          public void handleRow(IResultRow row)
+          {
+            Long scheduled = (Long)row.getValue("scheduled");
+            String action = (String)row.getValue("action");
+            Long retrycount = (Long)row.getValue("retrycount");
+            Long retrylimit = (Long)row.getValue("retrylimit");
+            UTF8Stdout.println(commaEscape((String)row.getValue("identifier"))+","+
+              row.getValue("job").toString()+","+
+              row.getValue("state").toString()+","+
+              row.getValue("status").toString()+","+
+              ((scheduled==null)?"":scheduled.toString())+","+
+              ((action==null)?"":action)+","+
+              ((retrycount==null)?"":retrycount.toString())+","+
+              ((retrylimit==null)?"":retrylimit.toString()) );
+          }
+        });
       System.err.println("Status query done");
     }
     catch (Exception e)
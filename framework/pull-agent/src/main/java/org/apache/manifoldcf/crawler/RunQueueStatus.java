@@ -87,23 +87,23 @@ public class RunQueueStatus
       int rowCountValue = Integer.parseInt(rowCount);
       BucketDescription bucketDescription = parseBucketDescription(bucketRegexp);
 
-      IResultSet result = jobManager.genQueueStatus(connectionName,filter,sortOrderValue,bucketDescription,startRowValue,rowCountValue);
-      int i = 0;
-      while (i < result.getRowCount())
-      {
-        IResultRow row = result.getRow(i++);
-        UTF8Stdout.println(commaEscape((String)row.getValue("idbucket"))+","+
-          row.getValue("inactive").toString()+","+
-          row.getValue("processing").toString()+","+
-          row.getValue("expiring").toString()+","+
-          row.getValue("deleting").toString()+","+
-          row.getValue("processready").toString()+","+
-          row.getValue("expireready").toString()+","+
-          row.getValue("processwaiting").toString()+","+
-          row.getValue("expirewaiting").toString()+","+
-          row.getValue("waitingforever").toString());
-
-      }
+      // Stream the rows, so that a report of any size can be printed
+      jobManager.genQueueStatus(connectionName,filter,sortOrderValue,bucketDescription,startRowValue,rowCountValue,new IResultRowHandler()
+        {
+          public void handleRow(IResultRow row)
+          {
+            UTF8Stdout.println(commaEscape((String)row.getValue("idbucket"))+","+
+              row.getValue("inactive").toString()+","+
+              row.getValue("processing").toString()+","+
+              row.getValue("expiring").toString()+","+
+              row.getValue("deleting").toString()+","+
+              row.getValue("processready").toString()+","+
+              row.getValue("expireready").toString()+","+
+              row.getValue("processwaiting").toString()+","+
+              row.getValue("expirewaiting").toString()+","+
+              row.getValue("waitingforever").toString());
+          }
+        });
       System.err.println("Status query done");
     }
     catch (Exception e)
@@ -79,26 +79,26 @@ public class RunSimpleHistory
       int startRowValue = Integer.parseInt(startRow);
       int rowCountValue = Integer.parseInt(rowCount);
 
-      IResultSet result = connManager.genHistorySimple(connectionName,filter,sortOrderValue,startRowValue,rowCountValue);
-      int i = 0;
-      while (i < result.getRowCount())
-      {
-        IResultRow row = result.getRow(i++);
-
-        Long startTimeValue = (Long)row.getValue("starttime");
-        Long elapsedTimeValue = (Long)row.getValue("elapsedtime");
-        String resultCodeValue = (String)row.getValue("resultcode");
-        String resultDescValue = (String)row.getValue("resultdesc");
-        Long bytesValue = (Long)row.getValue("bytes");
-
-        UTF8Stdout.println(commaEscape((String)row.getValue("identifier"))+","+
-          commaEscape((String)row.getValue("activity"))+","+
-          ((startTimeValue==null)?"":startTimeValue.toString())+","+
-          ((elapsedTimeValue==null)?"":elapsedTimeValue.toString())+","+
-          ((resultCodeValue==null)?"":commaEscape(resultCodeValue))+","+
-          ((resultDescValue==null)?"":commaEscape(resultDescValue))+","+
-          ((bytesValue==null)?"":bytesValue.toString()));
-      }
+      // Stream the rows, so that a report of any size can be printed
+      connManager.genHistorySimple(connectionName,filter,sortOrderValue,startRowValue,rowCountValue,new IResultRowHandler()
+        {
+          public void handleRow(IResultRow row)
+          {
+            Long startTimeValue = (Long)row.getValue("starttime");
+            Long elapsedTimeValue = (Long)row.getValue("elapsedtime");
+            String resultCodeValue = (String)row.getValue("resultcode");
+            String resultDescValue = (String)row.getValue("resultdesc");
+            Long bytesValue = (Long)row.getValue("bytes");
+
+            UTF8Stdout.println(commaEscape((String)row.getValue("identifier"))+","+
+              commaEscape((String)row.getValue("activity"))+","+
+              ((startTimeValue==null)?"":startTimeValue.toString())+","+
+              ((elapsedTimeValue==null)?"":elapsedTimeValue.toString())+","+
+              ((resultCodeValue==null)?"":commaEscape(resultCodeValue))+","+
+              ((resultDescValue==null)?"":commaEscape(resultDescValue))+","+
+              ((bytesValue==null)?"":bytesValue.toString()));
+          }
+        });
       System.err.println("History query done");
     }
     catch (Exception e)
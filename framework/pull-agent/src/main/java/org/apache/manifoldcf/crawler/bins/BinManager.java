@@ -234,4 +234,235 @@ public class BinManager extends org.apache.manifoldcf.core.database.BaseTable im
     }
   }
 
+  /** Get N bin values (and set next one) for each of a number of bins.  If a record does not yet exist, create it
+  * with a starting value.  All bins are handled together, with as few database round trips as possible.
+  * We expect this to happen within a transaction!!
+  *@param connectorClasses are the class names of the connectors, one per bin.
+  *@param binNames are the names of the bins (256 char max).
+  *@param newBinValues are the values to use if there is no such bin yet, one per bin.
+  *@param counts are the number of values desired, one per bin.
+  *@return the counter values, one array per bin.
+  */
+  @Override
+  public double[][] getIncrementBinValuesMultiple(String[] connectorClasses, String[] binNames, double[] newBinValues, int[] counts)
+    throws ManifoldCFException
+  {
+    double[][] returnValues = new double[binNames.length][];
+    if (binNames.length == 0)
+      return returnValues;
+
+    // Sort the requests by connector class and bin name, so that rows are always locked in the same order.
+    // This helps avoid deadlock.
+    Integer[] order = new Integer[binNames.length];
+    for (int i = 0; i < order.length; i++)
+    {
+      order[i] = new Integer(i);
+    }
+    Arrays.sort(order,new BinOrderComparator(connectorClasses,binNames));
+
+    // Lock and read all existing rows, one connector class at a time.
+    // Map from connector class to map of bin name to counter value.
+    // These are sorted, so that the values can be written back in the same order.
+    Map<String,Map<String,Double>> currentValues = new TreeMap<String,Map<String,Double>>();
+    int maxClause = maxClauseReadBinValues();
+    int i = 0;
+    while (i < order.length)
+    {
+      String connectorClass = connectorClasses[order[i].intValue()];
+      Map<String,Double> binValues = new TreeMap<String,Double>();
+      currentValues.put(connectorClass,binValues);
+      List<String> list = new ArrayList<String>();
+      String lastBinName = null;
+      while (i < order.length && connectorClasses[order[i].intValue()].equals(connectorClass))
+      {
+        String binName = binNames[order[i].intValue()];
+        i++;
+        // Skip duplicates
+        if (lastBinName != null && lastBinName.equals(binName))
+          continue;
+        lastBinName = binName;
+        if (list.size() == maxClause)
+        {
+          readBinValues(binValues,connectorClass,list);
+          list.clear();
+        }
+        list.add(binName);
+      }
+      if (list.size() > 0)
+        readBinValues(binValues,connectorClass,list);
+    }
+
+    // Now, allocate the values.  Duplicate bins are allocated in request order.
+    // Bins that were not there to begin with have to be inserted; the rest are updated.
+    Map<String,Map<String,Double>> originalValues = new HashMap<String,Map<String,Double>>();
+    for (Map.Entry<String,Map<String,Double>> entry : currentValues.entrySet())
+    {
+      originalValues.put(entry.getKey(),new HashMap<String,Double>(entry.getValue()));
+    }
+    for (Integer index : order)
+    {
+      int z = index.intValue();
+      String connectorClass = connectorClasses[z];
+      String binName = binNames[z];
+      Map<String,Double> binValues = currentValues.get(connectorClass);
+      Double value = binValues.get(binName);
+      double rval = newBinValues[z];
+      if (value != null && value.doubleValue() > rval)
+        rval = value.doubleValue();
+      double[] values = new double[counts[z]];
+      for (int j = 0; j < values.length; j++)
+      {
+        values[j] = rval;
+        rval += 1.0;
+      }
+      returnValues[z] = values;
+      binValues.put(binName,new Double(rval));
+    }
+
+    // Write the final value of each bin back, in batches
+    List<Map<String,Object>> updateMaps = new ArrayList<Map<String,Object>>();
+    List<List> updateParams = new ArrayList<List>();
+    List<Map<String,Object>> insertMaps = new ArrayList<Map<String,Object>>();
+    String updateQuery = null;
+    for (Map.Entry<String,Map<String,Double>> entry : currentValues.entrySet())
+    {
+      String connectorClass = entry.getKey();
+      Map<String,Double> original = originalValues.get(connectorClass);
+      for (Map.Entry<String,Double> binEntry : entry.getValue().entrySet())
+      {
+        String binName = binEntry.getKey();
+        Map<String,Object> map = new HashMap<String,Object>();
+        map.put(binCounterField,binEntry.getValue());
+        if (original.get(binName) != null)
+        {
+          ArrayList params = new ArrayList();
+          updateQuery = buildConjunctionClause(params,new ClauseDescription[]{
+            new UnitaryClause(connectorClassField,connectorClass),
+            new UnitaryClause(binNameField,binName)});
+          updateMaps.add(map);
+          updateParams.add(params);
+        }
+        else
+        {
+          map.put(connectorClassField,connectorClass);
+          map.put(binNameField,binName);
+          insertMaps.add(map);
+        }
+      }
+    }
+    if (updateMaps.size() > 0)
+      performUpdateMultiple(updateMaps," WHERE "+updateQuery,updateParams,null);
+    if (insertMaps.size() > 0)
+      performInsertMultiple(insertMaps,null);
+    return returnValues;
+  }
+
+  /** Get N bin values (and set next one) for each of a number of bins.  If a record does not yet exist, create it
+  * with a starting value.  All bins are handled together, with as few database round trips as possible.
+  * This method invokes its own retry-able transaction.
+  *@param connectorClasses are the class names of the connectors, one per bin.
+  *@param binNames are the names of the bins (256 char max).
+  *@param newBinValues are the values to use if there is no such bin yet, one per bin.
+  *@param counts are the number of values desired, one per bin.
+  *@return the counter values, one array per bin.
+  */
+  @Override
+  public double[][] getIncrementBinValuesMultipleInTransaction(String[] connectorClasses, String[] binNames, double[] newBinValues, int[] counts)
+    throws ManifoldCFException
+  {
+    while (true)
+    {
+      long sleepAmt = 0L;
+      beginTransaction();
+      try
+      {
+        return getIncrementBinValuesMultiple(connectorClasses, binNames, newBinValues, counts);
+      }
+      catch (Error e)
+      {
+        signalRollback();
+        throw e;
+      }
+      catch (RuntimeException e)
+      {
+        signalRollback();
+        throw e;
+      }
+      catch (ManifoldCFException e)
+      {
+        signalRollback();
+        if (e.getErrorCode() == e.DATABASE_TRANSACTION_ABORT)
+        {
+          if (Logging.perf.isDebugEnabled())
+            Logging.perf.debug("Aborted transaction obtaining docpriorities: "+e.getMessage());
+          sleepAmt = getSleepAmt();
+          continue;
+        }
+        throw e;
+      }
+      finally
+      {
+        endTransaction();
+        sleepFor(sleepAmt);
+      }
+    }
+  }
+
+  /** Find the maximum number of bin names for readBinValues().
+  */
+  protected int maxClauseReadBinValues()
+  {
+    return findConjunctionClauseMax(new ClauseDescription[]{
+      new UnitaryClause(connectorClassField,"")});
+  }
+
+  /** Read and lock the counter values for a list of bins belonging to one connector class.
+  *@param binValues is the map to fill in, keyed by bin name.
+  *@param connectorClass is the connector class.
+  *@param binNameList is the list of bin names.
+  */
+  protected void readBinValues(Map<String,Double> binValues, String connectorClass, List<String> binNameList)
+    throws ManifoldCFException
+  {
+    ArrayList params = new ArrayList();
+    String query = buildConjunctionClause(params,new ClauseDescription[]{
+      new UnitaryClause(connectorClassField,connectorClass),
+      new MultiClause(binNameField,binNameList)});
+    IResultSet result = performQuery("SELECT "+binNameField+","+binCounterField+" FROM "+getTableName()+" WHERE "+query+" FOR UPDATE",params,null,null);
+    for (int i = 0; i < result.getRowCount(); i++)
+    {
+      IResultRow row = result.getRow(i);
+      binValues.put((String)row.getValue(binNameField),(Double)row.getValue(binCounterField));
+    }
+  }
+
+  /** Comparator which orders bin request indexes by connector class and bin name.
+  */
+  protected static class BinOrderComparator implements Comparator<Integer>
+  {
+    protected final String[] connectorClasses;
+    protected final String[] binNames;
+
+    public BinOrderComparator(String[] connectorClasses, String[] binNames)
+    {
+      this.connectorClasses = connectorClasses;
+      this.binNames = binNames;
+    }
+
+    @Override
+    public int compare(Integer o1, Integer o2)
+    {
+      int i1 = o1.intValue();
+      int i2 = o2.intValue();
+      int rval = connectorClasses[i1].compareTo(connectorClasses[i2]);
+      if (rval != 0)
+        return rval;
+      rval = binNames[i1].compareTo(binNames[i2]);
+      if (rval != 0)
+        return rval;
+      // Keep duplicates in request order
+      return i1 - i2;
+    }
+  }
+
 }
@@ -65,4 +65,28 @@ public interface IBinManager
   public double[] getIncrementBinValuesInTransaction(String connectorClass, String binName, double newBinValue, int count)
     throws ManifoldCFException;
 
+  /** Get N bin values (and set next one) for each of a number of bins.  If a record does not yet exist, create it
+  * with a starting value.  All bins are handled together, with as few database round trips as possible.
+  * We expect this to happen within a transaction!!
+  *@param connectorClasses are the class names of the connectors, one per bin.
+  *@param binNames are the names of the bins (256 char max).
+  *@param newBinValues are the values to use if there is no such bin yet, one per bin.
+  *@param counts are the number of values desired, one per bin.
+  *@return the counter values, one array per bin.
+  */
+  public double[][] getIncrementBinValuesMultiple(String[] connectorClasses, String[] binNames, double[] newBinValues, int[] counts)
+    throws ManifoldCFException;
+
+  /** Get N bin values (and set next one) for each of a number of bins.  If a record does not yet exist, create it
+  * with a starting value.  All bins are handled together, with as few database round trips as possible.
+  * This method invokes its own retry-able transaction.
+  *@param connectorClasses are the class names of the connectors, one per bin.
+  *@param binNames are the names of the bins (256 char max).
+  *@param newBinValues are the values to use if there is no such bin yet, one per bin.
+  *@param counts are the number of values desired, one per bin.
+  *@return the counter values, one array per bin.
+  */
+  public double[][] getIncrementBinValuesMultipleInTransaction(String[] connectorClasses, String[] binNames, double[] newBinValues, int[] counts)
+    throws ManifoldCFException;
+
 }
@@ -1128,6 +1128,11 @@ public interface IJobManager
   public void finishJobs()
     throws ManifoldCFException;
 
+  /** Merge the job document count deltas that have built up for each job, if job document counts are being kept.
+  */
+  public void compactJobCounts()
+    throws ManifoldCFException;
+
   /** Reset eligible jobs either back to the "inactive" state, or make them active again.  The
   * latter will occur if the cleanup phase of the job generated more pending documents.
   *
@@ -1245,6 +1250,19 @@ public interface IJobManager
     int startRow, int rowCount)
     throws ManifoldCFException;
 
+  /** Run a 'document status' report, streaming the rows to a handler rather than building a resultset.
+  * Memory use does not depend on the number of rows in the report.
+  *@param connectionName is the name of the connection.
+  *@param filterCriteria are the criteria used to limit the records considered for the report.
+  *@param sortOrder is the specified sort order of the final report.
+  *@param startRow is the first row to include.
+  *@param rowCount is the number of rows to include, or -1 for all of them.
+  *@param handler receives the rows, which have the same columns as the rows returned by the resultset form of this method.
+  */
+  public void genDocumentStatus(String connectionName, StatusFilterCriteria filterCriteria, SortOrder sortOrder,
+    int startRow, int rowCount, IResultRowHandler handler)
+    throws ManifoldCFException;
+
   /** Run a 'queue status' report.
   *@param connectionName is the name of the connection.
   *@param filterCriteria are the criteria used to limit the records considered for the report.
@@ -1258,4 +1276,18 @@ public interface IJobManager
   public IResultSet genQueueStatus(String connectionName, StatusFilterCriteria filterCriteria, SortOrder sortOrder,
     BucketDescription idBucketDescription, int startRow, int rowCount)
     throws ManifoldCFException;
+
+  /** Run a 'queue status' report, streaming the rows to a handler rather than building a resultset.
+  * Memory use does not depend on the number of rows in the report.
+  *@param connectionName is the name of the connection.
+  *@param filterCriteria are the criteria used to limit the records considered for the report.
+  *@param sortOrder is the specified sort order of the final report.
+  *@param idBucketDescription is the bucket description for generating the identifier class.
+  *@param startRow is the first row to include.
+  *@param rowCount is the number of rows to include, or -1 for all of them.
+  *@param handler receives the rows, which have the same columns as the rows returned by the resultset form of this method.
+  */
+  public void genQueueStatus(String connectionName, StatusFilterCriteria filterCriteria, SortOrder sortOrder,
+    BucketDescription idBucketDescription, int startRow, int rowCount, IResultRowHandler handler)
+    throws ManifoldCFException;
 }
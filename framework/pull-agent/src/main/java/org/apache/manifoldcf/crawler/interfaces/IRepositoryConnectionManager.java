@@ -133,6 +133,15 @@ public interface IRepositoryConnectionManager
   public void cleanUpHistoryData(long timeCutoff)
     throws ManifoldCFException;
 
+  /** Merge the history rollups for buckets that start within a time range.
+  * Rollups accumulate one row per bucket for every batch of history written; this brings them back to one row per
+  * bucket.  This does nothing unless rollups are turned on.
+  *@param startTime is the start of the range.
+  *@param endTime is the end of the range.
+  */
+  public void compactHistoryRollups(long startTime, long endTime)
+    throws ManifoldCFException;
+
   // Activities the Connector Framework records
 
   /** Start a job */
@@ -197,6 +206,19 @@ public interface IRepositoryConnectionManager
   public IResultSet genHistorySimple(String connectionName, FilterCriteria criteria, SortOrder sort, int startRow, int maxRowCount)
     throws ManifoldCFException;
 
+  /** Generate a simple history report, streaming the rows to a handler rather than building a resultset.
+  * Memory use does not depend on the number of rows in the report.
+  *@param connectionName is the name of the connection.
+  *@param criteria is the filtering criteria, which selects the records of interest.
+  *@param sort is the sorting order, which can specify sort based on the result columns.
+  *@param startRow is the first row to include (beginning with 0)
+  *@param maxRowCount is the maximum number of rows to include, or -1 for all of them.
+  *@param handler receives the rows, which have the same columns as the rows returned by the resultset form of this method.
+  */
+  public void genHistorySimple(String connectionName, FilterCriteria criteria, SortOrder sort, int startRow, int maxRowCount,
+    IResultRowHandler handler)
+    throws ManifoldCFException;
+
   /** Count the number of rows specified by a given set of criteria.  This can be used to make decisions
   * as to whether a query based on those rows will complete in an acceptable amount of time.
   *@param connectionName is the name of the connection.
@@ -0,0 +1,430 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.crawler.jobs;
+
+import org.apache.manifoldcf.core.interfaces.*;
+import org.apache.manifoldcf.crawler.interfaces.*;
+import java.util.*;
+
+/** This class manages the "jobcounts" table, which keeps running totals of the document counts of each job, so that
+* job status requests don't have to count the job queue.
+* Rows are deltas: the job queue adds one whenever its changes move documents into or out of the total, outstanding,
+* or processed counts of a job, in the same transaction as the change, and readers always sum.  That keeps writers
+* from ever contending for the same rows.  The finisher thread periodically merges each job's deltas into a single
+* row.  Since that thread runs in every process, merging is done under a cross-process lock.
+* The counts are only kept, and used, when they are turned on.
+*
+* <br><br>
+* <b>jobcounts</b>
+* <table border="1" cellpadding="3" cellspacing="0" summary="">
+* <tr class="TableHeadingColor">
+* <th>Field</th><th>Type</th><th>Description&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;</th>
+* <tr><td>id</td><td>BIGINT</td><td>Primary Key</td></tr>
+* <tr><td>ownerid</td><td>BIGINT</td><td>Reference:jobs.id</td></tr>
+* <tr><td>totalcount</td><td>BIGINT</td><td></td></tr>
+* <tr><td>outstandingcount</td><td>BIGINT</td><td></td></tr>
+* <tr><td>processedcount</td><td>BIGINT</td><td></td></tr>
+* </table>
+* <br><br>
+*
+*/
+public class JobCountManager extends org.apache.manifoldcf.core.database.BaseTable
+{
+  public static final String _rcsid = "@(#)$Id$";
+
+  // Schema
+  public final static String idField = "id";
+  public final static String ownerIDField = "ownerid";
+  public final static String totalCountField = "totalcount";
+  public final static String outstandingCountField = "outstandingcount";
+  public final static String processedCountField = "processedcount";
+
+  /** Whether job document counts are kept in this table and used for job status */
+  protected final static String jobCountersProperty = "org.apache.manifoldcf.crawler.jobcounters";
+
+  /** The lock that keeps processes from merging the same deltas at once */
+  protected final static String compactionLock = "_JOBCOUNTCOMPACT_";
+
+  /** Thread context */
+  protected final IThreadContext threadContext;
+  /** Lock manager */
+  protected final ILockManager lockManager;
+
+  /** Constructor.
+  *@param threadContext is the thread context.
+  *@param database is the database instance.
+  */
+  public JobCountManager(IThreadContext threadContext, IDBInterface database)
+    throws ManifoldCFException
+  {
+    super(database,"jobcounts");
+    this.threadContext = threadContext;
+    this.lockManager = LockManagerFactory.make(threadContext);
+  }
+
+  /** Install or upgrade.
+  *@param ownerTable is the name of the table that owns this one.
+  *@param owningTablePrimaryKey is the primary key of the owning table.
+  */
+  public void install(String ownerTable, String owningTablePrimaryKey)
+    throws ManifoldCFException
+  {
+    // Standard practice: outer loop
+    while (true)
+    {
+      Map existing = getTableSchema(null,null);
+      if (existing == null)
+      {
+        HashMap map = new HashMap();
+        map.put(idField,new ColumnDescription("BIGINT",true,false,null,null,false));
+        map.put(ownerIDField,new ColumnDescription("BIGINT",false,false,ownerTable,owningTablePrimaryKey,false));
+        map.put(totalCountField,new ColumnDescription("BIGINT",false,false,null,null,false));
+        map.put(outstandingCountField,new ColumnDescription("BIGINT",false,false,null,null,false));
+        map.put(processedCountField,new ColumnDescription("BIGINT",false,false,null,null,false));
+        performCreate(map,null);
+      }
+      else
+      {
+        // Upgrade code goes here, as needed
+      }
+
+      // Index management
+      IndexDescription ownerIndex = new IndexDescription(false,new String[]{ownerIDField});
+
+      // Get rid of indexes that shouldn't be there
+      Map indexes = getTableIndexes(null,null);
+      Iterator iter = indexes.keySet().iterator();
+      while (iter.hasNext())
+      {
+        String indexName = (String)iter.next();
+        IndexDescription id = (IndexDescription)indexes.get(indexName);
+
+        if (ownerIndex != null && id.equals(ownerIndex))
+          ownerIndex = null;
+        else if (indexName.indexOf("_pkey") == -1)
+          // This index shouldn't be here; drop it
+          performRemoveIndex(indexName);
+      }
+
+      // Add the ones we didn't find
+      if (ownerIndex != null)
+        performAddIndex(null,ownerIndex);
+
+      break;
+    }
+  }
+
+  /** Uninstall.
+  */
+  public void deinstall()
+    throws ManifoldCFException
+  {
+    performDrop(null);
+  }
+
+  /** Check whether job document counts are kept and used.
+  */
+  public boolean countersEnabled()
+    throws ManifoldCFException
+  {
+    return lockManager.getSharedConfiguration().getBooleanProperty(jobCountersProperty,false);
+  }
+
+  /** Check whether there are any counts at all.
+  *@return true if there are none.
+  */
+  public boolean isEmpty()
+    throws ManifoldCFException
+  {
+    IResultSet set = performQuery("SELECT "+idField+" FROM "+getTableName()+" "+constructOffsetLimitClause(0,1),null,null,null,1);
+    return set.getRowCount() == 0;
+  }
+
+  /** Delete all counts.
+  */
+  public void clear()
+    throws ManifoldCFException
+  {
+    performDelete("",null,null);
+  }
+
+  /** Delete the counts for a job.
+  *@param jobID is the job id.
+  */
+  public void deleteRows(Long jobID)
+    throws ManifoldCFException
+  {
+    ArrayList params = new ArrayList();
+    String query = buildConjunctionClause(params,new ClauseDescription[]{
+      new UnitaryClause(ownerIDField,jobID)});
+    performDelete("WHERE "+query,params,null);
+  }
+
+  /** Read the counts for a set of jobs.
+  *@param jobIDs are the job ids.
+  *@return a map from job id to its counts.  Jobs that have never had any documents are not included.
+  */
+  public Map<Long,JobCounts> readCounts(List<Long> jobIDs)
+    throws ManifoldCFException
+  {
+    Map<Long,JobCounts> rval = new HashMap<Long,JobCounts>();
+    int maxIn = getMaxInClause();
+    for (int i = 0; i < jobIDs.size(); i += maxIn)
+    {
+      ArrayList params = new ArrayList();
+      String query = buildConjunctionClause(params,new ClauseDescription[]{
+        new MultiClause(ownerIDField,jobIDs.subList(i,Math.min(jobIDs.size(),i + maxIn)))});
+      IResultSet set = performQuery("SELECT "+ownerIDField+",SUM("+totalCountField+") AS "+totalCountField+
+        ",SUM("+outstandingCountField+") AS "+outstandingCountField+",SUM("+processedCountField+") AS "+processedCountField+
+        " FROM "+getTableName()+" WHERE "+query+" GROUP BY "+ownerIDField,params,null,null);
+      for (int j = 0; j < set.getRowCount(); j++)
+      {
+        IResultRow row = set.getRow(j);
+        JobCounts counts = new JobCounts();
+        counts.add(asLong(row.getValue(totalCountField)),asLong(row.getValue(outstandingCountField)),
+          asLong(row.getValue(processedCountField)));
+        rval.put((Long)row.getValue(ownerIDField),counts);
+      }
+    }
+    return rval;
+  }
+
+  /** Count the documents already in the job queue.
+  * This is used to populate the counts when they are turned on.
+  *@param jobQueueTableName is the name of the job queue table.
+  */
+  public void rebuild(String jobQueueTableName)
+    throws ManifoldCFException
+  {
+    IResultSet set = performQuery("SELECT "+JobQueue.jobIDField+","+JobQueue.statusField+","+
+      constructCountClause(JobQueue.idField)+" AS doccount FROM "+jobQueueTableName+
+      " GROUP BY "+JobQueue.jobIDField+","+JobQueue.statusField,null,null,null);
+    Map<Long,JobCounts> deltas = new HashMap<Long,JobCounts>();
+    for (int i = 0; i < set.getRowCount(); i++)
+    {
+      IResultRow row = set.getRow(i);
+      noteChange(deltas,(Long)row.getValue(JobQueue.jobIDField),-1,
+        JobQueue.stringToStatus((String)row.getValue(JobQueue.statusField)),asLong(row.getValue("doccount")));
+    }
+    writeDeltas(deltas);
+  }
+
+  /** Insert delta rows.
+  *@param deltas are the changes to the counts, keyed by job id.  Jobs whose counts don't change are skipped.
+  */
+  public void writeDeltas(Map<Long,JobCounts> deltas)
+    throws ManifoldCFException
+  {
+    List<Map<String,Object>> maps = new ArrayList<Map<String,Object>>(deltas.size());
+    for (Map.Entry<Long,JobCounts> entry : deltas.entrySet())
+    {
+      JobCounts counts = entry.getValue();
+      if (counts.isZero())
+        continue;
+      Map<String,Object> map = new HashMap<String,Object>();
+      map.put(idField,new Long(IDFactory.make(threadContext)));
+      map.put(ownerIDField,entry.getKey());
+      map.put(totalCountField,new Long(counts.totalCount));
+      map.put(outstandingCountField,new Long(counts.outstandingCount));
+      map.put(processedCountField,new Long(counts.processedCount));
+      maps.add(map);
+    }
+    if (maps.size() == 0)
+      return;
+    if (maps.size() == 1)
+      performInsert((HashMap)maps.get(0),null);
+    else
+      performInsertMultiple(maps,null);
+  }
+
+  /** Merge the deltas of every job that has more than one, so each job is a single row again.
+  * Deltas that arrive while this is going on are left alone, and picked up next time.
+  * Each job is merged under a cross-process write lock; otherwise two processes could both read the same deltas,
+  * and both write back their sum.
+  */
+  public void compact()
+    throws ManifoldCFException
+  {
+    IResultSet set = performQuery("SELECT "+ownerIDField+","+constructCountClause(idField)+" AS rowcount FROM "+
+      getTableName()+" GROUP BY "+ownerIDField,null,null,null);
+    for (int i = 0; i < set.getRowCount(); i++)
+    {
+      IResultRow row = set.getRow(i);
+      if (asLong(row.getValue("rowcount")) < 2L)
+        continue;
+      Long jobID = (Long)row.getValue(ownerIDField);
+      // One lock name for all jobs, so lock managers that keep a file or node per name don't accumulate them
+      lockManager.enterWriteLock(compactionLock);
+      try
+      {
+        compactJob(jobID);
+      }
+      finally
+      {
+        lockManager.leaveWriteLock(compactionLock);
+      }
+    }
+  }
+
+  /** Merge the deltas of one job.  Call only while holding the compaction lock.
+  */
+  protected void compactJob(Long jobID)
+    throws ManifoldCFException
+  {
+    beginTransaction();
+    try
+    {
+      ArrayList params = new ArrayList();
+      String query = buildConjunctionClause(params,new ClauseDescription[]{
+        new UnitaryClause(ownerIDField,jobID)});
+      IResultSet set = performQuery("SELECT "+idField+","+totalCountField+","+outstandingCountField+","+processedCountField+
+        " FROM "+getTableName()+" WHERE "+query,params,null,null);
+      if (set.getRowCount() < 2)
+        return;
+
+      JobCounts merged = new JobCounts();
+      List<Long> deleteList = new ArrayList<Long>(set.getRowCount());
+      for (int i = 0; i < set.getRowCount(); i++)
+      {
+        IResultRow row = set.getRow(i);
+        merged.add(asLong(row.getValue(totalCountField)),asLong(row.getValue(outstandingCountField)),
+          asLong(row.getValue(processedCountField)));
+        deleteList.add((Long)row.getValue(idField));
+      }
+      int maxClause = getMaxInClause();
+      for (int i = 0; i < deleteList.size(); i += maxClause)
+      {
+        ArrayList deleteParams = new ArrayList();
+        String deleteQuery = buildConjunctionClause(deleteParams,new ClauseDescription[]{
+          new MultiClause(idField,deleteList.subList(i,Math.min(deleteList.size(),i + maxClause)))});
+        performDelete("WHERE "+deleteQuery,deleteParams,null);
+      }
+      // A job whose deltas cancel out needs no row at all
+      Map<Long,JobCounts> replacement = new HashMap<Long,JobCounts>();
+      replacement.put(jobID,merged);
+      writeDeltas(replacement);
+    }
+    catch (ManifoldCFException e)
+    {
+      signalRollback();
+      throw e;
+    }
+    catch (Error e)
+    {
+      signalRollback();
+      throw e;
+    }
+    finally
+    {
+      endTransaction();
+    }
+  }
+
+  /** Add the effect of some job queue rows changing status to a set of deltas.
+  *@param deltas are the deltas, keyed by job id.
+  *@param jobID is the job the rows belong to.
+  *@param oldStatus is the rows' old status, or -1 if they are new.
+  *@param newStatus is the rows' new status, or -1 if they are being deleted.
+  *@param count is the number of rows.
+  */
+  public static void noteChange(Map<Long,JobCounts> deltas, Long jobID, int oldStatus, int newStatus, long count)
+  {
+    long totalDelta = ((newStatus == -1)?0L:count) - ((oldStatus == -1)?0L:count);
+    long outstandingDelta = (isOutstanding(newStatus)?count:0L) - (isOutstanding(oldStatus)?count:0L);
+    long processedDelta = (isProcessed(newStatus)?count:0L) - (isProcessed(oldStatus)?count:0L);
+    if (totalDelta == 0L && outstandingDelta == 0L && processedDelta == 0L)
+      return;
+    JobCounts counts = deltas.get(jobID);
+    if (counts == null)
+    {
+      counts = new JobCounts();
+      deltas.put(jobID,counts);
+    }
+    counts.add(totalDelta,outstandingDelta,processedDelta);
+  }
+
+  /** Check whether a job queue status counts as outstanding.  This must agree with the outstanding clause the job
+  * manager counts the queue with.
+  */
+  public static boolean isOutstanding(int status)
+  {
+    switch (status)
+    {
+    case JobQueue.STATUS_PENDING:
+    case JobQueue.STATUS_ACTIVE:
+    case JobQueue.STATUS_ACTIVENEEDRESCAN:
+    case JobQueue.STATUS_PENDINGPURGATORY:
+    case JobQueue.STATUS_ACTIVEPURGATORY:
+    case JobQueue.STATUS_ACTIVENEEDRESCANPURGATORY:
+      return true;
+    default:
+      return false;
+    }
+  }
+
+  /** Check whether a job queue status counts as processed.  This must agree with the processed clause the job
+  * manager counts the queue with.
+  */
+  public static boolean isProcessed(int status)
+  {
+    switch (status)
+    {
+    case JobQueue.STATUS_COMPLETE:
+    case JobQueue.STATUS_UNCHANGED:
+    case JobQueue.STATUS_PURGATORY:
+    case JobQueue.STATUS_PENDINGPURGATORY:
+    case JobQueue.STATUS_ACTIVEPURGATORY:
+    case JobQueue.STATUS_ACTIVENEEDRESCANPURGATORY:
+      return true;
+    default:
+      return false;
+    }
+  }
+
+  /** Convert a database value to a long.  Sums come back as different types from different databases.
+  */
+  protected static long asLong(Object value)
+  {
+    if (value instanceof Number)
+      return ((Number)value).longValue();
+    return new java.math.BigDecimal(value.toString()).longValue();
+  }
+
+  /** The document counts of a job, or changes to them.
+  */
+  public static class JobCounts
+  {
+    public long totalCount = 0L;
+    public long outstandingCount = 0L;
+    public long processedCount = 0L;
+
+    public void add(long totalCount, long outstandingCount, long processedCount)
+    {
+      this.totalCount += totalCount;
+      this.outstandingCount += outstandingCount;
+      this.processedCount += processedCount;
+    }
+
+    public boolean isZero()
+    {
+      return totalCount == 0L && outstandingCount == 0L && processedCount == 0L;
+    }
+  }
+
+}
@@ -41,6 +41,11 @@ public class JobManager implements IJobManager
   protected static final String jobResumeLock = "_JOBRESUME_";
   protected static final String hopLock = "_HOPLOCK_";
 
+  /** The number of rows to read at a time for streamed reports */
+  protected static final int reportFetchSize = 1000;
+  /** The number of job descriptions to hold in memory at a time while exporting */
+  protected static final int exportBatchSize = 20;
+
   // Member variables
   protected final IDBInterface database;
   protected final IOutputConnectionManager outputMgr;
@@ -60,7 +65,7 @@ public class JobManager implements IJobManager
   protected final HopCount hopCount;
   protected final Carrydown carryDown;
   protected final EventManager eventManager;
-
+  protected final JobCountManager jobCountManager;
 
   protected static Random random = new Random();
 
@@ -78,6 +83,7 @@ public class JobManager implements IJobManager
     hopCount = new HopCount(threadContext,database);
     carryDown = new Carrydown(database);
     eventManager = new EventManager(database);
+    jobCountManager = new JobCountManager(threadContext,database);
     outputMgr = OutputConnectionManagerFactory.make(threadContext);
     connectionMgr = RepositoryConnectionManagerFactory.make(threadContext);
     notificationMgr = NotificationConnectionManagerFactory.make(threadContext);
@@ -125,74 +131,115 @@ public class JobManager implements IJobManager
   {
     // Write a version indicator
     ManifoldCF.writeDword(os,8);
-    // Get the job list
-    IJobDescription[] list = getAllJobs();
-    // Write the number of authorities
-    ManifoldCF.writeDword(os,list.length);
-    // Loop through the list and write the individual repository connection info
-    for (IJobDescription job : list)
-    {
-      ManifoldCF.writeString(os,job.getConnectionName());
-      ManifoldCF.writeString(os,job.getDescription());
-      ManifoldCF.writeDword(os,job.getType());
-      ManifoldCF.writeDword(os,job.getStartMethod());
-      ManifoldCF.writeLong(os,job.getInterval());
-      ManifoldCF.writeLong(os,job.getMaxInterval());
-      ManifoldCF.writeLong(os,job.getExpiration());
-      ManifoldCF.writeLong(os,job.getReseedInterval());
-      ManifoldCF.writeDword(os,job.getPriority());
-      ManifoldCF.writeDword(os,job.getHopcountMode());
-      ManifoldCF.writeString(os,job.getSpecification().toXML());
-
-      // Write schedule
-      int recCount = job.getScheduleRecordCount();
-      ManifoldCF.writeDword(os,recCount);
-      for (int j = 0; j < recCount; j++)
+    // Only the job identifiers are held in memory for the whole export; the job descriptions themselves
+    // are loaded and written a batch at a time.  The jobs read lock is held only while the list is read and
+    // while each batch is loaded, never while writing to the stream, which may be slow.
+    Long[] ids;
+    lockManager.enterReadLock(Jobs.jobsLock);
+    try
+    {
+      ids = jobs.getAllIdentifiers();
+    }
+    finally
+    {
+      lockManager.leaveReadLock(Jobs.jobsLock);
+    }
+    // Write the number of jobs
+    ManifoldCF.writeDword(os,ids.length);
+    for (int i = 0; i < ids.length; i += exportBatchSize)
+    {
+      int length = Math.min(exportBatchSize,ids.length - i);
+      Long[] batchIDs = new Long[length];
+      boolean[] readOnlies = new boolean[length];
+      for (int j = 0; j < length; j++)
       {
-        ScheduleRecord sr = job.getScheduleRecord(j);
-        writeEnumeratedValues(os,sr.getDayOfWeek());
-        writeEnumeratedValues(os,sr.getMonthOfYear());
-        writeEnumeratedValues(os,sr.getDayOfMonth());
-        writeEnumeratedValues(os,sr.getYear());
-        writeEnumeratedValues(os,sr.getHourOfDay());
-        writeEnumeratedValues(os,sr.getMinutesOfHour());
-        ManifoldCF.writeString(os,sr.getTimezone());
-        ManifoldCF.writeLong(os,sr.getDuration());
-        ManifoldCF.writeByte(os,sr.getRequestMinimum()?1:0);
-      }
-
-      // Write hop count filters
-      Map filters = job.getHopCountFilters();
-      ManifoldCF.writeDword(os,filters.size());
-      Iterator iter = filters.keySet().iterator();
-      while (iter.hasNext())
+        batchIDs[j] = ids[i + j];
+        readOnlies[j] = true;
+      }
+      IJobDescription[] batch;
+      lockManager.enterReadLock(Jobs.jobsLock);
+      try
       {
-        String linkType = (String)iter.next();
-        Long hopcount = (Long)filters.get(linkType);
-        ManifoldCF.writeString(os,linkType);
-        ManifoldCF.writeLong(os,hopcount);
+        batch = jobs.loadMultiple(batchIDs,readOnlies);
       }
-      
-      // Write pipeline information
-      ManifoldCF.writeDword(os,job.countPipelineStages());
-      for (int j = 0; j < job.countPipelineStages(); j++)
+      finally
       {
-        ManifoldCF.writeSdword(os,job.getPipelineStagePrerequisite(j));
-        ManifoldCF.writeByte(os,job.getPipelineStageIsOutputConnection(j)?0x1:0x0);
-        ManifoldCF.writeString(os,job.getPipelineStageConnectionName(j));
-        ManifoldCF.writeString(os,job.getPipelineStageDescription(j));
-        ManifoldCF.writeString(os,job.getPipelineStageSpecification(j).toXML());
+        lockManager.leaveReadLock(Jobs.jobsLock);
       }
-      
-      // Write notification information
-      ManifoldCF.writeDword(os,job.countNotifications());
-      for (int j = 0; j < job.countNotifications(); j++)
+      for (int j = 0; j < length; j++)
       {
-        ManifoldCF.writeString(os,job.getNotificationConnectionName(j));
-        ManifoldCF.writeString(os,job.getNotificationDescription(j));
-        ManifoldCF.writeString(os,job.getNotificationSpecification(j).toXML());
+        // The job count has already been written, so a job deleted since the list was read can't just be left out
+        if (batch[j] == null)
+          throw new ManifoldCFException("Job "+batchIDs[j]+" was deleted during configuration export; please export again");
+        exportJob(os,batch[j]);
       }
+    }
+  }
 
+  /** Write a single job's configuration.
+  */
+  protected static void exportJob(java.io.OutputStream os, IJobDescription job)
+    throws java.io.IOException, ManifoldCFException
+  {
+    ManifoldCF.writeString(os,job.getConnectionName());
+    ManifoldCF.writeString(os,job.getDescription());
+    ManifoldCF.writeDword(os,job.getType());
+    ManifoldCF.writeDword(os,job.getStartMethod());
+    ManifoldCF.writeLong(os,job.getInterval());
+    ManifoldCF.writeLong(os,job.getMaxInterval());
+    ManifoldCF.writeLong(os,job.getExpiration());
+    ManifoldCF.writeLong(os,job.getReseedInterval());
+    ManifoldCF.writeDword(os,job.getPriority());
+    ManifoldCF.writeDword(os,job.getHopcountMode());
+    ManifoldCF.writeString(os,job.getSpecification().toXML());
+
+    // Write schedule
+    int recCount = job.getScheduleRecordCount();
+    ManifoldCF.writeDword(os,recCount);
+    for (int j = 0; j < recCount; j++)
+    {
+      ScheduleRecord sr = job.getScheduleRecord(j);
+      writeEnumeratedValues(os,sr.getDayOfWeek());
+      writeEnumeratedValues(os,sr.getMonthOfYear());
+      writeEnumeratedValues(os,sr.getDayOfMonth());
+      writeEnumeratedValues(os,sr.getYear());
+      writeEnumeratedValues(os,sr.getHourOfDay());
+      writeEnumeratedValues(os,sr.getMinutesOfHour());
+      ManifoldCF.writeString(os,sr.getTimezone());
+      ManifoldCF.writeLong(os,sr.getDuration());
+      ManifoldCF.writeByte(os,sr.getRequestMinimum()?1:0);
+    }
+
+    // Write hop count filters
+    Map filters = job.getHopCountFilters();
+    ManifoldCF.writeDword(os,filters.size());
+    Iterator iter = filters.keySet().iterator();
+    while (iter.hasNext())
+    {
+      String linkType = (String)iter.next();
+      Long hopcount = (Long)filters.get(linkType);
+      ManifoldCF.writeString(os,linkType);
+      ManifoldCF.writeLong(os,hopcount);
+    }
+    
+    // Write pipeline information
+    ManifoldCF.writeDword(os,job.countPipelineStages());
+    for (int j = 0; j < job.countPipelineStages(); j++)
+    {
+      ManifoldCF.writeSdword(os,job.getPipelineStagePrerequisite(j));
+      ManifoldCF.writeByte(os,job.getPipelineStageIsOutputConnection(j)?0x1:0x0);
+      ManifoldCF.writeString(os,job.getPipelineStageConnectionName(j));
+      ManifoldCF.writeString(os,job.getPipelineStageDescription(j));
+      ManifoldCF.writeString(os,job.getPipelineStageSpecification(j).toXML());
+    }
+    
+    // Write notification information
+    ManifoldCF.writeDword(os,job.countNotifications());
+    for (int j = 0; j < job.countNotifications(); j++)
+    {
+      ManifoldCF.writeString(os,job.getNotificationConnectionName(j));
+      ManifoldCF.writeString(os,job.getNotificationDescription(j));
+      ManifoldCF.writeString(os,job.getNotificationSpecification(j).toXML());
     }
   }
 
@@ -3411,7 +3458,7 @@ public class JobManager implements IJobManager
             // Grab the status
             int status = jobQueue.stringToStatus((String)row.getValue(jobQueue.statusField));
             // Update the jobqueue table
-            jobQueue.updateCompletedRecord(dd.getID(),status);
+            jobQueue.updateCompletedRecord(dd.getJobID(),dd.getID(),status);
           }
         }
         TrackerClass.notePrecommit();
@@ -3574,7 +3621,7 @@ public class JobManager implements IJobManager
             // Grab the status
             int status = jobQueue.stringToStatus((String)row.getValue(jobQueue.statusField));
             // Update the jobqueue table
-            boolean didDelete = jobQueue.updateOrHopcountRemoveRecord(dd.getID(),status);
+            boolean didDelete = jobQueue.updateOrHopcountRemoveRecord(dd.getJobID(),dd.getID(),status);
             if (didDelete)
             {
               deleteList.add(dd.getDocumentIdentifierHash());
@@ -4729,6 +4776,19 @@ public class JobManager implements IJobManager
           Logging.perf.debug("Waited "+new Long(System.currentTimeMillis()-startTime).toString()+" ms to start adding "+Integer.toString(reorderedDocIDHashes.length)+
           " initial docs and hopcounts for job "+jobID.toString());
 
+        long executeTime = overrideSchedule?0L:-1L;
+
+        // The rows to update and insert are gathered up, and written in batches once we know what they all are
+        List<Long> existingRecordIDs = new ArrayList<Long>();
+        List<Integer> existingStatuses = new ArrayList<Integer>();
+        List<Long> existingCheckTimes = new ArrayList<Long>();
+        List<IPriorityCalculator> existingPriorities = new ArrayList<IPriorityCalculator>();
+        List<String[]> existingPrereqs = new ArrayList<String[]>();
+        List<String> newDocIDHashes = new ArrayList<String>();
+        List<String> newDocIDs = new ArrayList<String>();
+        List<IPriorityCalculator> newPriorities = new ArrayList<IPriorityCalculator>();
+        List<String[]> newPrereqs = new ArrayList<String[]>();
+
         // Go through document id's one at a time, in order - mainly to prevent deadlock as much as possible.  Search for any existing row in jobqueue first (for update)
         int z = 0;
         while (z < reorderedDocIDHashes.length)
@@ -4753,29 +4813,42 @@ public class JobManager implements IJobManager
 
           IResultSet set = database.performQuery(sb.toString(),list,null,null);
 
-          long executeTime = overrideSchedule?0L:-1L;
-
           if (set.getRowCount() > 0)
           {
             // Found a row, and it is now locked.
             IResultRow row = set.getRow(0);
 
             // Decode the row
-            Long rowID = (Long)row.getValue(jobQueue.idField);
-            int status = jobQueue.stringToStatus((String)row.getValue(jobQueue.statusField));
-            Long checkTimeValue = (Long)row.getValue(jobQueue.checkTimeField);
-
-            jobQueue.updateExistingRecordInitial(rowID,status,checkTimeValue,executeTime,docPriority,docPrereqs,processID);
+            existingRecordIDs.add((Long)row.getValue(jobQueue.idField));
+            existingStatuses.add(new Integer(jobQueue.stringToStatus((String)row.getValue(jobQueue.statusField))));
+            existingCheckTimes.add((Long)row.getValue(jobQueue.checkTimeField));
+            existingPriorities.add(docPriority);
+            existingPrereqs.add(docPrereqs);
           }
           else
           {
-            // Not found.  Attempt an insert instead.  This may fail due to constraints, but if this happens, the whole transaction will be retried.
-            jobQueue.insertNewRecordInitial(jobID,docIDHash,docID,docPriority,executeTime,docPrereqs,processID);
+            // Not found.  Queue up an insert instead.
+            newDocIDHashes.add(docIDHash);
+            newDocIDs.add(docID);
+            newPriorities.add(docPriority);
+            newPrereqs.add(docPrereqs);
           }
 
           z++;
         }
 
+        // Write everything in batches.  The inserts may fail due to constraints, but if this happens, the whole transaction will be retried.
+        int[] statusArray = new int[existingStatuses.size()];
+        for (int j = 0; j < statusArray.length; j++)
+        {
+          statusArray[j] = existingStatuses.get(j).intValue();
+        }
+        jobQueue.updateExistingRecordInitialMultiple(jobID,existingRecordIDs.toArray(new Long[0]),statusArray,
+          existingCheckTimes.toArray(new Long[0]),executeTime,existingPriorities.toArray(new IPriorityCalculator[0]),
+          existingPrereqs.toArray(new String[0][]),processID);
+        jobQueue.insertNewRecordInitialMultiple(jobID,newDocIDHashes.toArray(new String[0]),newDocIDs.toArray(new String[0]),
+          newPriorities.toArray(new IPriorityCalculator[0]),executeTime,newPrereqs.toArray(new String[0][]),processID);
+
         if (Logging.perf.isDebugEnabled())
           Logging.perf.debug("Took "+new Long(System.currentTimeMillis()-startTime).toString()+" ms to add "+Integer.toString(reorderedDocIDHashes.length)+
           " initial docs for job "+jobID.toString());
@@ -4791,7 +4864,7 @@ public class JobManager implements IJobManager
           Logging.perf.debug("Took "+new Long(System.currentTimeMillis()-startTime).toString()+" ms to add "+Integer.toString(reorderedDocIDHashes.length)+
           " initial docs and hopcounts for job "+jobID.toString());
 
-        return;
+        break;
       }
       catch (ManifoldCFException e)
       {
@@ -4819,6 +4892,9 @@ public class JobManager implements IJobManager
         sleepFor(sleepAmt);
       }
     }
+    // Wake up the stuffer thread, if it is waiting for work.  This is done only once the transaction has ended,
+    // so that what it finds includes these documents.
+    ManifoldCF.noteDocumentsQueued();
   }
 
   /** Add an initial set of remaining documents to the queue.
@@ -5335,6 +5411,8 @@ public class JobManager implements IJobManager
 
         // Go through document id's one at a time, in order - mainly to prevent deadlock as much as possible.  Search for any existing row in jobqueue first (for update)
         Map<String,JobqueueRecord> existingRows = new HashMap<String,JobqueueRecord>();
+        // The documents that aren't there yet get inserted together, once we know which they are
+        List<Integer> newRecordIndexes = new ArrayList<Integer>();
 
         for (int z = 0; z < reorderedDocIDHashes.length; z++)
         {
@@ -5368,11 +5446,26 @@ public class JobManager implements IJobManager
             existingRows.put(docIDHash,new JobqueueRecord(rowID,status,checkTimeValue));
           }
           else
+            newRecordIndexes.add(new Integer(z));
+
+        }
+
+        if (newRecordIndexes.size() > 0)
+        {
+          // Attempt the inserts.  These may fail due to constraints, but if this happens, the whole transaction will be retried.
+          String[] newDocIDHashes = new String[newRecordIndexes.size()];
+          String[] newDocIDs = new String[newRecordIndexes.size()];
+          IPriorityCalculator[] newDocPriorities = new IPriorityCalculator[newRecordIndexes.size()];
+          String[][] newDocPrereqs = new String[newRecordIndexes.size()][];
+          for (int j = 0; j < newDocIDHashes.length; j++)
           {
-            // Not found.  Attempt an insert instead.  This may fail due to constraints, but if this happens, the whole transaction will be retried.
-            jobQueue.insertNewRecord(jobID,docIDHash,reorderedDocumentIdentifiers[z],reorderedDocumentPriorities[z],0L,reorderedDocumentPrerequisites[z]);
+            int z = newRecordIndexes.get(j).intValue();
+            newDocIDHashes[j] = reorderedDocIDHashes[z];
+            newDocIDs[j] = reorderedDocumentIdentifiers[z];
+            newDocPriorities[j] = reorderedDocumentPriorities[z];
+            newDocPrereqs[j] = reorderedDocumentPrerequisites[z];
           }
-
+          jobQueue.insertNewRecordMultiple(jobID,newDocIDHashes,newDocIDs,newDocPriorities,0L,newDocPrereqs);
         }
 
         // Update all the carrydown data at once, for greatest efficiency.
@@ -5385,6 +5478,14 @@ public class JobManager implements IJobManager
 
         boolean reactivateRemovedHopcountRecords = false;
         
+        int existingCount = existingRows.size();
+        Long[] existingRecordIDs = new Long[existingCount];
+        int[] existingStatuses = new int[existingCount];
+        Long[] existingCheckTimes = new Long[existingCount];
+        boolean[] existingChangesSeen = new boolean[existingCount];
+        IPriorityCalculator[] existingPriorities = new IPriorityCalculator[existingCount];
+        String[][] existingPrereqs = new String[existingCount][];
+        int j = 0;
         for (int z = 0; z < reorderedDocIDHashes.length; z++)
         {
           String docIDHash = reorderedDocIDHashes[z];
@@ -5395,14 +5496,21 @@ public class JobManager implements IJobManager
             // The hopcountChangesSeen array describes whether each reference is a new one.  This
             // helps us determine whether we're going to need to "flip" HOPCOUNTREMOVED documents
             // to the PENDING state.  If the new link ended in an existing record, THEN we need to flip them all!
-            jobQueue.updateExistingRecord(jr.getRecordID(),jr.getStatus(),jr.getCheckTimeValue(),
-              0L,carrydownChangesSeen[z] || (hopcountChangesSeen!=null && hopcountChangesSeen[z]),
-              reorderedDocumentPriorities[z],reorderedDocumentPrerequisites[z]);
+            existingRecordIDs[j] = jr.getRecordID();
+            existingStatuses[j] = jr.getStatus();
+            existingCheckTimes[j] = jr.getCheckTimeValue();
+            existingChangesSeen[j] = carrydownChangesSeen[z] || (hopcountChangesSeen!=null && hopcountChangesSeen[z]);
+            existingPriorities[j] = reorderedDocumentPriorities[z];
+            existingPrereqs[j] = reorderedDocumentPrerequisites[z];
+            j++;
             // Signal if we need to perform the flip
             if (hopcountChangesSeen != null && hopcountChangesSeen[z])
               reactivateRemovedHopcountRecords = true;
           }
         }
+        // The updates go in batches, one per set of changed columns; record order is kept only within each batch
+        jobQueue.updateExistingRecordMultiple(jobID,existingRecordIDs,existingStatuses,existingCheckTimes,
+          0L,existingChangesSeen,existingPriorities,existingPrereqs);
 
         if (reactivateRemovedHopcountRecords)
           jobQueue.reactivateHopcountRemovedRecords(jobID);
@@ -5415,7 +5523,7 @@ public class JobManager implements IJobManager
           Logging.perf.debug("Took "+new Long(System.currentTimeMillis()-startTime).toString()+" ms to add "+Integer.toString(reorderedDocIDHashes.length)+
           " docs and hopcounts for job "+jobID.toString()+" parent identifier hash "+parentIdentifierHash);
 
-        return;
+        break;
       }
       catch (ManifoldCFException e)
       {
@@ -5449,6 +5557,9 @@ public class JobManager implements IJobManager
         sleepFor(sleepAmt);
       }
     }
+    // Wake up the stuffer thread, if it is waiting for work.  This is done only once the transaction has ended,
+    // so that what it finds includes these documents.
+    ManifoldCF.noteDocumentsQueued();
   }
 
 
@@ -5912,7 +6023,7 @@ public class JobManager implements IJobManager
           JobqueueRecord jr = (JobqueueRecord)existingRows.get(docIDHash);
           if (jr != null)
             // It was an existing row; do the update logic; use the 'carrydown changes' flag = true all the time.
-            jobQueue.updateExistingRecord(jr.getRecordID(),jr.getStatus(),jr.getCheckTimeValue(),
+            jobQueue.updateExistingRecord(documentDescriptions[originalIndex].getJobID(),jr.getRecordID(),jr.getStatus(),jr.getCheckTimeValue(),
               0L,true,docPriorities[originalIndex],null);
           j++;
         }
@@ -8055,6 +8166,16 @@ public class JobManager implements IJobManager
     }
   }
 
+  /** Merge the job document count deltas that have built up for each job, if job document counts are being kept.
+  */
+  @Override
+  public void compactJobCounts()
+    throws ManifoldCFException
+  {
+    if (jobCountManager.countersEnabled())
+      jobCountManager.compact();
+  }
+
   /** Put all eligible jobs in the "shutting down" state.
   */
   @Override
@@ -8800,6 +8921,8 @@ public class JobManager implements IJobManager
   // Protected methods and classes
 
   /** Make a job status array from a query result.
+  * When job document counters are turned on, the counts are the sums kept in the jobcounts table; otherwise the job
+  * queue is counted, no further than the maximum count.
   *@param whereClause is the where clause for the jobs we are interested in.
   *@return the status array.
   */
@@ -8824,7 +8947,32 @@ public class JobManager implements IJobManager
     Map<Long,Boolean> set3Exact = new HashMap<Long,Boolean>();
     Map<Long,Boolean> set4Exact = new HashMap<Long,Boolean>();
     
+    boolean countLive = false;
     if (includeCounts)
+    {
+      if (jobCountManager.countersEnabled())
+      {
+        List<Long> jobIDs = new ArrayList<Long>(set.getRowCount());
+        for (int i = 0; i < set.getRowCount(); i++)
+        {
+          jobIDs.add((Long)set.getRow(i).getValue(Jobs.idField));
+        }
+        Map<Long,JobCountManager.JobCounts> counts = jobCountManager.readCounts(jobIDs);
+        for (Long jobID : jobIDs)
+        {
+          JobCountManager.JobCounts jobCounts = counts.get(jobID);
+          if (jobCounts == null)
+            jobCounts = new JobCountManager.JobCounts();
+          putCount(jobID,jobCounts.totalCount,maxCount,set2Hash,set2Exact);
+          putCount(jobID,jobCounts.outstandingCount,maxCount,set3Hash,set3Exact);
+          putCount(jobID,jobCounts.processedCount,maxCount,set4Hash,set4Exact);
+        }
+      }
+      else
+        countLive = true;
+    }
+
+    if (countLive)
     {
       // If we are counting all of them anyway, do this via GROUP BY since it will be the fastest.  But
       // otherwise, fire off an individual query at a time.
@@ -8977,6 +9125,22 @@ public class JobManager implements IJobManager
     return rval;
   }
 
+  /** Note a count for a job, limited to a maximum.
+  */
+  protected static void putCount(Long jobID, long count, int maxCount, Map<Long,Long> hash, Map<Long,Boolean> exact)
+  {
+    if (count > maxCount)
+    {
+      hash.put(jobID,new Long(maxCount));
+      exact.put(jobID,new Boolean(false));
+    }
+    else
+    {
+      hash.put(jobID,new Long(count));
+      exact.put(jobID,new Boolean(true));
+    }
+  }
+
   protected static ClauseDescription buildOutstandingClause()
     throws ManifoldCFException
   {
@@ -9205,12 +9369,38 @@ public class JobManager implements IJobManager
   public IResultSet genDocumentStatus(String connectionName, StatusFilterCriteria filterCriteria, SortOrder sortOrder,
     int startRow, int rowCount)
     throws ManifoldCFException
+  {
+    ArrayList list = new ArrayList();
+    String query = buildDocumentStatusQuery(list,connectionName,filterCriteria,sortOrder,startRow,rowCount);
+    return database.performQuery(query,list,null,null,rowCount,null);
+  }
+
+  /** Run a 'document status' report, streaming the rows to a handler rather than building a resultset.
+  * Use this for reports that may be too large to hold in memory.
+  *@param handler receives the rows, which have the same columns as those returned by genDocumentStatus().
+  */
+  @Override
+  public void genDocumentStatus(String connectionName, StatusFilterCriteria filterCriteria, SortOrder sortOrder,
+    int startRow, int rowCount, IResultRowHandler handler)
+    throws ManifoldCFException
+  {
+    ArrayList list = new ArrayList();
+    String query = buildDocumentStatusQuery(list,connectionName,filterCriteria,sortOrder,startRow,rowCount);
+    database.performStreamingQuery(query,list,reportFetchSize,null,handler);
+  }
+
+  /** Build the query for a 'document status' report.
+  *@param list receives the query parameters.
+  *@return the query.
+  */
+  protected String buildDocumentStatusQuery(ArrayList list, String connectionName, StatusFilterCriteria filterCriteria, SortOrder sortOrder,
+    int startRow, int rowCount)
+    throws ManifoldCFException
   {
     // Build the query.
     Long currentTime = new Long(System.currentTimeMillis());
     
     StringBuilder sb = new StringBuilder("SELECT ");
-    ArrayList list = new ArrayList();
     
     sb.append("t0.").append(jobQueue.idField).append(" AS id,")
       .append("t0.").append(jobQueue.docIDField).append(" AS identifier,")
@@ -9348,7 +9538,7 @@ public class JobManager implements IJobManager
     // The intrinsic ordering is provided by the "id" column, and nothing else.
     addOrdering(sb,new String[]{"id"},sortOrder);
     addLimits(sb,startRow,rowCount);
-    return database.performQuery(sb.toString(),list,null,null,rowCount,null);
+    return sb.toString();
   }
 
   /** Run a 'queue status' report.
@@ -9365,6 +9555,33 @@ public class JobManager implements IJobManager
   public IResultSet genQueueStatus(String connectionName, StatusFilterCriteria filterCriteria, SortOrder sortOrder,
     BucketDescription idBucketDescription, int startRow, int rowCount)
     throws ManifoldCFException
+  {
+    ArrayList list = new ArrayList();
+    String query = buildQueueStatusQuery(list,connectionName,filterCriteria,sortOrder,idBucketDescription,startRow,rowCount);
+    return database.performQuery(query,list,null,null,rowCount,null);
+  }
+
+  /** Run a 'queue status' report, streaming the rows to a handler rather than building a resultset.
+  * Use this for reports that may be too large to hold in memory.
+  *@param handler receives the rows, which have the same columns as those returned by genQueueStatus().
+  */
+  @Override
+  public void genQueueStatus(String connectionName, StatusFilterCriteria filterCriteria, SortOrder sortOrder,
+    BucketDescription idBucketDescription, int startRow, int rowCount, IResultRowHandler handler)
+    throws ManifoldCFException
+  {
+    ArrayList list = new ArrayList();
+    String query = buildQueueStatusQuery(list,connectionName,filterCriteria,sortOrder,idBucketDescription,startRow,rowCount);
+    database.performStreamingQuery(query,list,reportFetchSize,null,handler);
+  }
+
+  /** Build the query for a 'queue status' report.
+  *@param list receives the query parameters.
+  *@return the query.
+  */
+  protected String buildQueueStatusQuery(ArrayList list, String connectionName, StatusFilterCriteria filterCriteria, SortOrder sortOrder,
+    BucketDescription idBucketDescription, int startRow, int rowCount)
+    throws ManifoldCFException
   {
     // SELECT substring(docid FROM '<id_regexp>') AS idbucket,
     //        substring(entityidentifier FROM '<id_regexp>') AS idbucket,
@@ -9374,7 +9591,6 @@ public class JobManager implements IJobManager
     Long currentTime = new Long(System.currentTimeMillis());
 
     StringBuilder sb = new StringBuilder("SELECT ");
-    ArrayList list = new ArrayList();
     
     sb.append("t1.idbucket,SUM(t1.inactive) AS inactive,SUM(t1.processing) AS processing,SUM(t1.expiring) AS expiring,SUM(t1.deleting) AS deleting,")
       .append("SUM(t1.processready) AS processready,SUM(t1.expireready) AS expireready,SUM(t1.processwaiting) AS processwaiting,SUM(t1.expirewaiting) AS expirewaiting,")
@@ -9501,7 +9717,7 @@ public class JobManager implements IJobManager
     sb.append(") t1 GROUP BY idbucket");
     addOrdering(sb,new String[]{"idbucket","inactive","processing","expiring","deleting","processready","expireready","processwaiting","expirewaiting","waitingforever","hopcountexceeded"},sortOrder);
     addLimits(sb,startRow,rowCount);
-    return database.performQuery(sb.toString(),list,null,null,rowCount,null);
+    return sb.toString();
   }
 
   // Protected methods for report generation
@@ -176,6 +176,8 @@ public class JobQueue extends org.apache.manifoldcf.core.database.BaseTable
   
   /** Prerequisite event manager */
   protected PrereqEventManager prereqEventManager;
+  /** Job document count manager */
+  protected JobCountManager jobCountManager;
 
   /** Thread context */
   protected IThreadContext threadContext;
@@ -192,6 +194,7 @@ public class JobQueue extends org.apache.manifoldcf.core.database.BaseTable
     super(database,"jobqueue");
     this.threadContext = tc;
     prereqEventManager = new PrereqEventManager(database);
+    jobCountManager = new JobCountManager(tc,database);
   }
 
   /** Install or upgrade.
@@ -296,6 +299,19 @@ public class JobQueue extends org.apache.manifoldcf.core.database.BaseTable
 
       break;
     }
+
+    // The jobcounts table belongs to the jobs table, but its contents describe this one
+    if (jobCountManager.countersEnabled())
+    {
+      // The counts may have just been turned on, so count the documents that are already queued
+      if (jobCountManager.isEmpty())
+        jobCountManager.rebuild(getTableName());
+    }
+    else
+    {
+      // Counts that aren't being kept up to date must not be there to be used if they are turned on again
+      jobCountManager.clear();
+    }
   }
 
   /** Get the 'getNextDocuments' index hint.
@@ -412,6 +428,7 @@ public class JobQueue extends org.apache.manifoldcf.core.database.BaseTable
     query = buildConjunctionClause(list,new ClauseDescription[]{
       new UnitaryClause(statusField,statusToString(STATUS_BEINGCLEANED)),
       new UnitaryClause(processIDField,processID)});
+    noteCountChanges(query,list,STATUS_PURGATORY);
     performUpdate(map,"WHERE "+query,list,null);
 
     // Map newseed fields to seed
@@ -491,6 +508,7 @@ public class JobQueue extends org.apache.manifoldcf.core.database.BaseTable
     list.clear();
     query = buildConjunctionClause(list,new ClauseDescription[]{
       new UnitaryClause(statusField,statusToString(STATUS_BEINGCLEANED))});
+    noteCountChanges(query,list,STATUS_PURGATORY);
     performUpdate(map,"WHERE "+query,list,null);
 
     // Map newseed fields to seed
@@ -542,6 +560,7 @@ public class JobQueue extends org.apache.manifoldcf.core.database.BaseTable
     String query = buildConjunctionClause(list,new ClauseDescription[]{
       new UnitaryClause(jobIDField,jobID),
       new UnitaryClause(statusField,statusToString(STATUS_HOPCOUNTREMOVED))});
+    noteCountChanges(query,list,STATUS_PENDING);
     performUpdate(map,"WHERE "+query,list,null);
     unconditionallyAnalyzeTables();
     
@@ -636,6 +655,7 @@ public class JobQueue extends org.apache.manifoldcf.core.database.BaseTable
     String query = buildConjunctionClause(list,new ClauseDescription[]{
       new UnitaryClause(statusField,statusToString(STATUS_BEINGCLEANED)),
       new UnitaryClause(processIDField,processID)});
+    noteCountChanges(query,list,STATUS_PURGATORY);
     performUpdate(map,"WHERE "+query,list,null);
     unconditionallyAnalyzeTables();
 
@@ -667,6 +687,7 @@ public class JobQueue extends org.apache.manifoldcf.core.database.BaseTable
       new MultiClause(statusField,new Object[]{
         statusToString(STATUS_PENDING),
         statusToString(STATUS_HOPCOUNTREMOVED)})});
+    noteCountChanges(query,list,-1);
     performDelete("WHERE "+query,list,null);
 
     // Turn PENDINGPURGATORY, PURGATORY, COMPLETED into ELIGIBLEFORDELETE.
@@ -684,6 +705,7 @@ public class JobQueue extends org.apache.manifoldcf.core.database.BaseTable
         statusToString(STATUS_COMPLETE),
         statusToString(STATUS_UNCHANGED),
         statusToString(STATUS_PURGATORY)})});
+    noteCountChanges(query,list,STATUS_ELIGIBLEFORDELETE);
     performUpdate(map,"WHERE "+query,list,null);
 
     TrackerClass.noteJobChange(jobID,"Prepare delete scan");
@@ -720,6 +742,7 @@ public class JobQueue extends org.apache.manifoldcf.core.database.BaseTable
       new MultiClause(statusField,new Object[]{
         statusToString(STATUS_PENDING),
         statusToString(STATUS_HOPCOUNTREMOVED)})});
+    noteCountChanges(query,list,-1);
     performDelete("WHERE "+query,list,null);
 
     // Turn PENDINGPURGATORY and COMPLETED into PURGATORY.
@@ -741,6 +764,7 @@ public class JobQueue extends org.apache.manifoldcf.core.database.BaseTable
         statusToString(STATUS_PENDINGPURGATORY),
         statusToString(STATUS_UNCHANGED),
         statusToString(STATUS_COMPLETE)})});
+    noteCountChanges(query,list,STATUS_PURGATORY);
     performUpdate(map,"WHERE "+query,list,null);
         
     TrackerClass.noteJobChange(jobID,"Prepare full scan part");
@@ -794,6 +818,7 @@ public class JobQueue extends org.apache.manifoldcf.core.database.BaseTable
     String query = buildConjunctionClause(list,new ClauseDescription[]{
       new UnitaryClause(jobIDField,jobID),
       new UnitaryClause(statusField,statusToString(STATUS_COMPLETE))});
+    noteCountChanges(query,list,STATUS_PENDINGPURGATORY);
     performUpdate(map,"WHERE "+query,list,null);
       
     TrackerClass.noteJobChange(jobID,"Queue all existing");
@@ -863,6 +888,7 @@ public class JobQueue extends org.apache.manifoldcf.core.database.BaseTable
       new MultiClause(statusField,new Object[]{
         statusToString(STATUS_COMPLETE),
         statusToString(STATUS_UNCHANGED)})});
+    noteCountChanges(query,list,STATUS_PENDINGPURGATORY);
     performUpdate(map,"WHERE "+query,list,null);
       
     TrackerClass.noteJobChange(jobID,"Prepare incremental scan");
@@ -1005,8 +1031,9 @@ public class JobQueue extends org.apache.manifoldcf.core.database.BaseTable
   }
   
   /** Set the "completed" status for a record.
+  *@param jobID is the job the record belongs to.
   */
-  public void updateCompletedRecord(Long recID, int currentStatus)
+  public void updateCompletedRecord(Long jobID, Long recID, int currentStatus)
     throws ManifoldCFException
   {
     HashMap map = new HashMap();
@@ -1048,14 +1075,16 @@ public class JobQueue extends org.apache.manifoldcf.core.database.BaseTable
     String query = buildConjunctionClause(list,new ClauseDescription[]{
       new UnitaryClause(idField,recID)});
     performUpdate(map,"WHERE "+query,list,null);
+    noteCountChange(jobID,currentStatus,newStatus);
     TrackerClass.noteRecordChange(recID, newStatus, "Note completion");
     noteModifications(0,1,0);
   }
 
   /** Either mark a record as hopcountremoved, or set status to "rescan", depending on the
   * record's state.
+  *@param jobID is the job the record belongs to.
   */
-  public boolean updateOrHopcountRemoveRecord(Long recID, int currentStatus)
+  public boolean updateOrHopcountRemoveRecord(Long jobID, Long recID, int currentStatus)
     throws ManifoldCFException
   {
     HashMap map = new HashMap();
@@ -1102,6 +1131,7 @@ public class JobQueue extends org.apache.manifoldcf.core.database.BaseTable
     String query = buildConjunctionClause(list,new ClauseDescription[]{
       new UnitaryClause(idField,recID)});
     performUpdate(map,"WHERE "+query,list,null);
+    noteCountChange(jobID,currentStatus,newStatus);
     TrackerClass.noteRecordChange(recID, newStatus, "Update or hopcount remove");
     noteModifications(0,1,0);
     return rval;
@@ -1167,9 +1197,14 @@ public class JobQueue extends org.apache.manifoldcf.core.database.BaseTable
     // would complicate a number of threads that use this method enormously, and this is a relatively
     // rare situation.  So we just hand such documents to the reprioritizer thread and let it fill in the document priority.
     
-    // First update: for those who have an intact doc priority.
     ArrayList list = new ArrayList();
     String query = buildConjunctionClause(list,new ClauseDescription[]{
+      new UnitaryClause(idField,id)});
+    noteCountChanges(query,list,STATUS_PENDINGPURGATORY);
+
+    // First update: for those who have an intact doc priority.
+    list.clear();
+    query = buildConjunctionClause(list,new ClauseDescription[]{
       new UnitaryClause(idField,id),
       new UnitaryClause(docPriorityField,"<",nullDocPriority)});
     performUpdate(map,"WHERE "+query,list,null);
@@ -1198,6 +1233,7 @@ public class JobQueue extends org.apache.manifoldcf.core.database.BaseTable
     ArrayList list = new ArrayList();
     String query = buildConjunctionClause(list,new ClauseDescription[]{
       new UnitaryClause(idField,id)});
+    noteCountChanges(query,list,STATUS_BEINGDELETED);
     performUpdate(map,"WHERE "+query,list,null);
     TrackerClass.noteRecordChange(id, STATUS_BEINGDELETED, "Set deleting status");
     noteModifications(0,1,0);
@@ -1217,6 +1253,7 @@ public class JobQueue extends org.apache.manifoldcf.core.database.BaseTable
     ArrayList list = new ArrayList();
     String query = buildConjunctionClause(list,new ClauseDescription[]{
       new UnitaryClause(idField,id)});
+    noteCountChanges(query,list,STATUS_ELIGIBLEFORDELETE);
     performUpdate(map,"WHERE "+query,list,null);
     TrackerClass.noteRecordChange(id, STATUS_ELIGIBLEFORDELETE, "Set undeleting status");
     noteModifications(0,1,0);
@@ -1233,6 +1270,7 @@ public class JobQueue extends org.apache.manifoldcf.core.database.BaseTable
     ArrayList list = new ArrayList();
     String query = buildConjunctionClause(list,new ClauseDescription[]{
       new UnitaryClause(idField,id)});
+    noteCountChanges(query,list,STATUS_BEINGCLEANED);
     performUpdate(map,"WHERE "+query,list,null);
     TrackerClass.noteRecordChange(id, STATUS_BEINGCLEANED, "Set cleaning status");
     noteModifications(0,1,0);
@@ -1252,6 +1290,7 @@ public class JobQueue extends org.apache.manifoldcf.core.database.BaseTable
     ArrayList list = new ArrayList();
     String query = buildConjunctionClause(list,new ClauseDescription[]{
       new UnitaryClause(idField,id)});
+    noteCountChanges(query,list,STATUS_PURGATORY);
     performUpdate(map,"WHERE "+query,list,null);
     TrackerClass.noteRecordChange(id, STATUS_PURGATORY, "Set uncleaning status");
     noteModifications(0,1,0);
@@ -1301,6 +1340,7 @@ public class JobQueue extends org.apache.manifoldcf.core.database.BaseTable
     ArrayList newList = new ArrayList();
     String query = buildConjunctionClause(newList,new ClauseDescription[]{
       new MultiClause(idField,list)});
+    noteCountChanges(query,newList,-1);
     performDelete("WHERE "+query,newList,null);
   }
 
@@ -1316,19 +1356,47 @@ public class JobQueue extends org.apache.manifoldcf.core.database.BaseTable
   /** Update an existing record (as the result of an initial add).
   * The record is presumed to exist and have been locked, via "FOR UPDATE".
   */
-  public void updateExistingRecordInitial(Long recordID, int currentStatus, Long checkTimeValue,
+  public void updateExistingRecordInitial(Long jobID, Long recordID, int currentStatus, Long checkTimeValue,
     long desiredExecuteTime, IPriorityCalculator desiredPriority, String[] prereqEvents,
     String processID)
     throws ManifoldCFException
   {
-    // The general rule here is:
-    // If doesn't exist, make a PENDING entry.
-    // If PENDING, keep it as PENDING.  
-    // If COMPLETE, make a PENDING entry.
-    // If PURGATORY, make a PENDINGPURGATORY entry.
-    // Leave everything else alone and do nothing.
+    updateExistingRecordInitialMultiple(jobID,new Long[]{recordID},new int[]{currentStatus},new Long[]{checkTimeValue},
+      desiredExecuteTime,new IPriorityCalculator[]{desiredPriority},new String[][]{prereqEvents},processID);
+  }
 
-    HashMap map = new HashMap();
+  /** Update a set of existing records (as the result of an initial add), using batched statements.
+  * The records are presumed to exist and have been locked, via "FOR UPDATE".
+  */
+  public void updateExistingRecordInitialMultiple(Long jobID, Long[] recordIDs, int[] currentStatuses, Long[] checkTimeValues,
+    long desiredExecuteTime, IPriorityCalculator[] desiredPriorities, String[][] prereqEvents,
+    String processID)
+    throws ManifoldCFException
+  {
+    if (recordIDs.length == 0)
+      return;
+
+    Map<Long,JobCountManager.JobCounts> countDeltas = new HashMap<Long,JobCountManager.JobCounts>();
+    List<Map<String,Object>> maps = new ArrayList<Map<String,Object>>();
+    for (int i = 0; i < recordIDs.length; i++)
+    {
+      Map<String,Object> map = buildExistingRecordInitialMap(recordIDs[i],currentStatuses[i],checkTimeValues[i],desiredExecuteTime,
+        desiredPriorities[i],processID);
+      noteCountChange(countDeltas,jobID,currentStatuses[i],map);
+      maps.add(map);
+    }
+    updateRecordsAndPrereqs(recordIDs,maps,prereqEvents);
+    writeCountChanges(countDeltas);
+  }
+
+  /** Figure out what needs to change in an existing record, as the result of an initial add.
+  *@return the column name/value map to write.
+  */
+  protected Map<String,Object> buildExistingRecordInitialMap(Long recordID, int currentStatus, Long checkTimeValue,
+    long desiredExecuteTime, IPriorityCalculator desiredPriority, String processID)
+    throws ManifoldCFException
+  {
+    Map<String,Object> map = new HashMap<String,Object>();
     switch (currentStatus)
     {
     case STATUS_ACTIVE:
@@ -1395,16 +1463,34 @@ public class JobQueue extends org.apache.manifoldcf.core.database.BaseTable
     }
     map.put(isSeedField,seedstatusToString(SEEDSTATUS_NEWSEED));
     map.put(seedingProcessIDField,processID);
+    return map;
+  }
+
+  /** Write the updates to a set of existing records, replacing their prereqevent entries, with as few
+  * round trips as possible.
+  *@param recordIDs are the record ids.
+  *@param maps are the column name/value maps to write, corresponding to the record ids.
+  *@param prereqEvents are the prerequisite events, corresponding to the record ids.
+  */
+  protected void updateRecordsAndPrereqs(Long[] recordIDs, List<Map<String,Object>> maps, String[][] prereqEvents)
+    throws ManifoldCFException
+  {
     // Delete any existing prereqevent entries first
-    prereqEventManager.deleteRows(recordID);
-    ArrayList list = new ArrayList();
-    String query = buildConjunctionClause(list,new ClauseDescription[]{
-      new UnitaryClause(idField,recordID)});
-    performUpdate(map,"WHERE "+query,list,null);
+    prereqEventManager.deleteRowsMultiple(recordIDs);
+    List<List> whereParameters = new ArrayList<List>();
+    String query = null;
+    for (Long recordID : recordIDs)
+    {
+      ArrayList list = new ArrayList();
+      query = buildConjunctionClause(list,new ClauseDescription[]{
+        new UnitaryClause(idField,recordID)});
+      whereParameters.add(list);
+    }
+    performUpdateMultiple(maps,"WHERE "+query,whereParameters,null);
     // Insert prereqevent entries, if any
-    prereqEventManager.addRows(recordID,prereqEvents);
+    prereqEventManager.addRowsMultiple(recordIDs,prereqEvents);
 
-    noteModifications(0,1,0);
+    noteModifications(0,recordIDs.length,0);
   }
 
   /** Insert a new record into the jobqueue table (as part of adding an initial reference).
@@ -1417,28 +1503,57 @@ public class JobQueue extends org.apache.manifoldcf.core.database.BaseTable
     long desiredExecuteTime, String[] prereqEvents, String processID)
     throws ManifoldCFException
   {
+    insertNewRecordInitialMultiple(jobID,new String[]{docHash},new String[]{docID},new IPriorityCalculator[]{desiredDocPriority},
+      desiredExecuteTime,new String[][]{prereqEvents},processID);
+  }
+
+  /** Insert a set of new records into the jobqueue table (as part of adding initial references), using
+  * multi-row, batched inserts.
+  *
+  *@param jobID is the job identifier.
+  *@param docHashes are the hashes of the local document identifiers.
+  *@param docIDs are the local document identifiers.
+  */
+  public void insertNewRecordInitialMultiple(Long jobID, String[] docHashes, String[] docIDs, IPriorityCalculator[] desiredDocPriorities,
+    long desiredExecuteTime, String[][] prereqEvents, String processID)
+    throws ManifoldCFException
+  {
+    if (docHashes.length == 0)
+      return;
+
     // No prerequisites should be possible at this point.
-    HashMap map = new HashMap();
-    Long recordID = new Long(IDFactory.make(threadContext));
-    map.put(idField,recordID);
-    if (desiredExecuteTime == -1L)
-      map.put(checkTimeField,new Long(0L));
-    else
-      map.put(checkTimeField,new Long(desiredExecuteTime));
-    map.put(checkActionField,actionToString(ACTION_RESCAN));
-    map.put(jobIDField,jobID);
-    map.put(docHashField,docHash);
-    map.put(docIDField,docID);
-    map.put(statusField,statusToString(STATUS_PENDING));
-    map.put(isSeedField,seedstatusToString(SEEDSTATUS_NEWSEED));
-    map.put(seedingProcessIDField,processID);
-    // Set the document priority
-    map.put(docPriorityField,new Double(desiredDocPriority.getDocumentPriority()));
-    map.put(needPriorityField,needPriorityToString(NEEDPRIORITY_FALSE));
-    performInsert(map,null);
-    prereqEventManager.addRows(recordID,prereqEvents);
-    TrackerClass.noteRecordChange(recordID, STATUS_PENDING, "Create initial");
-    noteModifications(1,0,0);
+    Long[] recordIDs = new Long[docHashes.length];
+    List<Map<String,Object>> maps = new ArrayList<Map<String,Object>>();
+    for (int i = 0; i < docHashes.length; i++)
+    {
+      Map<String,Object> map = new HashMap<String,Object>();
+      Long recordID = new Long(IDFactory.make(threadContext));
+      recordIDs[i] = recordID;
+      map.put(idField,recordID);
+      if (desiredExecuteTime == -1L)
+        map.put(checkTimeField,new Long(0L));
+      else
+        map.put(checkTimeField,new Long(desiredExecuteTime));
+      map.put(checkActionField,actionToString(ACTION_RESCAN));
+      map.put(jobIDField,jobID);
+      map.put(docHashField,docHashes[i]);
+      map.put(docIDField,docIDs[i]);
+      map.put(statusField,statusToString(STATUS_PENDING));
+      map.put(isSeedField,seedstatusToString(SEEDSTATUS_NEWSEED));
+      map.put(seedingProcessIDField,processID);
+      // Set the document priority
+      map.put(docPriorityField,new Double(desiredDocPriorities[i].getDocumentPriority()));
+      map.put(needPriorityField,needPriorityToString(NEEDPRIORITY_FALSE));
+      maps.add(map);
+    }
+    performInsertMultiple(maps,null);
+    prereqEventManager.addRowsMultiple(recordIDs,prereqEvents);
+    noteCountChange(jobID,-1,STATUS_PENDING,recordIDs.length);
+    for (Long recordID : recordIDs)
+    {
+      TrackerClass.noteRecordChange(recordID, STATUS_PENDING, "Create initial");
+    }
+    noteModifications(recordIDs.length,0,0);
   }
 
   /** Note the remaining documents that do NOT need to be queued.  These are noted so that the
@@ -1614,12 +1729,54 @@ public class JobQueue extends org.apache.manifoldcf.core.database.BaseTable
   /** Update an existing record (as the result of a reference add).
   * The record is presumed to exist and have been locked, via "FOR UPDATE".
   */
-  public void updateExistingRecord(Long recordID, int currentStatus, Long checkTimeValue,
+  public void updateExistingRecord(Long jobID, Long recordID, int currentStatus, Long checkTimeValue,
     long desiredExecuteTime, boolean otherChangesSeen,
     IPriorityCalculator desiredPriority, String[] prereqEvents)
     throws ManifoldCFException
   {
-    HashMap map = new HashMap();
+    updateExistingRecordMultiple(jobID,new Long[]{recordID},new int[]{currentStatus},new Long[]{checkTimeValue},
+      desiredExecuteTime,new boolean[]{otherChangesSeen},new IPriorityCalculator[]{desiredPriority},new String[][]{prereqEvents});
+  }
+
+  /** Update a set of existing records (as the result of reference adds), using batched statements.
+  * The records are presumed to exist and have been locked, via "FOR UPDATE".
+  */
+  public void updateExistingRecordMultiple(Long jobID, Long[] recordIDs, int[] currentStatuses, Long[] checkTimeValues,
+    long desiredExecuteTime, boolean[] otherChangesSeen,
+    IPriorityCalculator[] desiredPriorities, String[][] prereqEvents)
+    throws ManifoldCFException
+  {
+    // Only the records that actually need changing get written
+    Map<Long,JobCountManager.JobCounts> countDeltas = new HashMap<Long,JobCountManager.JobCounts>();
+    List<Long> changedRecordIDs = new ArrayList<Long>();
+    List<String[]> changedPrereqEvents = new ArrayList<String[]>();
+    List<Map<String,Object>> maps = new ArrayList<Map<String,Object>>();
+    for (int i = 0; i < recordIDs.length; i++)
+    {
+      Map<String,Object> map = buildExistingRecordMap(recordIDs[i],currentStatuses[i],checkTimeValues[i],desiredExecuteTime,
+        otherChangesSeen[i],desiredPriorities[i]);
+      if (map != null)
+      {
+        noteCountChange(countDeltas,jobID,currentStatuses[i],map);
+        changedRecordIDs.add(recordIDs[i]);
+        changedPrereqEvents.add(prereqEvents[i]);
+        maps.add(map);
+      }
+    }
+    if (maps.size() == 0)
+      return;
+    updateRecordsAndPrereqs(changedRecordIDs.toArray(new Long[0]),maps,changedPrereqEvents.toArray(new String[0][]));
+    writeCountChanges(countDeltas);
+  }
+
+  /** Figure out what needs to change in an existing record, as the result of a reference add.
+  *@return the column name/value map to write, or null if the record should be left alone.
+  */
+  protected Map<String,Object> buildExistingRecordMap(Long recordID, int currentStatus, Long checkTimeValue,
+    long desiredExecuteTime, boolean otherChangesSeen, IPriorityCalculator desiredPriority)
+    throws ManifoldCFException
+  {
+    Map<String,Object> map = new HashMap<String,Object>();
     switch (currentStatus)
     {
     case STATUS_PURGATORY:
@@ -1653,12 +1810,12 @@ public class JobQueue extends org.apache.manifoldcf.core.database.BaseTable
         map.put(needPriorityField,needPriorityToString(NEEDPRIORITY_FALSE));
         break;
       }
-      return;
+      return null;
     case STATUS_ACTIVENEEDRESCAN:
     case STATUS_ACTIVENEEDRESCANPURGATORY:
       // Document is in the queue, but already needs a rescan for prior reasons.
       // We're done.
-      return;
+      return null;
     case STATUS_ACTIVE:
       // Document is in the queue.
       // The problem here is that we have no idea when the document is actually being worked on; we only find out when the document is actually *done*.
@@ -1682,7 +1839,7 @@ public class JobQueue extends org.apache.manifoldcf.core.database.BaseTable
         map.put(needPriorityField,needPriorityToString(NEEDPRIORITY_FALSE));
         break;
       }
-      return;
+      return null;
     case STATUS_ACTIVEPURGATORY:
       // Document is in the queue.
       // The problem here is that we have no idea when the document is actually being worked on; we only find out when the document is actually *done*.
@@ -1706,7 +1863,7 @@ public class JobQueue extends org.apache.manifoldcf.core.database.BaseTable
         map.put(needPriorityField,needPriorityToString(NEEDPRIORITY_FALSE));
         break;
       }
-      return;
+      return null;
     case STATUS_PENDING:
       // Document is already waiting to be processed.
       // Bump up the schedule, if called for.  Otherwise, just leave it alone.
@@ -1715,7 +1872,7 @@ public class JobQueue extends org.apache.manifoldcf.core.database.BaseTable
       {
         long currentExecuteTime = cv.longValue();
         if (currentExecuteTime <= desiredExecuteTime)
-          return;
+          return null;
       }
       map.put(checkTimeField,new Long(desiredExecuteTime));
       map.put(checkActionField,actionToString(ACTION_RESCAN));
@@ -1729,16 +1886,9 @@ public class JobQueue extends org.apache.manifoldcf.core.database.BaseTable
       // Also, leave doc priority alone
       // Fall through...
     default:
-      return;
+      return null;
     }
-    prereqEventManager.deleteRows(recordID);
-    ArrayList list = new ArrayList();
-    String query = buildConjunctionClause(list,new ClauseDescription[]{
-      new UnitaryClause(idField,recordID)});
-    performUpdate(map,"WHERE "+query,list,null);
-    prereqEventManager.addRows(recordID,prereqEvents);
-    noteModifications(0,1,0);
-    return;
+    return map;
   }
 
   /** Insert a new record into the jobqueue table (as part of adding a child reference).
@@ -1748,23 +1898,122 @@ public class JobQueue extends org.apache.manifoldcf.core.database.BaseTable
     String[] prereqEvents)
     throws ManifoldCFException
   {
-    HashMap map = new HashMap();
-    Long recordID = new Long(IDFactory.make(threadContext));
-    map.put(idField,recordID);
-    map.put(checkTimeField,new Long(desiredExecuteTime));
-    map.put(checkActionField,actionToString(ACTION_RESCAN));
-    map.put(jobIDField,jobID);
-    map.put(docHashField,docIDHash);
-    map.put(docIDField,docID);
-    map.put(statusField,statusToString(STATUS_PENDING));
-    // Be sure to set the priority also
-    map.put(docPriorityField,new Double(desiredDocPriority.getDocumentPriority()));
-    map.put(needPriorityField,needPriorityToString(NEEDPRIORITY_FALSE));
-    performInsert(map,null);
-    prereqEventManager.addRows(recordID,prereqEvents);
-    TrackerClass.noteRecordChange(recordID, STATUS_PENDING, "Create new");
-    noteModifications(1,0,0);
+    insertNewRecordMultiple(jobID,new String[]{docIDHash},new String[]{docID},new IPriorityCalculator[]{desiredDocPriority},
+      desiredExecuteTime,new String[][]{prereqEvents});
+  }
 
+  /** Insert a set of new records into the jobqueue table (as part of adding child references), using
+  * multi-row, batched inserts.
+  *
+  */
+  public void insertNewRecordMultiple(Long jobID, String[] docIDHashes, String[] docIDs, IPriorityCalculator[] desiredDocPriorities,
+    long desiredExecuteTime, String[][] prereqEvents)
+    throws ManifoldCFException
+  {
+    if (docIDHashes.length == 0)
+      return;
+
+    Long[] recordIDs = new Long[docIDHashes.length];
+    List<Map<String,Object>> maps = new ArrayList<Map<String,Object>>();
+    for (int i = 0; i < docIDHashes.length; i++)
+    {
+      Map<String,Object> map = new HashMap<String,Object>();
+      Long recordID = new Long(IDFactory.make(threadContext));
+      recordIDs[i] = recordID;
+      map.put(idField,recordID);
+      map.put(checkTimeField,new Long(desiredExecuteTime));
+      map.put(checkActionField,actionToString(ACTION_RESCAN));
+      map.put(jobIDField,jobID);
+      map.put(docHashField,docIDHashes[i]);
+      map.put(docIDField,docIDs[i]);
+      map.put(statusField,statusToString(STATUS_PENDING));
+      // Be sure to set the priority also
+      map.put(docPriorityField,new Double(desiredDocPriorities[i].getDocumentPriority()));
+      map.put(needPriorityField,needPriorityToString(NEEDPRIORITY_FALSE));
+      maps.add(map);
+    }
+    performInsertMultiple(maps,null);
+    prereqEventManager.addRowsMultiple(recordIDs,prereqEvents);
+    noteCountChange(jobID,-1,STATUS_PENDING,recordIDs.length);
+    for (Long recordID : recordIDs)
+    {
+      TrackerClass.noteRecordChange(recordID, STATUS_PENDING, "Create new");
+    }
+    noteModifications(recordIDs.length,0,0);
+  }
+
+  /** Note the changes to the job document counts that will result from giving the rows matching a where clause a new
+  * status, or deleting them.  Call this just before the rows are changed, in the same transaction.
+  *@param query is the where clause, without the WHERE.
+  *@param list is the where clause's parameters.
+  *@param newStatus is the rows' new status, or -1 if they are being deleted.
+  */
+  protected void noteCountChanges(String query, List list, int newStatus)
+    throws ManifoldCFException
+  {
+    if (!jobCountManager.countersEnabled())
+      return;
+    IResultSet set = performQuery("SELECT "+jobIDField+","+statusField+","+constructCountClause(idField)+" AS doccount FROM "+
+      getTableName()+" WHERE "+query+" GROUP BY "+jobIDField+","+statusField,list,null,null);
+    Map<Long,JobCountManager.JobCounts> deltas = new HashMap<Long,JobCountManager.JobCounts>();
+    for (int i = 0; i < set.getRowCount(); i++)
+    {
+      IResultRow row = set.getRow(i);
+      JobCountManager.noteChange(deltas,(Long)row.getValue(jobIDField),stringToStatus((String)row.getValue(statusField)),
+        newStatus,JobCountManager.asLong(row.getValue("doccount")));
+    }
+    jobCountManager.writeDeltas(deltas);
+  }
+
+  /** Note the change to the job document counts from a record whose old status is known changing status.
+  *@param jobID is the job the record belongs to.
+  *@param oldStatus is the old status.
+  *@param newStatus is the new status.
+  */
+  protected void noteCountChange(Long jobID, int oldStatus, int newStatus)
+    throws ManifoldCFException
+  {
+    noteCountChange(jobID,oldStatus,newStatus,1L);
+  }
+
+  /** Note the change to the job document counts from a number of a job's records changing from one known status to
+  * another.
+  *@param jobID is the job the records belong to.
+  *@param oldStatus is the old status, or -1 if the records are new.
+  *@param newStatus is the new status.
+  *@param count is the number of records.
+  */
+  protected void noteCountChange(Long jobID, int oldStatus, int newStatus, long count)
+    throws ManifoldCFException
+  {
+    Map<Long,JobCountManager.JobCounts> deltas = new HashMap<Long,JobCountManager.JobCounts>();
+    JobCountManager.noteChange(deltas,jobID,oldStatus,newStatus,count);
+    writeCountChanges(deltas);
+  }
+
+  /** Add the change to the job document counts from writing a record's column map to a set of deltas.
+  *@param deltas are the deltas.
+  *@param jobID is the job the record belongs to.
+  *@param currentStatus is the record's current status.
+  *@param map is the column map to be written.
+  */
+  protected static void noteCountChange(Map<Long,JobCountManager.JobCounts> deltas, Long jobID, int currentStatus,
+    Map<String,Object> map)
+    throws ManifoldCFException
+  {
+    String newStatus = (String)map.get(statusField);
+    if (newStatus != null)
+      JobCountManager.noteChange(deltas,jobID,currentStatus,stringToStatus(newStatus),1L);
+  }
+
+  /** Write changes to the job document counts, if they are being kept.
+  *@param deltas are the changes, keyed by job id.
+  */
+  protected void writeCountChanges(Map<Long,JobCountManager.JobCounts> deltas)
+    throws ManifoldCFException
+  {
+    if (deltas.size() > 0 && jobCountManager.countersEnabled())
+      jobCountManager.writeDeltas(deltas);
   }
 
   // Methods to convert status strings to integers and back
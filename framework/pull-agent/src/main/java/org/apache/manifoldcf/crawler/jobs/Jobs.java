@@ -346,6 +346,7 @@ public class Jobs extends org.apache.manifoldcf.core.database.BaseTable
   protected final HopFilterManager hopFilterManager;
   protected final PipelineManager pipelineManager;
   protected final NotificationManager notificationManager;
+  protected final JobCountManager jobCountManager;
   
   protected final IOutputConnectionManager outputMgr;
   protected final IRepositoryConnectionManager connectionMgr;
@@ -368,6 +369,7 @@ public class Jobs extends org.apache.manifoldcf.core.database.BaseTable
     hopFilterManager = new HopFilterManager(threadContext,database);
     pipelineManager = new PipelineManager(threadContext,database);
     notificationManager = new NotificationManager(threadContext,database);
+    jobCountManager = new JobCountManager(threadContext,database);
     
     cacheManager = CacheManagerFactory.make(threadContext);
     lockManager = LockManagerFactory.make(threadContext);
@@ -448,6 +450,7 @@ public class Jobs extends org.apache.manifoldcf.core.database.BaseTable
       notificationManager.install(getTableName(),idField,notificationConnectionTableName,notificationConnectionNameField);
       scheduleManager.install(getTableName(),idField);
       hopFilterManager.install(getTableName(),idField);
+      jobCountManager.install(getTableName(),idField);
 
       // Index management
       IndexDescription statusIndex = new IndexDescription(false,new String[]{statusField,idField,priorityField});
@@ -499,6 +502,7 @@ public class Jobs extends org.apache.manifoldcf.core.database.BaseTable
     beginTransaction();
     try
     {
+      jobCountManager.deinstall();
       hopFilterManager.deinstall();
       scheduleManager.deinstall();
       notificationManager.deinstall();
@@ -690,28 +694,10 @@ public class Jobs extends org.apache.manifoldcf.core.database.BaseTable
     lockManager.enterReadLock(jobsLock);
     try
     {
-      // Put together cache key
-      StringSetBuffer ssb = new StringSetBuffer();
-      ssb.add(getJobsKey());
-      ssb.add(getJobStatusKey());
-      StringSet cacheKeys = new StringSet(ssb);
-
-      ArrayList list = new ArrayList();
-      list.add(statusToString(STATUS_READYFORDELETE));
-      list.add(statusToString(STATUS_DELETESTARTINGUP));
-      list.add(statusToString(STATUS_DELETING));
-      list.add(statusToString(STATUS_DELETING_NOOUTPUT));
-      IResultSet set = performQuery("SELECT "+idField+","+descriptionField+" FROM "+
-        getTableName()+" WHERE "+statusField+"!=? AND "+statusField+"!=? AND "+statusField+"!=? AND "+statusField+"!=?"+
-        " ORDER BY "+descriptionField+" ASC",list,cacheKeys,null);
-      
-      Long[] ids = new Long[set.getRowCount()];
-      boolean[] readOnlies = new boolean[set.getRowCount()];
-      
-      for (int i = 0; i < set.getRowCount(); i++)
+      Long[] ids = getAllIdentifiers();
+      boolean[] readOnlies = new boolean[ids.length];
+      for (int i = 0; i < ids.length; i++)
       {
-        IResultRow row = set.getRow(i);
-        ids[i] = (Long)row.getValue(idField);
         readOnlies[i] = true;
       }
       return loadMultiple(ids,readOnlies);
@@ -722,6 +708,37 @@ public class Jobs extends org.apache.manifoldcf.core.database.BaseTable
     }
   }
 
+  /** Get the identifiers of all jobs which are not in the process of being deleted already, in description order.
+  * The caller must hold the jobs read lock if the list needs to stay accurate while it is used.
+  *@return the job identifiers.
+  */
+  public Long[] getAllIdentifiers()
+    throws ManifoldCFException
+  {
+    // Put together cache key
+    StringSetBuffer ssb = new StringSetBuffer();
+    ssb.add(getJobsKey());
+    ssb.add(getJobStatusKey());
+    StringSet cacheKeys = new StringSet(ssb);
+
+    ArrayList list = new ArrayList();
+    list.add(statusToString(STATUS_READYFORDELETE));
+    list.add(statusToString(STATUS_DELETESTARTINGUP));
+    list.add(statusToString(STATUS_DELETING));
+    list.add(statusToString(STATUS_DELETING_NOOUTPUT));
+    IResultSet set = performQuery("SELECT "+idField+","+descriptionField+" FROM "+
+      getTableName()+" WHERE "+statusField+"!=? AND "+statusField+"!=? AND "+statusField+"!=? AND "+statusField+"!=?"+
+      " ORDER BY "+descriptionField+" ASC",list,cacheKeys,null);
+
+    Long[] ids = new Long[set.getRowCount()];
+    for (int i = 0; i < set.getRowCount(); i++)
+    {
+      IResultRow row = set.getRow(i);
+      ids[i] = (Long)row.getValue(idField);
+    }
+    return ids;
+  }
+
   /** Get a list of active job identifiers and their associated connection names.
   *@return a resultset with "jobid" and "connectionname" fields.
   */
@@ -807,6 +824,7 @@ public class Jobs extends org.apache.manifoldcf.core.database.BaseTable
         hopFilterManager.deleteRows(id);
         pipelineManager.deleteRows(id);
         notificationManager.deleteRows(id);
+        jobCountManager.deleteRows(id);
         ArrayList params = new ArrayList();
         String query = buildConjunctionClause(params,new ClauseDescription[]{
           new UnitaryClause(idField,id)});
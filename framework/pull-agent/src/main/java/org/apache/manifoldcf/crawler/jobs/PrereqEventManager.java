@@ -198,5 +198,48 @@ public class PrereqEventManager extends org.apache.manifoldcf.core.database.Base
     }
   }
 
+  /** Delete the rows pertaining to a set of entries, as a single batch */
+  public void deleteRowsMultiple(Long[] recordIDs)
+    throws ManifoldCFException
+  {
+    if (recordIDs.length == 0)
+      return;
+    List<List> paramSets = new ArrayList<List>();
+    String query = null;
+    for (Long recordID : recordIDs)
+    {
+      ArrayList list = new ArrayList();
+      query = buildConjunctionClause(list,new ClauseDescription[]{
+        new UnitaryClause(ownerField,recordID)});
+      paramSets.add(list);
+    }
+    performBatchModification("DELETE FROM "+getTableName()+" WHERE "+query,paramSets,null);
+    noteModifications(0,0,recordIDs.length);
+  }
+
+  /** Add rows pertaining to a set of entries, in as few statements as possible */
+  public void addRowsMultiple(Long[] recordIDs, String[][] eventNames)
+    throws ManifoldCFException
+  {
+    List<Map<String,Object>> maps = new ArrayList<Map<String,Object>>();
+    for (int i = 0; i < recordIDs.length; i++)
+    {
+      String[] recordEventNames = eventNames[i];
+      if (recordEventNames != null)
+      {
+        for (String eventName : recordEventNames)
+        {
+          Map<String,Object> map = new HashMap<String,Object>();
+          map.put(ownerField,recordIDs[i]);
+          map.put(eventNameField,eventName);
+          maps.add(map);
+        }
+      }
+    }
+    if (maps.size() == 0)
+      return;
+    performInsertMultiple(maps,null);
+    noteModifications(maps.size(),0,0);
+  }
 
 }
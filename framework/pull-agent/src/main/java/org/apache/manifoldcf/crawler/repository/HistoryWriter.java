@@ -0,0 +1,333 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.crawler.repository;
+
+import org.apache.manifoldcf.core.interfaces.*;
+import org.apache.manifoldcf.crawler.system.Logging;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+
+/** This class writes repository history rows to the database in the background, in batches.
+* Threads recording activity put rows into a bounded in-memory buffer and continue immediately; a single writer thread
+* inserts them, many rows per statement, whenever a batch's worth has accumulated or the flush interval has passed,
+* whichever comes first.  When the buffer is full, recording threads wait for room, so a slow database slows them
+* down rather than letting the buffer grow without limit.
+* Rows that are still in the buffer when the process dies are lost.  That is at most the buffer size, and normally no
+* more than the rows recorded during the last flush interval.  On an orderly shutdown, everything is written.
+* Rows are written in the writer's own transactions, not in the transaction of the thread that recorded them, so they
+* are committed even if that transaction is rolled back, and are not visible to it until the writer gets to them.
+* There is one writer per process.  If the writer thread is interrupted, it writes what is left and retires; rows
+* recorded after that are written by the recording thread itself, until a new writer is started.
+*/
+public class HistoryWriter
+{
+  public static final String _rcsid = "@(#)$Id$";
+
+  /** The current writer, or null */
+  protected static HistoryWriter instance = null;
+
+  /** The buffer */
+  protected final BlockingQueue<HistoryRow> buffer;
+  /** The number of rows that triggers an immediate flush */
+  protected final int batchSize;
+  /** The longest time a row waits before being written (ms) */
+  protected final long flushInterval;
+  /** Held while rows are taken off the buffer and written, so a flush() sees the effects of a write in progress */
+  protected final Lock writeLock = new ReentrantLock();
+  /** The writer thread */
+  protected final WriterThread writerThread;
+  /** Set when the writer is being shut down */
+  protected volatile boolean stopping = false;
+
+  /** Constructor.
+  *@param bufferSize is the maximum number of rows held in memory.
+  *@param batchSize is the number of rows that are written at once.
+  *@param flushInterval is the longest time a row waits before being written, in milliseconds.
+  */
+  public HistoryWriter(int bufferSize, int batchSize, long flushInterval)
+  {
+    this.buffer = new ArrayBlockingQueue<HistoryRow>(bufferSize);
+    this.batchSize = batchSize;
+    this.flushInterval = flushInterval;
+    this.writerThread = new WriterThread();
+  }
+
+  /** Get the process's history writer, starting it if need be.
+  * The configuration of the first caller wins, until the writer is shut down.
+  */
+  public static synchronized HistoryWriter getInstance(int bufferSize, int batchSize, long flushInterval)
+  {
+    if (instance == null)
+    {
+      instance = new HistoryWriter(bufferSize,batchSize,flushInterval);
+      instance.start();
+      org.apache.manifoldcf.core.system.ManifoldCF.addShutdownHook(new HistoryWriterShutdown(instance));
+    }
+    return instance;
+  }
+
+  /** Get the process's history writer, if there is one.
+  *@return the writer, or null.
+  */
+  public static synchronized HistoryWriter getExistingInstance()
+  {
+    return instance;
+  }
+
+  /** Start the writer thread.
+  */
+  public void start()
+  {
+    writerThread.start();
+  }
+
+  /** Queue a row for writing, waiting for room if the buffer is full.
+  * Once the writer is stopping, the row is written on the calling thread instead.
+  *@param row is the row.
+  */
+  public void addRow(HistoryRow row)
+    throws ManifoldCFException
+  {
+    try
+    {
+      while (true)
+      {
+        if (stopping)
+        {
+          // Too late for the writer thread; write it ourselves
+          writeRows(ThreadContextFactory.make(),Collections.singletonList(row));
+          return;
+        }
+        // Wait a bounded time, so that we notice if the writer stops while the buffer is full
+        if (buffer.offer(row,100L,TimeUnit.MILLISECONDS))
+          break;
+      }
+    }
+    catch (InterruptedException e)
+    {
+      throw new ManifoldCFException(e.getMessage(),e,ManifoldCFException.INTERRUPTED);
+    }
+    if (stopping)
+    {
+      // The writer may already have done its last drain, so make sure our row doesn't sit in the buffer
+      flush(ThreadContextFactory.make());
+      return;
+    }
+    if (buffer.size() >= batchSize)
+      LockSupport.unpark(writerThread);
+  }
+
+  /** Write everything that has been queued so far, on the calling thread.
+  * Rows that were being written by the writer thread when this was called are written by the time it returns.
+  *@param threadContext is the calling thread's context.
+  */
+  public void flush(IThreadContext threadContext)
+    throws ManifoldCFException
+  {
+    writeLock.lock();
+    try
+    {
+      while (true)
+      {
+        List<HistoryRow> batch = new ArrayList<HistoryRow>(batchSize);
+        buffer.drainTo(batch,batchSize);
+        if (batch.size() == 0)
+          break;
+        writeRows(threadContext,batch);
+      }
+    }
+    finally
+    {
+      writeLock.unlock();
+    }
+  }
+
+  /** Stop the writer thread, and write everything that is left.
+  *@param threadContext is the calling thread's context.
+  */
+  public void shutdown(IThreadContext threadContext)
+    throws ManifoldCFException
+  {
+    // Don't interrupt the writer thread, since that would abandon the batch it is writing
+    stopping = true;
+    LockSupport.unpark(writerThread);
+    while (writerThread.isAlive())
+    {
+      try
+      {
+        writerThread.join();
+      }
+      catch (InterruptedException e)
+      {
+        // Ignore until the thread is down
+      }
+    }
+    flush(threadContext);
+    retire();
+  }
+
+  /** Stop being the process's writer, so that the next getInstance() starts a new one.
+  */
+  protected void retire()
+  {
+    synchronized (HistoryWriter.class)
+    {
+      if (instance == this)
+        instance = null;
+    }
+  }
+
+  /** Get the number of rows waiting to be written.
+  */
+  public int getPendingCount()
+  {
+    return buffer.size();
+  }
+
+  /** Write a batch of rows.  A batch that cannot be written as a whole is written a row at a time, so one bad row
+  * (for example, one whose connection has since been deleted) does not cost the others.
+  *@param threadContext is the thread context to use.
+  *@param rows are the rows.
+  */
+  protected void writeRows(IThreadContext threadContext, List<HistoryRow> rows)
+    throws ManifoldCFException
+  {
+    IDBInterface database = DBInterfaceFactory.make(threadContext,
+      org.apache.manifoldcf.core.system.ManifoldCF.getMasterDatabaseName(),
+      org.apache.manifoldcf.core.system.ManifoldCF.getMasterDatabaseUsername(),
+      org.apache.manifoldcf.core.system.ManifoldCF.getMasterDatabasePassword());
+    RepositoryHistoryManager historyManager = new RepositoryHistoryManager(threadContext,database);
+    try
+    {
+      historyManager.insertRows(rows);
+    }
+    catch (ManifoldCFException e)
+    {
+      if (e.getErrorCode() == ManifoldCFException.INTERRUPTED)
+        throw e;
+      for (HistoryRow row : rows)
+      {
+        try
+        {
+          historyManager.insertRows(Collections.singletonList(row));
+        }
+        catch (ManifoldCFException e2)
+        {
+          if (e2.getErrorCode() == ManifoldCFException.INTERRUPTED)
+            throw e2;
+          Logging.connectors.warn("Could not record history for connection '"+row.getConnectionName()+"': "+e2.getMessage(),e2);
+        }
+      }
+    }
+  }
+
+  /** The writer thread.
+  */
+  protected class WriterThread extends Thread
+  {
+    public WriterThread()
+    {
+      super();
+      setName("History writer thread");
+      setDaemon(true);
+    }
+
+    public void run()
+    {
+      IThreadContext threadContext = ThreadContextFactory.make();
+      try
+      {
+        runLoop(threadContext);
+      }
+      finally
+      {
+        // However we got here, recording threads must not wait on a buffer that no one is emptying
+        stopping = true;
+        retire();
+        // Write what is left; the interrupt that got us here would just abort that too
+        boolean wasInterrupted = Thread.interrupted();
+        try
+        {
+          flush(threadContext);
+        }
+        catch (Throwable e)
+        {
+          Logging.connectors.error("Error writing history: "+e.getMessage(),e);
+        }
+        finally
+        {
+          if (wasInterrupted)
+            Thread.currentThread().interrupt();
+        }
+      }
+    }
+
+    protected void runLoop(IThreadContext threadContext)
+    {
+      long lastFlushTime = System.currentTimeMillis();
+      while (!stopping)
+      {
+        try
+        {
+          long now = System.currentTimeMillis();
+          long nextFlushTime = lastFlushTime + flushInterval;
+          if (buffer.size() < batchSize && now < nextFlushTime)
+          {
+            // Producers wake us up when a batch is ready
+            LockSupport.parkNanos(this,TimeUnit.MILLISECONDS.toNanos(nextFlushTime - now));
+            continue;
+          }
+          lastFlushTime = now;
+          flush(threadContext);
+        }
+        catch (ManifoldCFException e)
+        {
+          if (e.getErrorCode() == ManifoldCFException.INTERRUPTED)
+            break;
+          Logging.connectors.error("Error writing history: "+e.getMessage(),e);
+        }
+        catch (Throwable e)
+        {
+          Logging.connectors.fatal("Error tossed: "+e.getMessage(),e);
+        }
+      }
+    }
+  }
+
+  /** Shutdown hook that writes what is left in the buffer.
+  */
+  protected static class HistoryWriterShutdown implements IShutdownHook
+  {
+    protected final HistoryWriter writer;
+
+    public HistoryWriterShutdown(HistoryWriter writer)
+    {
+      this.writer = writer;
+    }
+
+    @Override
+    public void doCleanup(IThreadContext threadContext)
+      throws ManifoldCFException
+    {
+      writer.shutdown(threadContext);
+    }
+  }
+
+}
@@ -660,6 +660,17 @@ public class RepositoryConnectionManager extends org.apache.manifoldcf.core.data
   {
     historyManager.deleteOldRows(timeCutoff);
   }
+
+  /** Merge the history rollups for buckets that start within a time range.
+  *@param startTime is the start of the range.
+  *@param endTime is the end of the range.
+  */
+  @Override
+  public void compactHistoryRollups(long startTime, long endTime)
+    throws ManifoldCFException
+  {
+    historyManager.compactRollups(startTime,endTime);
+  }
   
   /** Record time-stamped information about the activity of the connection.  This information can originate from
   * either the connector or from the framework.  The reason it is here is that it is viewed as 'belonging' to an
@@ -746,6 +757,21 @@ public class RepositoryConnectionManager extends org.apache.manifoldcf.core.data
     return historyManager.simpleReport(connectionName,criteria,sort,startRow,maxRowCount);
   }
 
+  /** Generate a simple history report, streaming the rows to a handler rather than building a resultset.
+  *@param connectionName is the name of the connection.
+  *@param criteria is the filtering criteria, which selects the records of interest.
+  *@param sort is the sorting order, which can specify sort based on the result columns.
+  *@param startRow is the first row to include (beginning with 0)
+  *@param maxRowCount is the maximum number of rows to include, or -1 for all of them.
+  *@param handler receives the rows.
+  */
+  public void genHistorySimple(String connectionName, FilterCriteria criteria, SortOrder sort, int startRow, int maxRowCount,
+    IResultRowHandler handler)
+    throws ManifoldCFException
+  {
+    historyManager.simpleReport(connectionName,criteria,sort,startRow,maxRowCount,handler);
+  }
+
   /** Generate a report, listing the start time, activity count, and identifier bucket, given
   * a time slice (interval) size.
   * The records selected for this report are based on the filtering criteria object passed into this method.
@@ -57,12 +57,26 @@ public class RepositoryHistoryManager extends org.apache.manifoldcf.core.databas
   protected final static String resultCodeField = "resultcode";
   protected final static String resultDescriptionField = "resultdesc";
 
+  /** The number of rows to read at a time for streamed reports */
+  protected final static int reportFetchSize = 1000;
+
+  // Configuration for writing history rows in the background
+  protected final static String historyAsyncProperty = "org.apache.manifoldcf.crawler.repository.history_async";
+  protected final static String historyBufferSizeProperty = "org.apache.manifoldcf.crawler.repository.history_buffer_size";
+  protected final static String historyBatchSizeProperty = "org.apache.manifoldcf.crawler.repository.history_batch_size";
+  protected final static String historyFlushIntervalProperty = "org.apache.manifoldcf.crawler.repository.history_flush_interval";
+  /** Whether the per-minute and per-hour rollups are kept and used for reports */
+  protected final static String historyRollupsProperty = "org.apache.manifoldcf.crawler.repository.history_rollups";
+
   /** Thread context */
   protected IThreadContext threadContext;
 
   /** A lock manager handle. */
   protected final ILockManager lockManager;
 
+  /** The rollups of this table */
+  protected final RepositoryHistoryRollupManager rollupManager;
+
   /** Constructor.
   *@param database is the database instance.
   */
@@ -72,6 +86,7 @@ public class RepositoryHistoryManager extends org.apache.manifoldcf.core.databas
     super(database,"repohistory");
     this.threadContext = tc;
     this.lockManager = LockManagerFactory.make(tc);
+    this.rollupManager = new RepositoryHistoryRollupManager(tc,database);
   }
 
   /** Install or upgrade the table.
@@ -81,10 +96,12 @@ public class RepositoryHistoryManager extends org.apache.manifoldcf.core.databas
   public void install(String parentTable, String parentField)
     throws ManifoldCFException
   {
+    boolean historyExisted = false;
     // Always have an outer loop, in case of upgrade
     while (true)
     {
       Map existing = getTableSchema(null,null);
+      historyExisted = (existing != null);
       if (existing == null)
       {
         HashMap map = new HashMap();
@@ -144,6 +161,28 @@ public class RepositoryHistoryManager extends org.apache.manifoldcf.core.databas
       break;
 
     }
+
+    rollupManager.install(parentTable,parentField);
+    if (rollupsEnabled())
+    {
+      // Rollups may be new to this installation, or have just been turned on, so build them from the history that is
+      // already there
+      if (historyExisted && rollupManager.isEmpty())
+        rollupManager.rebuild(getTableName());
+    }
+    else
+    {
+      // Rollups that aren't being kept up to date must not be there to be used if they are turned on again
+      rollupManager.clear();
+    }
+  }
+
+  /** Check whether the rollups are kept and used.
+  */
+  protected boolean rollupsEnabled()
+    throws ManifoldCFException
+  {
+    return lockManager.getSharedConfiguration().getBooleanProperty(historyRollupsProperty,false);
   }
 
   /** Uninstall the table.
@@ -151,6 +190,7 @@ public class RepositoryHistoryManager extends org.apache.manifoldcf.core.databas
   public void deinstall()
     throws ManifoldCFException
   {
+    rollupManager.deinstall();
     performDrop(null);
   }
 
@@ -160,10 +200,15 @@ public class RepositoryHistoryManager extends org.apache.manifoldcf.core.databas
   public void deleteOwner(String owner)
     throws ManifoldCFException
   {
+    // Rows still waiting to be written would otherwise refer to an owner that is gone
+    HistoryWriter writer = HistoryWriter.getExistingInstance();
+    if (writer != null)
+      writer.flush(threadContext);
     ArrayList params = new ArrayList();
     String query = buildConjunctionClause(params,new ClauseDescription[]{
       new UnitaryClause(ownerNameField,owner)});
     performDelete("WHERE "+query,params,null);
+    rollupManager.deleteOwner(owner);
   }
 
   /** Delete records older than a specified time.
@@ -176,36 +221,98 @@ public class RepositoryHistoryManager extends org.apache.manifoldcf.core.databas
     String query = buildConjunctionClause(params,new ClauseDescription[]{
       new UnitaryClause(startTimeField,"<",new Long(timeCutoff))});
     performDelete("WHERE "+query,params,null);
+    rollupManager.deleteOldRows(timeCutoff);
+  }
+
+  /** Merge the rollup rows for buckets that start within a time range.
+  *@param startTime is the start of the range.
+  *@param endTime is the end of the range.
+  */
+  public void compactRollups(long startTime, long endTime)
+    throws ManifoldCFException
+  {
+    if (rollupsEnabled())
+      rollupManager.compact(startTime,endTime);
   }
   
   /** Add row to table, and reanalyze if necessary.
+  * If history is written in the background, the row is queued and will show up in reports shortly.  It is then
+  * committed by the writer, outside of any transaction the caller has open.
   */
   public Long addRow(String connectionName, long startTime, long endTime, long dataSize, String activityType,
     String entityIdentifier, String resultCode, String resultDescription)
     throws ManifoldCFException
   {
     Long id = new Long(IDFactory.make(threadContext));   
-    if (lockManager.getSharedConfiguration().getBooleanProperty("org.apache.manifoldcf.crawler.repository.store_history",true))
+    ManifoldCFConfiguration sharedConfiguration = lockManager.getSharedConfiguration();
+    if (sharedConfiguration.getBooleanProperty("org.apache.manifoldcf.crawler.repository.store_history",true))
     {
-      HashMap map = new HashMap();
-      map.put(idField,id);
-      map.put(ownerNameField,connectionName);
-      map.put(startTimeField,new Long(startTime));
-      map.put(endTimeField,new Long(endTime));
-      map.put(dataSizeField,new Long(dataSize));
-      map.put(activityTypeField,activityType);
-      map.put(entityIdentifierField,entityIdentifier);
-      if (resultCode != null)
-        map.put(resultCodeField,resultCode);
-      if (resultDescription != null)
-        map.put(resultDescriptionField,resultDescription);
-      performInsert(map,null);
-      // Not accurate, but best we can do without overhead
-      noteModifications(1,0,0);
+      HistoryRow row = new HistoryRow(id,connectionName,startTime,endTime,dataSize,activityType,
+        entityIdentifier,resultCode,resultDescription);
+      if (sharedConfiguration.getBooleanProperty(historyAsyncProperty,false))
+      {
+        HistoryWriter.getInstance(sharedConfiguration.getIntProperty(historyBufferSizeProperty,10000),
+          sharedConfiguration.getIntProperty(historyBatchSizeProperty,500),
+          sharedConfiguration.getLongProperty(historyFlushIntervalProperty,1000L)).addRow(row);
+      }
+      else
+        insertRows(Collections.singletonList(row));
     }
     return id;
   }
 
+  /** Insert rows into the table, and add them to the rollups if those are turned on.
+  *@param rows are the rows to insert.
+  */
+  public void insertRows(List<HistoryRow> rows)
+    throws ManifoldCFException
+  {
+    boolean maintainRollups = rollupsEnabled();
+    List<Map<String,Object>> maps = new ArrayList<Map<String,Object>>(rows.size());
+    for (HistoryRow row : rows)
+    {
+      Map<String,Object> map = new HashMap<String,Object>();
+      map.put(idField,row.getID());
+      map.put(ownerNameField,row.getConnectionName());
+      map.put(startTimeField,new Long(row.getStartTime()));
+      map.put(endTimeField,new Long(row.getEndTime()));
+      map.put(dataSizeField,new Long(row.getDataSize()));
+      map.put(activityTypeField,row.getActivityType());
+      map.put(entityIdentifierField,row.getEntityIdentifier());
+      if (row.getResultCode() != null)
+        map.put(resultCodeField,row.getResultCode());
+      if (row.getResultDescription() != null)
+        map.put(resultDescriptionField,row.getResultDescription());
+      maps.add(map);
+    }
+    beginTransaction();
+    try
+    {
+      if (maps.size() == 1)
+        performInsert((HashMap)maps.get(0),null);
+      else
+        performInsertMultiple(maps,null);
+      if (maintainRollups)
+        rollupManager.addRows(rows);
+    }
+    catch (ManifoldCFException e)
+    {
+      signalRollback();
+      throw e;
+    }
+    catch (Error e)
+    {
+      signalRollback();
+      throw e;
+    }
+    finally
+    {
+      endTransaction();
+    }
+    // Not accurate, but best we can do without overhead
+    noteModifications(rows.size(),0,0);
+  }
+
   // For result analysis, we make heavy use of Postgresql's more advanced posix regular expression
   // handling.  The queries in general are fairly messy.  There's a "front aligned" way of doing things,
   // which uses the start time of a row and finds everything that overlaps the interval from "start time"
@@ -283,10 +390,34 @@ public class RepositoryHistoryManager extends org.apache.manifoldcf.core.databas
   */
   public IResultSet simpleReport(String connectionName, FilterCriteria criteria, SortOrder sort, int startRow, int maxRowCount)
     throws ManifoldCFException
+  {
+    ArrayList list = new ArrayList();
+    String query = buildSimpleReportQuery(list,connectionName,criteria,sort,startRow,maxRowCount);
+    return performQuery(query,list,null,null,maxRowCount);
+  }
+
+  /** Get a simple history, streaming the rows to a handler rather than building a resultset.
+  * The rows have the same columns as those returned by simpleReport().
+  */
+  public void simpleReport(String connectionName, FilterCriteria criteria, SortOrder sort, int startRow, int maxRowCount,
+    IResultRowHandler handler)
+    throws ManifoldCFException
+  {
+    ArrayList list = new ArrayList();
+    String query = buildSimpleReportQuery(list,connectionName,criteria,sort,startRow,maxRowCount);
+    performStreamingQuery(query,list,reportFetchSize,handler);
+  }
+
+  /** Build the query for a simple history.
+  *@param list receives the query parameters.
+  *@return the query.
+  */
+  protected String buildSimpleReportQuery(ArrayList list, String connectionName, FilterCriteria criteria, SortOrder sort,
+    int startRow, int maxRowCount)
+    throws ManifoldCFException
   {
     // Build the query.
     StringBuilder sb = new StringBuilder("SELECT ");
-    ArrayList list = new ArrayList();
     sb.append(idField).append(" AS id,").append(activityTypeField).append(" AS activity,").append(startTimeField).append(" AS starttime,(")
       .append(endTimeField).append("-").append(startTimeField).append(")")
       .append(" AS elapsedtime,").append(resultCodeField).append(" AS resultcode,").append(resultDescriptionField)
@@ -297,7 +428,7 @@ public class RepositoryHistoryManager extends org.apache.manifoldcf.core.databas
     // order for the OFFSET/LIMIT clause.  We include "starttime" because that's the default ordering.
     addOrdering(sb,new String[]{"starttime","id"},sort);
     addLimits(sb,startRow,maxRowCount);
-    return performQuery(sb.toString(),list,null,null,maxRowCount);
+    return sb.toString();
   }
 
   /** Count the number of rows specified by a given set of criteria.  This can be used to make decisions
@@ -335,11 +466,17 @@ public class RepositoryHistoryManager extends org.apache.manifoldcf.core.databas
   * The resultset returned should have the following columns: "starttime","endtime","activitycount","idbucket".
   * An activity is counted as being within the interval window on a prorated basis, which can lead to fractional
   * counts.
+  * When rollups are turned on, the report doesn't distinguish between entities, and its times line up with a rollup
+  * granularity, it is answered from the rollups, with windows that start on bucket boundaries.
   */
   public IResultSet maxActivityCountReport(String connectionName, FilterCriteria filterCriteria, SortOrder sort, BucketDescription idBucket,
     long interval, int startRow, int maxRowCount)
     throws ManifoldCFException
   {
+    long granularity = (interval > 0L && rollupsEnabled())?rollupManager.findReportGranularity(filterCriteria,idBucket,interval):0L;
+    if (granularity != 0L)
+      return rollupManager.maxActivityCountReport(granularity,connectionName,filterCriteria,interval,startRow,maxRowCount);
+
     // The query we will generate here looks like this:
     // SELECT *
     //   FROM
@@ -438,11 +575,16 @@ public class RepositoryHistoryManager extends org.apache.manifoldcf.core.databas
 
   /** Get a bucketed history, with sliding window, of maximum byte count.
   * The resultset returned should have the following columns: "starttime","endtime","bytecount","idbucket".
+  * As for maxActivityCountReport(), this is answered from the rollups when it can be.
   */
   public IResultSet maxByteCountReport(String connectionName, FilterCriteria filterCriteria, SortOrder sort, BucketDescription idBucket,
     long interval, int startRow, int maxRowCount)
     throws ManifoldCFException
   {
+    long granularity = (interval > 0L && rollupsEnabled())?rollupManager.findReportGranularity(filterCriteria,idBucket,interval):0L;
+    if (granularity != 0L)
+      return rollupManager.maxByteCountReport(granularity,connectionName,filterCriteria,interval,startRow,maxRowCount);
+
     // The query we will generate here looks like this:
     // SELECT *
     //   FROM
@@ -545,11 +687,17 @@ public class RepositoryHistoryManager extends org.apache.manifoldcf.core.databas
 
   /** Get a bucketed history of different result code/identifier combinations.
   * The resultset returned should have the following columns: "eventcount","resultcodebucket","idbucket".
+  * When rollups are turned on, the report doesn't distinguish between entities, and its time limits line up with a
+  * rollup granularity, it is answered from the rollups.
   */
   public IResultSet resultCodesReport(String connectionName, FilterCriteria filterCriteria, SortOrder sort,
     BucketDescription resultCodeBucket, BucketDescription idBucket, int startRow, int maxRowCount)
     throws ManifoldCFException
   {
+    long granularity = rollupsEnabled()?rollupManager.findReportGranularity(filterCriteria,idBucket,0L):0L;
+    if (granularity != 0L)
+      return rollupManager.resultCodesReport(granularity,connectionName,filterCriteria,sort,resultCodeBucket,startRow,maxRowCount);
+
     // The query we'll use here will be:
     //
     // SELECT * FROM (SELECT substring(resultcode FROM '<result_regexp>') AS resultcodebucket,
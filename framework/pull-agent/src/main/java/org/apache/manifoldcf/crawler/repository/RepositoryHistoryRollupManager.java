@@ -0,0 +1,783 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.crawler.repository;
+
+import org.apache.manifoldcf.core.interfaces.*;
+import org.apache.manifoldcf.crawler.interfaces.*;
+import java.util.*;
+
+/** This class manages per-minute and per-hour rollups of the repository history, so that reports that don't need to
+* look at individual entities can be answered without scanning the history itself.
+* Each history row adds to the rollup buckets of its connection, activity type, and result code.  The row's event is
+* counted in the bucket its start time falls into; its activity and byte count are prorated over every bucket its
+* duration overlaps, the same way the windowed reports prorate over their windows, unless that is more than an hour's
+* worth of buckets, in which case they are counted in the start bucket too.
+* Rollup rows are deltas: every batch of history rows inserts new ones, and readers always sum.  That keeps writers
+* from ever contending for the same rows.  The history cleanup thread periodically merges the deltas for each bucket
+* into a single row.  Since that thread runs in every process, merging is done under a cross-process lock.
+* Rollups are only maintained when RepositoryHistoryManager has them turned on.
+*
+* <br><br>
+* <b>repohistoryrollup</b>
+* <table border="1" cellpadding="3" cellspacing="0" summary="">
+* <tr class="TableHeadingColor">
+* <th>Field</th><th>Type</th><th>Description&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;</th>
+* <tr><td>id</td><td>BIGINT</td><td>Primary Key</td></tr>
+* <tr><td>owner</td><td>VARCHAR(32)</td><td>Reference:repoconnections.connectionname</td></tr>
+* <tr><td>granularity</td><td>BIGINT</td><td>Bucket size in milliseconds</td></tr>
+* <tr><td>bucketstart</td><td>BIGINT</td><td></td></tr>
+* <tr><td>activitytype</td><td>VARCHAR(64)</td><td></td></tr>
+* <tr><td>resultcode</td><td>VARCHAR(255)</td><td></td></tr>
+* <tr><td>eventcount</td><td>BIGINT</td><td></td></tr>
+* <tr><td>activitycount</td><td>FLOAT</td><td></td></tr>
+* <tr><td>bytecount</td><td>FLOAT</td><td></td></tr>
+* </table>
+* <br><br>
+*
+*/
+public class RepositoryHistoryRollupManager extends org.apache.manifoldcf.core.database.BaseTable
+{
+  public static final String _rcsid = "@(#)$Id$";
+
+  // Fields
+  protected final static String idField = "id";
+  protected final static String ownerNameField = "owner";
+  protected final static String granularityField = "granularity";
+  protected final static String bucketStartField = "bucketstart";
+  protected final static String activityTypeField = "activitytype";
+  protected final static String resultCodeField = "resultcode";
+  protected final static String eventCountField = "eventcount";
+  protected final static String activityCountField = "activitycount";
+  protected final static String byteCountField = "bytecount";
+
+  /** One minute, in milliseconds */
+  public final static long MINUTE = 60000L;
+  /** One hour, in milliseconds */
+  public final static long HOUR = 60L * MINUTE;
+
+  /** The granularities that are maintained, coarsest first */
+  protected final static long[] granularities = new long[]{HOUR,MINUTE};
+
+  /** A history row whose duration covers more buckets than this is counted entirely in its start bucket, so that
+  * a long activity costs at most an hour's worth of minute rows, and a bogus start time can't produce millions */
+  protected final static int maxBucketsPerRow = 60;
+
+  /** The slice of time compacted in one transaction */
+  protected final static long compactionSlice = HOUR;
+
+  /** The slice of history aggregated at a time when the rollups are built from existing history */
+  protected final static long rebuildSlice = 24L * HOUR;
+
+  /** The number of rows to read at a time when rebuilding */
+  protected final static int rebuildFetchSize = 1000;
+
+  /** The lock that keeps processes from merging the same deltas at once */
+  protected final static String compactionLock = "_REPOHISTORYROLLUPCOMPACT_";
+
+  /** Thread context */
+  protected final IThreadContext threadContext;
+  /** Lock manager */
+  protected final ILockManager lockManager;
+
+  /** Constructor.
+  *@param tc is the thread context.
+  *@param database is the database instance.
+  */
+  public RepositoryHistoryRollupManager(IThreadContext tc, IDBInterface database)
+    throws ManifoldCFException
+  {
+    super(database,"repohistoryrollup");
+    this.threadContext = tc;
+    this.lockManager = LockManagerFactory.make(tc);
+  }
+
+  /** Install or upgrade the table.
+  *@param parentTable is the parent table.
+  *@param parentField is the parent field.
+  *@return true if the table had to be created.
+  */
+  public boolean install(String parentTable, String parentField)
+    throws ManifoldCFException
+  {
+    boolean created = false;
+    // Always have an outer loop, in case of upgrade
+    while (true)
+    {
+      Map existing = getTableSchema(null,null);
+      if (existing == null)
+      {
+        HashMap map = new HashMap();
+        map.put(idField,new ColumnDescription("BIGINT",true,false,null,null,false));
+        map.put(ownerNameField,new ColumnDescription("VARCHAR(32)",false,false,parentTable,parentField,false));
+        map.put(granularityField,new ColumnDescription("BIGINT",false,false,null,null,false));
+        map.put(bucketStartField,new ColumnDescription("BIGINT",false,false,null,null,false));
+        map.put(activityTypeField,new ColumnDescription("VARCHAR(64)",false,false,null,null,false));
+        map.put(resultCodeField,new ColumnDescription("VARCHAR(255)",false,true,null,null,false));
+        map.put(eventCountField,new ColumnDescription("BIGINT",false,false,null,null,false));
+        map.put(activityCountField,new ColumnDescription("FLOAT",false,false,null,null,false));
+        map.put(byteCountField,new ColumnDescription("FLOAT",false,false,null,null,false));
+        performCreate(map,null);
+        created = true;
+      }
+      else
+      {
+        // Upgrade code.
+      }
+
+      // Index management
+      IndexDescription bucketIndex = new IndexDescription(false,new String[]{ownerNameField,granularityField,bucketStartField});
+
+      // Get rid of indexes that shouldn't be there
+      Map indexes = getTableIndexes(null,null);
+      Iterator iter = indexes.keySet().iterator();
+      while (iter.hasNext())
+      {
+        String indexName = (String)iter.next();
+        IndexDescription id = (IndexDescription)indexes.get(indexName);
+
+        if (bucketIndex != null && id.equals(bucketIndex))
+          bucketIndex = null;
+        else if (indexName.indexOf("_pkey") == -1)
+          // This index shouldn't be here; drop it
+          performRemoveIndex(indexName);
+      }
+
+      // Add the ones we didn't find
+      if (bucketIndex != null)
+        performAddIndex(null,bucketIndex);
+
+      break;
+    }
+    return created;
+  }
+
+  /** Uninstall the table.
+  */
+  public void deinstall()
+    throws ManifoldCFException
+  {
+    performDrop(null);
+  }
+
+  /** Delete all rollups associated with given owner.
+  *@param owner is the name of the owner.
+  */
+  public void deleteOwner(String owner)
+    throws ManifoldCFException
+  {
+    ArrayList params = new ArrayList();
+    String query = buildConjunctionClause(params,new ClauseDescription[]{
+      new UnitaryClause(ownerNameField,owner)});
+    performDelete("WHERE "+query,params,null);
+  }
+
+  /** Delete all rollups.
+  */
+  public void clear()
+    throws ManifoldCFException
+  {
+    performDelete("",null,null);
+  }
+
+  /** Check whether there are any rollups at all.
+  *@return true if there are none.
+  */
+  public boolean isEmpty()
+    throws ManifoldCFException
+  {
+    IResultSet set = performQuery("SELECT "+idField+" FROM "+getTableName()+" "+constructOffsetLimitClause(0,1),null,null,null,1);
+    return set.getRowCount() == 0;
+  }
+
+  /** Delete the buckets that lie entirely before a given time.
+  *@param timeCutoff is the time before which buckets should be removed.
+  */
+  public void deleteOldRows(long timeCutoff)
+    throws ManifoldCFException
+  {
+    for (long granularity : granularities)
+    {
+      ArrayList params = new ArrayList();
+      String query = buildConjunctionClause(params,new ClauseDescription[]{
+        new UnitaryClause(granularityField,new Long(granularity)),
+        new UnitaryClause(bucketStartField,"<=",new Long(timeCutoff - granularity))});
+      performDelete("WHERE "+query,params,null);
+    }
+  }
+
+  /** Add a set of history rows to the rollups.
+  *@param rows are the history rows.
+  */
+  public void addRows(List<HistoryRow> rows)
+    throws ManifoldCFException
+  {
+    Map<RollupKey,RollupCounts> rollups = new HashMap<RollupKey,RollupCounts>();
+    for (HistoryRow row : rows)
+    {
+      addToRollups(rollups,row);
+    }
+    writeRollups(rollups);
+  }
+
+  /** Build the rollups from the history table, a day at a time.
+  * This is used to populate the rollups when the rollup table is first created.
+  *@param historyTableName is the name of the history table.
+  */
+  public void rebuild(String historyTableName)
+    throws ManifoldCFException
+  {
+    IResultSet set = performQuery("SELECT MIN("+RepositoryHistoryManager.startTimeField+") AS mintime,MAX("+
+      RepositoryHistoryManager.startTimeField+") AS maxtime FROM "+historyTableName,null,null,null);
+    if (set.getRowCount() == 0)
+      return;
+    IResultRow row = set.getRow(0);
+    Long minTime = (Long)row.getValue("mintime");
+    Long maxTime = (Long)row.getValue("maxtime");
+    if (minTime == null || maxTime == null)
+      return;
+    long sliceStart = Math.floorDiv(minTime.longValue(),rebuildSlice) * rebuildSlice;
+    while (sliceStart <= maxTime.longValue())
+    {
+      final Map<RollupKey,RollupCounts> rollups = new HashMap<RollupKey,RollupCounts>();
+      ArrayList params = new ArrayList();
+      String query = buildConjunctionClause(params,new ClauseDescription[]{
+        new UnitaryClause(RepositoryHistoryManager.startTimeField,">=",new Long(sliceStart)),
+        new UnitaryClause(RepositoryHistoryManager.startTimeField,"<",new Long(sliceStart + rebuildSlice))});
+      performStreamingQuery("SELECT "+RepositoryHistoryManager.ownerNameField+","+RepositoryHistoryManager.startTimeField+","+
+        RepositoryHistoryManager.endTimeField+","+RepositoryHistoryManager.dataSizeField+","+
+        RepositoryHistoryManager.activityTypeField+","+RepositoryHistoryManager.resultCodeField+
+        " FROM "+historyTableName+" WHERE "+query,params,rebuildFetchSize,
+        new IResultRowHandler()
+        {
+          public void handleRow(IResultRow historyRow)
+            throws ManifoldCFException
+          {
+            addToRollups(rollups,new HistoryRow(null,
+              (String)historyRow.getValue(RepositoryHistoryManager.ownerNameField),
+              ((Long)historyRow.getValue(RepositoryHistoryManager.startTimeField)).longValue(),
+              ((Long)historyRow.getValue(RepositoryHistoryManager.endTimeField)).longValue(),
+              ((Long)historyRow.getValue(RepositoryHistoryManager.dataSizeField)).longValue(),
+              (String)historyRow.getValue(RepositoryHistoryManager.activityTypeField),
+              null,
+              (String)historyRow.getValue(RepositoryHistoryManager.resultCodeField),
+              null));
+          }
+        });
+      writeRollups(rollups);
+      sliceStart += rebuildSlice;
+    }
+  }
+
+  /** Merge the rollup deltas for the buckets that start within a time range, so each bucket is a single row again.
+  * Deltas that arrive while this is going on are left alone, and picked up next time.
+  * Each slice is merged under a cross-process write lock; otherwise two processes could both read the same deltas,
+  * and both write back their sum.
+  *@param startTime is the start of the range.
+  *@param endTime is the end of the range.
+  */
+  public void compact(long startTime, long endTime)
+    throws ManifoldCFException
+  {
+    long sliceStart = Math.floorDiv(startTime,compactionSlice) * compactionSlice;
+    while (sliceStart < endTime)
+    {
+      // One lock name for all slices, so lock managers that keep a file or node per name don't accumulate them
+      lockManager.enterWriteLock(compactionLock);
+      try
+      {
+        for (long granularity : granularities)
+        {
+          compactSlice(granularity,sliceStart,sliceStart + compactionSlice);
+        }
+      }
+      finally
+      {
+        lockManager.leaveWriteLock(compactionLock);
+      }
+      sliceStart += compactionSlice;
+    }
+  }
+
+  /** Merge the rollup deltas of one granularity in one slice of time.  Call only while holding the compaction lock.
+  */
+  protected void compactSlice(long granularity, long sliceStart, long sliceEnd)
+    throws ManifoldCFException
+  {
+    beginTransaction();
+    try
+    {
+      ArrayList params = new ArrayList();
+      String query = buildConjunctionClause(params,new ClauseDescription[]{
+        new UnitaryClause(granularityField,new Long(granularity)),
+        new UnitaryClause(bucketStartField,">=",new Long(sliceStart)),
+        new UnitaryClause(bucketStartField,"<",new Long(sliceEnd))});
+      IResultSet set = performQuery("SELECT "+idField+","+ownerNameField+","+bucketStartField+","+activityTypeField+","+
+        resultCodeField+","+eventCountField+","+activityCountField+","+byteCountField+" FROM "+getTableName()+
+        " WHERE "+query,params,null,null);
+
+      Map<RollupKey,RollupCounts> merged = new HashMap<RollupKey,RollupCounts>();
+      Map<RollupKey,List<Long>> ids = new HashMap<RollupKey,List<Long>>();
+      for (int i = 0; i < set.getRowCount(); i++)
+      {
+        IResultRow row = set.getRow(i);
+        RollupKey key = new RollupKey((String)row.getValue(ownerNameField),granularity,
+          ((Long)row.getValue(bucketStartField)).longValue(),(String)row.getValue(activityTypeField),
+          (String)row.getValue(resultCodeField));
+        RollupCounts counts = merged.get(key);
+        if (counts == null)
+        {
+          counts = new RollupCounts();
+          merged.put(key,counts);
+          ids.put(key,new ArrayList<Long>());
+        }
+        counts.add(asLong(row.getValue(eventCountField)),
+          asDouble(row.getValue(activityCountField)),asDouble(row.getValue(byteCountField)));
+        ids.get(key).add((Long)row.getValue(idField));
+      }
+
+      // Only buckets with more than one row need anything done
+      Map<RollupKey,RollupCounts> replacements = new HashMap<RollupKey,RollupCounts>();
+      List<Long> deleteList = new ArrayList<Long>();
+      for (Map.Entry<RollupKey,List<Long>> entry : ids.entrySet())
+      {
+        if (entry.getValue().size() > 1)
+        {
+          replacements.put(entry.getKey(),merged.get(entry.getKey()));
+          deleteList.addAll(entry.getValue());
+        }
+      }
+      if (deleteList.size() > 0)
+      {
+        int maxClause = getMaxInClause();
+        for (int i = 0; i < deleteList.size(); i += maxClause)
+        {
+          ArrayList deleteParams = new ArrayList();
+          String deleteQuery = buildConjunctionClause(deleteParams,new ClauseDescription[]{
+            new MultiClause(idField,deleteList.subList(i,Math.min(deleteList.size(),i + maxClause)))});
+          performDelete("WHERE "+deleteQuery,deleteParams,null);
+        }
+        writeRollups(replacements);
+      }
+    }
+    catch (ManifoldCFException e)
+    {
+      signalRollback();
+      throw e;
+    }
+    catch (Error e)
+    {
+      signalRollback();
+      throw e;
+    }
+    finally
+    {
+      endTransaction();
+    }
+  }
+
+  /** Insert rollup rows.
+  */
+  protected void writeRollups(Map<RollupKey,RollupCounts> rollups)
+    throws ManifoldCFException
+  {
+    if (rollups.size() == 0)
+      return;
+    List<Map<String,Object>> maps = new ArrayList<Map<String,Object>>(rollups.size());
+    for (Map.Entry<RollupKey,RollupCounts> entry : rollups.entrySet())
+    {
+      RollupKey key = entry.getKey();
+      RollupCounts counts = entry.getValue();
+      Map<String,Object> map = new HashMap<String,Object>();
+      map.put(idField,new Long(IDFactory.make(threadContext)));
+      map.put(ownerNameField,key.owner);
+      map.put(granularityField,new Long(key.granularity));
+      map.put(bucketStartField,new Long(key.bucketStart));
+      map.put(activityTypeField,key.activityType);
+      if (key.resultCode != null)
+        map.put(resultCodeField,key.resultCode);
+      map.put(eventCountField,new Long(counts.eventCount));
+      map.put(activityCountField,new Double(counts.activityCount));
+      map.put(byteCountField,new Double(counts.byteCount));
+      maps.add(map);
+    }
+    if (maps.size() == 1)
+      performInsert((HashMap)maps.get(0),null);
+    else
+      performInsertMultiple(maps,null);
+  }
+
+  /** Decide which rollup granularity, if any, can answer a report.
+  * The rollups know nothing about individual entities, so the report may not filter on the entity identifier, and its
+  * identifier bucket must be one that puts everything together.  The time limits and window size must be whole
+  * multiples of the granularity.
+  *@param criteria is the report's filter criteria.
+  *@param idBucket is the report's identifier bucket description.
+  *@param interval is the report's window size, or zero if it has none.
+  *@return the granularity to use, or zero if the report must be run against the history itself.
+  */
+  public long findReportGranularity(FilterCriteria criteria, BucketDescription idBucket, long interval)
+  {
+    if (criteria.getEntityMatch() != null)
+      return 0L;
+    String regexp = idBucket.getRegexp();
+    if (!(regexp.length() == 0 || regexp.equals("()")))
+      return 0L;
+    Long startTime = criteria.getStartTime();
+    Long endTime = criteria.getEndTime();
+    for (long granularity : granularities)
+    {
+      if (interval % granularity != 0L)
+        continue;
+      if (startTime != null && startTime.longValue() % granularity != 0L)
+        continue;
+      if (endTime != null && endTime.longValue() % granularity != 0L)
+        continue;
+      return granularity;
+    }
+    return 0L;
+  }
+
+  /** Get the result codes report from the rollups.
+  * The resultset has the same columns as RepositoryHistoryManager.resultCodesReport().
+  */
+  public IResultSet resultCodesReport(long granularity, String connectionName, FilterCriteria filterCriteria, SortOrder sort,
+    BucketDescription resultCodeBucket, int startRow, int maxRowCount)
+    throws ManifoldCFException
+  {
+    StringBuilder sb = new StringBuilder("SELECT t1.resultcodebucket,t1.idbucket,SUM(t1.")
+      .append(eventCountField).append(") AS eventcount FROM (SELECT ");
+    ArrayList list = new ArrayList();
+    sb.append(constructSubstringClause(resultCodeField,"?",!resultCodeBucket.isSensitive()));
+    list.add(resultCodeBucket.getRegexp());
+    sb.append(" AS resultcodebucket,'' AS idbucket,").append(eventCountField).append(" FROM ").append(getTableName());
+    addCriteria(sb,list,granularity,connectionName,filterCriteria);
+    sb.append(") t1 GROUP BY resultcodebucket,idbucket");
+    addOrdering(sb,new String[]{"eventcount","resultcodebucket","idbucket"},sort);
+    sb.append(" ").append(constructOffsetLimitClause(startRow,maxRowCount));
+    IResultSet set = performQuery(sb.toString(),list,null,null,maxRowCount);
+
+    // The history report counts, so it gets whole numbers back; a sum may come back as a decimal
+    org.apache.manifoldcf.core.database.RSet rval = new org.apache.manifoldcf.core.database.RSet();
+    for (int i = 0; i < set.getRowCount(); i++)
+    {
+      IResultRow row = set.getRow(i);
+      org.apache.manifoldcf.core.database.RRow newRow = new org.apache.manifoldcf.core.database.RRow();
+      newRow.put("resultcodebucket",row.getValue("resultcodebucket"));
+      newRow.put("idbucket",row.getValue("idbucket"));
+      newRow.put("eventcount",new Long(asLong(row.getValue("eventcount"))));
+      rval.addRow(newRow);
+    }
+    return rval;
+  }
+
+  /** Get the maximum activity report from the rollups.
+  * The resultset has the same columns as RepositoryHistoryManager.maxActivityCountReport().
+  */
+  public IResultSet maxActivityCountReport(long granularity, String connectionName, FilterCriteria filterCriteria,
+    long interval, int startRow, int maxRowCount)
+    throws ManifoldCFException
+  {
+    return maxWindowReport(granularity,activityCountField,connectionName,filterCriteria,interval,startRow,maxRowCount);
+  }
+
+  /** Get the maximum byte count report from the rollups.
+  * The resultset has the same columns as RepositoryHistoryManager.maxByteCountReport().
+  */
+  public IResultSet maxByteCountReport(long granularity, String connectionName, FilterCriteria filterCriteria,
+    long interval, int startRow, int maxRowCount)
+    throws ManifoldCFException
+  {
+    return maxWindowReport(granularity,byteCountField,connectionName,filterCriteria,interval,startRow,maxRowCount);
+  }
+
+  /** Find the window with the highest total of a rollup column.
+  * There is only one identifier bucket, so the report has at most one row.
+  */
+  protected IResultSet maxWindowReport(long granularity, String columnName, String connectionName, FilterCriteria filterCriteria,
+    long interval, int startRow, int maxRowCount)
+    throws ManifoldCFException
+  {
+    StringBuilder sb = new StringBuilder("SELECT ");
+    ArrayList list = new ArrayList();
+    sb.append(bucketStartField).append(",SUM(").append(columnName).append(") AS total FROM ").append(getTableName());
+    addCriteria(sb,list,granularity,connectionName,filterCriteria);
+    sb.append(" GROUP BY ").append(bucketStartField).append(" ORDER BY ").append(bucketStartField).append(" ASC");
+    IResultSet set = performQuery(sb.toString(),list,null,null);
+
+    long[] bucketStarts = new long[set.getRowCount()];
+    double[] totals = new double[set.getRowCount()];
+    for (int i = 0; i < bucketStarts.length; i++)
+    {
+      IResultRow row = set.getRow(i);
+      bucketStarts[i] = ((Long)row.getValue(bucketStartField)).longValue();
+      totals[i] = asDouble(row.getValue("total"));
+    }
+
+    org.apache.manifoldcf.core.database.RSet rval = new org.apache.manifoldcf.core.database.RSet();
+    WindowMaximum max = findMaxWindow(bucketStarts,totals,interval);
+    if (max != null && startRow == 0 && maxRowCount != 0)
+    {
+      org.apache.manifoldcf.core.database.RRow row = new org.apache.manifoldcf.core.database.RRow();
+      row.put("idbucket","");
+      row.put(columnName,new Double(max.total));
+      row.put("starttime",new Long(max.windowStart));
+      row.put("endtime",new Long(max.windowStart + interval));
+      rval.addRow(row);
+    }
+    return rval;
+  }
+
+  /** Add criteria clauses to a rollup query.
+  * The time limits select whole buckets, so they are only exact to the granularity.
+  */
+  protected void addCriteria(StringBuilder sb, ArrayList list, long granularity, String connectionName, FilterCriteria criteria)
+  {
+    sb.append(" WHERE ").append(ownerNameField).append("=? AND ").append(granularityField).append("=?");
+    list.add(connectionName);
+    list.add(new Long(granularity));
+
+    String[] activities = criteria.getActivities();
+    if (activities != null)
+    {
+      if (activities.length == 0)
+      {
+        sb.append(" AND 0>1");
+      }
+      else
+      {
+        sb.append(" AND ").append(activityTypeField).append(" IN(");
+        for (int i = 0; i < activities.length; i++)
+        {
+          if (i > 0)
+            sb.append(",");
+          sb.append("?");
+          list.add(activities[i]);
+        }
+        sb.append(")");
+      }
+    }
+
+    Long startTime = criteria.getStartTime();
+    if (startTime != null)
+      sb.append(" AND ").append(bucketStartField).append(">=").append(startTime.toString());
+
+    Long endTime = criteria.getEndTime();
+    if (endTime != null)
+      sb.append(" AND ").append(bucketStartField).append("<=").append(new Long(endTime.longValue() - granularity).toString());
+
+    RegExpCriteria resultCodeMatch = criteria.getResultCodeMatch();
+    if (resultCodeMatch != null)
+    {
+      sb.append(" AND ").append(constructRegexpClause(resultCodeField,"?",resultCodeMatch.isInsensitive()));
+      list.add(resultCodeMatch.getRegexpString());
+    }
+  }
+
+  /** Add ordering, the same way the history reports do.
+  */
+  protected void addOrdering(StringBuilder sb, String[] completeFieldList, SortOrder sort)
+  {
+    Set<String> seen = new HashSet<String>();
+    sb.append(" ORDER BY ");
+    int count = sort.getCount();
+    int i = 0;
+    while (i < count)
+    {
+      if (i > 0)
+        sb.append(",");
+      String column = sort.getColumn(i);
+      sb.append(column);
+      if (sort.getDirection(i) == sort.SORT_ASCENDING)
+        sb.append(" ASC");
+      else
+        sb.append(" DESC");
+      seen.add(column);
+      i++;
+    }
+    for (String field : completeFieldList)
+    {
+      if (!seen.contains(field))
+      {
+        if (i > 0)
+          sb.append(",");
+        sb.append(field).append(" DESC");
+        i++;
+      }
+    }
+  }
+
+  /** Add one history row to a set of rollups, at every granularity.
+  *@param rollups is the set of rollups.
+  *@param row is the history row.
+  */
+  protected static void addToRollups(Map<RollupKey,RollupCounts> rollups, HistoryRow row)
+  {
+    long startTime = row.getStartTime();
+    long endTime = row.getEndTime();
+    long duration = endTime - startTime;
+    for (long granularity : granularities)
+    {
+      long firstBucket = Math.floorDiv(startTime,granularity) * granularity;
+      getCounts(rollups,row,granularity,firstBucket).eventCount++;
+      if (duration <= 0L || duration / granularity >= maxBucketsPerRow)
+      {
+        getCounts(rollups,row,granularity,firstBucket).add(0L,1.0,(double)row.getDataSize());
+        continue;
+      }
+      for (long bucketStart = firstBucket; bucketStart < endTime; bucketStart += granularity)
+      {
+        long overlap = Math.min(endTime,bucketStart + granularity) - Math.max(startTime,bucketStart);
+        double fraction = (double)overlap / (double)duration;
+        getCounts(rollups,row,granularity,bucketStart).add(0L,fraction,(double)row.getDataSize() * fraction);
+      }
+    }
+  }
+
+  /** Find or create the counts for one bucket.
+  */
+  protected static RollupCounts getCounts(Map<RollupKey,RollupCounts> rollups, HistoryRow row, long granularity, long bucketStart)
+  {
+    RollupKey key = new RollupKey(row.getConnectionName(),granularity,bucketStart,row.getActivityType(),row.getResultCode());
+    RollupCounts counts = rollups.get(key);
+    if (counts == null)
+    {
+      counts = new RollupCounts();
+      rollups.put(key,counts);
+    }
+    return counts;
+  }
+
+  /** Find the window of a given size, starting at a bucket boundary, whose buckets have the highest total.
+  * Only windows that start at a non-empty bucket need to be considered, since moving a window's start up to the
+  * first non-empty bucket can only add to its total.
+  *@param bucketStarts are the start times of the non-empty buckets, in ascending order.
+  *@param totals are the totals of those buckets.
+  *@param interval is the window size.
+  *@return the best window, or null if there are no buckets.
+  */
+  protected static WindowMaximum findMaxWindow(long[] bucketStarts, double[] totals, long interval)
+  {
+    WindowMaximum rval = null;
+    double windowTotal = 0.0;
+    int end = 0;
+    for (int start = 0; start < bucketStarts.length; start++)
+    {
+      long windowEnd = bucketStarts[start] + interval;
+      while (end < bucketStarts.length && bucketStarts[end] < windowEnd)
+      {
+        windowTotal += totals[end++];
+      }
+      if (rval == null || windowTotal > rval.total)
+        rval = new WindowMaximum(bucketStarts[start],windowTotal);
+      windowTotal -= totals[start];
+    }
+    return rval;
+  }
+
+  /** Convert a database value to a double.  Sums come back as different types from different databases.
+  */
+  protected static double asDouble(Object value)
+  {
+    if (value instanceof Number)
+      return ((Number)value).doubleValue();
+    return new java.math.BigDecimal(value.toString()).doubleValue();
+  }
+
+  /** Convert a database value to a long.
+  */
+  protected static long asLong(Object value)
+  {
+    if (value instanceof Number)
+      return ((Number)value).longValue();
+    return new java.math.BigDecimal(value.toString()).longValue();
+  }
+
+  /** The identity of a rollup bucket.
+  */
+  protected static class RollupKey
+  {
+    public final String owner;
+    public final long granularity;
+    public final long bucketStart;
+    public final String activityType;
+    public final String resultCode;
+
+    public RollupKey(String owner, long granularity, long bucketStart, String activityType, String resultCode)
+    {
+      this.owner = owner;
+      this.granularity = granularity;
+      this.bucketStart = bucketStart;
+      this.activityType = activityType;
+      this.resultCode = resultCode;
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return owner.hashCode() + (int)(granularity ^ (granularity >>> 32)) + (int)(bucketStart ^ (bucketStart >>> 32)) +
+        activityType.hashCode() + ((resultCode == null)?0:resultCode.hashCode());
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+      if (!(o instanceof RollupKey))
+        return false;
+      RollupKey other = (RollupKey)o;
+      if (granularity != other.granularity || bucketStart != other.bucketStart)
+        return false;
+      if (!owner.equals(other.owner) || !activityType.equals(other.activityType))
+        return false;
+      if (resultCode == null || other.resultCode == null)
+        return resultCode == other.resultCode;
+      return resultCode.equals(other.resultCode);
+    }
+  }
+
+  /** The counts for a rollup bucket.
+  */
+  protected static class RollupCounts
+  {
+    public long eventCount = 0L;
+    public double activityCount = 0.0;
+    public double byteCount = 0.0;
+
+    public void add(long eventCount, double activityCount, double byteCount)
+    {
+      this.eventCount += eventCount;
+      this.activityCount += activityCount;
+      this.byteCount += byteCount;
+    }
+  }
+
+  /** The result of a window search.
+  */
+  protected static class WindowMaximum
+  {
+    public final long windowStart;
+    public final double total;
+
+    public WindowMaximum(long windowStart, double total)
+    {
+      this.windowStart = windowStart;
+      this.total = total;
+    }
+  }
+
+}
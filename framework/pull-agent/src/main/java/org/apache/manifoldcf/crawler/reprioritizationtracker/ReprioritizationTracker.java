@@ -21,6 +21,7 @@ package org.apache.manifoldcf.crawler.reprioritizationtracker;
 import org.apache.manifoldcf.core.interfaces.*;
 import org.apache.manifoldcf.crawler.interfaces.*;
 import org.apache.manifoldcf.crawler.system.Logging;
+import org.apache.manifoldcf.crawler.system.ManifoldCF;
 
 import java.nio.charset.StandardCharsets;
 import java.util.*;
@@ -38,15 +39,30 @@ public class ReprioritizationTracker implements IReprioritizationTracker
   protected final static String trackerProcessIDResource = "_REPR_TRACKER_PID_";
   protected final static String trackerReproIDResource = "_REPR_TRACKER_RID_";
   protected final static String trackerMinimumDepthResource = "_REPR_MINDEPTH_";
+  protected final static String trackerReservationGenerationResource = "_REPR_RESERVATION_GEN_";
+
+  /** Property which describes how many bin values to reserve from the database at one time, per bin.
+  * Values beyond those requested are kept in this process and handed out to its later priority calculations.
+  * A value of 1 (the default) reserves nothing extra. */
+  public final static String binReservationSizeProperty = "org.apache.manifoldcf.crawler.binreservationsize";
   
   /** Lock manager */
   protected final ILockManager lockManager;
   protected final IBinManager binManager;
+  /** Number of bin values to reserve at once */
+  protected final int binReservationSize;
 
   /** Preload requests */
   protected final Map<PreloadKey,PreloadRequest> preloadRequests = new HashMap<PreloadKey,PreloadRequest>();
   /** Preload values */
   protected final Map<PreloadKey,PreloadedValues> preloadedValues = new HashMap<PreloadKey,PreloadedValues>();
+  /** The reservation generation read when the current batch of values was preloaded, or -1 outside of a batch */
+  protected long batchGeneration = -1L;
+
+  /** Values reserved by this process, keyed by bin, in ascending order.  Guarded by reservedValues. */
+  protected final static Map<PreloadKey,double[]> reservedValues = new HashMap<PreloadKey,double[]>();
+  /** The reservation generation the values reserved by this process belong to.  Guarded by reservedValues. */
+  protected static long reservedGeneration = -1L;
     
   /** Constructor.
   */
@@ -55,6 +71,10 @@ public class ReprioritizationTracker implements IReprioritizationTracker
   {
     lockManager = LockManagerFactory.make(threadContext);
     binManager = BinManagerFactory.make(threadContext);
+    int reservationSize = LockManagerFactory.getIntProperty(threadContext,binReservationSizeProperty,1);
+    if (reservationSize < 1)
+      reservationSize = 1;
+    binReservationSize = reservationSize;
   }
   
   /** Start a reprioritization activity.
@@ -79,6 +99,8 @@ public class ReprioritizationTracker implements IReprioritizationTracker
       writeReproID(reproID);
       try
       {
+        // Values reserved before the reset, by any process, are no longer meaningful
+        clearReservedValues();
         binManager.reset();
       }
       catch (Throwable e)
@@ -248,12 +270,59 @@ public class ReprioritizationTracker implements IReprioritizationTracker
   public void preloadBinValues()
     throws ManifoldCFException
   {
+    // Find out once, for the whole batch, whether a reprioritization has discarded the values reserved so far
+    batchGeneration = (binReservationSize == 1)?-1L:readReservationGeneration();
+    // Satisfy what we can from values already reserved, and collect the rest so that
+    // we can get them all from the database at once.
+    List<PreloadKey> neededKeys = new ArrayList<PreloadKey>();
+    List<double[]> partialValues = new ArrayList<double[]>();
     for (PreloadKey pk : preloadRequests.keySet())
     {
       PreloadRequest pr = preloadRequests.get(pk);
-      double[] newValues = binManager.getIncrementBinValuesInTransaction(pk.connectorClass, pk.binName, pr.getWeightedMinimumDepth(), pr.getRequestCount());
-      PreloadedValues pv = new PreloadedValues(newValues);
-      preloadedValues.put(pk,pv);
+      double[] reserved = takeReservedValues(pk, pr.getWeightedMinimumDepth(), pr.getRequestCount());
+      if (reserved.length == pr.getRequestCount())
+        preloadedValues.put(pk,new PreloadedValues(reserved));
+      else
+      {
+        neededKeys.add(pk);
+        partialValues.add(reserved);
+      }
+    }
+
+    if (neededKeys.size() > 0)
+    {
+      String[] connectorClasses = new String[neededKeys.size()];
+      String[] binNames = new String[neededKeys.size()];
+      double[] newBinValues = new double[neededKeys.size()];
+      int[] counts = new int[neededKeys.size()];
+      for (int i = 0; i < neededKeys.size(); i++)
+      {
+        PreloadKey pk = neededKeys.get(i);
+        PreloadRequest pr = preloadRequests.get(pk);
+        connectorClasses[i] = pk.connectorClass;
+        binNames[i] = pk.binName;
+        newBinValues[i] = pr.getWeightedMinimumDepth();
+        // Ask for enough to satisfy the request, plus whatever we keep in reserve
+        counts[i] = pr.getRequestCount() - partialValues.get(i).length + binReservationSize - 1;
+      }
+      double[][] newValues = binManager.getIncrementBinValuesMultipleInTransaction(connectorClasses, binNames, newBinValues, counts);
+      for (int i = 0; i < neededKeys.size(); i++)
+      {
+        PreloadKey pk = neededKeys.get(i);
+        PreloadRequest pr = preloadRequests.get(pk);
+        double[] partial = partialValues.get(i);
+        double[] values = new double[pr.getRequestCount()];
+        int fromDatabase = values.length - partial.length;
+        System.arraycopy(partial,0,values,0,partial.length);
+        System.arraycopy(newValues[i],0,values,partial.length,fromDatabase);
+        preloadedValues.put(pk,new PreloadedValues(values));
+        if (newValues[i].length > fromDatabase)
+        {
+          double[] extra = new double[newValues[i].length - fromDatabase];
+          System.arraycopy(newValues[i],fromDatabase,extra,0,extra.length);
+          putReservedValues(pk,extra);
+        }
+      }
     }
     preloadRequests.clear();
   }
@@ -272,6 +341,7 @@ public class ReprioritizationTracker implements IReprioritizationTracker
   public void clearPreloadedValues()
   {
     preloadedValues.clear();
+    batchGeneration = -1L;
   }
 
   /** Get a bin value.
@@ -292,10 +362,145 @@ public class ReprioritizationTracker implements IReprioritizationTracker
       if (rval != null)
         return rval.doubleValue();
     }
+    double[] reserved = takeReservedValues(key,weightedMinimumDepth,1);
+    if (reserved.length > 0)
+      return reserved[0];
+    // We are inside the caller's transaction here, which may yet be rolled back, so don't reserve anything extra.
     return binManager.getIncrementBinValues(connectorClass, binName, weightedMinimumDepth,1)[0];
   }
   
   // Protected methods
+
+  /** Take up to the requested number of values from the reserved values for a bin.
+  * If the reserved values are below the weighted minimum depth, they are discarded, since a bin value
+  * allocated from the database would have been raised to that depth.  Values are only taken within a batch,
+  * whose reservation generation has been checked when it was preloaded.
+  *@return the values; may be fewer than requested, or none.
+  */
+  protected double[] takeReservedValues(PreloadKey pk, double weightedMinimumDepth, int count)
+  {
+    if (batchGeneration == -1L)
+      return new double[0];
+    synchronized (reservedValues)
+    {
+      if (!useReservedGeneration(batchGeneration))
+        return new double[0];
+      double[] values = reservedValues.get(pk);
+      if (values == null)
+        return new double[0];
+      if (values[0] < weightedMinimumDepth)
+      {
+        reservedValues.remove(pk);
+        return new double[0];
+      }
+      if (count > values.length)
+        count = values.length;
+      double[] rval = new double[count];
+      System.arraycopy(values,0,rval,0,count);
+      if (count == values.length)
+        reservedValues.remove(pk);
+      else
+      {
+        double[] remaining = new double[values.length - count];
+        System.arraycopy(values,count,remaining,0,remaining.length);
+        reservedValues.put(pk,remaining);
+      }
+      return rval;
+    }
+  }
+
+  /** Save reserved values for a bin, for later use by any thread in this process.  If a reprioritization
+  * started after the current batch was preloaded, the values are dropped.
+  */
+  protected void putReservedValues(PreloadKey pk, double[] values)
+  {
+    if (batchGeneration == -1L)
+      return;
+    synchronized (reservedValues)
+    {
+      if (!useReservedGeneration(batchGeneration))
+        return;
+      double[] existing = reservedValues.get(pk);
+      if (existing != null)
+      {
+        // Another thread reserved values for the same bin meanwhile; keep both, in order
+        double[] merged = new double[existing.length + values.length];
+        System.arraycopy(existing,0,merged,0,existing.length);
+        System.arraycopy(values,0,merged,existing.length,values.length);
+        Arrays.sort(merged);
+        values = merged;
+      }
+      reservedValues.put(pk,values);
+    }
+  }
+
+  /** Check a batch's reservation generation against that of the values reserved by this process.  A newer
+  * generation means a reprioritization has started, so the reserved values are thrown away.
+  * Call this ONLY while synchronized on reservedValues.
+  *@return true if the reserved values may be used by the batch.
+  */
+  protected static boolean useReservedGeneration(long generation)
+  {
+    if (generation > reservedGeneration)
+    {
+      reservedValues.clear();
+      reservedGeneration = generation;
+    }
+    return generation == reservedGeneration;
+  }
+
+  /** Discard all reserved values, in every process, by moving on to a new reservation generation.  Other
+  * processes notice when they next preload bin values.  Call this ONLY while holding the tracker write lock.
+  */
+  protected void clearReservedValues()
+    throws ManifoldCFException
+  {
+    long generation = readReservationGeneration() + 1L;
+    writeReservationGeneration(generation);
+    synchronized (reservedValues)
+    {
+      useReservedGeneration(generation);
+    }
+  }
+
+  /** Read the reservation generation.  Reserved values saved under any other generation are stale.
+  */
+  protected long readReservationGeneration()
+    throws ManifoldCFException
+  {
+    byte[] data = lockManager.readData(trackerReservationGenerationResource);
+    if (data == null || data.length != 8)
+      return 0L;
+    return decodeLong(data,0);
+  }
+
+  /** Write the reservation generation.
+  */
+  protected void writeReservationGeneration(long generation)
+    throws ManifoldCFException
+  {
+    byte[] data = new byte[8];
+    encodeLong(data,0,generation);
+    lockManager.writeData(trackerReservationGenerationResource,data);
+  }
+
+  protected static void encodeLong(byte[] data, int offset, long value)
+  {
+    for (int i = 0; i < 8; i++)
+    {
+      data[offset + i] = (byte)((value >> (8 * i)) & 0xffL);
+    }
+  }
+
+  protected static long decodeLong(byte[] data, int offset)
+  {
+    long rval = 0L;
+    for (int i = 0; i < 8; i++)
+    {
+      rval += (((long)data[offset + i]) & 0xffL) << (8 * i);
+    }
+    return rval;
+  }
   
   /** Read process ID.
   *@return processID, or null if none.
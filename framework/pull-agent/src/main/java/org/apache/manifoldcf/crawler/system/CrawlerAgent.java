@@ -72,6 +72,8 @@ public class CrawlerAgent implements IAgent
   protected float lowWaterFactor = 5.0f;
   // Factor in amount to stuff
   protected float stuffAmtFactor = 0.5f;
+  // Whether the stuffer should prefetch the next batch
+  protected boolean stufferPrefetch = false;
 
   /** Process identifier for this agent */
   protected String processID = null;
@@ -371,6 +373,7 @@ public class CrawlerAgent implements IAgent
     stuffAmtFactor = (float)LockManagerFactory.getDoubleProperty(threadContext,ManifoldCF.stuffAmtFactorProperty,2.0);
     if (stuffAmtFactor < 0.1 || stuffAmtFactor > 1000.0)
       throw new ManifoldCFException("Illegal value for the stuffing amount factor", ManifoldCFException.SETUP_ERROR);
+    stufferPrefetch = LockManagerFactory.getBooleanProperty(threadContext,ManifoldCF.stufferPrefetchProperty,false);
 
 
     // Create the threads and objects.  This MUST be completed before there is any chance of "shutdownSystem" getting called.
@@ -395,7 +398,7 @@ public class CrawlerAgent implements IAgent
     finisherThread = new FinisherThread(processID);
     notificationThread = new JobNotificationThread(new NotificationResetManager(processID),processID);
     jobDeleteThread = new JobDeleteThread(processID);
-    stufferThread = new StufferThread(documentQueue,numWorkerThreads,workerResetManager,queueTracker,blockingDocuments,lowWaterFactor,stuffAmtFactor,processID);
+    stufferThread = new StufferThread(documentQueue,numWorkerThreads,workerResetManager,queueTracker,blockingDocuments,lowWaterFactor,stuffAmtFactor,stufferPrefetch,processID);
     expireStufferThread = new ExpireStufferThread(expireQueue,numExpireThreads,workerResetManager,processID);
     setPriorityThread = new SetPriorityThread(numWorkerThreads,blockingDocuments,processID);
     historyCleanupThread = new HistoryCleanupThread(processID);
@@ -26,15 +26,45 @@ import java.util.*;
 * The queue manages thread synchronization so that (a) the "stuffer" thread blocks until queue is empty, and
 * (b) the "reader" threads block if queue is empty.
 * The objects being queued are all QueuedDocumentSet objects.
+*
+* Document sets are grouped by their bin profile (see QueuedDocumentSet.getBinProfile()).  All the sets in a group
+* always receive the same assignment rating, so only the oldest set in each group ever needs to be rated.  The groups
+* are kept in the order of their oldest set, so picking the best-rated set is proportional to the number of distinct
+* bin profiles on the queue rather than the number of queued sets, and stops as soon as a group with the best
+* possible rating is found.  The set chosen is always the same one that a rating of every queued set, in queue order,
+* would have picked.
+*
+* The stuffer thread may also stage document sets ahead of time.  Staged sets are not visible to the reader threads
+* until the stuffer releases them, but they are discarded along with the rest of the queue on a reset.
 */
 public class DocumentQueue
 {
   public static final String _rcsid = "@(#)$Id: DocumentQueue.java 988245 2010-08-23 18:39:35Z kwright $";
 
-  // Since the queue has a maximum size, an ArrayList is a fine way to keep it
-  protected final List<QueuedDocumentSet> queue = new ArrayList<QueuedDocumentSet>();
+  /** The best possible assignment rating; see QueueTracker.calculateAssignmentRating(). */
+  protected final static double bestPossibleRating = 0.0;
+
+  // The queued document sets, grouped by bin profile.  This map is also the queue's lock.
+  protected final Map<String,ProfileQueue> profileQueues = new HashMap<String,ProfileQueue>();
+  // The non-empty profile queues, keyed by the sequence number of the oldest document set each contains
+  protected final TreeMap<Long,ProfileQueue> profileQueuesBySequence = new TreeMap<Long,ProfileQueue>();
+  // The total number of queued document sets
+  protected int queueSize = 0;
+  // Document sets that have been staged by the stuffer thread but not yet released to the reader threads
+  protected final List<QueuedDocumentSet> stagedSets = new ArrayList<QueuedDocumentSet>();
+  // The next sequence number to hand out
+  protected long nextSequenceNumber = 0L;
   // This flag gets set to 'true' if the queue is being cleared due to a reset
   protected boolean resetFlag = false;
+  // Total time, in milliseconds, that reader threads have spent waiting on an empty queue
+  protected long idleWorkerTime = 0L;
+  // Number of times a reader thread had to wait on an empty queue
+  protected long idleWorkerWaitCount = 0L;
+
+  // The stuffer thread waits on this object until the queue drops to its low-water mark
+  protected final Object lowWaterLock = new Object();
+  // The low-water mark the stuffer is currently waiting for; -1 if nobody is waiting
+  protected volatile int lowWaterMark = -1;
 
   /** Constructor.
   */
@@ -46,10 +76,10 @@ public class DocumentQueue
   */
   public void reset()
   {
-    synchronized (queue)
+    synchronized (profileQueues)
     {
       resetFlag = true;
-      queue.notifyAll();
+      profileQueues.notifyAll();
     }
   }
 
@@ -57,9 +87,12 @@ public class DocumentQueue
   */
   public void clear()
   {
-    synchronized (queue)
+    synchronized (profileQueues)
     {
-      queue.clear();
+      profileQueues.clear();
+      profileQueuesBySequence.clear();
+      queueSize = 0;
+      stagedSets.clear();
       resetFlag = false;
     }
   }
@@ -69,24 +102,125 @@ public class DocumentQueue
   */
   public boolean checkIfEmpty(int n)
   {
-    synchronized (queue)
+    synchronized (profileQueues)
     {
-      if (queue.size() <= n)
+      if (queueSize <= n)
         return true;
     }
     return false;
   }
 
+  /** Wait until the queue drops to the low-water mark, or until the specified time has elapsed.
+  * Reader threads signal the waiting stuffer thread as soon as they pull the queue down to the
+  * mark, so the stuffer does not need to poll.
+  *@param n is the low-water mark.
+  *@param maxWait is the maximum time to wait, in milliseconds.
+  *@return true if the queue is at or below the low-water mark.
+  */
+  public boolean waitForLowWater(int n, long maxWait)
+    throws InterruptedException
+  {
+    synchronized (lowWaterLock)
+    {
+      lowWaterMark = n;
+      if (checkIfEmpty(n))
+        return true;
+      lowWaterLock.wait(maxWait);
+      return checkIfEmpty(n);
+    }
+  }
+
+  /** Get the total time, in milliseconds, that reader threads have spent waiting for
+  * something to be put on the queue.
+  */
+  public long getIdleWorkerTime()
+  {
+    synchronized (profileQueues)
+    {
+      return idleWorkerTime;
+    }
+  }
+
+  /** Get the number of times a reader thread found the queue empty and had to wait.
+  */
+  public long getIdleWorkerWaitCount()
+  {
+    synchronized (profileQueues)
+    {
+      return idleWorkerWaitCount;
+    }
+  }
 
   /** Add a document to the queue.
   *@param dd is the document description.
   */
   public void addDocument(QueuedDocumentSet dd)
   {
-    synchronized (queue)
+    synchronized (profileQueues)
     {
-      queue.add(dd);
-      queue.notify();
+      enqueue(dd);
+      profileQueues.notify();
+    }
+  }
+
+  /** Put a document set on the queue.  The caller must hold the queue lock, and must
+  * notify waiting reader threads.
+  */
+  protected void enqueue(QueuedDocumentSet dd)
+  {
+    String binProfile = dd.getBinProfile();
+    ProfileQueue pq = profileQueues.get(binProfile);
+    if (pq == null)
+    {
+      pq = new ProfileQueue(binProfile);
+      profileQueues.put(binProfile,pq);
+    }
+    long sequenceNumber = nextSequenceNumber++;
+    if (pq.isEmpty())
+      profileQueuesBySequence.put(new Long(sequenceNumber),pq);
+    pq.add(sequenceNumber,dd);
+    queueSize++;
+  }
+
+  /** Stage a document set.  The set will not be handed to reader threads until
+  * releaseStagedDocuments() is called.
+  *@param dd is the document set.
+  */
+  public void stageDocument(QueuedDocumentSet dd)
+  {
+    synchronized (profileQueues)
+    {
+      stagedSets.add(dd);
+    }
+  }
+
+  /** Get the number of staged document sets.
+  */
+  public int getStagedCount()
+  {
+    synchronized (profileQueues)
+    {
+      return stagedSets.size();
+    }
+  }
+
+  /** Release all staged document sets to the reader threads, in the order they were staged.
+  *@return the document sets released, so that their hand-off can be recorded.
+  */
+  public List<QueuedDocumentSet> releaseStagedDocuments()
+  {
+    synchronized (profileQueues)
+    {
+      List<QueuedDocumentSet> rval = new ArrayList<QueuedDocumentSet>(stagedSets);
+      if (stagedSets.size() == 0)
+        return rval;
+      for (QueuedDocumentSet dd : stagedSets)
+      {
+        enqueue(dd);
+      }
+      stagedSets.clear();
+      profileQueues.notifyAll();
+      return rval;
     }
   }
 
@@ -99,42 +233,116 @@ public class DocumentQueue
   public QueuedDocumentSet getDocument(QueueTracker overlapCalculator)
     throws InterruptedException
   {
-    synchronized (queue)
+    QueuedDocumentSet rval;
+    boolean lowWaterReached;
+    synchronized (profileQueues)
     {
       // If we are being reset, return null
       if (resetFlag)
         return null;
 
       // If queue is empty, go to sleep
-      while (queue.size() == 0 && resetFlag == false)
-        queue.wait();
+      if (queueSize == 0)
+      {
+        long waitStart = System.currentTimeMillis();
+        try
+        {
+          while (queueSize == 0 && resetFlag == false)
+            profileQueues.wait();
+        }
+        finally
+        {
+          idleWorkerTime += System.currentTimeMillis() - waitStart;
+          idleWorkerWaitCount++;
+        }
+      }
 
       // If we've been awakened, there's either an entry to grab, or we've been
       // awakened because it's time to reset.
       if (resetFlag)
         return null;
 
-      // Go through all the documents and pick the one with the best rating
-      int i = 0;
-      int bestIndex = -1;
+      // Go through the profiles, oldest first, and pick the one with the best rating.  Ties go to the
+      // oldest, so we can stop as soon as nothing better is possible.
+      ProfileQueue bestQueue = null;
       double bestRating = Double.NEGATIVE_INFINITY;
-      while (i < queue.size())
+      for (ProfileQueue pq : profileQueuesBySequence.values())
       {
-        QueuedDocumentSet dd = queue.get(i);
-        // Evaluate each document's bins.  These will be saved in the QueuedDocumentSet.
-        double rating = dd.calculateAssignmentRating(overlapCalculator);
-        if (bestIndex == -1 || rating > bestRating)
+        // Evaluate the oldest document set's bins; the others in this profile will rate the same.
+        double rating = pq.peek().calculateAssignmentRating(overlapCalculator);
+        if (bestQueue == null || rating > bestRating)
         {
-          bestIndex = i;
+          bestQueue = pq;
           bestRating = rating;
         }
-        i++;
+        if (bestRating >= bestPossibleRating)
+          break;
       }
       // Pull off the best one.  DON'T REORDER!!
-      QueuedDocumentSet rval = queue.remove(bestIndex);
-      return rval;
+      profileQueuesBySequence.remove(new Long(bestQueue.peekSequenceNumber()));
+      rval = bestQueue.remove();
+      if (bestQueue.isEmpty())
+        profileQueues.remove(bestQueue.getBinProfile());
+      else
+        profileQueuesBySequence.put(new Long(bestQueue.peekSequenceNumber()),bestQueue);
+      queueSize--;
+      lowWaterReached = queueSize <= lowWaterMark;
+    }
+    // Wake up the stuffer thread, if it's waiting for us.  This must be done outside of the queue lock.
+    if (lowWaterReached)
+    {
+      synchronized (lowWaterLock)
+      {
+        lowWaterLock.notifyAll();
+      }
     }
+    return rval;
   }
 
+  /** This class is a FIFO queue of the document sets sharing one bin profile.
+  */
+  protected static class ProfileQueue
+  {
+    protected final String binProfile;
+    protected final LinkedList<Long> sequenceNumbers = new LinkedList<Long>();
+    protected final LinkedList<QueuedDocumentSet> documentSets = new LinkedList<QueuedDocumentSet>();
+
+    public ProfileQueue(String binProfile)
+    {
+      this.binProfile = binProfile;
+    }
+
+    public String getBinProfile()
+    {
+      return binProfile;
+    }
+
+    public boolean isEmpty()
+    {
+      return documentSets.isEmpty();
+    }
+
+    public void add(long sequenceNumber, QueuedDocumentSet documentSet)
+    {
+      sequenceNumbers.add(new Long(sequenceNumber));
+      documentSets.add(documentSet);
+    }
+
+    public QueuedDocumentSet peek()
+    {
+      return documentSets.getFirst();
+    }
+
+    public long peekSequenceNumber()
+    {
+      return sequenceNumbers.getFirst().longValue();
+    }
+
+    public QueuedDocumentSet remove()
+    {
+      sequenceNumbers.removeFirst();
+      return documentSets.removeFirst();
+    }
+  }
 
 }
@@ -66,6 +66,8 @@ public class FinisherThread extends Thread
           // See if there are any completed jobs
           jobManager.finishJobs();
           Logging.threads.debug("Done cleaning up completed jobs");
+          // Keep the job document counts from building up too many deltas
+          jobManager.compactJobCounts();
           ManifoldCF.sleep(10000L);
         }
         catch (ManifoldCFException e)
@@ -25,12 +25,19 @@ import java.lang.reflect.*;
 
 /** This class describes the thread that cleans up history records.
 * It fires infrequently and removes history records older than a configuration-determined cutoff.
+* It also merges the history rollups written since it last ran.
 */
 public class HistoryCleanupThread extends Thread
 {
   public static final String _rcsid = "@(#)$Id$";
 
   protected static final String historyCleanupIntervalProperty = "org.apache.manifoldcf.crawler.historycleanupinterval";
+
+  /** How far back the first rollup compaction after startup reaches */
+  protected static final long initialCompactionRange = 24L * 60L * 60L * 1000L;
+  /** How far each compaction overlaps the previous one, to catch rollups for long-running activities that were
+  * recorded late */
+  protected static final long compactionOverlap = 60L * 60L * 1000L;
   
   // Local data
   /** Process ID */
@@ -56,6 +63,7 @@ public class HistoryCleanupThread extends Thread
       IRepositoryConnectionManager connectionManager = RepositoryConnectionManagerFactory.make(threadContext);
       // Default zero value means we never clean up, which is the backwards-compatible behavior
       long historyCleanupInterval = LockManagerFactory.getLongProperty(threadContext, historyCleanupIntervalProperty, 0L);
+      long lastCompactionTime = System.currentTimeMillis() - initialCompactionRange;
       // Loop
       while (true)
       {
@@ -74,6 +82,8 @@ public class HistoryCleanupThread extends Thread
             connectionManager.cleanUpHistoryData(currentTime - historyCleanupInterval);
           else
             Logging.threads.debug(" History cleanup thread did nothing because cleanup disabled");
+          connectionManager.compactHistoryRollups(lastCompactionTime - compactionOverlap,currentTime);
+          lastCompactionTime = currentTime;
           // Loop around again, after resting a while
           ManifoldCF.sleep(60L * 60L * 1000L);
         }
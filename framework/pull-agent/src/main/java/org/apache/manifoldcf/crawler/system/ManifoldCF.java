@@ -59,10 +59,16 @@ public class ManifoldCF extends org.apache.manifoldcf.agents.system.ManifoldCF
   protected static final String expireThreadCountProperty = "org.apache.manifoldcf.crawler.expirethreads";
   protected static final String lowWaterFactorProperty = "org.apache.manifoldcf.crawler.lowwaterfactor";
   protected static final String stuffAmtFactorProperty = "org.apache.manifoldcf.crawler.stuffamountfactor";
+  protected static final String stufferPrefetchProperty = "org.apache.manifoldcf.crawler.stufferprefetch";
   protected static final String connectorsConfigurationFileProperty = "org.apache.manifoldcf.connectorsconfigurationfile";
   protected static final String databaseSuperuserNameProperty = "org.apache.manifoldcf.dbsuperusername";
   protected static final String databaseSuperuserPasswordProperty = "org.apache.manifoldcf.dbsuperuserpassword";
 
+  // Queued documents signal.  This is used to wake up the stuffer thread when documents are added to the job queue
+  // in this process.
+  protected static final Object queuedDocumentsLock = new Object();
+  protected static long queuedDocumentsCounter = 0L;
+
   
   /** Initialize environment.
   */
@@ -1036,6 +1042,45 @@ public class ManifoldCF extends org.apache.manifoldcf.agents.system.ManifoldCF
     return LockManagerFactory.getIntProperty(threadContext,cleanupThreadCountProperty,10);
   }
   
+  /** Note that documents have been added to the job queue by this process.
+  * Any thread waiting in waitForQueuedDocuments() will be woken up.
+  */
+  public static void noteDocumentsQueued()
+  {
+    synchronized (queuedDocumentsLock)
+    {
+      queuedDocumentsCounter++;
+      queuedDocumentsLock.notifyAll();
+    }
+  }
+
+  /** Get the current value of the queued documents counter.  Pass this value to
+  * waitForQueuedDocuments() in order to wait for any subsequent queuing activity.
+  */
+  public static long getQueuedDocumentsCounter()
+  {
+    synchronized (queuedDocumentsLock)
+    {
+      return queuedDocumentsCounter;
+    }
+  }
+
+  /** Wait until documents have been added to the job queue, or until the specified time has elapsed.
+  *@param counter is the value of the queued documents counter before the caller last looked for documents.
+  *@param maxWait is the maximum time to wait, in milliseconds.
+  *@return true if documents were queued since the counter value was obtained.
+  */
+  public static boolean waitForQueuedDocuments(long counter, long maxWait)
+    throws InterruptedException
+  {
+    synchronized (queuedDocumentsLock)
+    {
+      if (queuedDocumentsCounter == counter)
+        queuedDocumentsLock.wait(maxWait);
+      return queuedDocumentsCounter != counter;
+    }
+  }
+
   /** Requeue documents due to carrydown.
   */
   public static void requeueDocumentsDueToCarrydown(IJobManager jobManager,
@@ -2821,21 +2866,20 @@ public class ManifoldCF extends org.apache.manifoldcf.agents.system.ManifoldCF
 
     IJobManager jobManager = JobManagerFactory.make(tc);
       
-    IResultSet result;
-    String[] resultColumns;
+    ResultsetNodeBuilder builder;
       
     if (reportType.equals("document"))
     {
+      builder = new ResultsetNodeBuilder(new String[]{"identifier","job","state","status","scheduled","action","retrycount","retrylimit"});
       try
       {
-        result = jobManager.genDocumentStatus(connectionName,filterCriteria,sortOrder,startRow,rowCount);
+        jobManager.genDocumentStatus(connectionName,filterCriteria,sortOrder,startRow,rowCount,builder);
       }
       catch (ManifoldCFException e)
       {
         createErrorNode(output,e);
         return READRESULT_FOUND;
       }
-      resultColumns = new String[]{"identifier","job","state","status","scheduled","action","retrycount","retrylimit"};
     }
     else if (reportType.equals("status"))
     {
@@ -2859,22 +2903,22 @@ public class ManifoldCF extends org.apache.manifoldcf.agents.system.ManifoldCF
       else
         idBucket = new BucketDescription(idBucketList.get(0),isInsensitiveIdBucket);
         
+      builder = new ResultsetNodeBuilder(new String[]{"idbucket","inactive","processing","expiring","deleting",
+        "processready","expireready","processwaiting","expirewaiting","waitingforever","hopcountexceeded"});
       try
       {
-        result = jobManager.genQueueStatus(connectionName,filterCriteria,sortOrder,idBucket,startRow,rowCount);
+        jobManager.genQueueStatus(connectionName,filterCriteria,sortOrder,idBucket,startRow,rowCount,builder);
       }
       catch (ManifoldCFException e)
       {
         createErrorNode(output,e);
         return READRESULT_FOUND;
       }
-      resultColumns = new String[]{"idbucket","inactive","processing","expiring","deleting",
-        "processready","expireready","processwaiting","expirewaiting","waitingforever","hopcountexceeded"};
     }
     else
       throw new ManifoldCFException("Unknown report type '"+reportType+"'.");
 
-    createResultsetNode(output,result,resultColumns);
+    builder.addRowNodes(output);
     return READRESULT_FOUND;
   }
   
@@ -3049,21 +3093,23 @@ public class ManifoldCF extends org.apache.manifoldcf.agents.system.ManifoldCF
 
     IRepositoryConnectionManager connectionManager = RepositoryConnectionManagerFactory.make(tc);
       
-    IResultSet result;
-    String[] resultColumns;
+    // The simple report has a row per event, so it is streamed; the others are summaries
+    ResultsetNodeBuilder builder = null;
+    IResultSet result = null;
+    String[] resultColumns = null;
       
     if (reportType.equals("simple"))
     {
+      builder = new ResultsetNodeBuilder(new String[]{"starttime","resultcode","resultdesc","identifier","activity","bytes","elapsedtime"});
       try
       {
-        result = connectionManager.genHistorySimple(connectionName,filterCriteria,sortOrder,startRow,rowCount);
+        connectionManager.genHistorySimple(connectionName,filterCriteria,sortOrder,startRow,rowCount,builder);
       }
       catch (ManifoldCFException e)
       {
         createErrorNode(output,e);
         return READRESULT_FOUND;
       }
-      resultColumns = new String[]{"starttime","resultcode","resultdesc","identifier","activity","bytes","elapsedtime"};
     }
     else if (reportType.equals("maxactivity"))
     {
@@ -3215,7 +3261,10 @@ public class ManifoldCF extends org.apache.manifoldcf.agents.system.ManifoldCF
     else
       throw new ManifoldCFException("Unknown report type '"+reportType+"'.");
 
-    createResultsetNode(output,result,resultColumns);
+    if (builder != null)
+      builder.addRowNodes(output);
+    else
+      createResultsetNode(output,result,resultColumns);
     return READRESULT_FOUND;
   }
   
@@ -3226,26 +3275,63 @@ public class ManifoldCF extends org.apache.manifoldcf.agents.system.ManifoldCF
     // Go through result set and add results to output
     for (int i = 0; i < result.getRowCount(); i++)
     {
-      IResultRow row = result.getRow(i);
-      ConfigurationNode rowValue = new ConfigurationNode(API_ROWNODE);
-      for (String columnName : resultColumns)
+      output.addChild(output.getChildCount(),createRowNode(result.getRow(i),resultColumns));
+    }
+  }
+
+  /** Build the output node for one report row. */
+  protected static ConfigurationNode createRowNode(IResultRow row, String[] resultColumns)
+  {
+    ConfigurationNode rowValue = new ConfigurationNode(API_ROWNODE);
+    for (String columnName : resultColumns)
+    {
+      ConfigurationNode columnValue = new ConfigurationNode(API_COLUMNNODE);
+      Object value = row.getValue(columnName);
+      String valueToUse;
+      if (value == null)
+        valueToUse = "";
+      else
+        valueToUse = value.toString();
+      ConfigurationNode nameNode = new ConfigurationNode(API_NAMENODE);
+      nameNode.setValue(columnName);
+      columnValue.addChild(columnValue.getChildCount(),nameNode);
+      ConfigurationNode valueNode = new ConfigurationNode(API_VALUENODE);
+      valueNode.setValue(valueToUse);
+      columnValue.addChild(columnValue.getChildCount(),valueNode);
+      rowValue.addChild(rowValue.getChildCount(),columnValue);
+    }
+    return rowValue;
+  }
+
+  /** Row handler for streamed reports, which turns each row into its output node as it is read, so that the
+  * report is never also held as a resultset.  The nodes are only added to the output once the report is complete,
+  * so a report that fails part way leaves nothing but its error behind.  Rows are handed to the handler on the
+  * thread that runs the query, while the requesting thread waits.
+  */
+  protected static class ResultsetNodeBuilder implements IResultRowHandler
+  {
+    protected final String[] resultColumns;
+    protected final List<ConfigurationNode> rowNodes = new ArrayList<ConfigurationNode>();
+
+    public ResultsetNodeBuilder(String[] resultColumns)
+    {
+      this.resultColumns = resultColumns;
+    }
+
+    @Override
+    public void handleRow(IResultRow row)
+      throws ManifoldCFException
+    {
+      rowNodes.add(createRowNode(row,resultColumns));
+    }
+
+    /** Add the row nodes to the output. */
+    public void addRowNodes(Configuration output)
+    {
+      for (ConfigurationNode rowNode : rowNodes)
       {
-        ConfigurationNode columnValue = new ConfigurationNode(API_COLUMNNODE);
-        Object value = row.getValue(columnName);
-        String valueToUse;
-        if (value == null)
-          valueToUse = "";
-        else
-          valueToUse = value.toString();
-        ConfigurationNode nameNode = new ConfigurationNode(API_NAMENODE);
-        nameNode.setValue(columnName);
-        columnValue.addChild(columnValue.getChildCount(),nameNode);
-        ConfigurationNode valueNode = new ConfigurationNode(API_VALUENODE);
-        valueNode.setValue(valueToUse);
-        columnValue.addChild(columnValue.getChildCount(),valueNode);
-        rowValue.addChild(rowValue.getChildCount(),columnValue);
-      }
-      output.addChild(output.getChildCount(),rowValue);
+        output.addChild(output.getChildCount(),rowNode);
+      }
     }
   }
   
@@ -38,6 +38,8 @@ public class QueuedDocumentSet
   protected final IJobDescription jobDescription;
   /** The connection description that applies to this document set. */
   protected final IRepositoryConnection connection;
+  /** The bin profile of this document set. */
+  protected final String binProfile;
 
   /** Constructor.
   *@param documents is the arraylist representing the documents accumulated for a single connection.
@@ -47,6 +49,7 @@ public class QueuedDocumentSet
     this.documents = (QueuedDocument[])documents.toArray(new QueuedDocument[0]);
     this.jobDescription = jobDescription;
     this.connection = connection;
+    this.binProfile = calculateBinProfile();
   }
 
   /** Get the number of documents.
@@ -109,6 +112,42 @@ public class QueuedDocumentSet
 
   }
 
+  /** Get the bin profile for this set.  The bin profile is a string which describes the connection and
+  * the bins of every document in the set, independent of document order.  Two sets with the same bin profile
+  * will always receive the same assignment rating.
+  *@return the bin profile.
+  */
+  public String getBinProfile()
+  {
+    return binProfile;
+  }
+
+  /** Calculate the bin profile for this set.
+  */
+  protected String calculateBinProfile()
+  {
+    String[] documentProfiles = new String[documents.length];
+    for (int i = 0; i < documents.length; i++)
+    {
+      StringBuilder sb = new StringBuilder();
+      for (String binName : documents[i].getBinNames())
+      {
+        // Length-prefix each bin name so that no two different bin lists can collide
+        sb.append(binName.length()).append(":").append(binName);
+      }
+      documentProfiles[i] = sb.toString();
+    }
+    Arrays.sort(documentProfiles);
+    StringBuilder sb = new StringBuilder();
+    String connectionName = (connection == null)?"":connection.getName();
+    sb.append(connectionName.length()).append(":").append(connectionName);
+    for (String documentProfile : documentProfiles)
+    {
+      sb.append("/").append(documentProfile.length()).append(":").append(documentProfile);
+    }
+    return sb.toString();
+  }
+
   /** Calculate a rating for this set.
   *@param overlapCalculator is the calculator object.
   *@return the rating.
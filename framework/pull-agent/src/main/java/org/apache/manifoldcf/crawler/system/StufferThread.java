@@ -26,7 +26,15 @@ import java.util.*;
 import java.lang.reflect.*;
 
 /** This class represents the stuffer thread.  This thread's job is to request documents from the database and add them to the
-* document queue.  The thread then sleeps until the document queue is empty again.
+* document queue.  The thread then sleeps until the document queue drops to its low-water mark again, at which point
+* the worker threads wake it up.  If no documents were found, the thread sleeps until more documents are queued in
+* this process, or until a timeout elapses.
+*
+* If prefetching is enabled, the thread fetches the next batch of documents as soon as it has handed the previous batch
+* to the worker threads, and stages it in the document queue.  The staged batch is released to the worker threads when
+* the queue drops to its low-water mark.  This way the time spent in the database overlaps with document processing.
+* At most one batch is ever staged, and it is discarded, like everything else on the queue, if the worker threads
+* are reset.
 */
 public class StufferThread extends Thread
 {
@@ -37,6 +45,10 @@ public class StufferThread extends Thread
   /** Datum which contains the last time, in milliseconds since epoch, that any stuffer thread in the cluster
       successfully fired. */
   protected final static String stufferThreadLastTimeDatumName = "_STUFFERTHREAD_LASTTIME";
+  /** The minimum time to sleep, in milliseconds, when no documents were found */
+  protected final static long minimumEmptySleepTime = 250L;
+  /** The maximum time to sleep, in milliseconds, when no documents were found */
+  protected final static long maximumEmptySleepTime = 2000L;
   
   // Local data
   
@@ -56,14 +68,18 @@ public class StufferThread extends Thread
   protected final BlockingDocuments blockingDocuments;
   /** Process ID */
   protected final String processID;
+  /** True if the next batch should be fetched before the queue reaches its low-water mark */
+  protected final boolean prefetch;
   
   /** Constructor.
   *@param documentQueue is the document queue we'll be stuffing.
   *@param n represents the number of threads that will be processing queued stuff, NOT the
   * number of documents to be done at once!
+  *@param prefetch is true if the next batch of documents should be fetched and staged while the current one is being
+  * processed.
   */
   public StufferThread(DocumentQueue documentQueue, int n, WorkerResetManager resetManager, QueueTracker qt,
-    BlockingDocuments blockingDocuments, float lowWaterFactor, float stuffSizeFactor, String processID)
+    BlockingDocuments blockingDocuments, float lowWaterFactor, float stuffSizeFactor, boolean prefetch, String processID)
     throws ManifoldCFException
   {
     super();
@@ -75,6 +91,7 @@ public class StufferThread extends Thread
     this.queueTracker = qt;
     this.blockingDocuments = blockingDocuments;
     this.processID = processID;
+    this.prefetch = prefetch;
     setName("Stuffer thread");
     setDaemon(true);
     // The priority of this thread is higher than most others.  We want stuffing to proceed even if the machine
@@ -98,7 +115,8 @@ public class StufferThread extends Thread
 
       IRepositoryConnectorPool repositoryConnectorPool = RepositoryConnectorPoolFactory.make(threadContext);
       
-      Logging.threads.debug("Stuffer thread: Low water mark is "+Integer.toString(lowWaterMark)+"; amount per stuffing is "+Integer.toString(stuffAmt));
+      Logging.threads.debug("Stuffer thread: Low water mark is "+Integer.toString(lowWaterMark)+"; amount per stuffing is "+Integer.toString(stuffAmt)+
+        "; prefetch is "+(prefetch?"on":"off"));
 
       // Hashmap keyed by jobid and containing ArrayLists.
       // This way we can guarantee priority will do the right thing, because the
@@ -120,6 +138,10 @@ public class StufferThread extends Thread
       long lastQueueEnd = -1L;
       boolean lastQueueFullResults = false;
 
+      // Idle worker time as of the last time we looked, so we can report how long worker threads starved
+      long lastIdleWorkerTime = documentQueue.getIdleWorkerTime();
+      long lastIdleWorkerWaitCount = documentQueue.getIdleWorkerWaitCount();
+
       // Loop
       while (true)
       {
@@ -132,20 +154,40 @@ public class StufferThread extends Thread
           // Check if we're okay
           resetManager.waitForReset(threadContext);
 
-          // System.out.println("Waiting...");
-          // Wait until queue is below low water mark.
-          boolean isEmpty = documentQueue.checkIfEmpty(lowWaterMark);
-          if (isEmpty == false)
+          // Wait until queue is below low water mark.  The worker threads will wake us up when it is; the timeout is just
+          // so that we periodically check for resets.
+          // If we are prefetching and have nothing staged, don't wait; go get the next batch right away.
+          boolean waited = false;
+          if (prefetch == false || documentQueue.getStagedCount() > 0)
           {
-            ManifoldCF.sleep(1000L);
-            continue;
+            if (documentQueue.waitForLowWater(lowWaterMark,1000L) == false)
+              continue;
+            waited = true;
+            // Hand whatever we staged last time to the worker threads, and go get the next batch.  Staged documents
+            // are only counted as queued once they are handed out.
+            for (QueuedDocumentSet qds : documentQueue.releaseStagedDocuments())
+            {
+              for (int i = 0; i < qds.getCount(); i++)
+              {
+                queueTracker.addRecord(qds.getDocument(i).getBinNames());
+              }
+            }
           }
           long queueNeededTime = System.currentTimeMillis();
 
-          Logging.threads.debug("Document stuffer thread woke up");
+          if (Logging.threads.isDebugEnabled())
+          {
+            long idleWorkerTime = documentQueue.getIdleWorkerTime();
+            long idleWorkerWaitCount = documentQueue.getIdleWorkerWaitCount();
+            Logging.threads.debug("Document stuffer thread woke up; worker threads were idle for "+(idleWorkerTime - lastIdleWorkerTime)+
+              " ms total ("+(idleWorkerWaitCount - lastIdleWorkerWaitCount)+" waits) since last check");
+            lastIdleWorkerTime = idleWorkerTime;
+            lastIdleWorkerWaitCount = idleWorkerWaitCount;
+          }
 
           // Adjust stuffAmt based on how well we did in the last queuing attempt keeping up with the worker threads.
-          if (lastQueueFullResults)
+          // When we didn't wait for the workers, there's nothing to compare the query time with.
+          if (lastQueueFullResults && waited)
           {
             if (lastQueueEnd - lastQueueStart >= queueNeededTime - lastQueueEnd)
               stuffAmt *= 2;
@@ -181,6 +223,8 @@ public class StufferThread extends Thread
             lockManager.leaveWriteLock(stufferThreadLockName);
           }
 
+          // Note the queuing counter before we look, so that we don't miss documents added while the query runs
+          long queuedDocumentsCounter = ManifoldCF.getQueuedDocumentsCounter();
           lastQueueStart = System.currentTimeMillis();
           DepthStatistics depthStatistics = new DepthStatistics();
           DocumentDescription[] descs = jobManager.getNextDocuments(processID,stuffAmt,stuffingEndTime,stuffingEndTime-stuffingStartTime,
@@ -200,10 +244,13 @@ public class StufferThread extends Thread
           }
 
           // If there are no queuable documents at all, then we can sleep for a while.
-          // The theory is that we need to allow stuff to accumulate.
+          // The theory is that we need to allow stuff to accumulate.  But if documents are added to the job queue
+          // by this process in the meantime, wake up early.  We always wait a short minimum time so that a steady
+          // trickle of additions cannot make us hammer the database with queries that find nothing.
           if (descs.length == 0)
           {
-            ManifoldCF.sleep(2000L);       // 2 seconds
+            ManifoldCF.sleep(minimumEmptySleepTime);
+            ManifoldCF.waitForQueuedDocuments(queuedDocumentsCounter,maximumEmptySleepTime - minimumEmptySleepTime);
             continue;
           }
 
@@ -386,7 +433,8 @@ public class StufferThread extends Thread
               }
               Logging.scheduling.debug("Putting document '"+descs[i].getDocumentIdentifier()+"' with bins ["+sb.toString()+"] onto active queue");
             }
-            queueTracker.addRecord(binNames);
+            if (!prefetch)
+              queueTracker.addRecord(binNames);
 
             if (set.size() >= maxDocuments)
             {
@@ -394,7 +442,10 @@ public class StufferThread extends Thread
               // if (Logging.threads.isDebugEnabled())
               //      Logging.threads.debug("Queuing "+Integer.toString(set.size())+" documents in one request");
               QueuedDocumentSet qds = new QueuedDocumentSet(set,jobs[i],connections[i]);
-              documentQueue.addDocument(qds);
+              if (prefetch)
+                documentQueue.stageDocument(qds);
+              else
+                documentQueue.addDocument(qds);
               set.clear();
             }
           }
@@ -407,7 +458,10 @@ public class StufferThread extends Thread
             if (x != null && x.size() > 0)
             {
               QueuedDocumentSet set = new QueuedDocumentSet(x,jobs[i],connections[i]);
-              documentQueue.addDocument(set);
+              if (prefetch)
+                documentQueue.stageDocument(set);
+              else
+                documentQueue.addDocument(set);
               documentSets.remove(jobID);
             }
           }
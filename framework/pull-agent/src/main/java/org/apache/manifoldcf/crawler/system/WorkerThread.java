@@ -442,6 +442,23 @@ public class WorkerThread extends Thread
                           e.getMessage());
                       }
 
+                      // Send documents held for outputs that take batches.  If that's interrupted, none of them count as indexed.
+                      try
+                      {
+                        activity.flushOutputDocuments();
+                      }
+                      catch (ServiceInterruption e)
+                      {
+                        if (serviceInterruption == null)
+                        {
+                          serviceInterruption = e;
+                          if (!e.jobInactiveAbort())
+                            Logging.jobs.warn("Service interruption reported for job "+
+                            job.getID()+" connection '"+job.getConnectionName()+"': "+
+                            e.getMessage());
+                        }
+                      }
+
                       // Flush remaining references into the database!
                       activity.flush();
 
@@ -1221,12 +1238,15 @@ public class WorkerThread extends Thread
       this.connMgr = connMgr;
       this.legalLinkTypes = legalLinkTypes;
       this.ingestLogger = ingestLogger;
+      // Documents for outputs that take batches are sent together, when the set is finished
+      ingester.beginOutputBatch();
     }
 
     /** Clean up any dangling information, before abandoning this process activity object */
     public void discard()
       throws ManifoldCFException
     {
+      ingester.discardOutputBatch();
       for (DocumentReference dr : referenceList.keySet())
       {
         dr.discard();
@@ -1876,6 +1896,14 @@ public class WorkerThread extends Thread
         resultDescription,childIdentifiers);
     }
 
+    /** Send the documents held for outputs that take batches.
+    */
+    public void flushOutputDocuments()
+      throws ManifoldCFException, ServiceInterruption
+    {
+      ingester.flushOutputBatch();
+    }
+
     /** Flush the outstanding references into the database.
     */
     public void flush()
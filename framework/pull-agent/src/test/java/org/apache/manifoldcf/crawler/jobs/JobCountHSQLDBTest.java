@@ -0,0 +1,186 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.crawler.jobs;
+
+import org.apache.manifoldcf.core.interfaces.*;
+import org.apache.manifoldcf.agents.interfaces.*;
+import org.apache.manifoldcf.crawler.interfaces.*;
+import org.apache.manifoldcf.crawler.system.ManifoldCF;
+import java.util.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/** Check that the job document counts kept as the job queue changes agree with the queue.
+*/
+public class JobCountHSQLDBTest extends org.apache.manifoldcf.crawler.tests.BaseHSQLDB
+{
+  protected IDBInterface database;
+  protected IJobManager jobManager;
+  protected JobQueue jobQueue;
+  protected JobCountManager jobCountManager;
+
+  @Override
+  protected void writeProperties(StringBuilder output)
+    throws Exception
+  {
+    super.writeProperties(output);
+    output.append(
+      "  <property name=\"org.apache.manifoldcf.crawler.jobcounters\" value=\"true\"/>\n"
+    );
+  }
+
+  @Test
+  public void countsFollowQueueChanges()
+    throws Exception
+  {
+    IThreadContext tc = ThreadContextFactory.make();
+    database = DBInterfaceFactory.make(tc,
+      ManifoldCF.getMasterDatabaseName(),
+      ManifoldCF.getMasterDatabaseUsername(),
+      ManifoldCF.getMasterDatabasePassword());
+    jobManager = JobManagerFactory.make(tc);
+    jobQueue = new JobQueue(tc,database);
+    jobCountManager = new JobCountManager(tc,database);
+
+    IRepositoryConnectionManager connectionManager = RepositoryConnectionManagerFactory.make(tc);
+    IRepositoryConnection conn = connectionManager.create();
+    conn.setName("Count test connection");
+    conn.setDescription("Count test connection");
+    conn.setClassName("org.apache.manifoldcf.crawler.tests.TestingRepositoryConnector");
+    conn.setMaxConnections(10);
+    connectionManager.save(conn);
+
+    IOutputConnectionManager outputManager = OutputConnectionManagerFactory.make(tc);
+    IOutputConnection outputConn = outputManager.create();
+    outputConn.setName("Count test output");
+    outputConn.setDescription("Count test output");
+    outputConn.setClassName("org.apache.manifoldcf.agents.tests.TestingOutputConnector");
+    outputConn.setMaxConnections(10);
+    outputManager.save(outputConn);
+
+    IJobDescription job = jobManager.createJob();
+    job.setDescription("Count test job");
+    job.setConnectionName("Count test connection");
+    job.addPipelineStage(-1,true,"Count test output","");
+    job.setType(job.TYPE_SPECIFIED);
+    job.setStartMethod(job.START_DISABLE);
+    job.setHopcountMode(job.HOPCOUNT_ACCURATE);
+    jobManager.save(job);
+    Long jobID = job.getID();
+
+    // A job with nothing queued counts nothing
+    checkCounts(0L,0L,0L,jobManager.getStatus(jobID,true));
+
+    String[] docIDs = new String[]{"doc0","doc1","doc2","doc3"};
+    String[] docHashes = new String[docIDs.length];
+    IPriorityCalculator[] priorities = new IPriorityCalculator[docIDs.length];
+    for (int i = 0; i < docIDs.length; i++)
+    {
+      docHashes[i] = ManifoldCF.hash(docIDs[i]);
+      priorities[i] = new IPriorityCalculator()
+        {
+          public double getDocumentPriority()
+          {
+            return 1.0;
+          }
+        };
+    }
+    jobQueue.insertNewRecordMultiple(jobID,docHashes,docIDs,priorities,0L,new String[docIDs.length][]);
+    checkCounts(4L,4L,0L,jobManager.getStatus(jobID,true));
+    Long[] recordIDs = new Long[docIDs.length];
+    for (int i = 0; i < docIDs.length; i++)
+    {
+      recordIDs[i] = getRecordID(jobID,docHashes[i]);
+    }
+
+    // Picking up a document doesn't change the counts; finishing it does
+    jobQueue.updateActiveRecord(recordIDs[0],JobQueue.STATUS_PENDING,"test");
+    checkCounts(4L,4L,0L,jobManager.getStatus(jobID,true));
+    jobQueue.updateCompletedRecord(jobID,recordIDs[0],JobQueue.STATUS_ACTIVE);
+    checkCounts(4L,3L,1L,jobManager.getStatus(jobID,true));
+
+    // A document removed by hopcount is no longer outstanding
+    jobQueue.updateActiveRecord(recordIDs[1],JobQueue.STATUS_PENDING,"test");
+    jobQueue.updateOrHopcountRemoveRecord(jobID,recordIDs[1],JobQueue.STATUS_ACTIVE);
+    checkCounts(4L,2L,1L,jobManager.getStatus(jobID,true));
+
+    jobQueue.deleteRecord(recordIDs[2]);
+    checkCounts(3L,1L,1L,jobManager.getStatus(jobID,true));
+
+    // Bulk changes: the completed document is queued again
+    jobQueue.prepareIncrementalScan(jobID);
+    checkCounts(3L,2L,1L,jobManager.getStatus(jobID,true));
+
+    // A requeued document has to be treated as processed
+    jobQueue.setRequeuedStatus(recordIDs[3],new Long(0L),JobQueue.ACTION_RESCAN,-1L,-1);
+    checkCounts(3L,2L,2L,jobManager.getStatus(jobID,true));
+
+    // Counts over the limit are reported as the limit, and not exact
+    JobStatus limited = jobManager.getStatus(jobID,true,2);
+    assertEquals(2L,limited.getDocumentsInQueue());
+    assertFalse(limited.getQueueCountExact());
+    assertEquals(2L,limited.getDocumentsOutstanding());
+    assertTrue(limited.getOutstandingCountExact());
+
+    // Merging the deltas leaves one row for the job, with the same counts
+    jobManager.compactJobCounts();
+    assertEquals(1,countRows(jobID));
+    checkCounts(3L,2L,2L,jobManager.getStatus(jobID,true));
+
+    // The hopcount-removed document goes away, and the rest are up for cleanup
+    jobQueue.prepareFullScan(jobID);
+    checkCounts(2L,0L,2L,jobManager.getStatus(jobID,true));
+
+    // Counting the queue from scratch gives the same answer
+    jobCountManager.clear();
+    jobCountManager.rebuild(jobQueue.getTableName());
+    checkCounts(2L,0L,2L,jobManager.getStatus(jobID,true));
+
+    jobQueue.prepareDeleteScan(jobID);
+    checkCounts(2L,0L,0L,jobManager.getStatus(jobID,true));
+  }
+
+  protected Long getRecordID(Long jobID, String docHash)
+    throws ManifoldCFException
+  {
+    ArrayList list = new ArrayList();
+    list.add(jobID);
+    list.add(docHash);
+    IResultSet set = database.performQuery("SELECT "+JobQueue.idField+" FROM jobqueue WHERE "+JobQueue.jobIDField+"=? AND "+
+      JobQueue.docHashField+"=?",list,null,null);
+    return (Long)set.getRow(0).getValue(JobQueue.idField);
+  }
+
+  protected int countRows(Long jobID)
+    throws ManifoldCFException
+  {
+    ArrayList list = new ArrayList();
+    list.add(jobID);
+    return database.performQuery("SELECT "+JobCountManager.idField+" FROM jobcounts WHERE "+JobCountManager.ownerIDField+"=?",
+      list,null,null).getRowCount();
+  }
+
+  protected static void checkCounts(long total, long outstanding, long processed, JobStatus status)
+  {
+    assertEquals(total,status.getDocumentsInQueue());
+    assertEquals(outstanding,status.getDocumentsOutstanding());
+    assertEquals(processed,status.getDocumentsProcessed());
+  }
+
+}
@@ -0,0 +1,248 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.crawler.repository;
+
+import org.apache.manifoldcf.core.interfaces.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class HistoryWriterTest
+{
+
+  /** A full batch is written right away; a partial one waits for the interval, or for shutdown.
+  */
+  @Test
+  public void batching()
+    throws Exception
+  {
+    RecordingWriter writer = new RecordingWriter(100,5,60000L);
+    writer.start();
+    for (int i = 0; i < 5; i++)
+    {
+      writer.addRow(makeRow(i));
+    }
+    writer.waitForRows(5);
+    // Once a flush has the lock, the writer thread is done with its batch
+    writer.flush(ThreadContextFactory.make());
+    assertEquals(1,writer.getBatchCount());
+
+    writer.addRow(makeRow(5));
+    writer.addRow(makeRow(6));
+    Thread.sleep(500L);
+    assertEquals(5,writer.getRowCount());
+    assertEquals(2,writer.getPendingCount());
+
+    writer.shutdown(ThreadContextFactory.make());
+    assertEquals(7,writer.getRowCount());
+    assertEquals(0,writer.getPendingCount());
+    for (int i = 0; i < 7; i++)
+    {
+      assertEquals(new Long(i),writer.getRow(i).getID());
+    }
+
+    // Rows recorded after shutdown are written directly
+    writer.addRow(makeRow(7));
+    assertEquals(8,writer.getRowCount());
+  }
+
+  /** Recording threads wait when the buffer is full, and go on once the writer catches up.
+  */
+  @Test
+  public void backpressure()
+    throws Exception
+  {
+    final RecordingWriter writer = new RecordingWriter(2,1,60000L);
+    writer.block();
+    writer.start();
+    writer.addRow(makeRow(0));
+    // Wait until the writer is stuck writing the first row
+    while (writer.getPendingCount() != 0)
+    {
+      Thread.sleep(10L);
+    }
+    writer.addRow(makeRow(1));
+    writer.addRow(makeRow(2));
+
+    final Throwable[] failure = new Throwable[1];
+    Thread producer = new Thread()
+      {
+        public void run()
+        {
+          try
+          {
+            writer.addRow(makeRow(3));
+          }
+          catch (Throwable e)
+          {
+            failure[0] = e;
+          }
+        }
+      };
+    producer.start();
+    producer.join(500L);
+    assertTrue(producer.isAlive());
+
+    writer.unblock();
+    producer.join();
+    assertNull(failure[0]);
+    writer.shutdown(ThreadContextFactory.make());
+    assertEquals(4,writer.getRowCount());
+  }
+
+  /** An interrupted writer writes what is left and retires, and recording threads waiting for room go on
+  * to write their rows themselves.
+  */
+  @Test
+  public void interruption()
+    throws Exception
+  {
+    final RecordingWriter writer = new RecordingWriter(2,1,60000L);
+    writer.block();
+    writer.start();
+    writer.addRow(makeRow(0));
+    while (writer.getPendingCount() != 0)
+    {
+      Thread.sleep(10L);
+    }
+    writer.addRow(makeRow(1));
+    writer.addRow(makeRow(2));
+
+    final Throwable[] failure = new Throwable[1];
+    Thread producer = new Thread()
+      {
+        public void run()
+        {
+          try
+          {
+            writer.addRow(makeRow(3));
+          }
+          catch (Throwable e)
+          {
+            failure[0] = e;
+          }
+        }
+      };
+    producer.start();
+    producer.join(500L);
+    assertTrue(producer.isAlive());
+
+    // The row being written when the interrupt arrives is abandoned; the rest are not
+    writer.writerThread.interrupt();
+    Thread.sleep(100L);
+    writer.unblock();
+    writer.writerThread.join(10000L);
+    assertFalse(writer.writerThread.isAlive());
+    producer.join(10000L);
+    assertFalse(producer.isAlive());
+    assertNull(failure[0]);
+    assertEquals(3,writer.getRowCount());
+    assertEquals(0,writer.getPendingCount());
+
+    writer.addRow(makeRow(4));
+    assertEquals(4,writer.getRowCount());
+  }
+
+  protected static HistoryRow makeRow(int i)
+  {
+    return new HistoryRow(new Long(i),"connection",1000L*i,1000L*i+10L,100L,"fetch","doc"+i,"OK",null);
+  }
+
+  /** Writer that keeps rows in memory instead of writing them to the database.
+  */
+  protected static class RecordingWriter extends HistoryWriter
+  {
+    protected final List<HistoryRow> rows = new ArrayList<HistoryRow>();
+    protected int batchCount = 0;
+    protected CountDownLatch gate = null;
+
+    public RecordingWriter(int bufferSize, int batchSize, long flushInterval)
+    {
+      super(bufferSize,batchSize,flushInterval);
+    }
+
+    public synchronized void block()
+    {
+      gate = new CountDownLatch(1);
+    }
+
+    public synchronized void unblock()
+    {
+      gate.countDown();
+    }
+
+    @Override
+    protected void writeRows(IThreadContext threadContext, List<HistoryRow> newRows)
+      throws ManifoldCFException
+    {
+      CountDownLatch currentGate;
+      synchronized (this)
+      {
+        currentGate = gate;
+      }
+      if (currentGate != null)
+      {
+        try
+        {
+          currentGate.await();
+        }
+        catch (InterruptedException e)
+        {
+          throw new ManifoldCFException(e.getMessage(),e,ManifoldCFException.INTERRUPTED);
+        }
+      }
+      synchronized (this)
+      {
+        rows.addAll(newRows);
+        batchCount++;
+        notifyAll();
+      }
+    }
+
+    public synchronized void waitForRows(int count)
+      throws InterruptedException
+    {
+      long deadline = System.currentTimeMillis() + 10000L;
+      while (rows.size() < count)
+      {
+        long now = System.currentTimeMillis();
+        if (now >= deadline)
+          fail("Only "+rows.size()+" of "+count+" rows written");
+        wait(deadline - now);
+      }
+    }
+
+    public synchronized int getRowCount()
+    {
+      return rows.size();
+    }
+
+    public synchronized int getBatchCount()
+    {
+      return batchCount;
+    }
+
+    public synchronized HistoryRow getRow(int i)
+    {
+      return rows.get(i);
+    }
+  }
+
+}
@@ -0,0 +1,136 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.crawler.repository;
+
+import org.apache.manifoldcf.core.interfaces.*;
+import org.apache.manifoldcf.crawler.interfaces.*;
+import org.apache.manifoldcf.crawler.system.ManifoldCF;
+import java.util.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/** Check that reports answered from the history rollups agree with the same reports run against the history.
+*/
+public class RepositoryHistoryRollupHSQLDBTest extends org.apache.manifoldcf.crawler.tests.BaseHSQLDB
+{
+  protected final static String connectionName = "Rollup test connection";
+  protected final static long base = 400000L * RepositoryHistoryRollupManager.HOUR;
+
+  @Override
+  protected void writeProperties(StringBuilder output)
+    throws Exception
+  {
+    super.writeProperties(output);
+    output.append(
+      "  <property name=\"org.apache.manifoldcf.crawler.repository.history_rollups\" value=\"true\"/>\n"
+    );
+  }
+
+  @Test
+  public void rollupsMatchHistory()
+    throws Exception
+  {
+    IThreadContext tc = ThreadContextFactory.make();
+    IRepositoryConnectionManager connectionManager = RepositoryConnectionManagerFactory.make(tc);
+    IRepositoryConnection conn = connectionManager.create();
+    conn.setName(connectionName);
+    conn.setDescription(connectionName);
+    conn.setClassName("org.apache.manifoldcf.crawler.tests.TestingRepositoryConnector");
+    conn.setMaxConnections(10);
+    connectionManager.save(conn);
+
+    IDBInterface database = DBInterfaceFactory.make(tc,
+      ManifoldCF.getMasterDatabaseName(),
+      ManifoldCF.getMasterDatabaseUsername(),
+      ManifoldCF.getMasterDatabasePassword());
+    RepositoryHistoryManager historyManager = new RepositoryHistoryManager(tc,database);
+
+    historyManager.addRow(connectionName,base,base+30000L,1000L,"fetch","doc1","OK",null);
+    historyManager.addRow(connectionName,base+30000L,base+90000L,600L,"fetch","doc2","ERR",null);
+    historyManager.addRow(connectionName,base+120000L,base+125000L,0L,"process","doc3","OK",null);
+    historyManager.addRow(connectionName,base+RepositoryHistoryRollupManager.HOUR+5000L,
+      base+RepositoryHistoryRollupManager.HOUR+10000L,300L,"fetch","doc4","OK",null);
+
+    checkReports(historyManager);
+    // Merging the deltas must not change any answers
+    connectionManager.compactHistoryRollups(base - RepositoryHistoryRollupManager.HOUR,base + 2L * RepositoryHistoryRollupManager.HOUR);
+    checkReports(historyManager);
+
+    connectionManager.cleanUpHistoryData(connectionName);
+    assertEquals(0,historyManager.resultCodesReport(connectionName,new FilterCriteria(null,null,null,null,null),new SortOrder(),
+      new BucketDescription("(.*)",false),new BucketDescription("()",false),0,100).getRowCount());
+
+    connectionManager.delete(connectionName);
+  }
+
+  protected void checkReports(RepositoryHistoryManager historyManager)
+    throws Exception
+  {
+    FilterCriteria rollupCriteria = new FilterCriteria(null,new Long(base),new Long(base + 2L * RepositoryHistoryRollupManager.HOUR),null,null);
+    // Matching on the entity forces the report to be run against the history
+    FilterCriteria historyCriteria = new FilterCriteria(null,new Long(base - 1L),new Long(base + 2L * RepositoryHistoryRollupManager.HOUR),
+      new RegExpCriteria(".*",false),null);
+    BucketDescription allEntities = new BucketDescription("()",false);
+    BucketDescription resultCodes = new BucketDescription("(.*)",false);
+
+    Map<String,Long> rollupCounts = getResultCounts(historyManager.resultCodesReport(connectionName,rollupCriteria,new SortOrder(),
+      resultCodes,allEntities,0,100));
+    Map<String,Long> historyCounts = getResultCounts(historyManager.resultCodesReport(connectionName,historyCriteria,new SortOrder(),
+      resultCodes,allEntities,0,100));
+    assertEquals(new Long(3L),rollupCounts.get("OK"));
+    assertEquals(new Long(1L),rollupCounts.get("ERR"));
+    assertEquals(historyCounts,rollupCounts);
+
+    // Busiest minute: all of doc1 and half of doc2
+    IResultSet rollupActivity = historyManager.maxActivityCountReport(connectionName,rollupCriteria,new SortOrder(),allEntities,
+      RepositoryHistoryRollupManager.MINUTE,0,100);
+    IResultSet historyActivity = historyManager.maxActivityCountReport(connectionName,historyCriteria,new SortOrder(),allEntities,
+      RepositoryHistoryRollupManager.MINUTE,0,100);
+    assertEquals(1,rollupActivity.getRowCount());
+    assertEquals(1.5,asDouble(rollupActivity.getRow(0).getValue("activitycount")),0.0001);
+    assertEquals(asDouble(historyActivity.getRow(0).getValue("activitycount")),asDouble(rollupActivity.getRow(0).getValue("activitycount")),0.0001);
+    assertEquals(base,((Long)rollupActivity.getRow(0).getValue("starttime")).longValue());
+
+    // Busiest hour: the first three documents
+    IResultSet rollupBytes = historyManager.maxByteCountReport(connectionName,rollupCriteria,new SortOrder(),allEntities,
+      RepositoryHistoryRollupManager.HOUR,0,100);
+    IResultSet historyBytes = historyManager.maxByteCountReport(connectionName,historyCriteria,new SortOrder(),allEntities,
+      RepositoryHistoryRollupManager.HOUR,0,100);
+    assertEquals(1,rollupBytes.getRowCount());
+    assertEquals(1600.0,asDouble(rollupBytes.getRow(0).getValue("bytecount")),0.0001);
+    assertEquals(asDouble(historyBytes.getRow(0).getValue("bytecount")),asDouble(rollupBytes.getRow(0).getValue("bytecount")),0.0001);
+  }
+
+  protected static Map<String,Long> getResultCounts(IResultSet set)
+  {
+    Map<String,Long> rval = new HashMap<String,Long>();
+    for (int i = 0; i < set.getRowCount(); i++)
+    {
+      IResultRow row = set.getRow(i);
+      rval.put((String)row.getValue("resultcodebucket"),new Long(((Number)row.getValue("eventcount")).longValue()));
+    }
+    return rval;
+  }
+
+  protected static double asDouble(Object value)
+  {
+    return Double.parseDouble(value.toString());
+  }
+
+}
@@ -0,0 +1,102 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.crawler.system;
+
+import org.apache.manifoldcf.core.interfaces.*;
+import org.apache.manifoldcf.agents.interfaces.*;
+import org.apache.manifoldcf.crawler.interfaces.*;
+import java.util.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class DocumentQueueTest
+{
+
+  /** Check that the queue hands out exactly the document sets that a rating of every
+  * queued set, in queue order, would pick.
+  */
+  @Test
+  public void sameChoiceAsLinearScan()
+    throws Exception
+  {
+    Random random = new Random(42L);
+    QueueTracker queueTracker = new QueueTracker();
+    DocumentQueue documentQueue = new DocumentQueue();
+    List<QueuedDocumentSet> reference = new ArrayList<QueuedDocumentSet>();
+    List<QueuedDocumentSet> active = new ArrayList<QueuedDocumentSet>();
+    long documentID = 0L;
+
+    for (int iteration = 0; iteration < 5000; iteration++)
+    {
+      int action = random.nextInt(3);
+      if (action == 0 || reference.size() == 0)
+      {
+        // Queue a new set of one to three documents drawn from a small pool of bins
+        List<QueuedDocument> documents = new ArrayList<QueuedDocument>();
+        int documentCount = 1 + random.nextInt(3);
+        for (int i = 0; i < documentCount; i++)
+        {
+          String[] binNames = new String[]{"host"+random.nextInt(20)};
+          documents.add(new QueuedDocument(new DocumentDescription(new Long(documentID),new Long(1L),"hash"+documentID,"doc"+documentID),
+            new HashMap<String,DocumentIngestStatusSet>(),binNames));
+          documentID++;
+          queueTracker.addRecord(binNames);
+        }
+        QueuedDocumentSet set = new QueuedDocumentSet(documents,null,null);
+        reference.add(set);
+        documentQueue.addDocument(set);
+      }
+      else if (action == 1)
+      {
+        // Pull a set off, and start processing it
+        int bestIndex = -1;
+        double bestRating = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < reference.size(); i++)
+        {
+          double rating = reference.get(i).calculateAssignmentRating(queueTracker);
+          if (bestIndex == -1 || rating > bestRating)
+          {
+            bestIndex = i;
+            bestRating = rating;
+          }
+        }
+        QueuedDocumentSet expected = reference.remove(bestIndex);
+        QueuedDocumentSet actual = documentQueue.getDocument(queueTracker);
+        assertSame(expected,actual);
+        for (int i = 0; i < actual.getCount(); i++)
+        {
+          queueTracker.beginProcessing(actual.getDocument(i).getBinNames());
+        }
+        active.add(actual);
+      }
+      else if (active.size() > 0)
+      {
+        // Finish processing a set
+        QueuedDocumentSet done = active.remove(random.nextInt(active.size()));
+        for (int i = 0; i < done.getCount(); i++)
+        {
+          queueTracker.endProcessing(done.getDocument(i).getBinNames());
+        }
+      }
+    }
+    assertTrue(documentQueue.checkIfEmpty(reference.size()));
+    assertFalse(reference.size() > 0 && documentQueue.checkIfEmpty(reference.size()-1));
+  }
+
+}